@@ -17,52 +17,231 @@
 package com.hippo.drawable;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
 import android.util.Log;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-
-import java.lang.ref.WeakReference;
-
+import java.util.ArrayDeque;
+import java.util.EnumMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
-class BitmapPool {
+/**
+ * Unused bitmaps kept for reuse, bucketed by config and allocation byte count.
+ * <p>
+ * On KitKat and above, any bitmap of the same config which is large enough
+ * is reconfigured to the requested size. Below KitKat, only the same size works.
+ * The least recently put bitmaps are dropped if the pool exceeds its max size.
+ */
+public class BitmapPool {
 
     private static final String TAG = BitmapPool.class.getSimpleName();
 
-    private final Set<WeakReference<Bitmap>> mReusableBitmapSet = new LinkedHashSet<>();
+    // Don't waste a large bitmap on a small request
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final int mMaxSize;
+    private int mSize;
+
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> mBuckets =
+            new EnumMap<>(Bitmap.Config.class);
+    // Bitmaps in put order, the first one is dropped first
+    private final LinkedHashSet<Bitmap> mLru = new LinkedHashSet<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
 
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        } else {
+            return bitmap.getByteCount();
+        }
+    }
+
+    private static int getByteCount(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel;
+        switch (config) {
+            case ALPHA_8:
+                bytesPerPixel = 1;
+                break;
+            case RGB_565:
+            case ARGB_4444:
+                bytesPerPixel = 2;
+                break;
+            case RGBA_F16:
+                bytesPerPixel = 8;
+                break;
+            default:
+                bytesPerPixel = 4;
+                break;
+        }
+        return width * height * bytesPerPixel;
+    }
+
+    /**
+     * Puts an unused bitmap to the pool. Nothing else may draw it after.
+     */
     public synchronized void put(@Nullable Bitmap bitmap) {
-        if (bitmap != null) {
-            mReusableBitmapSet.add(new WeakReference<>(bitmap));
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() ||
+                bitmap.getConfig() == null || mLru.contains(bitmap)) {
+            return;
         }
+        int byteCount = getAllocationByteCount(bitmap);
+        if (byteCount > mMaxSize) {
+            return;
+        }
+
+        TreeMap<Integer, ArrayDeque<Bitmap>> buckets = mBuckets.get(bitmap.getConfig());
+        if (buckets == null) {
+            buckets = new TreeMap<>();
+            mBuckets.put(bitmap.getConfig(), buckets);
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(byteCount, bucket);
+        }
+        bucket.addLast(bitmap);
+        mLru.add(bitmap);
+        mSize += byteCount;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
     }
 
+    /**
+     * Returns a mutable bitmap of the size and config, cleared to transparent.
+     * A pooled one is used if possible, otherwise it's a new one.
+     *
+     * @return {@code null} if out of memory
+     */
     @Nullable
-    public synchronized Bitmap get(int width, int height) {
-        final Iterator<WeakReference<Bitmap>> iterator = mReusableBitmapSet.iterator();
-        Bitmap item;
-        while (iterator.hasNext()) {
-            item = iterator.next().get();
-            if (item != null) {
-                if (item.getWidth() == width && item.getHeight() == height) {
-                    // Remove from reusable set so it can't be used again.
-                    iterator.remove();
-                    return item;
-                }
-            } else {
-                // Remove from the set if the reference has been cleared or
-                // it can't be used.
-                iterator.remove();
+    public Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                    (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+                bitmap.reconfigure(width, height, config);
             }
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
         }
 
-        // Can not find reusable bitmap
         try {
-            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            return Bitmap.createBitmap(width, height, config);
         } catch (OutOfMemoryError e) {
             Log.e(TAG, "Out of memory");
             return null;
         }
     }
+
+    /**
+     * Takes a pooled bitmap which can hold the size and config out of the pool.
+     * Its size isn't changed, so it's ready for {@code BitmapFactory.Options.inBitmap}.
+     */
+    @Nullable
+    public synchronized Bitmap getReusable(int width, int height, @NonNull Bitmap.Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> buckets = mBuckets.get(config);
+        int needed = getByteCount(width, height, config);
+        Bitmap bitmap = null;
+
+        if (buckets != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(needed);
+                if (entry != null && entry.getKey() <= needed * MAX_SIZE_MULTIPLE) {
+                    bitmap = entry.getValue().pollFirst();
+                }
+            } else {
+                ArrayDeque<Bitmap> bucket = buckets.get(needed);
+                if (bucket != null) {
+                    for (Iterator<Bitmap> iterator = bucket.iterator(); iterator.hasNext(); ) {
+                        Bitmap item = iterator.next();
+                        if (item.getWidth() == width && item.getHeight() == height) {
+                            iterator.remove();
+                            bitmap = item;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        int byteCount = getAllocationByteCount(bitmap);
+        if (buckets.get(byteCount).isEmpty()) {
+            buckets.remove(byteCount);
+        }
+        mLru.remove(bitmap);
+        mSize -= byteCount;
+        mHitCount++;
+        return bitmap;
+    }
+
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Bitmap> iterator = mLru.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            int byteCount = getAllocationByteCount(bitmap);
+            TreeMap<Integer, ArrayDeque<Bitmap>> buckets = mBuckets.get(bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                buckets.remove(byteCount);
+            }
+            mSize -= byteCount;
+            mEvictionCount++;
+        }
+    }
+
+    public void clear() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "BitmapPool[%dKB/%dKB, hits=%d, misses=%d, puts=%d, evictions=%d]",
+                mSize / 1024, mMaxSize / 1024, mHitCount, mMissCount, mPutCount, mEvictionCount);
+    }
 }
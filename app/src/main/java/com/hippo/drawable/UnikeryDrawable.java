@@ -24,6 +24,8 @@ import androidx.annotation.NonNull;
 import com.hippo.conaco.Conaco;
 import com.hippo.conaco.ConacoTask;
 import com.hippo.conaco.Unikery;
+import com.hippo.ehviewer.EhApplication;
+import com.hippo.ehviewer.ThumbMemoryCache;
 import com.hippo.image.ImageBitmap;
 import com.hippo.image.ImageDrawable;
 import com.hippo.image.RecycledException;
@@ -36,6 +38,7 @@ public class UnikeryDrawable extends WrapDrawable implements Unikery<ImageBitmap
 
     private final ObservedTextView mTextView;
     private final Conaco<ImageBitmap> mConaco;
+    private final ThumbMemoryCache mMemoryCache;
     private int mTaskId = Unikery.INVALID_ID;
     private String mUrl;
 
@@ -43,6 +46,7 @@ public class UnikeryDrawable extends WrapDrawable implements Unikery<ImageBitmap
         mTextView = textView;
         mTextView.setOnWindowAttachListener(this);
         mConaco = conaco;
+        mMemoryCache = EhApplication.getThumbMemoryCache(textView.getContext());
     }
 
     @Override
@@ -59,6 +63,13 @@ public class UnikeryDrawable extends WrapDrawable implements Unikery<ImageBitmap
     public void load(String url) {
         if (url != null) {
             mUrl = url;
+            ImageBitmap bitmap = mMemoryCache.get(url);
+            if (bitmap != null) {
+                mConaco.cancel(this);
+                if (onGetValue(bitmap, Conaco.SOURCE_MEMORY)) {
+                    return;
+                }
+            }
             mConaco.load(new ConacoTask.Builder<ImageBitmap>().setUnikery(this).setUrl(url).setKey(url));
         }
     }
@@ -133,6 +144,10 @@ public class UnikeryDrawable extends WrapDrawable implements Unikery<ImageBitmap
             return false;
         }
 
+        if (source != Conaco.SOURCE_MEMORY && mUrl != null) {
+            mMemoryCache.put(mUrl, value);
+        }
+
         clearDrawable();
 
         setDrawable(drawable);
@@ -27,6 +27,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Debug;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -40,10 +41,15 @@ import com.hippo.a7zip.A7ZipExtractLite;
 import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.conaco.Conaco;
 import com.hippo.content.RecordingApplication;
+import com.hippo.drawable.BitmapPool;
 import com.hippo.ehviewer.client.EhClient;
 import com.hippo.ehviewer.client.EhCookieStore;
 import com.hippo.ehviewer.client.EhDns;
 import com.hippo.ehviewer.client.EhEngine;
+import com.hippo.ehviewer.client.EhHttpCache;
+import com.hippo.ehviewer.client.EhTagDatabase;
+import com.hippo.ehviewer.client.EhTrafficClass;
+import com.hippo.ehviewer.client.GalleryApiCache;
 import com.hippo.ehviewer.client.data.GalleryDetail;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.spider.SpiderDen;
@@ -59,7 +65,6 @@ import com.hippo.util.IoThreadPoolExecutor;
 import com.hippo.util.ReadableTime;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IntIdGenerator;
-import com.hippo.yorozuya.OSUtils;
 import com.hippo.yorozuya.SimpleHandler;
 
 import java.io.File;
@@ -67,7 +72,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
 
@@ -79,6 +83,9 @@ public class EhApplication extends RecordingApplication {
     private static final boolean DEBUG_CONACO = false;
     private static final boolean DEBUG_PRINT_NATIVE_MEMORY = false;
     private static final boolean DEBUG_PRINT_IMAGE_COUNT = false;
+    private static final boolean DEBUG_PRINT_HTTP_CACHE = false;
+    private static final boolean DEBUG_PRINT_THUMB_CACHE = false;
+    private static final boolean DEBUG_PRINT_TRAFFIC = false;
     private static final long DEBUG_PRINT_INTERVAL = 3000L;
 
     private static EhApplication instance;
@@ -89,12 +96,23 @@ public class EhApplication extends RecordingApplication {
     private EhCookieStore mEhCookieStore;
     private EhClient mEhClient;
     private EhProxySelector mEhProxySelector;
+    private EhDns mEhDns;
+    private EhHttpCache mEhHttpCache;
     private OkHttpClient mOkHttpClient;
+    private OkHttpClient mApiOkHttpClient;
+    private OkHttpClient mImageOkHttpClient;
     private ImageBitmapHelper mImageBitmapHelper;
     private Conaco<ImageBitmap> mConaco;
+    private ThumbMemoryCache mThumbMemoryCache;
+    private BitmapPool mBitmapPool;
+    private SpriteTileCache mSpriteTileCache;
     private LruCache<Long, GalleryDetail> mGalleryDetailCache;
     private SimpleDiskCache mSpiderInfoCache;
-    private DownloadManager mDownloadManager;
+    private SimpleDiskCache mArchiveCache;
+    private volatile DownloadManager mDownloadManager;
+    private Startup.Stage[] mStartupStages;
+    private Startup.Stage mA7ZipStage;
+    private Startup.Stage mDownloadManagerStage;
     private Hosts mHosts;
     private FavouriteStatusRouter mFavouriteStatusRouter;
     private boolean initialized = false;
@@ -129,22 +147,66 @@ public class EhApplication extends RecordingApplication {
         return application.mEhProxySelector;
     }
 
+    @NonNull
+    public static EhDns getEhDns(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mEhDns == null) {
+            application.mEhDns = new EhDns(application);
+        }
+        return application.mEhDns;
+    }
+
+    @NonNull
+    public static EhHttpCache getEhHttpCache(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mEhHttpCache == null) {
+            application.mEhHttpCache = new EhHttpCache(application);
+        }
+        return application.mEhHttpCache;
+    }
+
+    // Timeouts, pool and dispatcher are set by EhTrafficClass
+    private static OkHttpClient.Builder newOkHttpClientBuilder(EhApplication application) {
+        EhHttpCache httpCache = getEhHttpCache(application);
+        return new OkHttpClient.Builder()
+                .cookieJar(getEhCookieStore(application))
+                .dns(getEhDns(application))
+                .proxySelector(getEhProxySelector(application))
+                .cache(httpCache.getCache())
+                .addInterceptor(httpCache.statsInterceptor)
+                .addNetworkInterceptor(httpCache.policyInterceptor);
+    }
+
+    /**
+     * Returns the client for html pages and other requests.
+     */
     @NonNull
     public static OkHttpClient getOkHttpClient(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
         if (application.mOkHttpClient == null) {
-            application.mOkHttpClient = new OkHttpClient.Builder()
-                    .connectTimeout(10, TimeUnit.SECONDS)
-                    .readTimeout(10, TimeUnit.SECONDS)
-                    .writeTimeout(10, TimeUnit.SECONDS)
-                    .cookieJar(getEhCookieStore(application))
-                    .dns(new EhDns(application))
-                    .proxySelector(getEhProxySelector(application))
-                    .build();
+            application.mOkHttpClient = EhTrafficClass.PAGE.build(newOkHttpClientBuilder(application));
         }
         return application.mOkHttpClient;
     }
 
+    @NonNull
+    public static OkHttpClient getApiOkHttpClient(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mApiOkHttpClient == null) {
+            application.mApiOkHttpClient = EhTrafficClass.API.build(newOkHttpClientBuilder(application));
+        }
+        return application.mApiOkHttpClient;
+    }
+
+    @NonNull
+    public static OkHttpClient getImageOkHttpClient(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mImageOkHttpClient == null) {
+            application.mImageOkHttpClient = EhTrafficClass.IMAGE.build(newOkHttpClientBuilder(application));
+        }
+        return application.mImageOkHttpClient;
+    }
+
     @NonNull
     public static ImageBitmapHelper getImageBitmapHelper(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
@@ -154,8 +216,14 @@ public class EhApplication extends RecordingApplication {
         return application.mImageBitmapHelper;
     }
 
-    private static int getMemoryCacheMaxSize() {
-        return Math.min(20 * 1024 * 1024, (int) OSUtils.getAppMaxMemory());
+    @NonNull
+    public static ThumbMemoryCache getThumbMemoryCache(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mThumbMemoryCache == null) {
+            application.mThumbMemoryCache = new ThumbMemoryCache(getImageBitmapHelper(application),
+                    ThumbMemoryCache.getMaxSize(application));
+        }
+        return application.mThumbMemoryCache;
     }
 
     @NonNull
@@ -163,12 +231,15 @@ public class EhApplication extends RecordingApplication {
         EhApplication application = ((EhApplication) context.getApplicationContext());
         if (application.mConaco == null) {
             Conaco.Builder<ImageBitmap> builder = new Conaco.Builder<>();
-            builder.hasMemoryCache = true;
-            builder.memoryCacheMaxSize = getMemoryCacheMaxSize();
+            // Decoded thumbnails are kept in ThumbMemoryCache
+            builder.hasMemoryCache = false;
             builder.hasDiskCache = true;
             builder.diskCacheDir = new File(context.getCacheDir(), "thumb");
             builder.diskCacheMaxSize = 80 * 1024 * 1024; // 80MB
-            builder.okHttpClient = getOkHttpClient(context);
+            // Thumbnails are kept in its own disk cache
+            OkHttpClient.Builder clientBuilder = getImageOkHttpClient(context).newBuilder().cache(null);
+            clientBuilder.interceptors().remove(getEhHttpCache(context).statsInterceptor);
+            builder.okHttpClient = clientBuilder.build();
             builder.objectHelper = getImageBitmapHelper(context);
             builder.debug = DEBUG_CONACO;
             application.mConaco = builder.build();
@@ -176,6 +247,27 @@ public class EhApplication extends RecordingApplication {
         return application.mConaco;
     }
 
+    @NonNull
+    public static BitmapPool getBitmapPool(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mBitmapPool == null) {
+            application.mBitmapPool = new BitmapPool(ThumbMemoryCache.getMaxSize(application) / 8);
+        }
+        return application.mBitmapPool;
+    }
+
+    @NonNull
+    public static SpriteTileCache getSpriteTileCache(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mSpriteTileCache == null) {
+            // Half of thumbnail memory cache, 4 to 32 MB, about 70 to 580 tiles of 100x143
+            application.mSpriteTileCache = new SpriteTileCache(application.getResources(),
+                    getConaco(application), getBitmapPool(application),
+                    ThumbMemoryCache.getMaxSize(application) / 2);
+        }
+        return application.mSpriteTileCache;
+    }
+
     @NonNull
     public static LruCache<Long, GalleryDetail> getGalleryDetailCache(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
@@ -202,6 +294,16 @@ public class EhApplication extends RecordingApplication {
         return application.mSpiderInfoCache;
     }
 
+    @NonNull
+    public static SimpleDiskCache getArchiveCache(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (null == application.mArchiveCache) {
+            application.mArchiveCache = new SimpleDiskCache(
+                    new File(context.getCacheDir(), "archive"), 100 * 1024 * 1024); // 100M
+        }
+        return application.mArchiveCache;
+    }
+
     @NonNull
     public static DownloadManager getDownloadManager() {
         return getDownloadManager(instance);
@@ -211,11 +313,28 @@ public class EhApplication extends RecordingApplication {
     public static DownloadManager getDownloadManager(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
         if (application.mDownloadManager == null) {
-            application.mDownloadManager = new DownloadManager(application);
+            application.mDownloadManagerStage.await();
         }
         return application.mDownloadManager;
     }
 
+    /**
+     * Waits for the stages every activity needs, they are started in {@link #onCreate()}.
+     */
+    public static void waitForStartup(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        for (Startup.Stage stage : application.mStartupStages) {
+            stage.await();
+        }
+    }
+
+    /**
+     * Loads A7Zip library if it isn't loaded.
+     */
+    public static void waitForA7Zip() {
+        instance.mA7ZipStage.await();
+    }
+
     @NonNull
     public static Hosts getHosts(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
@@ -266,60 +385,81 @@ public class EhApplication extends RecordingApplication {
 
         super.onCreate();
 
-        //GetText类中的的Resources sResources;被初始化
-        GetText.initialize(this);
-        //StatusCodeException类中的SparseArray<String> ERROR_MESSAGE_ARRAY， SparseArray<String> ERROR_MESSAGE_ARRAY 被初始化
-        StatusCodeException.initialize(this);
-        /**
-         * 初始化
-            private static Context sContext;
-            private static SharedPreferences sSettingsPre;
-            private static EhConfig sEhConfig;
-        * */
-        Settings.initialize(this);
-        /**初始化Readable中的
-         * private static Resources sResources;
-         **/
-        ReadableTime.initialize(this);
-        /**初始化Html中的
-         * private static Resources sResources;
-         **/
-        Html.initialize(this);
-        /**初始化Appconfig中的
-         * private static Context sContext;
-         **/
-        AppConfig.initialize(this);
-        /**
-         * 设置LruCache
-         * */
-        SpiderDen.initialize(this);
+        Startup startup = new Startup(IoThreadPoolExecutor.getInstance());
+        startup.run("main", () -> {
+            //GetText类中的的Resources sResources;被初始化
+            GetText.initialize(this);
+            //StatusCodeException类中的SparseArray<String> ERROR_MESSAGE_ARRAY， SparseArray<String> ERROR_MESSAGE_ARRAY 被初始化
+            StatusCodeException.initialize(this);
+            /**
+             * 初始化
+                private static Context sContext;
+                private static SharedPreferences sSettingsPre;
+                private static EhConfig sEhConfig;
+            * */
+            Settings.initialize(this);
+            /**初始化Readable中的
+             * private static Resources sResources;
+             **/
+            ReadableTime.initialize(this);
+            /**初始化Html中的
+             * private static Resources sResources;
+             **/
+            Html.initialize(this);
+            /**初始化Appconfig中的
+             * private static Context sContext;
+             **/
+            AppConfig.initialize(this);
+            /**
+             * 获得BitmapUtils实例（只初始化了context）
+             * */
+            BitmapUtils.initialize(this);
+
+            AppCompatDelegate.setDefaultNightMode(Settings.getTheme());
+        });
+
         /**
          *  初始化数据库， 建立daoMaster.newSession();
          * */
-        EhDB.initialize(this);
+        Startup.Stage db = startup.add("db", () -> {
+            EhDB.initialize(this);
+            if (EhDB.needMerge()) {
+                EhDB.mergeOldDB(this);
+            }
+        });
         /**
-         * 从EhDB中， 获得EhFilter， 初始化EhEngine
+         * 设置LruCache
          * */
-        EhEngine.initialize();
-
+        Startup.Stage caches = startup.add("caches", () -> {
+            SpiderDen.initialize(this);
+            GalleryApiCache.initialize(this);
+        });
+        Startup.Stage image = startup.add("image", () -> Image.initialize(this));
         /**
-         * 获得BitmapUtils实例（只初始化了context）
+         * 从EhDB中， 获得EhFilter， 初始化EhEngine
          * */
-        BitmapUtils.initialize(this);
-
-        Image.initialize(this);
+        Startup.Stage network = startup.add("network", () -> {
+            EhEngine.initialize(this);
+            // Resolve common hosts before the first request
+            getEhDns(this).prefetch();
+        }, db);
+        mStartupStages = new Startup.Stage[] { db, caches, image, network };
 
         /**
-         * hippo A7Zip
+         * hippo A7Zip, only archives need it
          * */
-        A7Zip.loadLibrary(A7ZipExtractLite.LIBRARY, libname -> ReLinker.loadLibrary(EhApplication.this, libname));
-
-        if (EhDB.needMerge()) {
-            EhDB.mergeOldDB(this);
-        }
-
-        AppCompatDelegate.setDefaultNightMode(Settings.getTheme());
-
+        mA7ZipStage = startup.defer("a7zip", () -> A7Zip.loadLibrary(A7ZipExtractLite.LIBRARY,
+                libname -> ReLinker.loadLibrary(EhApplication.this, libname)));
+        // Loads all download info
+        mDownloadManagerStage = startup.defer("download manager",
+                () -> mDownloadManager = new DownloadManager(this), db, caches, image, network);
+        Startup.Stage tagDatabase = startup.defer("tag database", () -> EhTagDatabase.update(this), network);
+        // Start the rest after the first frame
+        Looper.myQueue().addIdleHandler(() -> {
+            mDownloadManagerStage.start();
+            tagDatabase.start();
+            return false;
+        });
 
         // Do io tasks in new thread
         new AsyncTask<Void, Void, Void>() {
@@ -365,7 +505,8 @@ public class EhApplication extends RecordingApplication {
 
         mIdGenerator.setNextId(Settings.getInt(KEY_GLOBAL_STUFF_NEXT_ID, 0));
 
-        if (DEBUG_PRINT_NATIVE_MEMORY || DEBUG_PRINT_IMAGE_COUNT) {
+        if (DEBUG_PRINT_NATIVE_MEMORY || DEBUG_PRINT_IMAGE_COUNT || DEBUG_PRINT_HTTP_CACHE ||
+                DEBUG_PRINT_THUMB_CACHE || DEBUG_PRINT_TRAFFIC) {
             debugPrint();
         }
 
@@ -394,9 +535,18 @@ public class EhApplication extends RecordingApplication {
     }
 
     public void clearMemoryCache() {
+        if (null != mThumbMemoryCache) {
+            mThumbMemoryCache.clear();
+        }
         if (null != mConaco) {
             mConaco.getBeerBelly().clearMemory();
         }
+        if (null != mSpriteTileCache) {
+            mSpriteTileCache.clear();
+        }
+        if (null != mBitmapPool) {
+            mBitmapPool.clear();
+        }
         if (null != mGalleryDetailCache) {
             mGalleryDetailCache.evictAll();
         }
@@ -406,8 +556,19 @@ public class EhApplication extends RecordingApplication {
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
 
+        if (null != mThumbMemoryCache) {
+            mThumbMemoryCache.trimMemory(level);
+        }
         if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
-            clearMemoryCache();
+            if (null != mSpriteTileCache) {
+                mSpriteTileCache.clear();
+            }
+            if (null != mBitmapPool) {
+                mBitmapPool.clear();
+            }
+            if (null != mGalleryDetailCache) {
+                mGalleryDetailCache.evictAll();
+            }
         }
     }
 
@@ -422,6 +583,16 @@ public class EhApplication extends RecordingApplication {
                 if (DEBUG_PRINT_IMAGE_COUNT) {
                     Log.i(TAG, "Image count: " + Image.getImageCount());
                 }
+                if (DEBUG_PRINT_HTTP_CACHE) {
+                    Log.i(TAG, "Http cache: " + getEhHttpCache(EhApplication.this));
+                }
+                if (DEBUG_PRINT_THUMB_CACHE) {
+                    Log.i(TAG, getThumbMemoryCache(EhApplication.this).toString());
+                    Log.i(TAG, getBitmapPool(EhApplication.this).toString());
+                }
+                if (DEBUG_PRINT_TRAFFIC) {
+                    Log.i(TAG, EhTrafficClass.PAGE + " " + EhTrafficClass.API + " " + EhTrafficClass.IMAGE);
+                }
                 SimpleHandler.getInstance().postDelayed(this, DEBUG_PRINT_INTERVAL);
             }
         }.run();
@@ -36,6 +36,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Hosts {
 
@@ -48,6 +50,8 @@ public class Hosts {
 
   private final SQLiteOpenHelper helper;
   private final SQLiteDatabase db;
+  // All valid entries of the table, get() is called for every connection
+  private final Map<String, InetAddress> cache = new ConcurrentHashMap<>();
 
   public Hosts(Context context, String name) {
     helper = new MSQLiteBuilder()
@@ -57,6 +61,20 @@ public class Hosts {
         .insertColumn(TABLE_HOSTS, COLUMN_IP, String.class)
         .build(context, name, DB_VERSION);
     db = helper.getWritableDatabase();
+
+    Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_HOSTS + ";", null);
+    try {
+      while (cursor.moveToNext()) {
+        String host = SqlUtils.getString(cursor, COLUMN_HOST, null);
+        String ip = SqlUtils.getString(cursor, COLUMN_IP, null);
+        InetAddress inetAddress = toInetAddress(host, ip);
+        if (inetAddress != null) {
+          cache.put(host, inetAddress);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
   }
 
   @Nullable
@@ -271,17 +289,7 @@ public class Hosts {
       return null;
     }
 
-    Cursor cursor = db.rawQuery("SELECT * FROM " + TABLE_HOSTS + " WHERE " + COLUMN_HOST  + " = ?;", new String[] {host});
-    try {
-      if (cursor.moveToNext()) {
-        String ip = SqlUtils.getString(cursor, COLUMN_IP, null);
-        return toInetAddress(host, ip);
-      } else {
-        return null;
-      }
-    } finally {
-      cursor.close();
-    }
+    return cache.get(host);
   }
 
   private boolean contains(String host) {
@@ -311,6 +319,11 @@ public class Hosts {
       db.insert(TABLE_HOSTS, null, values);
     }
 
+    InetAddress inetAddress = toInetAddress(host, ip);
+    if (inetAddress != null) {
+      cache.put(host, inetAddress);
+    }
+
     return true;
   }
 
@@ -319,6 +332,9 @@ public class Hosts {
    */
   public void delete(String host) {
     db.delete(TABLE_HOSTS, COLUMN_HOST + " = ?", new String[] { host });
+    if (host != null) {
+      cache.remove(host);
+    }
   }
 
   /**
@@ -27,8 +27,6 @@ import java.io.IOException;
 
 public class ImageBitmapHelper implements ValueHelper<ImageBitmap> {
 
-    private static final int MAX_CACHE_SIZE = 512 * 512;
-
     @Nullable
     @Override
     public ImageBitmap decode(@NonNull InputStreamPipe isPipe) {
@@ -47,7 +45,8 @@ public class ImageBitmapHelper implements ValueHelper<ImageBitmap> {
 
     @Override
     public int sizeOf(@NonNull String key, @NonNull ImageBitmap value) {
-        return value.getWidth() * value.getHeight() * 4 /* value.getByteCount() TODO Update Image */;
+        // Pixels of ImageBitmap are always RGBA_8888
+        return value.getWidth() * value.getHeight() * 4;
     }
 
     @Override
@@ -62,11 +61,7 @@ public class ImageBitmapHelper implements ValueHelper<ImageBitmap> {
 
     @Override
     public boolean useMemoryCache(@NonNull String key, ImageBitmap value) {
-        if (value != null) {
-            return value.getWidth() * value.getHeight() <= MAX_CACHE_SIZE
-                    /* value.getByteCount() <= MAX_CACHE_BYTE_COUNT TODO Update Image */;
-        } else {
-            return true;
-        }
+        // Conaco has no memory cache, ThumbMemoryCache limits the entry size itself
+        return false;
     }
 }
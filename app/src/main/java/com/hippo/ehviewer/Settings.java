@@ -700,6 +700,28 @@ public class Settings {
         putIntToStr(KEY_MULTI_THREAD_DOWNLOAD, value);
     }
 
+    private static final String KEY_CONCURRENT_DOWNLOAD = "download_concurrent";
+    private static final int DEFAULT_CONCURRENT_DOWNLOAD = 2;
+
+    public static int getConcurrentDownload() {
+        return getIntFromStr(KEY_CONCURRENT_DOWNLOAD, DEFAULT_CONCURRENT_DOWNLOAD);
+    }
+
+    public static void putConcurrentDownload(int value) {
+        putIntToStr(KEY_CONCURRENT_DOWNLOAD, value);
+    }
+
+    private static final String KEY_DOWNLOAD_CONNECTION_LIMIT = "download_connection_limit";
+    private static final int DEFAULT_DOWNLOAD_CONNECTION_LIMIT = 6;
+
+    public static int getDownloadConnectionLimit() {
+        return getIntFromStr(KEY_DOWNLOAD_CONNECTION_LIMIT, DEFAULT_DOWNLOAD_CONNECTION_LIMIT);
+    }
+
+    public static void putDownloadConnectionLimit(int value) {
+        putIntToStr(KEY_DOWNLOAD_CONNECTION_LIMIT, value);
+    }
+
     private static final String KEY_PRELOAD_IMAGE = "preload_image";
     private static final int DEFAULT_PRELOAD_IMAGE = 5;
 
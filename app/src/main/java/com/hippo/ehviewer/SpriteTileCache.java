@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+import com.hippo.conaco.Conaco;
+import com.hippo.conaco.ConacoTask;
+import com.hippo.conaco.Unikery;
+import com.hippo.drawable.BitmapPool;
+import com.hippo.image.ImageBitmap;
+import com.hippo.image.ImageDrawable;
+import com.hippo.image.RecycledException;
+import com.hippo.widget.LoadImageView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Normal previews are cells of a sprite sheet. Each sheet is decoded once
+ * and sliced into tiles, which are kept in a memory cache measured in bytes.
+ * Evicted tiles which no view shows go back to the bitmap pool.
+ * <p>
+ * All methods must be called in UI thread.
+ */
+public class SpriteTileCache {
+
+    private static final String TAG = SpriteTileCache.class.getSimpleName();
+
+    private final Resources mResources;
+    private final Conaco<ImageBitmap> mConaco;
+    private final BitmapPool mPool;
+    private final LruCache<String, Bitmap> mTiles;
+    // Sheet key to the task decoding it
+    private final Map<String, SheetTask> mTasks = new HashMap<>();
+    // The tile each view waits for, a view shows only its latest one
+    private final WeakHashMap<LoadImageView, String> mBindings = new WeakHashMap<>();
+
+    public SpriteTileCache(@NonNull Resources resources, @NonNull Conaco<ImageBitmap> conaco,
+            @NonNull BitmapPool pool, int maxSize) {
+        mResources = resources;
+        mConaco = conaco;
+        mPool = pool;
+        mTiles = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull Bitmap value) {
+                // Bitmaps from the pool may be reconfigured into a larger allocation
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    return value.getAllocationByteCount();
+                } else {
+                    return value.getByteCount();
+                }
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, @NonNull String key,
+                    @NonNull Bitmap oldValue, @Nullable Bitmap newValue) {
+                // A bound view might still draw it
+                if (!mBindings.containsValue(key)) {
+                    mPool.put(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the tile if it is in memory cache.
+     *
+     * @return {@code true} if the tile is shown
+     */
+    public boolean loadFromMemory(@NonNull LoadImageView view, @NonNull String tileKey) {
+        Bitmap bitmap = mTiles.get(tileKey);
+        if (bitmap == null) {
+            return false;
+        }
+        mBindings.put(view, tileKey);
+        view.resetClip();
+        view.load(new BitmapDrawable(mResources, bitmap));
+        return true;
+    }
+
+    /**
+     * Shows the tile, the sheet is decoded if the tile isn't in memory cache.
+     *
+     * @param tiles all known tiles of the sheet, they are sliced together
+     */
+    public void load(@NonNull LoadImageView view, @NonNull String tileKey,
+            @NonNull String sheetKey, @NonNull String sheetUrl, @NonNull List<Tile> tiles) {
+        if (loadFromMemory(view, tileKey)) {
+            return;
+        }
+
+        mBindings.put(view, tileKey);
+        view.unload();
+
+        SheetTask task = mTasks.get(sheetKey);
+        if (task == null) {
+            task = new SheetTask(sheetKey, sheetUrl);
+            mTasks.put(sheetKey, task);
+            task.addTiles(tiles);
+            task.views.add(view);
+            mConaco.load(new ConacoTask.Builder<ImageBitmap>()
+                    .setUnikery(task)
+                    .setKey(sheetKey)
+                    .setUrl(sheetUrl)
+                    .setUseNetwork(true));
+        } else {
+            task.addTiles(tiles);
+            task.views.add(view);
+        }
+    }
+
+    public void clear() {
+        mTiles.evictAll();
+    }
+
+    private void slice(@NonNull ImageBitmap sheet, @NonNull Map<String, Tile> tiles) throws RecycledException {
+        ImageDrawable drawable = new ImageDrawable(sheet);
+        try {
+            drawable.setBounds(0, 0, sheet.getWidth(), sheet.getHeight());
+            for (Tile tile : tiles.values()) {
+                if (tile.width <= 0 || tile.height <= 0 || mTiles.get(tile.key) != null) {
+                    continue;
+                }
+                Bitmap bitmap = mPool.get(tile.width, tile.height, Bitmap.Config.ARGB_8888);
+                if (bitmap == null) {
+                    Log.e(TAG, "Out of memory when slicing " + tile.key);
+                    break;
+                }
+                Canvas canvas = new Canvas(bitmap);
+                canvas.translate(-tile.x, -tile.y);
+                drawable.draw(canvas);
+                mTiles.put(tile.key, bitmap);
+            }
+        } finally {
+            drawable.recycle();
+        }
+    }
+
+    public static class Tile {
+
+        final String key;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+
+        public Tile(@NonNull String key, int x, int y, int width, int height) {
+            this.key = key;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private class SheetTask implements Unikery<ImageBitmap> {
+
+        private final String sheetKey;
+        private final String sheetUrl;
+        private final Map<String, Tile> tiles = new HashMap<>();
+        private final List<LoadImageView> views = new ArrayList<>();
+        private int taskId = Unikery.INVALID_ID;
+
+        SheetTask(String sheetKey, String sheetUrl) {
+            this.sheetKey = sheetKey;
+            this.sheetUrl = sheetUrl;
+        }
+
+        void addTiles(List<Tile> list) {
+            for (Tile tile : list) {
+                tiles.put(tile.key, tile);
+            }
+        }
+
+        @Override
+        public void setTaskId(int id) {
+            taskId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return taskId;
+        }
+
+        @Override
+        public void onMiss(int source) {}
+
+        @Override
+        public void onRequest() {}
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {}
+
+        @Override
+        public void onWait() {}
+
+        @Override
+        public boolean onGetValue(@NonNull ImageBitmap value, int source) {
+            try {
+                slice(value, tiles);
+            } catch (RecycledException e) {
+                Log.d(TAG, "The sheet is recycled", e);
+                onFailure();
+                return false;
+            }
+
+            mTasks.remove(sheetKey);
+            for (LoadImageView view : views) {
+                String tileKey = mBindings.get(view);
+                if (tileKey != null && tiles.containsKey(tileKey) && !loadFromMemory(view, tileKey)) {
+                    // The tile is empty or evicted already
+                    fallback(view, tiles.get(tileKey));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onFailure() {
+            mTasks.remove(sheetKey);
+            for (LoadImageView view : views) {
+                String tileKey = mBindings.get(view);
+                if (tileKey != null && tiles.containsKey(tileKey)) {
+                    fallback(view, tiles.get(tileKey));
+                }
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            mTasks.remove(sheetKey);
+        }
+
+        // Let the view load the sheet itself, it shows the failure and retries
+        private void fallback(LoadImageView view, Tile tile) {
+            mBindings.remove(view);
+            view.setClip(tile.x, tile.y, tile.width, tile.height);
+            view.load(sheetKey, sheetUrl);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Application initializers as a dependency graph.
+ * <p>
+ * A stage runs in the executor after its dependencies are done.
+ * A deferred stage doesn't start until it's started or awaited.
+ * The time of each stage is logged to measure cold start.
+ */
+public final class Startup {
+
+    private static final String TAG = Startup.class.getSimpleName();
+
+    private final Executor mExecutor;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    public Startup(@NonNull Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Runs the task in current thread.
+     */
+    public void run(@NonNull String name, @NonNull Runnable task) {
+        long start = SystemClock.elapsedRealtime();
+        task.run();
+        log(name, start);
+    }
+
+    /**
+     * Adds a stage and starts it.
+     */
+    @NonNull
+    public Stage add(@NonNull String name, @NonNull Runnable task, @NonNull Stage... dependencies) {
+        Stage stage = new Stage(name, task, dependencies);
+        stage.start();
+        return stage;
+    }
+
+    /**
+     * Adds a stage without starting it.
+     */
+    @NonNull
+    public Stage defer(@NonNull String name, @NonNull Runnable task, @NonNull Stage... dependencies) {
+        return new Stage(name, task, dependencies);
+    }
+
+    private void log(String name, long start) {
+        long end = SystemClock.elapsedRealtime();
+        Log.i(TAG, name + ": " + (end - start) + "ms, done at " + (end - mStartTime) + "ms");
+    }
+
+    public final class Stage {
+
+        private final String mName;
+        private final Runnable mTask;
+        private final Stage[] mDependencies;
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Throwable mError;
+
+        private Stage(String name, Runnable task, Stage[] dependencies) {
+            mName = name;
+            mTask = task;
+            mDependencies = dependencies;
+        }
+
+        public void start() {
+            if (mStarted.compareAndSet(false, true)) {
+                mExecutor.execute(this::execute);
+            }
+        }
+
+        private void execute() {
+            try {
+                for (Stage stage : mDependencies) {
+                    stage.await();
+                }
+                long start = SystemClock.elapsedRealtime();
+                mTask.run();
+                log(mName, start);
+            } catch (Throwable t) {
+                Log.e(TAG, mName + " failed", t);
+                mError = t;
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Starts the stage if it isn't started, and waits for it.
+         *
+         * @throws IllegalStateException if the stage failed
+         */
+        public void await() {
+            start();
+
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            Throwable error = mError;
+            if (error != null) {
+                throw new IllegalStateException("Startup stage " + mName + " failed", error);
+            }
+        }
+    }
+}
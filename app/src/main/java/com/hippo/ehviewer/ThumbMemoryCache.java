@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.ehviewer;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+import com.hippo.image.ImageBitmap;
+import com.hippo.yorozuya.MathUtils;
+import java.util.Locale;
+
+/**
+ * Memory cache for decoded thumbnails, in front of the disk cache of Conaco.
+ * <p>
+ * It is sized from the memory class of the device and gives memory back
+ * step by step on {@link ComponentCallbacks2#onTrimMemory(int)}.
+ */
+public class ThumbMemoryCache {
+
+    private static final int MIN_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    private final ImageBitmapHelper mHelper;
+    private final LruCache<String, ImageBitmap> mCache;
+    // A single bitmap can't take too much of the cache, large ones are full images.
+    // Sprite sheets are smaller than this, LoadImageView doesn't put them here.
+    private final int mMaxEntrySize;
+
+    public ThumbMemoryCache(@NonNull ImageBitmapHelper helper, int maxSize) {
+        mHelper = helper;
+        mMaxEntrySize = maxSize / 16;
+        mCache = new LruCache<String, ImageBitmap>(maxSize) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull ImageBitmap value) {
+                return mHelper.sizeOf(key, value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, @NonNull String key,
+                    @NonNull ImageBitmap oldValue, @Nullable ImageBitmap newValue) {
+                mHelper.onRemoveFromMemoryCache(key, oldValue);
+            }
+        };
+    }
+
+    /**
+     * One eighth of the heap the system gives this app, the large one if requested.
+     */
+    public static int getMaxSize(@NonNull Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return MIN_SIZE;
+        }
+        boolean largeHeap = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        int memoryClass = largeHeap ? am.getLargeMemoryClass() : am.getMemoryClass();
+        return MathUtils.clamp(memoryClass * 1024 * 1024 / 8, MIN_SIZE, MAX_SIZE);
+    }
+
+    @Nullable
+    public ImageBitmap get(@NonNull String key) {
+        return mCache.get(key);
+    }
+
+    public void put(@NonNull String key, @NonNull ImageBitmap value) {
+        if (mHelper.sizeOf(key, value) > mMaxEntrySize) {
+            return;
+        }
+        mHelper.onAddToMemoryCache(value);
+        mCache.put(key, value);
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Next to be killed
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Thumbnails can't be seen, but the user might come back soon
+            mCache.trimToSize(mCache.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mCache.trimToSize(mCache.maxSize() * 3 / 4);
+        }
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ThumbMemoryCache[%dKB/%dKB, hits=%d, misses=%d, evictions=%d]",
+                size() / 1024, maxSize() / 1024, hitCount(), missCount(), evictionCount());
+    }
+}
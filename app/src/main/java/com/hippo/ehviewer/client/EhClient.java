@@ -20,15 +20,29 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.collection.LruCache;
 
 import com.hippo.ehviewer.EhApplication;
+import com.hippo.ehviewer.client.data.GalleryDetail;
+import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.client.exception.CancelledException;
+import com.hippo.ehviewer.client.parser.GalleryListParser;
 import com.hippo.util.ExceptionUtils;
 import com.hippo.util.IoThreadPoolExecutor;
 import com.hippo.yorozuya.SimpleHandler;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import okhttp3.Call;
@@ -56,9 +70,17 @@ public class EhClient {
     public static final int METHOD_ARCHIVE_LIST = 17;
     public static final int METHOD_DOWNLOAD_ARCHIVE = 18;
 
+    private static final long RESULT_CACHE_TIME = 15 * 1000; // 15 s
+    private static final int RESULT_CACHE_SIZE = 20;
+
     private final ThreadPoolExecutor mRequestThreadPool;
     private final OkHttpClient mOkHttpClient;
 
+    // Running idempotent requests, tasks with the same key wait for the first one
+    private final Map<String, InFlight> mInFlights = new HashMap<>();
+    // Results of idempotent requests
+    private final LruCache<String, CachedResult> mResultCache = new LruCache<>(RESULT_CACHE_SIZE);
+
     public EhClient(Context context) {
         mRequestThreadPool = IoThreadPoolExecutor.getInstance();
         mOkHttpClient = EhApplication.getOkHttpClient(context);
@@ -67,7 +89,22 @@ public class EhClient {
     public void execute(EhRequest request) {
         if (!request.isCancelled()) {
             //request.getMethod()返回一个int，(登陆等都对应一个int)
-            Task task = new Task(request.getMethod(), request.getCallback(), request.getEhConfig());
+            String key = getKey(request.getMethod(), request.getArgs());
+            // Refresh must not get a cached result, but it still shares a running call
+            Object result = key != null && !request.isRefresh() ? getCachedResult(key) : null;
+            if (result != null) {
+                // Still call back later like a task does
+                Callback callback = request.getCallback();
+                SimpleHandler.getInstance().post(() -> {
+                    if (!request.isCancelled() && callback != null) {
+                        //noinspection unchecked
+                        callback.onSuccess(result);
+                    }
+                });
+                return;
+            }
+
+            Task task = new Task(request.getMethod(), key, request.getCallback(), request.getEhConfig());
             task.executeOnExecutor(mRequestThreadPool, request.getArgs());
             request.task = task;
         } else {
@@ -75,6 +112,99 @@ public class EhClient {
         }
     }
 
+    /**
+     * Returns a key for methods which only read pages, {@code null} for others.
+     * Requests with the same key share a call and its result.
+     */
+    @Nullable
+    private static String getKey(int method, Object[] args) {
+        switch (method) {
+            case METHOD_GET_GALLERY_LIST:
+                // The result is filtered, don't share it after filters change
+                return method + "," + EhFilter.getInstance().getVersion() + Arrays.deepToString(args);
+            case METHOD_GET_GALLERY_DETAIL:
+            case METHOD_GET_PREVIEW_SET:
+                return method + Arrays.deepToString(args);
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private Object getCachedResult(String key) {
+        CachedResult cached = mResultCache.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.time + RESULT_CACHE_TIME < System.currentTimeMillis()) {
+            mResultCache.remove(key);
+            return null;
+        }
+        return copyResult(cached.result);
+    }
+
+    /**
+     * Copies a shared result, so callers are free to modify what they get.
+     * Preview sets aren't changed after parsing, so they are shared as is.
+     */
+    static Object copyResult(Object result) {
+        if (result instanceof GalleryListParser.Result) {
+            GalleryListParser.Result origin = (GalleryListParser.Result) result;
+            GalleryListParser.Result copy = new GalleryListParser.Result();
+            copy.pages = origin.pages;
+            copy.nextPage = origin.nextPage;
+            copy.noWatchedTags = origin.noWatchedTags;
+            if (origin.galleryInfoList != null) {
+                List<GalleryInfo> list = new ArrayList<>(origin.galleryInfoList.size());
+                for (GalleryInfo gi : origin.galleryInfoList) {
+                    list.add(new GalleryInfo(gi));
+                }
+                copy.galleryInfoList = list;
+            }
+            return copy;
+        } else if (result instanceof GalleryDetail) {
+            return new GalleryDetail((GalleryDetail) result);
+        } else {
+            return result;
+        }
+    }
+
+    private static class CachedResult {
+        final Object result;
+        final long time;
+
+        CachedResult(Object result, long time) {
+            this.result = result;
+            this.time = time;
+        }
+    }
+
+    private static class InFlight {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile Object mResult;
+
+        void finish(Object result) {
+            mResult = result;
+            mLatch.countDown();
+        }
+
+        /**
+         * Waits for the result until {@code stop} is set.
+         */
+        Object await(AtomicBoolean stop) throws CancelledException {
+            try {
+                while (!mLatch.await(100, TimeUnit.MILLISECONDS)) {
+                    if (stop.get()) {
+                        throw new CancelledException();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new CancelledException();
+            }
+            return mResult;
+        }
+    }
+
     //一个文件中，不能并列两个public class，但是一个public class可以作为一个public class的内部成员
     //Task类是EhClient类的子成员
     //AsyncTask<Params, Progress, Custom Object>，
@@ -85,6 +215,8 @@ public class EhClient {
     public class Task extends AsyncTask<Object, Void, Object> {
 
         private final int mMethod;
+        @Nullable
+        private final String mKey;
         //Callback为自定义interface
         private Callback mCallback;
         private EhConfig mEhConfig;
@@ -93,9 +225,12 @@ public class EhClient {
         //Atomic类为util.concurrent.atomic
         private final AtomicReference<Call> mCall = new AtomicReference<>();
         private final AtomicBoolean mStop = new AtomicBoolean();
+        // Calls running together, like chunks of gdata requests
+        private final Set<Call> mCalls = new HashSet<>();
 
-        public Task(int method, Callback callback, EhConfig ehConfig) {
+        public Task(int method, @Nullable String key, Callback callback, EhConfig ehConfig) {
             mMethod = method;
+            mKey = key;
             mCallback = callback;
             mEhConfig = ehConfig;
         }
@@ -112,6 +247,22 @@ public class EhClient {
             }
         }
 
+        // Called in any thread
+        public void addCall(Call call) throws CancelledException {
+            synchronized (mCalls) {
+                if (mStop.get()) {
+                    throw new CancelledException();
+                }
+                mCalls.add(call);
+            }
+        }
+
+        public void removeCall(Call call) {
+            synchronized (mCalls) {
+                mCalls.remove(call);
+            }
+        }
+
         public EhConfig getEhConfig() {
             return mEhConfig;
         }
@@ -147,6 +298,12 @@ public class EhClient {
                         call.cancel();
                     }
                 }
+                synchronized (mCalls) {
+                    for (Call call : mCalls) {
+                        call.cancel();
+                    }
+                    mCalls.clear();
+                }
 
                 // Clear
                 mCallback = null;
@@ -162,6 +319,57 @@ public class EhClient {
         //.execute()执行AsyncTask
         //public class Task extends AsyncTask<Object, Void, Object>
         protected Object doInBackground(Object... params) {
+            if (mKey == null) {
+                Object result = doRequest(params);
+                if (!(result instanceof Throwable)) {
+                    // Something may be changed, like rating or favorites
+                    mResultCache.evictAll();
+                }
+                return result;
+            }
+
+            for (;;) {
+                InFlight inFlight;
+                boolean owner;
+                synchronized (mInFlights) {
+                    inFlight = mInFlights.get(mKey);
+                    owner = inFlight == null;
+                    if (owner) {
+                        inFlight = new InFlight();
+                        mInFlights.put(mKey, inFlight);
+                    }
+                }
+
+                if (owner) {
+                    Object result = doRequest(params);
+                    synchronized (mInFlights) {
+                        mInFlights.remove(mKey);
+                    }
+                    // The cache and waiting tasks keep a copy, this task's callback may change the result
+                    Object shared = copyResult(result);
+                    if (!(shared instanceof Throwable)) {
+                        mResultCache.put(mKey, new CachedResult(shared, System.currentTimeMillis()));
+                    }
+                    inFlight.finish(shared);
+                    return result;
+                }
+
+                Object result;
+                try {
+                    result = inFlight.await(mStop);
+                } catch (CancelledException e) {
+                    return e;
+                }
+                if (result instanceof CancelledException && !mStop.get()) {
+                    // The first task is stopped but this one isn't, request again
+                    continue;
+                }
+                return copyResult(result);
+            }
+        }
+
+        @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+        private Object doRequest(Object... params) {
             try {
                 switch (mMethod) {
                     case METHOD_SIGN_IN:
@@ -20,17 +20,27 @@ package com.hippo.ehviewer.client;
  * Created by Hippo on 2018/3/23.
  */
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
 import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.Hosts;
 import com.hippo.ehviewer.Settings;
+import com.hippo.network.Network;
+import com.hippo.util.IoThreadPoolExecutor;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import okhttp3.Dns;
 
 public class EhDns implements Dns {
@@ -56,10 +66,63 @@ public class EhDns implements Dns {
     }
   }
 
+  private static final long CACHE_TIME = 5 * 60 * 1000; // 5 min
+  private static final long NEGATIVE_CACHE_TIME = 30 * 1000; // 30 s
+  private static final int MAX_CACHE_SIZE = 256;
+
+  private final Context context;
   private final Hosts hosts;
+  // System lookup results, in access order
+  private final LinkedHashMap<String, CacheEntry> cache =
+      new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+          return size() > MAX_CACHE_SIZE;
+        }
+      };
 
   public EhDns(Context context) {
+    this.context = context.getApplicationContext();
     hosts = EhApplication.getHosts(context);
+
+    // Results of the old network, failed ones especially, are useless now
+    this.context.registerReceiver(new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        if (!isInitialStickyBroadcast()) {
+          synchronized (cache) {
+            cache.clear();
+          }
+        }
+      }
+    }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  /**
+   * Resolves the hosts the app always connects to in background,
+   * so the first requests don't wait for them.
+   */
+  public void prefetch() {
+    Set<String> hostnames = new LinkedHashSet<>();
+    hostnames.add(EhUrl.DOMAIN_E);
+    hostnames.add(EhUrl.DOMAIN_EX);
+    boolean builtIn = Settings.getBuiltInHosts();
+    if (!builtIn) {
+      hostnames.addAll(builtInHosts.keySet());
+    }
+    for (String hostname : hostnames) {
+      // They are answered without system lookup
+      if ((builtIn && builtInHosts.containsKey(hostname)) || hosts.get(hostname) != null) {
+        continue;
+      }
+      IoThreadPoolExecutor.getInstance().execute(() -> {
+        try {
+          lookup(hostname);
+        } catch (UnknownHostException e) {
+          // Ignore
+        }
+      });
+    }
   }
 
   @Override
@@ -78,13 +141,51 @@ public class EhDns implements Dns {
       }
     }
 
+    long now = SystemClock.elapsedRealtime();
+    CacheEntry entry;
+    synchronized (cache) {
+      entry = cache.get(hostname);
+    }
+    if (entry != null && entry.expire > now) {
+      if (entry.addresses == null) {
+        throw new UnknownHostException("Unable to resolve host \"" + hostname + "\" (cached)");
+      }
+      return entry.addresses;
+    }
+
+    List<InetAddress> addresses;
     try {
-      return Arrays.asList(InetAddress.getAllByName(hostname));
+      addresses = Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(hostname)));
+    } catch (UnknownHostException e) {
+      // Without network, it fails for sure, but it might work once connected
+      if (Network.isConnected(context)) {
+        putCache(hostname, new CacheEntry(null, SystemClock.elapsedRealtime() + NEGATIVE_CACHE_TIME));
+      }
+      throw e;
     } catch (NullPointerException e) {
       UnknownHostException unknownHostException =
           new UnknownHostException("Broken system behaviour for dns lookup of " + hostname);
       unknownHostException.initCause(e);
       throw unknownHostException;
     }
+    putCache(hostname, new CacheEntry(addresses, SystemClock.elapsedRealtime() + CACHE_TIME));
+    return addresses;
+  }
+
+  private void putCache(String hostname, CacheEntry entry) {
+    synchronized (cache) {
+      cache.put(hostname, entry);
+    }
+  }
+
+  private static class CacheEntry {
+    // null for failed lookup
+    final List<InetAddress> addresses;
+    final long expire;
+
+    CacheEntry(List<InetAddress> addresses, long expire) {
+      this.addresses = addresses;
+      this.expire = expire;
+    }
   }
 }
@@ -16,7 +16,9 @@
 
 package com.hippo.ehviewer.client;
 
+import android.content.Context;
 import android.os.Build;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -24,6 +26,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.hippo.ehviewer.AppConfig;
+import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
@@ -52,9 +55,18 @@ import com.hippo.ehviewer.client.parser.VoteCommentParser;
 import com.hippo.network.StatusCodeException;
 import com.hippo.util.ExceptionUtils;
 import com.hippo.yorozuya.AssertUtils;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import okhttp3.Call;
@@ -67,10 +79,8 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
 
 public class EhEngine {
 
@@ -91,8 +101,25 @@ public class EhEngine {
 
     public static EhFilter sEhFilter;
 
-    public static void initialize() {
+    // At most 3 gdata api requests at the same time
+    private static final ThreadPoolExecutor sApiExecutor = new ThreadPoolExecutor(3, 3,
+            10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new PriorityThreadFactory("GalleryApi", Process.THREAD_PRIORITY_BACKGROUND));
+
+    static {
+        sApiExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // api.php requests use their own connection pool and timeouts
+    private static OkHttpClient sApiOkHttpClient;
+
+    public static void initialize(Context context) {
         sEhFilter = EhFilter.getInstance();
+        sApiOkHttpClient = EhApplication.getApiOkHttpClient(context);
+    }
+
+    private static OkHttpClient getApiOkHttpClient(OkHttpClient okHttpClient) {
+        return sApiOkHttpClient != null ? sApiOkHttpClient : okHttpClient;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
@@ -276,8 +303,15 @@ public class EhEngine {
             Response response = call.execute();
             code = response.code();
             headers = response.headers();
-            body = response.body().string();
-            result = GalleryListParser.parse(body);
+            try {
+                result = GalleryListParser.parse(response.body().byteStream());
+            } catch (ParseException e) {
+                // The parser only keeps the head of the body
+                body = e.getBody();
+                throw e;
+            } finally {
+                response.close();
+            }
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
             throwException(call, code, headers, body, e);
@@ -293,22 +327,118 @@ public class EhEngine {
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
     public static List<GalleryInfo> fillGalleryListByApi(@Nullable EhClient.Task task, OkHttpClient okHttpClient,
                                                          List<GalleryInfo> galleryInfoList, String referer) throws Throwable {
+        // Fill galleries seen recently from cache, only request the others
+        List<GalleryInfo> requestList = new ArrayList<>();
+        for (int i = 0, size = galleryInfoList.size(); i < size; i++) {
+            GalleryInfo gi = galleryInfoList.get(i);
+            JSONObject metadata = GalleryApiCache.get(gi.gid);
+            if (metadata != null) {
+                try {
+                    GalleryApiParser.parse(metadata, gi);
+                    continue;
+                } catch (JSONException e) {
+                    GalleryApiCache.remove(gi.gid);
+                }
+            }
+            requestList.add(gi);
+        }
+
         // We can only request 25 items one time at most
         final int MAX_REQUEST_SIZE = 25;
-        List<GalleryInfo> requestItems = new ArrayList<>(MAX_REQUEST_SIZE);
-        for (int i = 0, size = galleryInfoList.size(); i < size; i++) {
-            requestItems.add(galleryInfoList.get(i));
-            if (requestItems.size() == MAX_REQUEST_SIZE || i == size - 1) {
-                doFillGalleryListByApi(task, okHttpClient, requestItems, referer);
-                requestItems.clear();
+        int size = requestList.size();
+        if (size <= MAX_REQUEST_SIZE) {
+            if (size > 0) {
+                doFillGalleryListByApi(task, null, okHttpClient, requestList, referer);
+            }
+            return galleryInfoList;
+        }
+
+        // The executor limits how many requests are running
+        ChunkCalls calls = new ChunkCalls();
+        List<Future<Throwable>> futures = new ArrayList<>();
+        for (int i = 0; i < size; i += MAX_REQUEST_SIZE) {
+            List<GalleryInfo> requestItems = requestList.subList(i, Math.min(i + MAX_REQUEST_SIZE, size));
+            futures.add(sApiExecutor.submit(() -> {
+                try {
+                    doFillGalleryListByApi(task, calls, okHttpClient, requestItems, referer);
+                    return null;
+                } catch (Throwable e) {
+                    ExceptionUtils.throwIfFatal(e);
+                    return e;
+                }
+            }));
+        }
+
+        Throwable error = null;
+        try {
+            for (Future<Throwable> future : futures) {
+                Throwable e;
+                try {
+                    e = future.get();
+                } catch (CancellationException ex) {
+                    continue;
+                } catch (ExecutionException ex) {
+                    e = ex.getCause();
+                }
+                if (e != null && error == null) {
+                    error = e;
+                    // No need to request the rest
+                    cancelChunks(futures, calls);
+                }
             }
+        } catch (InterruptedException e) {
+            // Don't leave the rest running
+            cancelChunks(futures, calls);
+            throw e;
+        }
+        if (error != null) {
+            throw error;
         }
+
         return galleryInfoList;
     }
 
+    private static void cancelChunks(List<Future<Throwable>> futures, ChunkCalls calls) {
+        for (Future<Throwable> future : futures) {
+            future.cancel(false);
+        }
+        calls.cancel();
+    }
+
+    /**
+     * Calls of chunks of one request. Calls added after cancel are cancelled at once.
+     */
+    private static class ChunkCalls {
+
+        private final Set<Call> mCalls = new HashSet<>();
+        private boolean mCancelled;
+
+        synchronized void add(Call call) throws CancelledException {
+            if (mCancelled) {
+                throw new CancelledException();
+            }
+            mCalls.add(call);
+        }
+
+        synchronized void remove(Call call) {
+            mCalls.remove(call);
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+            mCalls.clear();
+        }
+    }
+
+    /**
+     * @param calls the calls of all chunks, null if it's the only one
+     */
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
-    private static void doFillGalleryListByApi(@Nullable EhClient.Task task, OkHttpClient okHttpClient,
-                                               List<GalleryInfo> galleryInfoList, String referer) throws Throwable {
+    private static void doFillGalleryListByApi(@Nullable EhClient.Task task, @Nullable ChunkCalls calls,
+            OkHttpClient okHttpClient, List<GalleryInfo> galleryInfoList, String referer) throws Throwable {
         JSONObject json = new JSONObject();
         json.put("method", "gdata");
         JSONArray ja = new JSONArray();
@@ -327,13 +457,28 @@ public class EhEngine {
         Request request = new EhRequestBuilder(url, referer, origin)
                 .post(RequestBody.create(MEDIA_TYPE_JSON, json.toString()))
                 .build();
-        Call call = okHttpClient.newCall(request);
+        Call call = getApiOkHttpClient(okHttpClient).newCall(request);
 
-        // Put call
+        // Put call, chunks run together so each of them is kept
         if (null != task) {
-            task.setCall(call);
+            task.addCall(call);
+        }
+        try {
+            if (null != calls) {
+                calls.add(call);
+            }
+            doFillGalleryListByApi(call, galleryInfoList);
+        } finally {
+            if (null != task) {
+                task.removeCall(call);
+            }
+            if (null != calls) {
+                calls.remove(call);
+            }
         }
+    }
 
+    private static void doFillGalleryListByApi(Call call, List<GalleryInfo> galleryInfoList) throws Throwable {
         String body = null;
         Headers headers = null;
         int code = -1;
@@ -342,7 +487,13 @@ public class EhEngine {
             code = response.code();
             headers = response.headers();
             body = response.body().string();
-            GalleryApiParser.parse(body, galleryInfoList);
+            JSONArray metadata = GalleryApiParser.parse(body, galleryInfoList);
+            for (int i = 0, n = metadata.length(); i < n; i++) {
+                JSONObject g = metadata.optJSONObject(i);
+                if (g != null && !g.has("error")) {
+                    GalleryApiCache.put(g.optLong("gid"), g);
+                }
+            }
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
             throwException(call, code, headers, body, e);
@@ -403,8 +554,8 @@ public class EhEngine {
             code = response.code();
             headers = response.headers();
             body = response.body().string();
-            return Pair.create(GalleryDetailParser.parsePreviewSet(body),
-                    GalleryDetailParser.parsePreviewPages(body));
+            GalleryDetailParser.Previews previews = GalleryDetailParser.parsePreviews(body);
+            return Pair.create(previews.previewSet, previews.previewPages);
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
             throwException(call, code, headers, body, e);
@@ -430,7 +581,7 @@ public class EhEngine {
         Request request = new EhRequestBuilder(url, referer, origin)
                 .post(requestBody)
                 .build();
-        Call call = okHttpClient.newCall(request);
+        Call call = getApiOkHttpClient(okHttpClient).newCall(request);
 
         // Put call
         if (null != task) {
@@ -483,14 +634,7 @@ public class EhEngine {
             code = response.code();
             headers = response.headers();
             body = response.body().string();
-            Document document = Jsoup.parse(body);
-
-            Elements elements = document.select("#chd + p");
-            if (elements.size() > 0) {
-                throw new EhException(elements.get(0).text());
-            }
-
-            return GalleryDetailParser.parseComments(document);
+            return GalleryDetailParser.parseComments(body);
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
             throwException(call, code, headers, body, e);
@@ -513,7 +657,7 @@ public class EhEngine {
         Request request = new EhRequestBuilder(url, referer, origin)
                 .post(requestBody)
                 .build();
-        Call call = okHttpClient.newCall(request);
+        Call call = getApiOkHttpClient(okHttpClient).newCall(request);
 
         // Put call
         if (null != task) {
@@ -869,7 +1013,7 @@ public class EhEngine {
         Request request = new EhRequestBuilder(url, referer, origin)
                 .post(requestBody)
                 .build();
-        Call call = okHttpClient.newCall(request);
+        Call call = getApiOkHttpClient(okHttpClient).newCall(request);
 
         // Put call
         if (null != task) {
@@ -950,8 +1094,15 @@ public class EhEngine {
 
             code = response.code();
             headers = response.headers();
-            body = response.body().string();
-            result = GalleryListParser.parse(body);
+            try {
+                result = GalleryListParser.parse(response.body().byteStream());
+            } catch (ParseException e) {
+                // The parser only keeps the head of the body
+                body = e.getBody();
+                throw e;
+            } finally {
+                response.close();
+            }
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
             throwException(call, code, headers, body, e);
@@ -1012,7 +1163,7 @@ public class EhEngine {
         Request request = new EhRequestBuilder(url, referer, origin)
             .post(requestBody)
             .build();
-        Call call = okHttpClient.newCall(request);
+        Call call = getApiOkHttpClient(okHttpClient).newCall(request);
 
         // Put call
         if (null != task) {
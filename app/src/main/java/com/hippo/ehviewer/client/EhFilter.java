@@ -39,6 +39,12 @@ public final class EhFilter {
     private final List<Filter> mTagFilterList = new ArrayList<>();
     private final List<Filter> mTagNamespaceFilterList = new ArrayList<>();
 
+    // Compiled from enabled filters, replaced as a whole after any change,
+    // so matching never takes the lock
+    private volatile FilterSnapshot mSnapshot;
+    // Increased after any change
+    private volatile int mVersion;
+
     private static EhFilter sInstance;
 
     public static EhFilter getInstance() {
@@ -87,6 +93,20 @@ public final class EhFilter {
                     break;
             }
         }
+        updateSnapshot();
+    }
+
+    private void updateSnapshot() {
+        mSnapshot = new FilterSnapshot(mTitleFilterList, mUploaderFilterList,
+                mTagFilterList, mTagNamespaceFilterList);
+        mVersion++;
+    }
+
+    /**
+     * Returns a number which changes whenever filters change.
+     */
+    public int getVersion() {
+        return mVersion;
     }
 
     public List<Filter> getTitleFilterList() {
@@ -130,10 +150,12 @@ public final class EhFilter {
                 Log.d(TAG, "Unknown mode: " + filter.mode);
                 break;
         }
+        updateSnapshot();
     }
 
     public synchronized void triggerFilter(Filter filter) {
         EhDB.triggerFilter(filter);
+        updateSnapshot();
     }
 
     public synchronized void deleteFilter(Filter filter) {
@@ -158,156 +180,47 @@ public final class EhFilter {
                 Log.d(TAG, "Unknown mode: " + filter.mode);
                 break;
         }
+        updateSnapshot();
     }
 
     public synchronized boolean needTags() {
         return 0 != mTagFilterList.size() || 0 != mTagNamespaceFilterList.size();
     }
 
-    //title中是否包含filter， 包含则返回true，否则返回false
-    public synchronized boolean filterTitle(GalleryInfo info) {
+    //title中是否包含filter， 包含则返回false，否则返回true
+    public boolean filterTitle(GalleryInfo info) {
         if (null == info) {
             return false;
         }
 
-        // Title
         String title = info.title;
-        List<Filter> filters = mTitleFilterList;
-        // title不是空， 并且TitleFilter中有filter
-        if (null != title && filters.size() > 0) {
-            for (int i = 0, n = filters.size(); i < n; i++) {
-                //如果该filter被打开，并且包含这个标题，则返回true， 否则返回false
-                if (filters.get(i).enable && title.toLowerCase().contains(filters.get(i).text)) {
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return null == title || !mSnapshot.matchTitle(title.toLowerCase());
     }
 
-    //如果filter中的text和和uploader相同，则返回true，否则返回false
-    public synchronized boolean filterUploader(GalleryInfo info) {
+    //如果filter中的text和和uploader相同，则返回false，否则返回true
+    public boolean filterUploader(GalleryInfo info) {
         if (null == info) {
             return false;
         }
 
-        // Uploader
-        String uploader = info.uploader;
-        List<Filter> filters = mUploaderFilterList;
-        if (null != uploader && filters.size() > 0) {
-            for (int i = 0, n = filters.size(); i < n; i++) {
-                if (filters.get(i).enable && uploader.equals(filters.get(i).text)) {
-                    return false;
-                }
-            }
-        }
-
-        return true;
-    }
-
-    //如果rag和filter相等，返回true，否则返回false
-    private boolean matchTag(String tag, String filter) {
-        if (null == tag || null == filter) {
-            return false;
-        }
-
-        String tagNamespace;
-        String tagName;
-        String filterNamespace;
-        String filterName;
-        int index = tag.indexOf(':');
-        //如果没有输入tag，则tagNamespace为空
-        //把tagName赋值为tag
-        //如果存在，把tag分为tagNamespace和tagName
-        if (index < 0) {
-            tagNamespace = null;
-            tagName = tag;
-        } else {
-            tagNamespace = tag.substring(0, index);
-            tagName = tag.substring(index + 1);
-        }
-
-        //把filter分为filterNamespace和filterName
-        index = filter.indexOf(':');
-        if (index < 0) {
-            filterNamespace = null;
-            filterName = filter;
-        } else {
-            filterNamespace = filter.substring(0, index);
-            filterName = filter.substring(index + 1);
-        }
-
-        //如果Namespace不相等
-        if (null != tagNamespace && null != filterNamespace &&
-                !tagNamespace.equals(filterNamespace)) {
-            return false;
-        }
-        //如果tagName和filterName不相等
-        if (!tagName.equals(filterName)) {
-            return false;
-        }
-
-        return true;
+        return !mSnapshot.matchUploader(info.uploader);
     }
 
-    //filter整个tag， 包含namespace和name， tag完全相同会返回true， 不相同会返回false
-    public synchronized boolean filterTag(GalleryInfo info) {
+    //filter整个tag， 包含namespace和name， 有tag相同会返回false， 否则返回true
+    public boolean filterTag(GalleryInfo info) {
         if (null == info) {
             return false;
         }
 
-        // Tag
-        // tags为所有tag的集合
-        String[] tags = info.simpleTags;
-        List<Filter> filters = mTagFilterList;
-        if (null != tags && filters.size() > 0) {
-            for (String tag: tags) {
-                for (int i = 0, n = filters.size(); i < n; i++) {
-                    if (filters.get(i).enable && matchTag(tag, filters.get(i).text)) {
-                        return false;
-                    }
-                }
-            }
-        }
-
-        return true;
+        return !mSnapshot.matchTag(info.simpleTags);
     }
 
-    //tagNamespace和filter是否相等
-    private boolean matchTagNamespace(String tag, String filter) {
-        if (null == tag || null == filter) {
-            return false;
-        }
-
-        String tagNamespace;
-        int index = tag.indexOf(':');
-        if (index >= 0) {
-            tagNamespace = tag.substring(0, index);
-            return tagNamespace.equals(filter);
-        } else {
-            return false;
-        }
-    }
-
-    //filter和namespace相等， 则返回true
-    public synchronized boolean filterTagNamespace(GalleryInfo info) {
+    //filter和namespace相等， 则返回false
+    public boolean filterTagNamespace(GalleryInfo info) {
         if (null == info) {
             return false;
         }
 
-        String[] tags = info.simpleTags;
-        List<Filter> filters = mTagNamespaceFilterList;
-        if (null != tags && filters.size() > 0) {
-            for (String tag: tags) {
-                for (int i = 0, n = filters.size(); i < n; i++) {
-                    if (filters.get(i).enable && matchTagNamespace(tag, filters.get(i).text)) {
-                        return false;
-                    }
-                }
-            }
-        }
-
-        return true;
+        return !mSnapshot.matchTagNamespace(info.simpleTags);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Cache;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Disk cache of the shared OkHttpClient. Only whitelisted hosts are stored,
+ * pages and images from other hosts are always loaded from network.
+ */
+public class EhHttpCache {
+
+  private static final long MAX_SIZE = 20 * 1024 * 1024; // 20MB
+
+  // Thumbnails are never changed for the same url
+  private static final String[] IMMUTABLE_HOSTS = {
+      "ehgt.org",
+  };
+  // Keep headers from server, validate with ETag or Last-Modified
+  private static final String[] REVALIDATE_HOSTS = {
+      "raw.githubusercontent.com",
+  };
+
+  private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=604800"; // 7 days
+  private static final String NO_STORE_CACHE_CONTROL = "no-store";
+
+  private final Cache cache;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong conditionalHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  public EhHttpCache(Context context) {
+    cache = new Cache(new File(context.getCacheDir(), "http"), MAX_SIZE);
+  }
+
+  private static boolean hostMatches(String host, String[] domains) {
+    for (String domain : domains) {
+      if (host.equals(domain) || (host.endsWith(domain)
+          && host.charAt(host.length() - domain.length() - 1) == '.')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isCacheable(String host) {
+    return hostMatches(host, IMMUTABLE_HOSTS) || hostMatches(host, REVALIDATE_HOSTS);
+  }
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  /**
+   * Counts hits and misses. Add it with {@code addInterceptor()}.
+   */
+  public final Interceptor statsInterceptor = new Interceptor() {
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+      Response response = chain.proceed(chain.request());
+      Response networkResponse = response.networkResponse();
+      if (response.cacheResponse() != null) {
+        if (networkResponse == null) {
+          hitCount.incrementAndGet();
+        } else {
+          conditionalHitCount.incrementAndGet();
+        }
+      } else if (networkResponse != null && isCacheable(response.request().url().host())) {
+        missCount.incrementAndGet();
+      }
+      return response;
+    }
+  };
+
+  /**
+   * Applies cache policy of the host to responses before they are stored.
+   * Add it with {@code addNetworkInterceptor()}.
+   */
+  public final Interceptor policyInterceptor = new Interceptor() {
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+      Request request = chain.request();
+      Response response = chain.proceed(request);
+      String host = request.url().host();
+      if (hostMatches(host, REVALIDATE_HOSTS)) {
+        return response;
+      } else if (hostMatches(host, IMMUTABLE_HOSTS)) {
+        if (!response.isSuccessful()) {
+          return response;
+        }
+        return response.newBuilder()
+            .header("Cache-Control", IMMUTABLE_CACHE_CONTROL)
+            .removeHeader("Pragma")
+            .removeHeader("Expires")
+            .build();
+      } else {
+        return response.newBuilder()
+            .header("Cache-Control", NO_STORE_CACHE_CONTROL)
+            .build();
+      }
+    }
+  };
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the count of cached responses validated by 304.
+   */
+  public long getConditionalHitCount() {
+    return conditionalHitCount.get();
+  }
+
+  /**
+   * Returns the count of responses of cacheable hosts loaded from network.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "EhHttpCache{hit=" + hitCount.get() + ", conditionalHit=" + conditionalHitCount.get()
+        + ", miss=" + missCount.get() + "}";
+  }
+}
@@ -25,6 +25,7 @@ public class EhRequest {
     //Callback为自定义interface
     private EhClient.Callback mCallback;
     private EhConfig mEhConfig;
+    private boolean mRefresh;
 
     EhClient.Task task;
 
@@ -50,6 +51,14 @@ public class EhRequest {
         return this;
     }
 
+    /**
+     * Set it for explicit refresh, the result won't come from cache.
+     */
+    public EhRequest setRefresh(boolean refresh) {
+        mRefresh = refresh;
+        return this;
+    }
+
     public int getMethod() {
         return mMethod;
     }
@@ -66,6 +75,10 @@ public class EhRequest {
         return mEhConfig != null ? mEhConfig : Settings.getEhConfig();
     }
 
+    public boolean isRefresh() {
+        return mRefresh;
+    }
+
     public void cancel() {
         if (!mCancel) {
             mCancel = true;
@@ -18,7 +18,9 @@ package com.hippo.ehviewer.client;
 
 import android.content.Context;
 import android.util.Base64;
+import android.util.Pair;
 import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
 import com.hippo.ehviewer.AppConfig;
 import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.R;
@@ -27,18 +29,25 @@ import com.hippo.util.IoThreadPoolExecutor;
 import com.hippo.util.TextUrl;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IOUtils;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -49,84 +58,169 @@ import okio.Okio;
 
 public class EhTagDatabase {
 
+  private static final int CACHE_SIZE = 256;
+  // Cached for tags without translation
+  private static final String NO_TRANSLATION = new String();
+
   private final String name;
-  private final byte[] tags;
+  // Lines of "tag\rbase64(translation)\n", sorted by tag bytes
+  private final ByteBuffer tags;
+  // Two ints for each line, the start of the tag and the position of '\r',
+  // then the end of all lines. A line ends before the start of next line.
+  private final int[] index;
+  private final int count;
+  private final LruCache<String, String> cache = new LruCache<>(CACHE_SIZE);
 
   public EhTagDatabase(String name, BufferedSource source) throws IOException {
     this.name = name;
     int totalBytes = source.readInt();
-    tags = new byte[totalBytes];
-    source.readFully(tags);
+    byte[] bytes = new byte[totalBytes];
+    source.readFully(bytes);
+    tags = ByteBuffer.wrap(bytes);
+    index = buildIndex(tags);
+    count = index.length / 2;
   }
 
-  public String getTranslation(String tag) {
-    return search(tags, tag.getBytes(TextUrl.UTF_8));
+  /**
+   * Maps the file instead of reading it into heap.
+   */
+  public EhTagDatabase(String name, File file) throws IOException {
+    this.name = name;
+    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      while (header.hasRemaining()) {
+        if (channel.read(header, header.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      int totalBytes = header.getInt(0);
+      if (totalBytes < 0 || totalBytes > channel.size() - 4) {
+        throw new EOFException();
+      }
+      tags = channel.map(FileChannel.MapMode.READ_ONLY, 4, totalBytes);
+    }
+    index = buildIndex(tags);
+    count = index.length / 2;
   }
 
-  @Nullable
-  //第二个tag组为用户输入
-  private String search(byte[] tags, byte[] tag) {
-    int low = 0;
-    int high = tags.length;
-    while (low < high) {
-      int start = (low + high) / 2;
-      // Look for the starting '\n'
-      while (start > -1 && tags[start] != '\n') {
-        start--;
+  private static int[] buildIndex(ByteBuffer tags) throws IOException {
+    int[] index = new int[1024];
+    int size = 0;
+    int start = 0;
+    int middle = -1;
+    for (int i = 0, n = tags.limit(); i < n; i++) {
+      byte b = tags.get(i);
+      if (b == '\r' && middle < 0) {
+        middle = i;
+      } else if (b == '\n') {
+        if (middle < 0) {
+          throw new IOException("Bad tag line at " + start);
+        }
+        if (size + 3 > index.length) {
+          index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[size++] = start;
+        index[size++] = middle;
+        start = i + 1;
+        middle = -1;
       }
-      start++;
+    }
+    index = Arrays.copyOf(index, size + 1);
+    index[size] = start;
+    return index;
+  }
 
-      // Look for the middle '\r'.
-      int middle = 1;
-      while (tags[start + middle] != '\r') {
-        middle++;
+  /**
+   * Compares the tag of i-th line with the bytes. If the tag starts with
+   * the bytes, {@code prefix} decides whether they are equal.
+   */
+  private int compare(int i, byte[] bytes, boolean prefix) {
+    int start = index[i * 2];
+    int length = index[i * 2 + 1] - start;
+    int n = Math.min(length, bytes.length);
+    for (int j = 0; j < n; j++) {
+      int compare = (tags.get(start + j) & 0xff) - (bytes[j] & 0xff);
+      if (compare != 0) {
+        return compare;
       }
+    }
+    if (prefix && length >= bytes.length) {
+      return 0;
+    }
+    return length - bytes.length;
+  }
 
-      // Look for the ending '\n'
-      int end = middle + 1;
-      while (tags[start + end] != '\n') {
-        end++;
+  /**
+   * Returns the first line whose tag isn't less than the bytes.
+   */
+  private int lowerBound(byte[] bytes, boolean prefix) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (compare(mid, bytes, prefix) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
       }
+    }
+    return low;
+  }
 
-      int compare;
-      int tagIndex = 0;
-      int curIndex = start;
+  private String getTag(int i) {
+    int start = index[i * 2];
+    byte[] bytes = new byte[index[i * 2 + 1] - start];
+    for (int j = 0; j < bytes.length; j++) {
+      bytes[j] = tags.get(start + j);
+    }
+    return new String(bytes, TextUrl.UTF_8);
+  }
 
-      for (;;) {
-        int tagByte = tag[tagIndex] & 0xff;
-        int curByte = tags[curIndex] & 0xff;
-        compare = tagByte - curByte;
-        if (compare != 0) {
-          break;
-        }
+  private String decodeTranslation(int i) {
+    int start = index[i * 2 + 1] + 1;
+    byte[] bytes = new byte[index[(i + 1) * 2] - 1 - start];
+    for (int j = 0; j < bytes.length; j++) {
+      bytes[j] = tags.get(start + j);
+    }
+    return new String(Base64.decode(bytes, Base64.DEFAULT), TextUrl.UTF_8);
+  }
 
-        tagIndex++;
-        curIndex++;
-        if (tagIndex == tag.length && curIndex == start + middle) {
-          break;
-        }
-        if (tagIndex == tag.length) {
-          compare = -1;
-          break;
-        }
-        if (curIndex == start + middle) {
-          compare = 1;
-          break;
-        }
-      }
+  @Nullable
+  public String getTranslation(String tag) {
+    String translation = cache.get(tag);
+    if (translation == null) {
+      translation = search(tag.getBytes(TextUrl.UTF_8));
+      cache.put(tag, translation != null ? translation : NO_TRANSLATION);
+    } else if (translation == NO_TRANSLATION) {
+      translation = null;
+    }
+    return translation;
+  }
 
-      if (compare < 0) {
-        high = start - 1;
-      } else if (compare > 0) {
-        low = start + end + 1;
-      } else {
-        byte[] bytes = Base64.decode(tags, start + middle + 1, end - middle - 1, Base64.DEFAULT);
-        return new String(bytes, TextUrl.UTF_8);
-      }
+  @Nullable
+  private String search(byte[] tag) {
+    int i = lowerBound(tag, false);
+    if (i < count && compare(i, tag, false) == 0) {
+      return decodeTranslation(i);
     }
     return null;
   }
 
+  /**
+   * Returns at most {@code limit} tags starting with the prefix, with
+   * their translations, in tag order.
+   */
+  public List<Pair<String, String>> suggest(String prefix, int limit) {
+    byte[] bytes = prefix.getBytes(TextUrl.UTF_8);
+    List<Pair<String, String>> result = new ArrayList<>();
+    for (int i = lowerBound(bytes, true); i < count && result.size() < limit; i++) {
+      if (compare(i, bytes, true) != 0) {
+        break;
+      }
+      result.add(new Pair<>(getTag(i), decodeTranslation(i)));
+    }
+    return result;
+  }
 
   private static final Map<String, String> NAMESPACE_TO_PREFIX = new HashMap<>();
 
@@ -142,6 +236,8 @@ public class EhTagDatabase {
     NAMESPACE_TO_PREFIX.put("reclass", "r:");
   }
 
+  private static final CacheControl NO_STORE = new CacheControl.Builder().noStore().build();
+
   private static volatile EhTagDatabase instance;
   // TODO more lock for different language
   private static Lock lock = new ReentrantLock();
@@ -237,8 +333,13 @@ public class EhTagDatabase {
     return equals(s1, s2);
   }
 
-  private static boolean save(OkHttpClient client, String url, File file) {
-    Request request = new Request.Builder().url(url).build();
+  private static boolean save(OkHttpClient client, String url, File file, boolean store) {
+    Request.Builder builder = new Request.Builder().url(url);
+    if (!store) {
+      // Only the small sha1 is worth keeping in http cache
+      builder.cacheControl(NO_STORE);
+    }
+    Request request = builder.build();
     Call call = client.newCall(request);
     try (Response response = call.execute()) {
       if (!response.isSuccessful()) {
@@ -290,18 +391,18 @@ public class EhTagDatabase {
           return;
         }
 
-        // Check current sha1 and current data
+        // Check current sha1 and current data, the loaded one is checked
         File sha1File = new File(dir, sha1Name);
         File dataFile = new File(dir, dataName);
-        if (!checkData(sha1File, dataFile)) {
+        if (instance == null && !checkData(sha1File, dataFile)) {
           FileUtils.delete(sha1File);
           FileUtils.delete(dataFile);
         }
 
         // Read current EhTagDatabase
         if (instance == null && dataFile.exists()) {
-          try (BufferedSource source = Okio.buffer(Okio.source(dataFile))) {
-            instance = new EhTagDatabase(dataName, source);
+          try {
+            instance = new EhTagDatabase(dataName, dataFile);
           } catch (IOException e) {
             FileUtils.delete(sha1File);
             FileUtils.delete(dataFile);
@@ -310,9 +411,15 @@ public class EhTagDatabase {
 
         OkHttpClient client = EhApplication.getOkHttpClient(EhApplication.getInstance());
 
-        // Save new sha1
+        // Save new sha1, it's usually validated by 304 from http cache
         File tempSha1File = new File(dir, sha1Name + ".tmp");
-        if (!save(client, sha1Url, tempSha1File)) {
+        if (!save(client, sha1Url, tempSha1File, true)) {
+          FileUtils.delete(tempSha1File);
+          return;
+        }
+
+        // Same sha1 for the loaded data, no need to hash the data
+        if (instance != null && equals(getFileContent(tempSha1File, 20), getFileContent(sha1File, 20))) {
           FileUtils.delete(tempSha1File);
           return;
         }
@@ -326,7 +433,7 @@ public class EhTagDatabase {
 
         // Save new data
         File tempDataFile = new File(dir, dataName + ".tmp");
-        if (!save(client, dataUrl, tempDataFile)) {
+        if (!save(client, dataUrl, tempDataFile, false)) {
           FileUtils.delete(tempDataFile);
           return;
         }
@@ -345,8 +452,8 @@ public class EhTagDatabase {
         tempDataFile.renameTo(dataFile);
 
         // Read new EhTagDatabase
-        try (BufferedSource source = Okio.buffer(Okio.source(dataFile))) {
-          instance = new EhTagDatabase(dataName, source);
+        try {
+          instance = new EhTagDatabase(dataName, dataFile);
         } catch (IOException e) {
           // Ignore
         }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * A kind of traffic, like pages, api or images. Each one has its own
+ * connection pool and dispatcher, and timeouts following observed latency.
+ */
+public class EhTrafficClass {
+
+  // Gallery lists, details and other html pages
+  public static final EhTrafficClass PAGE =
+      new EhTrafficClass("Page", 5, 5, 5, 10 * 1000, 30 * 1000);
+  // Small json requests to api.php
+  public static final EhTrafficClass API =
+      new EhTrafficClass("Api", 2, 5, 5, 10 * 1000, 20 * 1000);
+  // Thumbnails and images, image servers change from page to page,
+  // don't keep idle connections too long
+  public static final EhTrafficClass IMAGE =
+      new EhTrafficClass("Image", 10, 1, 10, 10 * 1000, 60 * 1000);
+
+  // Timeout is this times of average latency
+  private static final int TIMEOUT_FACTOR = 4;
+  // Weight of the newest latency
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  private final String name;
+  private final ConnectionPool connectionPool;
+  private final Dispatcher dispatcher;
+  private final long minTimeout;
+  private final long maxTimeout;
+
+  // Average time to response headers in ms, 0 for unknown
+  private volatile double latency;
+
+  private final AtomicLong callCount = new AtomicLong();
+  private final AtomicLong connectCount = new AtomicLong();
+  private final AtomicLong acquireCount = new AtomicLong();
+
+  /**
+   * @param minTimeout min timeout in ms
+   * @param maxTimeout max timeout in ms, also used before any latency is observed
+   */
+  public EhTrafficClass(String name, int maxIdleConnections, long keepAliveMinutes,
+      int maxRequestsPerHost, long minTimeout, long maxTimeout) {
+    this.name = name;
+    this.connectionPool = new ConnectionPool(maxIdleConnections, keepAliveMinutes, TimeUnit.MINUTES);
+    this.dispatcher = new Dispatcher();
+    this.dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    this.minTimeout = minTimeout;
+    this.maxTimeout = maxTimeout;
+  }
+
+  /**
+   * Builds a client of this traffic class from the builder of the shared client.
+   */
+  public OkHttpClient build(OkHttpClient.Builder builder) {
+    return builder
+        .connectionPool(connectionPool)
+        .dispatcher(dispatcher)
+        .connectTimeout(maxTimeout, TimeUnit.MILLISECONDS)
+        .readTimeout(maxTimeout, TimeUnit.MILLISECONDS)
+        .writeTimeout(maxTimeout, TimeUnit.MILLISECONDS)
+        .addInterceptor(timeoutInterceptor)
+        .eventListener(eventListener)
+        .build();
+  }
+
+  private int getTimeout() {
+    double latency = this.latency;
+    if (latency <= 0) {
+      return (int) maxTimeout;
+    }
+    long timeout = (long) (latency * TIMEOUT_FACTOR);
+    return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+  }
+
+  private void onLatency(long ms) {
+    double latency = this.latency;
+    // Races only lose a sample
+    this.latency = latency <= 0 ? ms : latency + (ms - latency) * LATENCY_WEIGHT;
+  }
+
+  private final Interceptor timeoutInterceptor = new Interceptor() {
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+      int timeout = getTimeout();
+      long start = System.nanoTime();
+      Response response = chain
+          .withConnectTimeout(timeout, TimeUnit.MILLISECONDS)
+          .withReadTimeout(timeout, TimeUnit.MILLISECONDS)
+          .withWriteTimeout(timeout, TimeUnit.MILLISECONDS)
+          .proceed(chain.request());
+      // Cache hits don't tell anything about network
+      if (response.networkResponse() != null) {
+        onLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      return response;
+    }
+  };
+
+  private final EventListener eventListener = new EventListener() {
+    @Override
+    public void callStart(Call call) {
+      callCount.incrementAndGet();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      connectCount.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      acquireCount.incrementAndGet();
+    }
+  };
+
+  public long getCallCount() {
+    return callCount.get();
+  }
+
+  /**
+   * Returns the count of new connections, including failed attempts.
+   */
+  public long getConnectCount() {
+    return connectCount.get();
+  }
+
+  /**
+   * Returns the count of connections acquired by calls, new or pooled.
+   */
+  public long getAcquireCount() {
+    return acquireCount.get();
+  }
+
+  /**
+   * Returns the ratio of acquired connections which are reused from pool.
+   */
+  public float getReuseRate() {
+    long acquire = acquireCount.get();
+    if (acquire == 0) {
+      return 0.0f;
+    }
+    return Math.max(0.0f, 1.0f - (float) connectCount.get() / acquire);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "%s{calls=%d, connects=%d, acquires=%d, reuse=%.2f, latency=%.0fms, timeout=%dms, idle=%d/%d}",
+        name, callCount.get(), connectCount.get(), acquireCount.get(), getReuseRate(),
+        latency, getTimeout(), connectionPool.idleConnectionCount(), connectionPool.connectionCount());
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import androidx.annotation.Nullable;
+import com.hippo.ehviewer.dao.Filter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Enabled filters compiled for matching. It's immutable, build a new one
+ * after filters changed.
+ * <p>
+ * Titles are matched by an Aho-Corasick automaton, so a title is scanned once
+ * for all title filters. Uploaders, tags and namespaces are hash lookups.
+ */
+final class FilterSnapshot {
+
+    // Title automaton, node 0 is root
+    private final char[][] mKeys;
+    private final int[][] mNexts;
+    private final int[] mFails;
+    private final boolean[] mOutputs;
+    // An empty title filter matches everything
+    private final boolean mMatchAllTitles;
+
+    private final Set<String> mUploaders;
+
+    // Tag filters without namespace
+    private final Set<String> mTagNames;
+    // Tag filters with namespace, namespace to names
+    private final Map<String, Set<String>> mNamespaceTagNames;
+    // Names of all tag filters, for tags without namespace
+    private final Set<String> mAllTagNames;
+
+    private final Set<String> mNamespaces;
+
+    FilterSnapshot(List<Filter> titleFilters, List<Filter> uploaderFilters,
+            List<Filter> tagFilters, List<Filter> tagNamespaceFilters) {
+        // Title
+        TrieNode root = new TrieNode();
+        boolean matchAllTitles = false;
+        for (int i = 0, n = titleFilters.size(); i < n; i++) {
+            Filter filter = titleFilters.get(i);
+            if (!isEnabled(filter)) {
+                continue;
+            }
+            if (filter.text.isEmpty()) {
+                matchAllTitles = true;
+                continue;
+            }
+            TrieNode node = root;
+            for (int j = 0, len = filter.text.length(); j < len; j++) {
+                char c = filter.text.charAt(j);
+                TrieNode child = node.children.get(c);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.output = true;
+        }
+        mMatchAllTitles = matchAllTitles;
+
+        // Number nodes in breadth first order, so a fail link always points to a numbered node
+        List<TrieNode> nodes = new ArrayList<>();
+        ArrayDeque<TrieNode> queue = new ArrayDeque<>();
+        root.id = 0;
+        nodes.add(root);
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            TrieNode node = queue.poll();
+            for (TrieNode child : node.children.values()) {
+                child.id = nodes.size();
+                nodes.add(child);
+                queue.add(child);
+            }
+        }
+
+        int count = nodes.size();
+        mKeys = new char[count][];
+        mNexts = new int[count][];
+        mFails = new int[count];
+        mOutputs = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            TrieNode node = nodes.get(i);
+            int size = node.children.size();
+            char[] keys = new char[size];
+            int k = 0;
+            for (char c : node.children.keySet()) {
+                keys[k++] = c;
+            }
+            Arrays.sort(keys);
+            int[] nexts = new int[size];
+            for (int j = 0; j < size; j++) {
+                nexts[j] = node.children.get(keys[j]).id;
+            }
+            mKeys[i] = keys;
+            mNexts[i] = nexts;
+            mOutputs[i] = node.output;
+        }
+        // Fail links, in breadth first order
+        for (int i = 0; i < count; i++) {
+            char[] keys = mKeys[i];
+            int[] nexts = mNexts[i];
+            for (int j = 0; j < keys.length; j++) {
+                int child = nexts[j];
+                int fail = 0;
+                if (i != 0) {
+                    int state = mFails[i];
+                    for (;;) {
+                        int next = getNext(state, keys[j]);
+                        if (next >= 0) {
+                            fail = next;
+                            break;
+                        }
+                        if (state == 0) {
+                            break;
+                        }
+                        state = mFails[state];
+                    }
+                }
+                mFails[child] = fail;
+                // A title matches here if any suffix matches
+                mOutputs[child] |= mOutputs[fail];
+            }
+        }
+
+        // Uploader
+        mUploaders = new HashSet<>();
+        for (int i = 0, n = uploaderFilters.size(); i < n; i++) {
+            Filter filter = uploaderFilters.get(i);
+            if (isEnabled(filter)) {
+                mUploaders.add(filter.text);
+            }
+        }
+
+        // Tag
+        mTagNames = new HashSet<>();
+        mNamespaceTagNames = new HashMap<>();
+        mAllTagNames = new HashSet<>();
+        for (int i = 0, n = tagFilters.size(); i < n; i++) {
+            Filter filter = tagFilters.get(i);
+            if (!isEnabled(filter)) {
+                continue;
+            }
+            String text = filter.text;
+            int index = text.indexOf(':');
+            if (index < 0) {
+                mTagNames.add(text);
+                mAllTagNames.add(text);
+            } else {
+                String namespace = text.substring(0, index);
+                String name = text.substring(index + 1);
+                Set<String> names = mNamespaceTagNames.get(namespace);
+                if (names == null) {
+                    names = new HashSet<>();
+                    mNamespaceTagNames.put(namespace, names);
+                }
+                names.add(name);
+                mAllTagNames.add(name);
+            }
+        }
+
+        // Tag namespace
+        mNamespaces = new HashSet<>();
+        for (int i = 0, n = tagNamespaceFilters.size(); i < n; i++) {
+            Filter filter = tagNamespaceFilters.get(i);
+            if (isEnabled(filter)) {
+                mNamespaces.add(filter.text);
+            }
+        }
+    }
+
+    private static boolean isEnabled(Filter filter) {
+        return filter.enable != null && filter.enable && filter.text != null;
+    }
+
+    private int getNext(int state, char c) {
+        int index = Arrays.binarySearch(mKeys[state], c);
+        return index >= 0 ? mNexts[state][index] : -1;
+    }
+
+    /**
+     * @param title lowercase title
+     */
+    boolean matchTitle(@Nullable String title) {
+        if (title == null) {
+            return false;
+        }
+        if (mMatchAllTitles) {
+            return true;
+        }
+        if (mKeys[0].length == 0) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0, n = title.length(); i < n; i++) {
+            char c = title.charAt(i);
+            int next;
+            while ((next = getNext(state, c)) < 0 && state != 0) {
+                state = mFails[state];
+            }
+            state = next < 0 ? 0 : next;
+            if (mOutputs[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean matchUploader(@Nullable String uploader) {
+        return uploader != null && mUploaders.contains(uploader);
+    }
+
+    boolean matchTag(@Nullable String[] tags) {
+        if (tags == null || mAllTagNames.isEmpty()) {
+            return false;
+        }
+        for (String tag : tags) {
+            if (tag == null) {
+                continue;
+            }
+            int index = tag.indexOf(':');
+            if (index < 0) {
+                // No namespace, any filter with the same name matches
+                if (mAllTagNames.contains(tag)) {
+                    return true;
+                }
+            } else {
+                String name = tag.substring(index + 1);
+                if (mTagNames.contains(name)) {
+                    return true;
+                }
+                Set<String> names = mNamespaceTagNames.get(tag.substring(0, index));
+                if (names != null && names.contains(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean matchTagNamespace(@Nullable String[] tags) {
+        if (tags == null || mNamespaces.isEmpty()) {
+            return false;
+        }
+        for (String tag : tags) {
+            if (tag == null) {
+                continue;
+            }
+            int index = tag.indexOf(':');
+            if (index >= 0 && mNamespaces.contains(tag.substring(0, index))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        boolean output;
+        int id;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+import com.hippo.beerbelly.SimpleDiskCache;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Gallery metadata got from gdata api, keyed by gid. Entries expire after
+ * {@link #EXPIRE_TIME}, ratings and tags may change after that.
+ */
+public final class GalleryApiCache {
+
+    private static final long EXPIRE_TIME = 6 * 60 * 60 * 1000L; // 6 hours
+    private static final int MEMORY_SIZE = 500;
+    private static final int DISK_SIZE = 5 * 1024 * 1024; // 5M
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final LruCache<Long, Entry> sMemoryCache = new LruCache<>(MEMORY_SIZE);
+    @Nullable
+    private static SimpleDiskCache sDiskCache;
+
+    private GalleryApiCache() {}
+
+    public static void initialize(Context context) {
+        sDiskCache = new SimpleDiskCache(new File(context.getCacheDir(), "gallery_api"), DISK_SIZE);
+    }
+
+    /**
+     * @return the metadata, {@code null} if not cached or expired
+     */
+    @Nullable
+    public static JSONObject get(long gid) {
+        long now = System.currentTimeMillis();
+        Entry entry = sMemoryCache.get(gid);
+        if (entry == null) {
+            entry = readFromDisk(gid);
+            if (entry != null) {
+                sMemoryCache.put(gid, entry);
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.time > EXPIRE_TIME || now < entry.time) {
+            remove(gid);
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    public static void put(long gid, JSONObject metadata) {
+        Entry entry = new Entry(System.currentTimeMillis(), metadata);
+        sMemoryCache.put(gid, entry);
+        writeToDisk(gid, entry);
+    }
+
+    public static void remove(long gid) {
+        sMemoryCache.remove(gid);
+        SimpleDiskCache diskCache = sDiskCache;
+        if (diskCache != null) {
+            diskCache.remove(Long.toString(gid));
+        }
+    }
+
+    @Nullable
+    private static Entry readFromDisk(long gid) {
+        SimpleDiskCache diskCache = sDiskCache;
+        if (diskCache == null) {
+            return null;
+        }
+        InputStreamPipe pipe = diskCache.getInputStreamPipe(Long.toString(gid));
+        if (pipe == null) {
+            return null;
+        }
+        try {
+            pipe.obtain();
+            DataInputStream dis = new DataInputStream(pipe.open());
+            long time = dis.readLong();
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            return new Entry(time, new JSONObject(new String(bytes, UTF_8)));
+        } catch (IOException | JSONException e) {
+            return null;
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+
+    private static void writeToDisk(long gid, Entry entry) {
+        SimpleDiskCache diskCache = sDiskCache;
+        if (diskCache == null) {
+            return;
+        }
+        OutputStreamPipe pipe = diskCache.getOutputStreamPipe(Long.toString(gid));
+        try {
+            pipe.obtain();
+            DataOutputStream dos = new DataOutputStream(pipe.open());
+            byte[] bytes = entry.metadata.toString().getBytes(UTF_8);
+            dos.writeLong(entry.time);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+            dos.flush();
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+
+    private static class Entry {
+
+        final long time;
+        final JSONObject metadata;
+
+        Entry(long time, JSONObject metadata) {
+            this.time = time;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -59,6 +59,21 @@ public class GalleryComment implements Parcelable {
     public GalleryComment() {
     }
 
+    public GalleryComment(GalleryComment comment) {
+        this.id = comment.id;
+        this.score = comment.score;
+        this.editable = comment.editable;
+        this.voteUpAble = comment.voteUpAble;
+        this.voteUpEd = comment.voteUpEd;
+        this.voteDownAble = comment.voteDownAble;
+        this.voteDownEd = comment.voteDownEd;
+        this.voteState = comment.voteState;
+        this.time = comment.time;
+        this.user = comment.user;
+        this.comment = comment.comment;
+        this.lastEdited = comment.lastEdited;
+    }
+
     protected GalleryComment(Parcel in) {
         this.id = in.readLong();
         this.score = in.readInt();
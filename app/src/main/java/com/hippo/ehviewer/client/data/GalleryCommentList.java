@@ -41,6 +41,16 @@ public class GalleryCommentList implements Parcelable {
     this.hasMore = hasMore;
   }
 
+  public GalleryCommentList(GalleryCommentList list) {
+    if (list.comments != null) {
+      comments = new GalleryComment[list.comments.length];
+      for (int i = 0; i < list.comments.length; i++) {
+        comments[i] = new GalleryComment(list.comments[i]);
+      }
+    }
+    hasMore = list.hasMore;
+  }
+
   protected GalleryCommentList(Parcel in) {
     Parcelable[] array = in.readParcelableArray(getClass().getClassLoader());
     if (array != null) {
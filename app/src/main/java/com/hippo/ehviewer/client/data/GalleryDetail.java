@@ -69,6 +69,38 @@ public class GalleryDetail extends GalleryInfo {
     public GalleryDetail() {
     }
 
+    /**
+     * Copies all fields of {@code detail}. The preview set is shared,
+     * it isn't changed after parsing.
+     */
+    public GalleryDetail(GalleryDetail detail) {
+        super(detail);
+        this.apiUid = detail.apiUid;
+        this.apiKey = detail.apiKey;
+        this.torrentCount = detail.torrentCount;
+        this.torrentUrl = detail.torrentUrl;
+        this.archiveUrl = detail.archiveUrl;
+        this.parent = detail.parent;
+        this.visible = detail.visible;
+        this.language = detail.language;
+        this.size = detail.size;
+        this.pages = detail.pages;
+        this.favoriteCount = detail.favoriteCount;
+        this.isFavorited = detail.isFavorited;
+        this.ratingCount = detail.ratingCount;
+        if (detail.tags != null) {
+            this.tags = new GalleryTagGroup[detail.tags.length];
+            for (int i = 0; i < detail.tags.length; i++) {
+                this.tags[i] = new GalleryTagGroup(detail.tags[i]);
+            }
+        }
+        if (detail.comments != null) {
+            this.comments = new GalleryCommentList(detail.comments);
+        }
+        this.previewPages = detail.previewPages;
+        this.previewSet = detail.previewSet;
+    }
+
     protected GalleryDetail(Parcel in) {
         super(in);
         this.torrentCount = in.readInt();
@@ -187,6 +187,32 @@ public class GalleryInfo implements Parcelable {
 
     public GalleryInfo() {}
 
+    /**
+     * Copies all fields of {@code info}.
+     */
+    public GalleryInfo(GalleryInfo info) {
+        this.gid = info.gid;
+        this.token = info.token;
+        this.title = info.title;
+        this.titleJpn = info.titleJpn;
+        this.thumb = info.thumb;
+        this.category = info.category;
+        this.posted = info.posted;
+        this.uploader = info.uploader;
+        this.rating = info.rating;
+        this.rated = info.rated;
+        this.simpleTags = info.simpleTags != null ? info.simpleTags.clone() : null;
+        this.pages = info.pages;
+        this.thumbWidth = info.thumbWidth;
+        this.thumbHeight = info.thumbHeight;
+        this.spanSize = info.spanSize;
+        this.spanIndex = info.spanIndex;
+        this.spanGroupIndex = info.spanGroupIndex;
+        this.simpleLanguage = info.simpleLanguage;
+        this.favoriteSlot = info.favoriteSlot;
+        this.favoriteName = info.favoriteName;
+    }
+
     protected GalleryInfo(Parcel in) {
         this.gid = in.readLong();
         this.token = in.readString();
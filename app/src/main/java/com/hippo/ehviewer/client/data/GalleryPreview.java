@@ -19,10 +19,16 @@ package com.hippo.ehviewer.client.data;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.hippo.ehviewer.EhApplication;
+import com.hippo.ehviewer.SpriteTileCache;
+import com.hippo.ehviewer.client.EhCacheKeyFactory;
 import com.hippo.widget.LoadImageView;
 
+import java.util.Collections;
+
 public class GalleryPreview implements Parcelable {
 
+    long gid;
     String imageKey;
     String imageUrl;
     String pageUrl;
@@ -37,6 +43,15 @@ public class GalleryPreview implements Parcelable {
     }
 
     public void load(LoadImageView view) {
+        if (Integer.MIN_VALUE != clipWidth && null != imageKey && null != imageUrl) {
+            // A cell of normal preview sprite sheet
+            String tileKey = EhCacheKeyFactory.getNormalPreviewKey(gid, position);
+            SpriteTileCache.Tile tile = new SpriteTileCache.Tile(tileKey, offsetX, offsetY, clipWidth, clipHeight);
+            EhApplication.getSpriteTileCache(view.getContext())
+                    .load(view, tileKey, imageKey, imageUrl, Collections.singletonList(tile));
+            return;
+        }
+
         view.setClip(offsetX, offsetY, clipWidth, clipHeight);
         view.load(imageKey, imageUrl);
     }
@@ -48,6 +63,7 @@ public class GalleryPreview implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(this.gid);
         dest.writeString(this.imageUrl);
         dest.writeString(this.pageUrl);
         dest.writeInt(this.position);
@@ -61,6 +77,7 @@ public class GalleryPreview implements Parcelable {
     }
 
     protected GalleryPreview(Parcel in) {
+        this.gid = in.readLong();
         this.imageUrl = in.readString();
         this.pageUrl = in.readString();
         this.position = in.readInt();
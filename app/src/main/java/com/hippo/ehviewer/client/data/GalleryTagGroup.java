@@ -54,6 +54,11 @@ public class GalleryTagGroup implements Parcelable {
         mTagList = new ArrayList<>();
     }
 
+    public GalleryTagGroup(GalleryTagGroup group) {
+        this.groupName = group.groupName;
+        this.mTagList = new ArrayList<>(group.mTagList);
+    }
+
     protected GalleryTagGroup(Parcel in) {
         this.groupName = in.readString();
         this.mTagList = in.createStringArrayList();
@@ -18,10 +18,14 @@ package com.hippo.ehviewer.client.data;
 
 import android.os.Parcel;
 
+import com.hippo.ehviewer.EhApplication;
+import com.hippo.ehviewer.SpriteTileCache;
+import com.hippo.ehviewer.client.EhCacheKeyFactory;
 import com.hippo.widget.LoadImageView;
 import com.hippo.yorozuya.collect.IntList;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class NormalPreviewSet extends PreviewSet {
 
@@ -73,6 +77,7 @@ public class NormalPreviewSet extends PreviewSet {
     @Override
     public GalleryPreview getGalleryPreview(long gid, int index) {
         GalleryPreview galleryPreview = new GalleryPreview();
+        galleryPreview.gid = gid;
         galleryPreview.position = mPositionList.get(index);
         galleryPreview.imageKey = mImageKeyList.get(index);
         galleryPreview.imageUrl = mImageUrlList.get(index);
@@ -86,9 +91,24 @@ public class NormalPreviewSet extends PreviewSet {
 
     @Override
     public void load(LoadImageView view, long gid, int index) {
-        view.setClip(mOffsetXList.get(index), mOffsetYList.get(index),
-                mClipWidthList.get(index), mClipHeightList.get(index));
-        view.load(mImageKeyList.get(index), mImageUrlList.get(index));
+        SpriteTileCache cache = EhApplication.getSpriteTileCache(view.getContext());
+        String tileKey = EhCacheKeyFactory.getNormalPreviewKey(gid, mPositionList.get(index));
+        if (cache.loadFromMemory(view, tileKey)) {
+            return;
+        }
+
+        // Slice all cells of the sheet at once
+        String imageUrl = mImageUrlList.get(index);
+        List<SpriteTileCache.Tile> tiles = new ArrayList<>();
+        for (int i = 0, n = mImageUrlList.size(); i < n; i++) {
+            if (imageUrl.equals(mImageUrlList.get(i))) {
+                tiles.add(new SpriteTileCache.Tile(
+                        EhCacheKeyFactory.getNormalPreviewKey(gid, mPositionList.get(i)),
+                        mOffsetXList.get(i), mOffsetYList.get(i),
+                        mClipWidthList.get(i), mClipHeightList.get(i)));
+            }
+        }
+        cache.load(view, tileKey, mImageKeyList.get(index), imageUrl, tiles);
     }
 
     @Override
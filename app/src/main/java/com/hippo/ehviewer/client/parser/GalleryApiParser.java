@@ -28,7 +28,10 @@ import java.util.List;
 
 public class GalleryApiParser {
 
-    public static void parse(String body, List<GalleryInfo> galleryInfoList) throws JSONException {
+    /**
+     * @return the metadata of galleries in the body
+     */
+    public static JSONArray parse(String body, List<GalleryInfo> galleryInfoList) throws JSONException {
         JSONObject jo = new JSONObject(body);
         JSONArray ja = jo.getJSONArray("gmetadata");
 
@@ -39,24 +42,33 @@ public class GalleryApiParser {
             if (gi == null) {
                 continue;
             }
-            gi.title = ParserUtils.trim(g.getString("title"));
-            gi.titleJpn = ParserUtils.trim(g.getString("title_jpn"));
-            gi.category = EhUtils.getCategory(g.getString("category"));
-            gi.thumb = EhUtils.handleThumbUrlResolution(g.getString("thumb"));
-            gi.uploader = g.getString("uploader");
-            gi.posted = ParserUtils.formatDate(ParserUtils.parseLong(g.getString("posted"), 0) * 1000);
-            gi.rating = NumberUtils.parseFloatSafely(g.getString("rating"), 0.0f);
-            // tags
-            JSONArray tagJa = g.getJSONArray("tags");
-            int tagLength = tagJa.length();
-            String[] tags = new String[tagLength];
-            for (int j = 0; j < tagLength; j++) {
-                tags[j] = tagJa.getString(j);
-            }
-            gi.simpleTags = tags;
-            gi.pages = NumberUtils.parseIntSafely(g.getString("filecount"), 0);
-            gi.generateSLang();
+            parse(g, gi);
+        }
+
+        return ja;
+    }
+
+    /**
+     * Fill the gallery info with metadata of it.
+     */
+    public static void parse(JSONObject g, GalleryInfo gi) throws JSONException {
+        gi.title = ParserUtils.trim(g.getString("title"));
+        gi.titleJpn = ParserUtils.trim(g.getString("title_jpn"));
+        gi.category = EhUtils.getCategory(g.getString("category"));
+        gi.thumb = EhUtils.handleThumbUrlResolution(g.getString("thumb"));
+        gi.uploader = g.getString("uploader");
+        gi.posted = ParserUtils.formatDate(ParserUtils.parseLong(g.getString("posted"), 0) * 1000);
+        gi.rating = NumberUtils.parseFloatSafely(g.getString("rating"), 0.0f);
+        // tags
+        JSONArray tagJa = g.getJSONArray("tags");
+        int tagLength = tagJa.length();
+        String[] tags = new String[tagLength];
+        for (int j = 0; j < tagLength; j++) {
+            tags[j] = tagJa.getString(j);
         }
+        gi.simpleTags = tags;
+        gi.pages = NumberUtils.parseIntSafely(g.getString("filecount"), 0);
+        gi.generateSLang();
     }
 
     private static GalleryInfo getGalleryInfoByGid(List<GalleryInfo> galleryInfoList, long gid) {
@@ -17,7 +17,6 @@
 package com.hippo.ehviewer.client.parser;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.EhUrl;
 import com.hippo.ehviewer.client.EhUtils;
@@ -32,44 +31,42 @@ import com.hippo.ehviewer.client.exception.EhException;
 import com.hippo.ehviewer.client.exception.OffensiveException;
 import com.hippo.ehviewer.client.exception.ParseException;
 import com.hippo.ehviewer.client.exception.PiningException;
-import com.hippo.util.ExceptionUtils;
-import com.hippo.util.JsoupUtils;
-import com.hippo.util.MutableBoolean;
 import com.hippo.yorozuya.NumberUtils;
 import com.hippo.yorozuya.StringUtils;
+import java.io.IOException;
+import java.io.StringReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.nodes.Node;
-import org.jsoup.select.Elements;
-import org.jsoup.select.NodeTraversor;
-import org.jsoup.select.NodeVisitor;
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Parser;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class GalleryDetailParser {
 
     private static final Pattern PATTERN_ERROR = Pattern.compile("<div class=\"d\">\n<p>([^<]+)</p>");
     private static final Pattern PATTERN_DETAIL = Pattern.compile("var gid = (\\d+);.+?var token = \"([a-f0-9]+)\";.+?var apiuid = ([\\-\\d]+);.+?var apikey = \"([a-f0-9]+)\";", Pattern.DOTALL);
-    private static final Pattern PATTERN_TORRENT = Pattern.compile("<a[^<>]*onclick=\"return popUp\\('([^']+)'[^)]+\\)\">Torrent Download \\( (\\d+) \\)</a>");
-    private static final Pattern PATTERN_ARCHIVE = Pattern.compile("<a[^<>]*onclick=\"return popUp\\('([^']+)'[^)]+\\)\">Archive Download</a>");
+    private static final Pattern PATTERN_POP_UP = Pattern.compile("return popUp\\('([^']+)'");
+    private static final Pattern PATTERN_TORRENT_COUNT = Pattern.compile("^Torrent Download \\( (\\d+) \\)$");
     private static final Pattern PATTERN_COVER = Pattern.compile("width:(\\d+)px; height:(\\d+)px.+?url\\((.+?)\\)");
-    private static final Pattern PATTERN_TAG_GROUP = Pattern.compile("<tr><td[^<>]+>([\\w\\s]+):</td><td>(?:<div[^<>]+><a[^<>]+>[\\w\\s]+</a></div>)+</td></tr>");
-    private static final Pattern PATTERN_TAG = Pattern.compile("<div[^<>]+><a[^<>]+>([\\w\\s]+)</a></div>");
-    private static final Pattern PATTERN_COMMENT = Pattern.compile("<div class=\"c3\">Posted on ([^<>]+) by: &nbsp; <a[^<>]+>([^<>]+)</a>.+?<div class=\"c6\"[^>]*>(.+?)</div><div class=\"c[78]\"");
+    private static final Pattern PATTERN_NORMAL_PREVIEW_STYLE = Pattern.compile("width:(\\d+).*?height:(\\d+).*?\\((.+?)\\).*?-(\\d+)px");
     private static final Pattern PATTERN_PAGES = Pattern.compile("<tr><td[^<>]*>Length:</td><td[^<>]*>([\\d,]+) pages</td></tr>");
     private static final Pattern PATTERN_PREVIEW_PAGES = Pattern.compile("<td[^>]+><a[^>]+>([\\d,]+)</a></td><td[^>]+>(?:<a[^>]+>)?&gt;(?:</a>)?</td>");
     private static final Pattern PATTERN_NORMAL_PREVIEW = Pattern.compile("<div class=\"gdtm\"[^<>]*><div[^<>]*width:(\\d+)[^<>]*height:(\\d+)[^<>]*\\((.+?)\\)[^<>]*-(\\d+)px[^<>]*><a[^<>]*href=\"(.+?)\"[^<>]*><img alt=\"([\\d,]+)\"");
     private static final Pattern PATTERN_LARGE_PREVIEW = Pattern.compile("<div class=\"gdtl\".+?<a href=\"(.+?)\"><img alt=\"([\\d,]+)\".+?src=\"(.+?)\"");
 
+    private static final String TORRENT_DOWNLOAD = "Torrent Download";
+    private static final String ARCHIVE_DOWNLOAD = "Archive Download";
+
     private static final GalleryTagGroup[] EMPTY_GALLERY_TAG_GROUP_ARRAY = new GalleryTagGroup[0];
     private static final GalleryCommentList EMPTY_GALLERY_COMMENT_ARRAY = new GalleryCommentList(new GalleryComment[0], false);
 
@@ -84,6 +81,23 @@ public class GalleryDetailParser {
     private static final String PINING_STRING =
             "<p>This gallery is pining for the fjords.</p>";
 
+    private static final String LARGE_PREVIEW_STRING = "<div class=\"gdtl\"";
+    private static final String NORMAL_PREVIEW_STRING = "<div class=\"gdtm\"";
+
+    private static final HTMLSchema SCHEMA = new HTMLSchema();
+
+    /**
+     * What a preview page tells.
+     */
+    public static class Previews {
+        /**
+         * Page count of the gallery, -1 if not found
+         */
+        public int pages = -1;
+        public int previewPages;
+        public PreviewSet previewSet;
+    }
+
     public static GalleryDetail parse(String body) throws EhException {
         if (body.contains(OFFENSIVE_STRING)) {
             throw new OffensiveException();
@@ -99,156 +113,159 @@ public class GalleryDetailParser {
             throw new EhException(m.group(1));
         }
 
-        GalleryDetail galleryDetail = new GalleryDetail();
-        Document document = Jsoup.parse(body);
-        parseDetail(galleryDetail, document, body);
-        galleryDetail.tags = parseTagGroups(document);
-        galleryDetail.comments = parseComments(document);
-        galleryDetail.previewPages = parsePreviewPages(document, body);
-        galleryDetail.previewSet = parsePreviewSet(document, body);
+        // Detail, tags, comments and previews all come from one scan
+        DetailHandler handler = scan(body);
+        GalleryDetail galleryDetail = handler.buildDetail(body);
+        galleryDetail.tags = handler.buildTagGroups();
+        galleryDetail.comments = handler.buildComments();
+        galleryDetail.previewPages = handler.getPreviewPages(body);
+        galleryDetail.previewSet = handler.getPreviewSet(body);
         return galleryDetail;
     }
 
-    @SuppressWarnings("ConstantConditions")
-    private static void parseDetail(GalleryDetail gd, Document d, String body) throws ParseException {
-        Matcher matcher = PATTERN_DETAIL.matcher(body);
-        if (matcher.find()) {
-            gd.gid = NumberUtils.parseLongSafely(matcher.group(1), -1L);
-            gd.token = matcher.group(2);
-            gd.apiUid = NumberUtils.parseLongSafely(matcher.group(3), -1L);
-            gd.apiKey = matcher.group(4);
-        } else {
-            throw new ParseException("Can't parse gallery detail", body);
-        }
-        if (gd.gid == -1L) {
-            throw new ParseException("Can't parse gallery detail", body);
+    /**
+     * Parse pages, preview pages and previews of a detail page in one scan.
+     * They are in this order in the page, each search starts where the last one ends.
+     * Preview pages are loaded often and need nothing else, regular expressions
+     * are cheaper than building elements for them.
+     */
+    public static Previews parsePreviews(String body) throws ParseException {
+        Previews previews = new Previews();
+        Matcher m = PATTERN_PAGES.matcher(body);
+        int cursor = 0;
+        if (m.find()) {
+            previews.pages = ParserUtils.parseInt(m.group(1), -1);
+            cursor = m.end();
         }
 
-        matcher = PATTERN_TORRENT.matcher(body);
-        if (matcher.find()) {
-            gd.torrentUrl = StringUtils.unescapeXml(StringUtils.trim(matcher.group(1)));
-            gd.torrentCount = NumberUtils.parseIntSafely(matcher.group(2), 0);
-        } else {
-            gd.torrentCount = 0;
-            gd.torrentUrl = "";
+        cursor = scanPreviewPages(previews, m, cursor, body);
+        scanPreviewSet(previews, m, cursor, body);
+        return previews;
+    }
+
+    /**
+     * @return the end of the match
+     */
+    private static int scanPreviewPages(Previews previews, Matcher m, int start, String body)
+            throws ParseException {
+        m.usePattern(PATTERN_PREVIEW_PAGES);
+        int previewPages = -1;
+        int end = start;
+        if (m.find(start)) {
+            previewPages = ParserUtils.parseInt(m.group(1), -1);
+            end = m.end();
         }
 
-        matcher = PATTERN_ARCHIVE.matcher(body);
-        if (matcher.find()) {
-            gd.archiveUrl = StringUtils.unescapeXml(StringUtils.trim(matcher.group(1)));
-        } else {
-            gd.archiveUrl = "";
+        if (previewPages <= 0) {
+            throw new ParseException("Parse preview page count error", body);
         }
 
-        try {
-            Element gm = JsoupUtils.getElementByClass(d, "gm");
+        previews.previewPages = previewPages;
+        return end;
+    }
 
-            // Thumb url
-            Element gd1 = gm.getElementById("gd1");
+    private static void scanPreviewSet(Previews previews, Matcher m, int start, String body)
+            throws ParseException {
+        // Only one kind of previews in a page, check which one comes first
+        int large = body.indexOf(LARGE_PREVIEW_STRING, start);
+        int normal = body.indexOf(NORMAL_PREVIEW_STRING, start);
+        if (large >= 0 && (normal < 0 || large < normal)) {
             try {
-                gd.thumb = parseCoverStyle(StringUtils.trim(gd1.child(0).attr("style")));
-            } catch (Throwable e) {
-                ExceptionUtils.throwIfFatal(e);
-                gd.thumb = "";
+                previews.previewSet = parseLargePreviewSet(m.usePattern(PATTERN_LARGE_PREVIEW), large, body);
+                return;
+            } catch (ParseException e) {
+                // Fall back to normal previews
             }
+        }
+        previews.previewSet = parseNormalPreviewSet(
+                m.usePattern(PATTERN_NORMAL_PREVIEW), normal >= 0 ? normal : start, body);
+    }
 
-            // Title
-            Element gn = gm.getElementById("gn");
-            if (null != gn) {
-                gd.title = StringUtils.trim(gn.text());
-            } else {
-                gd.title = "";
-            }
+    /**
+     * Parse large previews with regular expressions
+     */
+    private static LargePreviewSet parseLargePreviewSet(Matcher m, int start, String body) throws ParseException {
+        LargePreviewSet largePreviewSet = new LargePreviewSet();
 
-            // Jpn title
-            Element gj = gm.getElementById("gj");
-            if (null != gj) {
-                gd.titleJpn = StringUtils.trim(gj.text());
-            } else {
-                gd.titleJpn = "";
+        m.region(start, body.length());
+        while (m.find()) {
+            int index = ParserUtils.parseInt(m.group(2), 0) - 1;
+            if (index < 0) {
+                continue;
             }
-
-            // Category
-            Element gdc = gm.getElementById("gdc");
-            try {
-                Element ce = JsoupUtils.getElementByClass(gdc, "cn");
-                if (ce == null) {
-                    ce = JsoupUtils.getElementByClass(gdc, "cs");
-                }
-                gd.category = EhUtils.getCategory(ce.text());
-            } catch (Throwable e) {
-                ExceptionUtils.throwIfFatal(e);
-                gd.category = EhUtils.UNKNOWN;
+            String imageUrl = ParserUtils.trim(m.group(3));
+            String pageUrl = ParserUtils.trim(m.group(1));
+            if (Settings.getFixThumbUrl()) {
+                imageUrl = EhUrl.getFixedPreviewThumbUrl(imageUrl);
             }
+            largePreviewSet.addItem(index, imageUrl, pageUrl);
+        }
 
-            // Uploader
-            Element gdn = gm.getElementById("gdn");
-            if (null != gdn) {
-                gd.uploader = StringUtils.trim(gdn.text());
-            } else {
-                gd.uploader = "";
-            }
+        if (largePreviewSet.size() == 0) {
+            throw new ParseException("Can't parse large preview", body);
+        }
 
-            Element gdd = gm.getElementById("gdd");
-            gd.posted = "";
-            gd.parent = "";
-            gd.visible = "";
-            gd.visible = "";
-            gd.size = "";
-            gd.pages = 0;
-            gd.favoriteCount = 0;
-            try {
-                Elements es = gdd.child(0).child(0).children();
-                for (int i = 0, n = es.size(); i < n; i++) {
-                    parseDetailInfo(gd, es.get(i), body);
-                }
-            } catch (Throwable e) {
-                ExceptionUtils.throwIfFatal(e);
-                // Ignore
-            }
+        return largePreviewSet;
+    }
 
-            // Rating count
-            Element rating_count = gm.getElementById("rating_count");
-            if (null != rating_count) {
-                gd.ratingCount = NumberUtils.parseIntSafely(
-                        StringUtils.trim(rating_count.text()), 0);
-            } else {
-                gd.ratingCount = 0;
+    /**
+     * Parse normal previews with regular expressions
+     */
+    private static NormalPreviewSet parseNormalPreviewSet(Matcher m, int start, String body) throws ParseException {
+        NormalPreviewSet normalPreviewSet = new NormalPreviewSet();
+        m.region(start, body.length());
+        while (m.find()) {
+            int position = ParserUtils.parseInt(m.group(6), 0) - 1;
+            if (position < 0) {
+                continue;
             }
-
-            // Rating
-            Element rating_label = gm.getElementById("rating_label");
-            if (null != rating_label) {
-                String ratingStr = StringUtils.trim(rating_label.text());
-                if ("Not Yet Rated".equals(ratingStr)) {
-                    gd.rating = -1.0f;
-                } else {
-                    int index = ratingStr.indexOf(' ');
-                    if (index == -1 || index >= ratingStr.length()) {
-                        gd.rating = 0f;
-                    } else {
-                        gd.rating = NumberUtils.parseFloatSafely(ratingStr.substring(index + 1), 0f);
-                    }
-                }
-            } else {
-                gd.rating = -1.0f;
+            String imageUrl = ParserUtils.trim(m.group(3));
+            int xOffset =  ParserUtils.parseInt(m.group(4), 0);
+            int yOffset =  0;
+            int width = ParserUtils.parseInt(m.group(1), 0);
+            if (width <= 0) {
+                continue;
             }
-
-            // isFavorited
-            Element gdf = gm.getElementById("gdf");
-            gd.isFavorited = null != gdf && !StringUtils.trim(gdf.text()).equals("Add to Favorites");
-            if (gdf != null) {
-                final String favoriteName = StringUtils.trim(gdf.text());
-                if (favoriteName.equals("Add to Favorites")) {
-                    gd.favoriteName = null;
-                } else {
-                    gd.favoriteName = StringUtils.trim(gdf.text());
-                }
+            int height = ParserUtils.parseInt(m.group(2), 0);
+            if (height <= 0) {
+                continue;
             }
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            throw new ParseException("Can't parse gallery detail", body);
+            String pageUrl = ParserUtils.trim(m.group(5));
+            normalPreviewSet.addItem(position, imageUrl, xOffset, yOffset, width, height, pageUrl);
+        }
+
+        if (normalPreviewSet.size() == 0) {
+            throw new ParseException("Can't parse normal preview", body);
+        }
+
+        return normalPreviewSet;
+    }
+
+    /**
+     * Parse comments of a detail page, like the one returned after commenting.
+     */
+    @NonNull
+    public static GalleryCommentList parseComments(String body) throws EhException {
+        DetailHandler handler = scan(body);
+        if (handler.commentError != null) {
+            throw new EhException(handler.commentError);
+        }
+        return handler.buildComments();
+    }
+
+    private static DetailHandler scan(String body) throws ParseException {
+        DetailHandler handler = new DetailHandler();
+        try {
+            Parser parser = new Parser();
+            parser.setProperty(Parser.schemaProperty, SCHEMA);
+            // Comments are kept as html, don't add attributes to it
+            parser.setFeature(Parser.defaultAttributesFeature, false);
+            parser.setContentHandler(handler);
+            parser.parse(new InputSource(new StringReader(body)));
+        } catch (IOException | SAXException e) {
+            throw new ParseException("Can't parse gallery detail", body, e);
         }
+        return handler;
     }
 
     // width:250px; height:356px; background:transparent url(https://exhentai.org/t/fe/1f/fe1fcfa9bf8fba2f03982eda0aa347cc9d6a6372-145921-1050-1492-jpg_250.jpg) 0 0 no-repeat
@@ -261,20 +278,12 @@ public class GalleryDetailParser {
         }
     }
 
-    private static void parseDetailInfo(GalleryDetail gd, Element e, String body) {
-        Elements es = e.children();
-        if (es.size() < 2) {
-            return;
-        }
-
-        String key = StringUtils.trim(es.get(0).text());
-        String value = StringUtils.trim(es.get(1).ownText());
+    private static void parseDetailInfo(GalleryDetail gd, String key, String value, String href) {
         if (key.startsWith("Posted")) {
             gd.posted = value;
         } else if (key.startsWith("Parent")) {
-            Element a = es.get(1).children().first();
-            if (a != null) {
-                gd.parent = a.attr("href");
+            if (href != null) {
+                gd.parent = href;
             }
         } else if (key.startsWith("Visible")) {
             gd.visible = value;
@@ -309,378 +318,947 @@ public class GalleryDetailParser {
         }
     }
 
-    @Nullable
-    private static GalleryTagGroup parseTagGroup(Element element) {
-        try {
-            GalleryTagGroup group = new GalleryTagGroup();
-
-            String nameSpace = element.child(0).text();
-            // Remove last ':'
-            nameSpace = nameSpace.substring(0, nameSpace.length() - 1);
-            group.groupName = nameSpace;
-
-            Elements tags = element.child(1).children();
-            for (int i = 0, n = tags.size(); i < n; i++) {
-                String tag = tags.get(i).text();
-                // Sometimes parody tag is followed with '|' and english translate, just remove them
-                int index = tag.indexOf('|');
-                if (index >= 0) {
-                    tag = tag.substring(0, index).trim();
-                }
-                group.addTag(tag);
+    private static boolean hasClass(String classes, String name) {
+        if (classes == null) {
+            return false;
+        }
+        int length = classes.length();
+        int nameLength = name.length();
+        int index = 0;
+        while ((index = classes.indexOf(name, index)) >= 0) {
+            int end = index + nameLength;
+            if ((index == 0 || Character.isWhitespace(classes.charAt(index - 1))) &&
+                    (end == length || Character.isWhitespace(classes.charAt(end)))) {
+                return true;
             }
+            index = end;
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return Character.isWhitespace(c) || c == '\u00a0';
+    }
 
-            return group.size() > 0 ? group : null;
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            return null;
+    private static boolean isBlock(String tag) {
+        switch (tag) {
+            case "br":
+            case "div":
+            case "p":
+            case "table":
+            case "tr":
+            case "td":
+            case "th":
+            case "h1":
+            case "ul":
+            case "li":
+                return true;
+            default:
+                return false;
         }
     }
 
-    /**
-     * Parse tag groups with html parser
-     */
-    @NonNull
-    public static GalleryTagGroup[] parseTagGroups(Document document) {
-        try {
-            Element taglist = document.getElementById("taglist");
-            Elements tagGroups = taglist.child(0).child(0).children();
-            return parseTagGroups(tagGroups);
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            return EMPTY_GALLERY_TAG_GROUP_ARRAY;
+    private static boolean isVoid(String tag) {
+        switch (tag) {
+            case "br":
+            case "hr":
+            case "img":
+            case "wbr":
+                return true;
+            default:
+                return false;
         }
     }
 
-    @NonNull
-    public static GalleryTagGroup[] parseTagGroups(Elements trs) {
-        try {
-            List<GalleryTagGroup> list = new ArrayList<>(trs.size());
-            for (int i = 0, n = trs.size(); i < n; i++) {
-                GalleryTagGroup group = parseTagGroup(trs.get(i));
-                if (null != group) {
-                    list.add(group);
+    private static void appendEscaped(StringBuilder sb, CharSequence text, int start, int end, boolean attribute) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '\u00a0':
+                    sb.append("&nbsp;");
+                    break;
+                case '"':
+                    sb.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * A comment collected between the start and end of its c1.
+     */
+    private static class Comment {
+
+        String name;
+
+        String c3OwnText;
+        String user;
+        boolean c4Found;
+        boolean voteUpAble;
+        boolean voteUpEd;
+        boolean voteDownAble;
+        boolean voteDownEd;
+        boolean editable;
+        String score;
+        String html;
+        String voteState;
+        boolean edited;
+
+        GalleryComment build() {
+            try {
+                GalleryComment comment = new GalleryComment();
+                // Id
+                comment.id = Integer.parseInt(StringUtils.trim(name).substring(1));
+                // Editable, vote up and vote down
+                comment.voteUpAble = voteUpAble;
+                comment.voteUpEd = voteUpEd;
+                comment.voteDownAble = voteDownAble;
+                comment.voteDownEd = voteDownEd;
+                comment.editable = editable;
+                // Vote state
+                comment.voteState = voteState;
+                // Score
+                if (score != null) {
+                    comment.score = NumberUtils.parseIntSafely(score, 0);
+                }
+                // time
+                String temp = c3OwnText;
+                temp = temp.substring("Posted on ".length(), temp.length() - " by:".length());
+                comment.time = WEB_COMMENT_DATE_FORMAT.parse(temp).getTime();
+                // user
+                if (user == null) {
+                    return null;
+                }
+                comment.user = user;
+                // comment
+                if (html == null) {
+                    return null;
+                }
+                comment.comment = html;
+                // last edited
+                if (edited) {
+                    comment.lastEdited = comment.time;
                 }
+                return comment;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
             }
-            return list.toArray(new GalleryTagGroup[list.size()]);
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            return EMPTY_GALLERY_TAG_GROUP_ARRAY;
         }
     }
 
     /**
-     * Parse tag groups with regular expressions
+     * Walks the SAX events of the detail page. Every element is a frame in the
+     * depth indexed arrays. Texts are only kept in gm, ptt and cdiv.
      */
-    @NonNull
-    private static GalleryTagGroup[] parseTagGroups(String body) throws EhException {
-        List<GalleryTagGroup> list = new LinkedList<>();
+    private static class DetailHandler extends DefaultHandler {
+
+        // Script
+        private final StringBuilder mScript = new StringBuilder();
+        private int mScriptDepth = -1;
+
+        // Detail
+        boolean gmFound;
+        String thumbStyle;
+        String title;
+        String titleJpn;
+        String cn;
+        String cs;
+        String uploader;
+        String ratingCount;
+        String ratingLabel;
+        String favorite;
+        final List<String[]> infos = new ArrayList<>();
+        int pages = -1;
+        String torrentUrl;
+        int torrentCount;
+        String archiveUrl;
+        final List<GalleryTagGroup> tagGroups = new ArrayList<>();
+
+        // Previews
+        final List<String> pttTexts = new ArrayList<>();
+        boolean pttDone;
+        final LargePreviewSet largePreviewSet = new LargePreviewSet();
+        final NormalPreviewSet normalPreviewSet = new NormalPreviewSet();
+
+        // Comments
+        final List<GalleryComment> comments = new ArrayList<>();
+        boolean cdivFound;
+        boolean hasMore;
+        String commentError;
+
+        // Frames
+        private String[] mTags = new String[64];
+        private int[] mChildCounts = new int[64];
+        private int[] mChildIndexes = new int[64];
+        private int[] mTextStarts = new int[64];
+        private String[] mStyles = new String[64];
+        private int mDepth = -1;
+
+        private final StringBuilder mText = new StringBuilder(1024);
+
+        private int mGmDepth = -1;
+        private int mGd1Depth = -1;
+        private int mGnDepth = -1;
+        private int mGjDepth = -1;
+        private int mGdcDepth = -1;
+        private int mCnDepth = -1;
+        private int mCsDepth = -1;
+        private int mGdnDepth = -1;
+        private int mGddDepth = -1;
+        private int mGddTrDepth = -1;
+        private String mGddKey;
+        private int mRatingCountDepth = -1;
+        private int mRatingLabelDepth = -1;
+        private int mGdfDepth = -1;
+        private int mTaglistDepth = -1;
+        private int mTagTrDepth = -1;
+        private GalleryTagGroup mTagGroup;
+        private boolean mTagGroupBroken;
+        private int mTagTdDepth = -1;
+        private int mPopUpDepth = -1;
+        private String mPopUpUrl;
+
+        private int mPttDepth = -1;
+        private int mPttTdDepth = -1;
+
+        private int mGdtmDepth = -1;
+        private String mGdtmStyle;
+        private int mGdtlDepth = -1;
+        private String mPreviewHref;
+        private String mPreviewAlt;
+        private String mPreviewSrc;
+
+        private int mCdivDepth = -1;
+        private String mCommentName;
+        private int mC1Depth = -1;
+        private Comment mComment;
+        private int mC3Depth = -1;
+        private int mC4Depth = -1;
+        private int mC5Depth = -1;
+        private int mC6Depth = -1;
+        private final StringBuilder mHtml = new StringBuilder();
+        private int mC7Depth = -1;
+        private int mC8Depth = -1;
+        private int mChdDepth = -1;
+        private int mChdSiblingDepth = -1;
+        private int mChdPDepth = -1;
+
+        // Own text of the second td of gdd or c3, without texts of children
+        private final StringBuilder mOwnText = new StringBuilder();
+        private int mOwnTextDepth = -1;
+        private String mOwnFirstHref;
+
+        private void ensureDepth(int depth) {
+            if (depth < mTags.length) {
+                return;
+            }
+            int length = mTags.length * 2;
+            mTags = Arrays.copyOf(mTags, length);
+            mChildCounts = Arrays.copyOf(mChildCounts, length);
+            mChildIndexes = Arrays.copyOf(mChildIndexes, length);
+            mTextStarts = Arrays.copyOf(mTextStarts, length);
+            mStyles = Arrays.copyOf(mStyles, length);
+        }
 
-        Matcher m = PATTERN_TAG_GROUP.matcher(body);
-        while (m.find()) {
-            GalleryTagGroup tagGroup = new GalleryTagGroup();
-            tagGroup.groupName = ParserUtils.trim(m.group(1));
-            parseGroup(tagGroup, m.group(0));
-            list.add(tagGroup);
+        private boolean isCapturing() {
+            return mGmDepth >= 0 || mGddDepth >= 0 || mPttDepth >= 0 || mCdivDepth >= 0;
         }
 
-        return list.toArray(new GalleryTagGroup[list.size()]);
-    }
+        /**
+         * Whitespace collapsed and trimmed text.
+         */
+        private static String collapse(CharSequence text, int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            boolean space = false;
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (isWhitespace(c)) {
+                    space = sb.length() > 0;
+                } else {
+                    if (space) {
+                        sb.append(' ');
+                        space = false;
+                    }
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
 
-    private static void parseGroup(GalleryTagGroup tagGroup, String body) {
-        Matcher m = PATTERN_TAG.matcher(body);
-        while (m.find()) {
-            tagGroup.addTag(ParserUtils.trim(m.group(1)));
+        private String getText(int depth) {
+            return collapse(mText, mTextStarts[depth], mText.length());
         }
-    }
 
-    @Nullable
-    @SuppressWarnings("ConstantConditions")
-    public static GalleryComment parseComment(Element element) {
-        try {
-            GalleryComment comment = new GalleryComment();
-            // Id
-            Element a = element.previousElementSibling();
-            String name = a.attr("name");
-            comment.id = Integer.parseInt(StringUtils.trim(name).substring(1));
-            // Editable, vote up and vote down
-            Element c4 = JsoupUtils.getElementByClass(element, "c4");
-            if (null != c4) {
-                for (Element e : c4.children()) {
-                    switch (e.text()) {
-                        case "Vote+":
-                            comment.voteUpAble = true;
-                            comment.voteUpEd = !StringUtils.trim(e.attr("style")).isEmpty();
-                            break;
-                        case "Vote-":
-                            comment.voteDownAble = true;
-                            comment.voteDownEd = !StringUtils.trim(e.attr("style")).isEmpty();
-                            break;
-                        case "Edit":
-                            comment.editable = true;
-                            break;
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            String tag = localName.length() != 0 ? localName : qName.toLowerCase(Locale.US);
+            int parent = mDepth;
+            int depth = ++mDepth;
+            ensureDepth(depth);
+            mTags[depth] = tag;
+            mChildCounts[depth] = 0;
+            mChildIndexes[depth] = parent >= 0 ? ++mChildCounts[parent] : 1;
+            mStyles[depth] = atts.getValue("style");
+
+            if (isCapturing() && isBlock(tag)) {
+                // Like the text of a html parser, blocks are separated
+                mText.append(' ');
+            }
+            mTextStarts[depth] = mText.length();
+
+            if (mC6Depth >= 0) {
+                mHtml.append('<').append(tag);
+                for (int i = 0, n = atts.getLength(); i < n; i++) {
+                    String name = atts.getLocalName(i);
+                    if (name.length() == 0) {
+                        name = atts.getQName(i);
                     }
+                    mHtml.append(' ').append(name).append("=\"");
+                    String value = atts.getValue(i);
+                    appendEscaped(mHtml, value, 0, value.length(), true);
+                    mHtml.append('"');
                 }
+                mHtml.append('>');
+                return;
             }
-            // Vote state
-            Element c7 = JsoupUtils.getElementByClass(element, "c7");
-            if (null != c7) {
-                comment.voteState = StringUtils.trim(c7.text());
-            }
-            // Score
-            Element c5 = JsoupUtils.getElementByClass(element, "c5");
-            if (null != c5) {
-                Elements es = c5.children();
-                if (!es.isEmpty()) {
-                    comment.score = NumberUtils.parseIntSafely(StringUtils.trim(es.get(0).text()), 0);
-                }
+
+            if (mOwnTextDepth >= 0 && depth == mOwnTextDepth + 1 && mChildIndexes[depth] == 1) {
+                mOwnFirstHref = atts.getValue("href");
             }
-            // time
-            Element c3 = JsoupUtils.getElementByClass(element, "c3");
-            String temp = c3.ownText();
-            temp = temp.substring("Posted on ".length(), temp.length() - " by:".length());
-            comment.time = WEB_COMMENT_DATE_FORMAT.parse(temp).getTime();
-            // user
-            comment.user = c3.child(0).text();
-            // comment
-            comment.comment = JsoupUtils.getElementByClass(element, "c6").html();
-            // last edited
-            Element c8 = JsoupUtils.getElementByClass(element, "c8");
-            if (c8 != null) {
-                Element e = c8.children().first();
-                if (e != null) {
-                    comment.lastEdited = WEB_COMMENT_DATE_FORMAT.parse(temp).getTime();
-                }
+
+            String id = atts.getValue("id");
+            String classes = atts.getValue("class");
+
+            if ("script".equals(tag)) {
+                mScriptDepth = depth;
             }
-            return comment;
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            return null;
-        }
-    }
 
-    /**
-     * Parse comments with html parser
-     */
-    @NonNull
-    public static GalleryCommentList parseComments(Document document) {
-        try {
-            Element cdiv = document.getElementById("cdiv");
-            Elements c1s = cdiv.getElementsByClass("c1");
-
-            List<GalleryComment> list = new ArrayList<>(c1s.size());
-            for (int i = 0, n = c1s.size(); i < n; i++) {
-                GalleryComment comment = parseComment(c1s.get(i));
-                if (null != comment) {
-                    list.add(comment);
-                }
+            if (id != null) {
+                startIdElement(id, depth);
+            }
+
+            if (!gmFound && hasClass(classes, "gm")) {
+                gmFound = true;
+                mGmDepth = depth;
+            }
+
+            if (mGmDepth >= 0) {
+                startGmElement(tag, classes, atts, depth);
+            }
+
+            if (mGddDepth >= 0) {
+                startGddElement(tag, depth);
             }
 
-            Element chd = cdiv.getElementById("chd");
-            MutableBoolean hasMore = new MutableBoolean(false);
-            NodeTraversor.traverse(new NodeVisitor() {
-                @Override
-                public void head(Node node, int depth) {
-                    if (node instanceof Element && ((Element) node).text().equals("click to show all")) {
-                        hasMore.value = true;
+            if ("a".equals(tag)) {
+                String onclick = atts.getValue("onclick");
+                if (onclick != null) {
+                    Matcher matcher = PATTERN_POP_UP.matcher(onclick);
+                    if (matcher.find()) {
+                        mPopUpDepth = depth;
+                        mPopUpUrl = StringUtils.trim(matcher.group(1));
                     }
                 }
+            }
 
-                @Override
-                public void tail(Node node, int depth) { }
-            }, chd);
+            startPreviewElement(tag, classes, atts, depth);
 
-            return new GalleryCommentList(list.toArray(new GalleryComment[list.size()]), hasMore.value);
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            return EMPTY_GALLERY_COMMENT_ARRAY;
+            if (mCdivDepth >= 0) {
+                startCommentElement(tag, classes, atts, parent, depth);
+            }
         }
-    }
 
-    /**
-     * Parse comments with regular expressions
-     */
-    @NonNull
-    public static GalleryComment[] parseComments(String body) {
-        List<GalleryComment> list = new LinkedList<>();
-
-        Matcher m = PATTERN_COMMENT.matcher(body);
-        while (m.find()) {
-            String webDateString = ParserUtils.trim(m.group(1));
-            Date date;
-            try {
-                date = WEB_COMMENT_DATE_FORMAT.parse(webDateString);
-            } catch (java.text.ParseException e) {
-                date = new Date(0L);
+        private void startIdElement(String id, int depth) {
+            switch (id) {
+                case "gd1":
+                    mGd1Depth = depth;
+                    break;
+                case "gn":
+                    mGnDepth = depth;
+                    break;
+                case "gj":
+                    mGjDepth = depth;
+                    break;
+                case "gdc":
+                    mGdcDepth = depth;
+                    break;
+                case "gdn":
+                    mGdnDepth = depth;
+                    break;
+                case "gdd":
+                    mGddDepth = depth;
+                    break;
+                case "rating_count":
+                    mRatingCountDepth = depth;
+                    break;
+                case "rating_label":
+                    mRatingLabelDepth = depth;
+                    break;
+                case "gdf":
+                    mGdfDepth = depth;
+                    break;
+                case "taglist":
+                    mTaglistDepth = depth;
+                    break;
+                case "cdiv":
+                    if (!cdivFound) {
+                        cdivFound = true;
+                        mCdivDepth = depth;
+                    }
+                    break;
             }
-            GalleryComment comment = new GalleryComment();
-            comment.time = date.getTime();
-            comment.user = ParserUtils.trim(m.group(2));
-            comment.comment = m.group(3);
-            list.add(comment);
         }
 
-        return list.toArray(new GalleryComment[list.size()]);
-    }
+        private void startGmElement(String tag, String classes, Attributes atts, int depth) {
+            if (mGd1Depth >= 0 && depth == mGd1Depth + 1 && mChildIndexes[depth] == 1) {
+                thumbStyle = atts.getValue("style");
+            }
 
-    /**
-     * Parse preview pages with html parser
-     */
-    public static int parsePreviewPages(Document document, String body) throws ParseException {
-        try {
-            Elements elements = document.getElementsByClass("ptt").first().child(0).child(0).children();
-            return Integer.parseInt(elements.get(elements.size() - 2).text());
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            throw new ParseException("Can't parse preview pages", body);
+            if (mGdcDepth >= 0) {
+                if (cn == null && mCnDepth < 0 && hasClass(classes, "cn")) {
+                    mCnDepth = depth;
+                } else if (cs == null && mCsDepth < 0 && hasClass(classes, "cs")) {
+                    mCsDepth = depth;
+                }
+            }
+
+            if (mTaglistDepth >= 0) {
+                if ("tr".equals(tag)) {
+                    mTagTrDepth = depth;
+                    mTagGroup = new GalleryTagGroup();
+                    mTagGroupBroken = false;
+                } else if (mTagTrDepth >= 0 && depth == mTagTrDepth + 1 && mChildIndexes[depth] == 2) {
+                    mTagTdDepth = depth;
+                }
+            }
         }
-    }
 
-    /**
-     * Parse preview pages with regular expressions
-     */
-    public static int parsePreviewPages(String body) throws ParseException {
-        Matcher m = PATTERN_PREVIEW_PAGES.matcher(body);
-        int previewPages = -1;
-        if (m.find()) {
-            previewPages = ParserUtils.parseInt(m.group(1), -1);
+        private void startGddElement(String tag, int depth) {
+            if ("tr".equals(tag)) {
+                mGddTrDepth = depth;
+                mGddKey = null;
+            } else if (mGddTrDepth >= 0 && depth == mGddTrDepth + 1 && mChildIndexes[depth] == 2) {
+                mOwnTextDepth = depth;
+                mOwnText.setLength(0);
+                mOwnFirstHref = null;
+            }
         }
 
-        if (previewPages <= 0) {
-            throw new ParseException("Parse preview page count error", body);
+        private void startPreviewElement(String tag, String classes, Attributes atts, int depth) {
+            if (!pttDone && mPttDepth < 0 && hasClass(classes, "ptt")) {
+                mPttDepth = depth;
+            } else if (mPttDepth >= 0 && "td".equals(tag)) {
+                mPttTdDepth = depth;
+            }
+
+            if (mGdtmDepth < 0 && mGdtlDepth < 0) {
+                if (hasClass(classes, "gdtm")) {
+                    mGdtmDepth = depth;
+                    mGdtmStyle = null;
+                    mPreviewHref = null;
+                    mPreviewAlt = null;
+                } else if (hasClass(classes, "gdtl")) {
+                    mGdtlDepth = depth;
+                    mPreviewHref = null;
+                    mPreviewAlt = null;
+                    mPreviewSrc = null;
+                }
+            } else {
+                if (mGdtmDepth >= 0 && mGdtmStyle == null && "div".equals(tag) &&
+                        depth == mGdtmDepth + 1 && mChildIndexes[depth] == 1) {
+                    mGdtmStyle = atts.getValue("style");
+                } else if (mPreviewHref == null && "a".equals(tag)) {
+                    mPreviewHref = atts.getValue("href");
+                } else if (mPreviewAlt == null && "img".equals(tag)) {
+                    mPreviewAlt = atts.getValue("alt");
+                    mPreviewSrc = atts.getValue("src");
+                }
+            }
         }
 
-        return previewPages;
-    }
+        private void startCommentElement(String tag, String classes, Attributes atts, int parent, int depth) {
+            if (mChdSiblingDepth >= 0 && depth == mChdSiblingDepth) {
+                // The element next to chd tells why the comment failed
+                mChdSiblingDepth = -1;
+                if ("p".equals(tag)) {
+                    mChdPDepth = depth;
+                }
+            }
 
-    /**
-     * Parse pages with regular expressions
-     */
-    public static int parsePages(String body) throws ParseException {
-        int pages = -1;
+            if (mC1Depth < 0) {
+                if ("a".equals(tag) && atts.getValue("name") != null) {
+                    mCommentName = atts.getValue("name");
+                } else if (hasClass(classes, "c1")) {
+                    mC1Depth = depth;
+                    mComment = new Comment();
+                    // The a before c1
+                    mComment.name = parent >= 0 && mChildIndexes[depth] > 1 ? mCommentName : null;
+                    mCommentName = null;
+                } else if (mChdDepth < 0 && "chd".equals(atts.getValue("id"))) {
+                    mChdDepth = depth;
+                } else if (!"a".equals(tag)) {
+                    mCommentName = null;
+                }
+                return;
+            }
 
-        Matcher m = PATTERN_PAGES.matcher(body);
-        if (m.find()) {
-            pages = ParserUtils.parseInt(m.group(1), -1);
+            if (mC3Depth < 0 && mComment.c3OwnText == null && hasClass(classes, "c3")) {
+                mC3Depth = depth;
+                mOwnTextDepth = depth;
+                mOwnText.setLength(0);
+            } else if (mC4Depth < 0 && !mComment.c4Found && hasClass(classes, "c4")) {
+                mC4Depth = depth;
+                mComment.c4Found = true;
+            } else if (mC5Depth < 0 && mComment.score == null && hasClass(classes, "c5")) {
+                mC5Depth = depth;
+            } else if (mC6Depth < 0 && mComment.html == null && hasClass(classes, "c6")) {
+                mC6Depth = depth;
+                mHtml.setLength(0);
+            } else if (mC7Depth < 0 && mComment.voteState == null && hasClass(classes, "c7")) {
+                mC7Depth = depth;
+            } else if (mC8Depth < 0 && hasClass(classes, "c8")) {
+                mC8Depth = depth;
+            } else if (mC8Depth >= 0 && depth == mC8Depth + 1) {
+                mComment.edited = true;
+            }
         }
 
-        if (pages < 0) {
-            throw new ParseException("Parse pages error", body);
-        }
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            int depth = mDepth;
+            if (depth < 0) {
+                return;
+            }
 
-        return pages;
-    }
+            if (mC6Depth >= 0) {
+                if (depth == mC6Depth) {
+                    mComment.html = mHtml.toString().trim();
+                    mC6Depth = -1;
+                } else {
+                    String tag = mTags[depth];
+                    if (!isVoid(tag)) {
+                        mHtml.append("</").append(tag).append('>');
+                    }
+                    mDepth--;
+                    return;
+                }
+            }
 
-    public static PreviewSet parsePreviewSet(Document d, String body) throws ParseException {
-        try {
-            return parseLargePreviewSet(d, body);
-        } catch (ParseException e) {
-            return parseNormalPreviewSet(body);
+            if (depth == mScriptDepth) {
+                mScriptDepth = -1;
+                mScript.append('\n');
+            }
+
+            if (mGmDepth >= 0) {
+                endGmElement(depth);
+            }
+
+            if (mGddDepth >= 0) {
+                endGddElement(depth);
+            }
+
+            if (depth == mPopUpDepth) {
+                String text = getText(depth);
+                if (text.startsWith(TORRENT_DOWNLOAD)) {
+                    if (torrentUrl == null) {
+                        Matcher matcher = PATTERN_TORRENT_COUNT.matcher(text);
+                        if (matcher.find()) {
+                            torrentUrl = mPopUpUrl;
+                            torrentCount = NumberUtils.parseIntSafely(matcher.group(1), 0);
+                        }
+                    }
+                } else if (text.equals(ARCHIVE_DOWNLOAD)) {
+                    if (archiveUrl == null) {
+                        archiveUrl = mPopUpUrl;
+                    }
+                }
+                mPopUpDepth = -1;
+                mPopUpUrl = null;
+            }
+
+            endPreviewElement(depth);
+
+            if (mCdivDepth >= 0) {
+                endCommentElement(depth);
+            }
+
+            if (depth == mOwnTextDepth) {
+                mOwnTextDepth = -1;
+            }
+
+            if (depth == mGmDepth || depth == mPttDepth || depth == mCdivDepth) {
+                if (depth == mGmDepth) {
+                    mGmDepth = -1;
+                } else if (depth == mPttDepth) {
+                    mPttDepth = -1;
+                    pttDone = true;
+                } else {
+                    mCdivDepth = -1;
+                }
+            }
+            if (!isCapturing()) {
+                mText.setLength(0);
+            }
+
+            mDepth--;
         }
-    }
 
-    public static PreviewSet parsePreviewSet(String body) throws ParseException {
-        try {
-            return parseLargePreviewSet(body);
-        } catch (ParseException e) {
-            return parseNormalPreviewSet(body);
+        private void endGmElement(int depth) {
+            if (depth == mGd1Depth) {
+                mGd1Depth = -1;
+            } else if (depth == mGnDepth) {
+                title = getText(depth);
+                mGnDepth = -1;
+            } else if (depth == mGjDepth) {
+                titleJpn = getText(depth);
+                mGjDepth = -1;
+            } else if (depth == mCnDepth) {
+                cn = getText(depth);
+                mCnDepth = -1;
+            } else if (depth == mCsDepth) {
+                cs = getText(depth);
+                mCsDepth = -1;
+            } else if (depth == mGdcDepth) {
+                mGdcDepth = -1;
+            } else if (depth == mGdnDepth) {
+                uploader = getText(depth);
+                mGdnDepth = -1;
+            } else if (depth == mRatingCountDepth) {
+                ratingCount = getText(depth);
+                mRatingCountDepth = -1;
+            } else if (depth == mRatingLabelDepth) {
+                ratingLabel = getText(depth);
+                mRatingLabelDepth = -1;
+            } else if (depth == mGdfDepth) {
+                favorite = getText(depth);
+                mGdfDepth = -1;
+            }
+
+            if (mTaglistDepth >= 0) {
+                if (depth == mTaglistDepth) {
+                    mTaglistDepth = -1;
+                } else if (depth == mTagTrDepth) {
+                    if (!mTagGroupBroken && mTagGroup.groupName != null && mTagGroup.size() > 0) {
+                        tagGroups.add(mTagGroup);
+                    }
+                    mTagGroup = null;
+                    mTagTrDepth = -1;
+                } else if (depth == mTagTdDepth) {
+                    mTagTdDepth = -1;
+                } else if (mTagTrDepth >= 0 && depth == mTagTrDepth + 1 && mChildIndexes[depth] == 1) {
+                    String nameSpace = getText(depth);
+                    if (nameSpace.isEmpty()) {
+                        mTagGroupBroken = true;
+                    } else {
+                        // Remove last ':'
+                        mTagGroup.groupName = nameSpace.substring(0, nameSpace.length() - 1);
+                    }
+                } else if (mTagTdDepth >= 0 && depth == mTagTdDepth + 1) {
+                    String tag = getText(depth);
+                    // Sometimes parody tag is followed with '|' and english translate, just remove them
+                    int index = tag.indexOf('|');
+                    if (index >= 0) {
+                        tag = tag.substring(0, index).trim();
+                    }
+                    mTagGroup.addTag(tag);
+                }
+            }
         }
-    }
 
-    /**
-     * Parse large previews with regular expressions
-     */
-    private static LargePreviewSet parseLargePreviewSet(Document d, String body) throws ParseException {
-        try {
-            LargePreviewSet largePreviewSet = new LargePreviewSet();
-            Element gdt = d.getElementById("gdt");
-            Elements gdtls = gdt.getElementsByClass("gdtl");
-            int n = gdtls.size();
-            if (n <= 0) {
-                throw new ParseException("Can't parse large preview", body);
-            }
-            for (int i = 0; i < n; i++) {
-                Element element = gdtls.get(i).child(0);
-                String pageUrl = element.attr("href");
-                element = element.child(0);
-                String imageUrl = element.attr("src");
-                if (Settings.getFixThumbUrl()) {
-                    imageUrl = EhUrl.getFixedPreviewThumbUrl(imageUrl);
+        private void endGddElement(int depth) {
+            if (depth == mGddDepth) {
+                mGddDepth = -1;
+            } else if (depth == mGddTrDepth) {
+                mGddTrDepth = -1;
+            } else if (mGddTrDepth >= 0 && depth == mGddTrDepth + 1) {
+                if (mChildIndexes[depth] == 1) {
+                    mGddKey = getText(depth);
+                } else if (mChildIndexes[depth] == 2 && mGddKey != null) {
+                    String value = collapse(mOwnText, 0, mOwnText.length());
+                    infos.add(new String[] { mGddKey, value, mOwnFirstHref });
+                    if (mGddKey.startsWith("Length") && value.endsWith(" pages")) {
+                        pages = ParserUtils.parseInt(value.substring(0, value.length() - " pages".length()), -1);
+                    }
                 }
-                int index = Integer.parseInt(element.attr("alt")) - 1;
-                largePreviewSet.addItem(index, imageUrl, pageUrl);
             }
-            return largePreviewSet;
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            throw new ParseException("Can't parse large preview", body);
         }
-    }
 
-    /**
-     * Parse large previews with regular expressions
-     */
-    private static LargePreviewSet parseLargePreviewSet(String body) throws ParseException {
-        Matcher m = PATTERN_LARGE_PREVIEW.matcher(body);
-        LargePreviewSet largePreviewSet = new LargePreviewSet();
+        private void endPreviewElement(int depth) {
+            if (depth == mPttTdDepth) {
+                pttTexts.add(getText(depth));
+                mPttTdDepth = -1;
+            }
 
-        while (m.find()) {
-            int index = ParserUtils.parseInt(m.group(2), 0) - 1;
+            if (depth == mGdtmDepth) {
+                mGdtmDepth = -1;
+                addNormalPreview();
+            } else if (depth == mGdtlDepth) {
+                mGdtlDepth = -1;
+                addLargePreview();
+            }
+        }
+
+        private void addNormalPreview() {
+            if (mGdtmStyle == null || mPreviewHref == null || mPreviewAlt == null) {
+                return;
+            }
+            Matcher m = PATTERN_NORMAL_PREVIEW_STYLE.matcher(mGdtmStyle);
+            if (!m.find()) {
+                return;
+            }
+            int position = ParserUtils.parseInt(mPreviewAlt, 0) - 1;
+            if (position < 0) {
+                return;
+            }
+            String imageUrl = StringUtils.trim(m.group(3));
+            int xOffset = ParserUtils.parseInt(m.group(4), 0);
+            int yOffset = 0;
+            int width = ParserUtils.parseInt(m.group(1), 0);
+            if (width <= 0) {
+                return;
+            }
+            int height = ParserUtils.parseInt(m.group(2), 0);
+            if (height <= 0) {
+                return;
+            }
+            String pageUrl = StringUtils.trim(mPreviewHref);
+            normalPreviewSet.addItem(position, imageUrl, xOffset, yOffset, width, height, pageUrl);
+        }
+
+        private void addLargePreview() {
+            if (mPreviewHref == null || mPreviewAlt == null || mPreviewSrc == null) {
+                return;
+            }
+            int index = ParserUtils.parseInt(mPreviewAlt, 0) - 1;
             if (index < 0) {
-                continue;
+                return;
             }
-            String imageUrl = ParserUtils.trim(m.group(3));
-            String pageUrl = ParserUtils.trim(m.group(1));
+            String imageUrl = StringUtils.trim(mPreviewSrc);
+            String pageUrl = StringUtils.trim(mPreviewHref);
             if (Settings.getFixThumbUrl()) {
                 imageUrl = EhUrl.getFixedPreviewThumbUrl(imageUrl);
             }
             largePreviewSet.addItem(index, imageUrl, pageUrl);
         }
 
-        if (largePreviewSet.size() == 0) {
-            throw new ParseException("Can't parse large preview", body);
+        private void endCommentElement(int depth) {
+            if (mChdDepth >= 0) {
+                if (depth == mChdDepth) {
+                    mChdDepth = -1;
+                    mChdSiblingDepth = depth;
+                } else if (!hasMore && getText(depth).equals("click to show all")) {
+                    hasMore = true;
+                }
+            }
+            if (depth < mChdSiblingDepth) {
+                mChdSiblingDepth = -1;
+            }
+            if (depth == mChdPDepth) {
+                commentError = getText(depth);
+                mChdPDepth = -1;
+            }
+
+            if (mC1Depth < 0) {
+                return;
+            }
+
+            if (depth == mC1Depth) {
+                GalleryComment comment = mComment.build();
+                if (comment != null) {
+                    comments.add(comment);
+                }
+                mComment = null;
+                mC1Depth = -1;
+                mC3Depth = -1;
+                mC4Depth = -1;
+                mC5Depth = -1;
+                mC7Depth = -1;
+                mC8Depth = -1;
+            } else if (depth == mC3Depth) {
+                mComment.c3OwnText = collapse(mOwnText, 0, mOwnText.length());
+                mC3Depth = -1;
+            } else if (mC3Depth >= 0 && depth == mC3Depth + 1 && mChildIndexes[depth] == 1) {
+                mComment.user = getText(depth);
+            } else if (depth == mC4Depth) {
+                mC4Depth = -1;
+            } else if (mC4Depth >= 0 && depth == mC4Depth + 1) {
+                String style = StringUtils.trim(mStyles[depth] != null ? mStyles[depth] : "");
+                switch (getText(depth)) {
+                    case "Vote+":
+                        mComment.voteUpAble = true;
+                        mComment.voteUpEd = !style.isEmpty();
+                        break;
+                    case "Vote-":
+                        mComment.voteDownAble = true;
+                        mComment.voteDownEd = !style.isEmpty();
+                        break;
+                    case "Edit":
+                        mComment.editable = true;
+                        break;
+                }
+            } else if (depth == mC5Depth) {
+                mC5Depth = -1;
+            } else if (mC5Depth >= 0 && depth == mC5Depth + 1 && mChildIndexes[depth] == 1) {
+                mComment.score = getText(depth);
+            } else if (depth == mC7Depth) {
+                mComment.voteState = getText(depth);
+                mC7Depth = -1;
+            } else if (depth == mC8Depth) {
+                mC8Depth = -1;
+            }
         }
 
-        return largePreviewSet;
-    }
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (mScriptDepth >= 0) {
+                mScript.append(ch, start, length);
+            }
+            if (mC6Depth >= 0) {
+                appendEscaped(mHtml, new String(ch, start, length), 0, length, false);
+            }
+            if (isCapturing()) {
+                mText.append(ch, start, length);
+            }
+            if (mOwnTextDepth >= 0 && mDepth == mOwnTextDepth) {
+                mOwnText.append(ch, start, length);
+            }
+        }
 
-    /**
-     * Parse normal previews with regular expressions
-     */
-    private static NormalPreviewSet parseNormalPreviewSet(String body) throws ParseException {
-        Matcher m = PATTERN_NORMAL_PREVIEW.matcher(body);
-        NormalPreviewSet normalPreviewSet = new NormalPreviewSet();
-        while (m.find()) {
-            int position = ParserUtils.parseInt(m.group(6), 0) - 1;
-            if (position < 0) {
-                continue;
+        @SuppressWarnings("ConstantConditions")
+        GalleryDetail buildDetail(String body) throws ParseException {
+            GalleryDetail gd = new GalleryDetail();
+            Matcher matcher = PATTERN_DETAIL.matcher(mScript);
+            if (matcher.find()) {
+                gd.gid = NumberUtils.parseLongSafely(matcher.group(1), -1L);
+                gd.token = matcher.group(2);
+                gd.apiUid = NumberUtils.parseLongSafely(matcher.group(3), -1L);
+                gd.apiKey = matcher.group(4);
+            } else {
+                throw new ParseException("Can't parse gallery detail", body);
             }
-            String imageUrl = ParserUtils.trim(m.group(3));
-            int xOffset =  ParserUtils.parseInt(m.group(4), 0);
-            int yOffset =  0;
-            int width = ParserUtils.parseInt(m.group(1), 0);
-            if (width <= 0) {
-                continue;
+            if (gd.gid == -1L) {
+                throw new ParseException("Can't parse gallery detail", body);
             }
-            int height = ParserUtils.parseInt(m.group(2), 0);
-            if (height <= 0) {
-                continue;
+
+            if (torrentUrl != null) {
+                gd.torrentUrl = torrentUrl;
+                gd.torrentCount = torrentCount;
+            } else {
+                gd.torrentCount = 0;
+                gd.torrentUrl = "";
             }
-            String pageUrl = ParserUtils.trim(m.group(5));
-            normalPreviewSet.addItem(position, imageUrl, xOffset, yOffset, width, height, pageUrl);
+            gd.archiveUrl = archiveUrl != null ? archiveUrl : "";
+
+            if (!gmFound) {
+                throw new ParseException("Can't parse gallery detail", body);
+            }
+
+            // Thumb url
+            gd.thumb = thumbStyle != null ? parseCoverStyle(StringUtils.trim(thumbStyle)) : "";
+
+            // Title
+            gd.title = title != null ? title : "";
+
+            // Jpn title
+            gd.titleJpn = titleJpn != null ? titleJpn : "";
+
+            // Category
+            String category = cn != null ? cn : cs;
+            gd.category = category != null ? EhUtils.getCategory(category) : EhUtils.UNKNOWN;
+
+            // Uploader
+            gd.uploader = uploader != null ? uploader : "";
+
+            gd.posted = "";
+            gd.parent = "";
+            gd.visible = "";
+            gd.size = "";
+            gd.pages = 0;
+            gd.favoriteCount = 0;
+            for (String[] info : infos) {
+                parseDetailInfo(gd, info[0], info[1], info[2]);
+            }
+
+            // Rating count
+            gd.ratingCount = ratingCount != null ? NumberUtils.parseIntSafely(ratingCount, 0) : 0;
+
+            // Rating
+            if (ratingLabel != null) {
+                if ("Not Yet Rated".equals(ratingLabel)) {
+                    gd.rating = -1.0f;
+                } else {
+                    int index = ratingLabel.indexOf(' ');
+                    if (index == -1 || index >= ratingLabel.length()) {
+                        gd.rating = 0f;
+                    } else {
+                        gd.rating = NumberUtils.parseFloatSafely(ratingLabel.substring(index + 1), 0f);
+                    }
+                }
+            } else {
+                gd.rating = -1.0f;
+            }
+
+            // isFavorited
+            gd.isFavorited = null != favorite && !favorite.equals("Add to Favorites");
+            if (favorite != null) {
+                if (favorite.equals("Add to Favorites")) {
+                    gd.favoriteName = null;
+                } else {
+                    gd.favoriteName = favorite;
+                }
+            }
+
+            return gd;
         }
 
-        if (normalPreviewSet.size() == 0) {
-            throw new ParseException("Can't parse normal preview", body);
+        @NonNull
+        GalleryTagGroup[] buildTagGroups() {
+            return tagGroups.isEmpty() ? EMPTY_GALLERY_TAG_GROUP_ARRAY :
+                    tagGroups.toArray(new GalleryTagGroup[tagGroups.size()]);
         }
 
-        return normalPreviewSet;
+        @NonNull
+        GalleryCommentList buildComments() {
+            if (!cdivFound) {
+                return EMPTY_GALLERY_COMMENT_ARRAY;
+            }
+            return new GalleryCommentList(comments.toArray(new GalleryComment[comments.size()]), hasMore);
+        }
+
+        int getPreviewPages(String body) throws ParseException {
+            // The last one is '>', the one before it is the last page
+            int previewPages = -1;
+            if (pttTexts.size() >= 2) {
+                previewPages = ParserUtils.parseInt(pttTexts.get(pttTexts.size() - 2), -1);
+            }
+            if (previewPages <= 0) {
+                throw new ParseException("Parse preview page count error", body);
+            }
+            return previewPages;
+        }
+
+        PreviewSet getPreviewSet(String body) throws ParseException {
+            // Large previews first, normal previews if none of them can be parsed
+            if (largePreviewSet.size() > 0) {
+                return largePreviewSet;
+            } else if (normalPreviewSet.size() > 0) {
+                return normalPreviewSet;
+            } else {
+                throw new ParseException("Can't parse preview", body);
+            }
+        }
     }
 }
@@ -22,20 +22,26 @@ import androidx.annotation.NonNull;
 import com.hippo.ehviewer.EhDB;
 import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
-import com.hippo.ehviewer.client.data.GalleryTagGroup;
 import com.hippo.ehviewer.client.exception.ParseException;
-import com.hippo.util.ExceptionUtils;
-import com.hippo.util.JsoupUtils;
 import com.hippo.yorozuya.NumberUtils;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Parser;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class GalleryListParser {
 
@@ -73,17 +79,6 @@ public class GalleryListParser {
         public List<GalleryInfo> galleryInfoList;
     }
 
-    //返回总页数
-    private static int parsePages(Document d, String body) throws ParseException {
-        try {
-            Elements es = d.getElementsByClass("ptt").first().child(0).child(0).children();
-            return Integer.parseInt(es.get(es.size() - 2).text().trim());
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            throw new ParseException("Can't parse gallery list pages", body);
-        }
-    }
-
     //返回评价级别， 为字符串 "0.5" "1" "1.5" "2"
     private static String parseRating(String ratingStyle) {
         Matcher m = PATTERN_RATING.matcher(ratingStyle);
@@ -132,249 +127,732 @@ public class GalleryListParser {
         return -2;
     }
 
-    // Element类为Jsoup包中的类(用来解析html，java爬虫)， 用来提取HTMLElement
-    private static GalleryInfo parseGalleryInfo(Element e) {
-        GalleryInfo gi = new GalleryInfo();
-        // Title, gid, token (required), tags
-        Element glname = JsoupUtils.getElementByClass(e, "glname");
-        if (glname != null) {
-            Element a = JsoupUtils.getElementByTag(glname, "a");
-            if (a == null) {
-                Element parent = glname.parent();
-                if (parent != null && "a".equals(parent.tagName())) {
-                    a = parent;
-                }
+    private static final HTMLSchema SCHEMA = new HTMLSchema();
+
+    // How many bytes of the response are kept for ParseException
+    private static final int MAX_RECORDED_BODY = 16 * 1024;
+
+    //     Result内的属性
+    //     public int pages;
+    //     public int nextPage;
+    //     public boolean noWatchedTags;
+    //     public List<GalleryInfo> galleryInfoList;
+    public static Result parse(@NonNull String body) throws Exception {
+        return parse(new InputSource(new StringReader(body)), body, null);
+    }
+
+    /**
+     * Parse the gallery list while reading the stream. No DOM is built and
+     * only the head of the body is kept for error report.
+     */
+    public static Result parse(@NonNull InputStream is) throws Exception {
+        RecordInputStream ris = new RecordInputStream(is, MAX_RECORDED_BODY);
+        InputSource source = new InputSource(ris);
+        source.setEncoding("UTF-8");
+        return parse(source, null, ris);
+    }
+
+    private static Result parse(InputSource source, String body, RecordInputStream ris) throws Exception {
+        ListHandler handler = new ListHandler();
+        try {
+            Parser parser = new Parser();
+            parser.setProperty(Parser.schemaProperty, SCHEMA);
+            parser.setContentHandler(handler);
+            parser.parse(source);
+        } catch (SAXException e) {
+            throw new ParseException("Can't parse gallery list", ris != null ? ris.getRecorded() : body, e);
+        }
+
+        Result result = new Result();
+        if (handler.pttFound && handler.pttPages >= 0) {
+            result.pages = handler.pttPages;
+            result.nextPage = handler.pttNextPage;
+        } else {
+            result.noWatchedTags = handler.noWatchedTags;
+            if (handler.noHits) {
+                result.pages = 0;
+                //noinspection unchecked
+                result.galleryInfoList = Collections.EMPTY_LIST;
+                return result;
+            } else if (!handler.pttFound) {
+                result.pages = 1;
+            } else {
+                result.pages = Integer.MAX_VALUE;
             }
-            if (a != null) {
-                GalleryDetailUrlParser.Result result = GalleryDetailUrlParser.parse(a.attr("href"));
-                if (result != null) {
-                    gi.gid = result.gid;
-                    gi.token = result.token;
-                }
+        }
+
+        if (!handler.itgFound) {
+            throw new ParseException("Can't parse gallery list", ris != null ? ris.getRecorded() : body);
+        }
+        if (handler.list.isEmpty()) {
+            throw new ParseException("No gallery", ris != null ? ris.getRecorded() : body);
+        }
+        result.galleryInfoList = handler.list;
+        return result;
+    }
+
+    private static boolean hasClass(String classes, String name) {
+        if (classes == null) {
+            return false;
+        }
+        int length = classes.length();
+        int nameLength = name.length();
+        int index = 0;
+        while ((index = classes.indexOf(name, index)) >= 0) {
+            int end = index + nameLength;
+            if ((index == 0 || Character.isWhitespace(classes.charAt(index - 1))) &&
+                    (end == length || Character.isWhitespace(classes.charAt(end)))) {
+                return true;
             }
+            index = end;
+        }
+        return false;
+    }
 
-            Element child = glname;
-            Elements children = glname.children();
-            while (children.size() != 0) {
-                child = children.get(0);
-                children = child.children();
+    private static int parsePages(String text, int defaultValue) {
+        Matcher matcher = PATTERN_PAGES.matcher(text);
+        if (matcher.find()) {
+            return NumberUtils.parseIntSafely(matcher.group(1), 0);
+        }
+        return defaultValue;
+    }
+
+    private static void setThumbSize(GalleryInfo gi, String style) {
+        Matcher m = PATTERN_THUMB_SIZE.matcher(style != null ? style : "");
+        if (m.find()) {
+            gi.thumbWidth = NumberUtils.parseIntSafely(m.group(2), 0);
+            gi.thumbHeight = NumberUtils.parseIntSafely(m.group(1), 0);
+        } else {
+            Log.w(TAG, "Can't parse gallery info thumb size");
+            gi.thumbWidth = 0;
+            gi.thumbHeight = 0;
+        }
+    }
+
+    /**
+     * Keeps the first bytes read for error report.
+     */
+    private static class RecordInputStream extends FilterInputStream {
+
+        private final byte[] mRecord;
+        private int mSize;
+
+        RecordInputStream(InputStream in, int max) {
+            super(in);
+            mRecord = new byte[max];
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && mSize < mRecord.length) {
+                mRecord[mSize++] = (byte) b;
             }
-            gi.title = child.text().trim();
+            return b;
+        }
 
-            Element tbody = JsoupUtils.getElementByTag(glname, "tbody");
-            if (tbody != null) {
-                ArrayList<String> tags = new ArrayList<>();
-                GalleryTagGroup[] groups = GalleryDetailParser.parseTagGroups(tbody.children());
-                for (GalleryTagGroup group : groups) {
-                    for (int j = 0; j < group.size(); j++) {
-                        tags.add(group.groupName + ":" + group.getTagAt(j));
-                    }
-                }
-                gi.simpleTags = tags.toArray(new String[tags.size()]);
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && mSize < mRecord.length) {
+                int copy = Math.min(n, mRecord.length - mSize);
+                System.arraycopy(b, off, mRecord, mSize, copy);
+                mSize += copy;
             }
+            return n;
         }
-        if (gi.title == null) {
-            return null;
+
+        String getRecorded() {
+            return new String(mRecord, 0, mSize, Charset.forName("UTF-8"));
         }
+    }
+
+    /**
+     * Collects a gallery row between the start and end of it.
+     * Texts are copied out of the text buffer when their elements end.
+     */
+    private static class Row {
+
+        // The a in glname, the a wraps glname and any gallery link in the row
+        String href;
+        String parentHref;
+        String fallbackHref;
+        String title;
+        ArrayList<String> tags;
+
+        String cn;
+        String cs;
+
+        boolean thumbFound;
+        String thumbStyle;
+        String thumbUrl;
+        int thumbPages = -1;
+
+        String glStyle;
+        String glUrl;
+        boolean glFound;
+
+        String postedId;
+        String posted;
+        String postedStyle;
+
+        String irStyle;
+        boolean rated;
+        boolean irFound;
+
+        boolean hideFound;
+        String hideUploader;
+        int hidePages = -1;
+        boolean gl3eFound;
+        String gl3eUploader;
+        int gl3ePages = -1;
+
+        int gl5tPages = -1;
+
+        GalleryInfo build() {
+            if (title == null) {
+                return null;
+            }
+
+            GalleryInfo gi = new GalleryInfo();
+            GalleryDetailUrlParser.Result result = GalleryDetailUrlParser.parse(
+                    href != null ? href : parentHref != null ? parentHref : fallbackHref);
+            if (result != null) {
+                gi.gid = result.gid;
+                gi.token = result.token;
+            }
+            gi.title = title;
+            if (tags != null) {
+                gi.simpleTags = tags.toArray(new String[tags.size()]);
+            }
+
+            // Category
+            gi.category = EhUtils.UNKNOWN;
+            String category = cn != null ? cn : cs;
+            if (category != null) {
+                gi.category = EhUtils.getCategory(category);
+            }
+
+            // Thumb
+            if (thumbFound) {
+                setThumbSize(gi, thumbStyle);
+                gi.thumb = EhUtils.handleThumbUrlResolution(thumbUrl);
+            }
+            if (thumbPages >= 0) {
+                gi.pages = thumbPages;
+            }
+            // Try extended and thumbnail version
+            if (gi.thumb == null && glFound) {
+                setThumbSize(gi, glStyle);
+                gi.thumb = EhUtils.handleThumbUrlResolution(glUrl);
+            }
 
-        // Category
-        gi.category = EhUtils.UNKNOWN;
-        Element ce = JsoupUtils.getElementByClass(e, "cn");
-        if (ce == null) {
-            ce = JsoupUtils.getElementByClass(e, "cs");
+            // Posted
+            gi.favoriteSlot = -2;
+            if (postedId != null && postedId.equals(Long.toString(gi.gid))) {
+                gi.posted = posted;
+                gi.favoriteSlot = parseFavoriteSlot(postedStyle != null ? postedStyle : "");
+            }
+            if (gi.favoriteSlot == -2) {
+                gi.favoriteSlot = EhDB.containLocalFavorites(gi.gid) ? -1 : -2;
+            }
+
+            // Rating
+            if (irFound) {
+                gi.rating = NumberUtils.parseFloatSafely(parseRating(irStyle != null ? irStyle : ""), -1.0f);
+                // TODO The gallery may be rated even if it doesn't has one of these classes
+                gi.rated = rated;
+            }
+
+            // Uploader and pages
+            if (hideFound) {
+                gi.uploader = hideUploader;
+                if (hidePages >= 0) {
+                    gi.pages = hidePages;
+                }
+            } else if (gl3eFound) {
+                // For extended
+                gi.uploader = gl3eUploader;
+                if (gl3ePages >= 0) {
+                    gi.pages = gl3ePages;
+                }
+            }
+            // For thumbnail
+            if (gl5tPages >= 0) {
+                gi.pages = gl5tPages;
+            }
+
+            gi.generateSLang();
+
+            return gi;
         }
-        if (ce != null) {
-            gi.category = EhUtils.getCategory(ce.text());
+    }
+
+    /**
+     * Walks the SAX events of the list page. Every element is a frame in the
+     * depth indexed arrays, a gallery is built when its row ends.
+     */
+    private static class ListHandler extends DefaultHandler {
+
+        private static final int FLAG_CN = 0x1;
+        private static final int FLAG_CS = 0x2;
+
+        final List<GalleryInfo> list = new ArrayList<>();
+
+        boolean itgFound;
+        boolean pttFound;
+        int pttPages = -1;
+        int pttNextPage;
+        boolean noWatchedTags;
+        boolean noHits;
+
+        // Frames
+        private String[] mTags = new String[64];
+        private int[] mChildCounts = new int[64];
+        private int[] mChildIndexes = new int[64];
+        private int[] mTextStarts = new int[64];
+        private String[] mHrefs = new String[64];
+        private int[] mFlags = new int[64];
+        private int mDepth = -1;
+
+        // Texts of the row, ptt or p being captured
+        private final StringBuilder mText = new StringBuilder(1024);
+
+        private int mItgDepth = -1;
+        private boolean mItgIsTable;
+        private boolean mItgDone;
+
+        private int mPDepth = -1;
+
+        private int mPttDepth = -1;
+        private int mPttTdDepth = -1;
+        private String mPttTdHref;
+        private String mPttLastText;
+        private String mPttPrevText;
+        private String mPttLastHref;
+        private int mPttTdCount;
+
+        private Row mRow;
+        private int mRowDepth = -1;
+        private int mGlnameDepth = -1;
+        private int mTitleDepth = -1;
+        private int mTagTrDepth = -1;
+        private int mTagTdIndex;
+        private String mNamespace;
+        private int mTagTdDepth = -1;
+        private int mGlthumbDepth = -1;
+        private boolean mThumbImgFound;
+        private boolean mThumbPagesChecked;
+        private int mGlDepth = -1;
+        private int mGlhideDepth = -1;
+        private int mGl3eDepth = -1;
+        private int mGl5tDepth = -1;
+        private boolean mGl5tPagesChecked;
+        private int mPostedDepth = -1;
+
+        private void ensureDepth(int depth) {
+            if (depth < mTags.length) {
+                return;
+            }
+            int length = mTags.length * 2;
+            mTags = Arrays.copyOf(mTags, length);
+            mChildCounts = Arrays.copyOf(mChildCounts, length);
+            mChildIndexes = Arrays.copyOf(mChildIndexes, length);
+            mTextStarts = Arrays.copyOf(mTextStarts, length);
+            mHrefs = Arrays.copyOf(mHrefs, length);
+            mFlags = Arrays.copyOf(mFlags, length);
         }
 
-        // Thumb
-        Element glthumb = JsoupUtils.getElementByClass(e, "glthumb");
-        if (glthumb != null) {
-            Element img = glthumb.select("div:nth-child(1)>img").first();
-            if (img != null) {
-                // Thumb size
-                Matcher m = PATTERN_THUMB_SIZE.matcher(img.attr("style"));
-                if (m.find()) {
-                    gi.thumbWidth = NumberUtils.parseIntSafely(m.group(2), 0);
-                    gi.thumbHeight = NumberUtils.parseIntSafely(m.group(1), 0);
+        private boolean isCapturing() {
+            return mRowDepth >= 0 || mPttDepth >= 0 || mPDepth >= 0;
+        }
+
+        /**
+         * Whitespace collapsed and trimmed text of the element at the depth.
+         */
+        private String getText(int depth) {
+            int start = mTextStarts[depth];
+            int end = mText.length();
+            StringBuilder sb = new StringBuilder(end - start);
+            boolean space = false;
+            for (int i = start; i < end; i++) {
+                char c = mText.charAt(i);
+                if (Character.isWhitespace(c) || c == '\u00a0') {
+                    space = sb.length() > 0;
                 } else {
-                    Log.w(TAG, "Can't parse gallery info thumb size");
-                    gi.thumbWidth = 0;
-                    gi.thumbHeight = 0;
-                }
-                // Thumb url
-                String url = img.attr("data-src");
-                if (TextUtils.isEmpty(url)) {
-                    url = img.attr("src");
-                }
-                if (TextUtils.isEmpty(url)) {
-                    url = null;
+                    if (space) {
+                        sb.append(' ');
+                        space = false;
+                    }
+                    sb.append(c);
                 }
-                gi.thumb = EhUtils.handleThumbUrlResolution(url);
             }
+            return sb.toString();
+        }
 
-            // Pages
-            Element div = glthumb.select("div:nth-child(2)>div:nth-child(2)>div:nth-child(2)").first();
-            if (div != null) {
-                Matcher matcher = PATTERN_PAGES.matcher(div.text());
-                if (matcher.find()) {
-                    gi.pages = NumberUtils.parseIntSafely(matcher.group(1), 0);
+        // Like div:nth-child(2)>div:nth-child(2), the chain must be under the depth
+        private boolean isSecondDivChain(int depth, int count, int topDepth) {
+            if (depth - count + 1 <= topDepth) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                int d = depth - i;
+                if (!"div".equals(mTags[d]) || mChildIndexes[d] != 2) {
+                    return false;
                 }
             }
+            return true;
         }
-        // Try extended and thumbnail version
-        if (gi.thumb == null) {
-            Element gl = JsoupUtils.getElementByClass(e, "gl1e");
-            if (gl == null) {
-                gl = JsoupUtils.getElementByClass(e, "gl3t");
-            }
-            if (gl != null) {
-                Element img = JsoupUtils.getElementByTag(gl, "img");
-                if (img != null) {
-                    // Thumb size
-                    Matcher m = PATTERN_THUMB_SIZE.matcher(img.attr("style"));
-                    if (m.find()) {
-                        gi.thumbWidth = NumberUtils.parseIntSafely(m.group(2), 0);
-                        gi.thumbHeight = NumberUtils.parseIntSafely(m.group(1), 0);
-                    } else {
-                        Log.w(TAG, "Can't parse gallery info thumb size");
-                        gi.thumbWidth = 0;
-                        gi.thumbHeight = 0;
+
+        private boolean isRowStart(String tag, String classes) {
+            if (mItgDepth < 0 || mRowDepth >= 0) {
+                return false;
+            }
+            if (mItgIsTable) {
+                if (!"tr".equals(tag)) {
+                    return false;
+                }
+                // The nearest table must be itg
+                for (int d = mDepth - 1; d > mItgDepth; d--) {
+                    if ("table".equals(mTags[d])) {
+                        return false;
                     }
-                    gi.thumb = EhUtils.handleThumbUrlResolution(img.attr("src"));
                 }
+                return true;
+            } else {
+                return mDepth == mItgDepth + 1 || hasClass(classes, "gl1t");
             }
         }
 
-        // Posted
-        gi.favoriteSlot = -2;
-        Element posted = e.getElementById("posted_" + gi.gid);
-        if (posted != null) {
-            gi.posted = posted.text().trim();
-            gi.favoriteSlot = parseFavoriteSlot(posted.attr("style"));
-        }
-        if (gi.favoriteSlot == -2) {
-            gi.favoriteSlot = EhDB.containLocalFavorites(gi.gid) ? -1 : -2;
-        }
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            String tag = localName.length() != 0 ? localName : qName.toLowerCase(Locale.US);
+            int parent = mDepth;
+            int depth = ++mDepth;
+            ensureDepth(depth);
+            mTags[depth] = tag;
+            mChildCounts[depth] = 0;
+            mChildIndexes[depth] = parent >= 0 ? ++mChildCounts[parent] : 1;
+            mTextStarts[depth] = mText.length();
+            mHrefs[depth] = "a".equals(tag) ? atts.getValue("href") : null;
+            mFlags[depth] = 0;
 
-        // Rating
-        Element ir = JsoupUtils.getElementByClass(e, "ir");
-        if (ir != null) {
-            gi.rating = NumberUtils.parseFloatSafely(parseRating(ir.attr("style")), -1.0f);
-            // TODO The gallery may be rated even if it doesn't has one of these classes
-            gi.rated = ir.hasClass("irr") || ir.hasClass("irg") || ir.hasClass("irb");
-        }
+            String classes = atts.getValue("class");
 
-        // Uploader and pages
-        Element gl = JsoupUtils.getElementByClass(e, "glhide");
-        int uploaderIndex = 0;
-        int pagesIndex = 1;
-        if (gl == null) {
-            // For extended
-            gl = JsoupUtils.getElementByClass(e, "gl3e");
-            uploaderIndex = 3;
-            pagesIndex = 4;
+            if (mRowDepth >= 0) {
+                startRowElement(tag, classes, atts, parent, depth);
+                return;
+            }
+
+            if (!mItgDone && mItgDepth < 0 && hasClass(classes, "itg")) {
+                mItgDepth = depth;
+                mItgIsTable = "table".equals(tag);
+                itgFound = true;
+            } else if (isRowStart(tag, classes)) {
+                mRowDepth = depth;
+                mRow = new Row();
+            } else if (!pttFound && hasClass(classes, "ptt")) {
+                mPttDepth = depth;
+                pttFound = true;
+            } else if (mPttDepth >= 0) {
+                if ("td".equals(tag)) {
+                    mPttTdDepth = depth;
+                    mPttTdHref = null;
+                } else if (parent == mPttTdDepth && mChildIndexes[depth] == 1) {
+                    mPttTdHref = mHrefs[depth];
+                }
+            } else if (mPDepth < 0 && mItgDepth < 0 && "p".equals(tag)) {
+                mPDepth = depth;
+            }
         }
-        if (gl != null) {
-            Elements children = gl.children();
-            if (children.size() > uploaderIndex) {
-                Element a = children.get(uploaderIndex).children().first();
-                if (a != null) {
-                    gi.uploader = a.text().trim();
+
+        private void startRowElement(String tag, String classes, Attributes atts, int parent, int depth) {
+            Row row = mRow;
+
+            String href = mHrefs[depth];
+            if (href != null) {
+                if (mGlnameDepth >= 0 && row.href == null) {
+                    row.href = href;
+                } else if (row.fallbackHref == null && GalleryDetailUrlParser.parse(href) != null) {
+                    row.fallbackHref = href;
                 }
             }
-            if (children.size() > pagesIndex) {
-                Matcher matcher = PATTERN_PAGES.matcher(children.get(pagesIndex).text());
-                if (matcher.find()) {
-                    gi.pages = NumberUtils.parseIntSafely(matcher.group(1), 0);
+
+            if (mGlnameDepth < 0 && row.title == null && hasClass(classes, "glname")) {
+                mGlnameDepth = depth;
+                mTitleDepth = depth;
+                if (parent >= 0) {
+                    row.parentHref = mHrefs[parent];
                 }
+                return;
             }
-        }
-        // For thumbnail
-        Element gl5t = JsoupUtils.getElementByClass(e, "gl5t");
-        if (gl5t != null) {
-            Element div = gl5t.select("div:nth-child(2)>div:nth-child(2)").first();
-            if (div != null) {
-                Matcher matcher = PATTERN_PAGES.matcher(div.text());
-                if (matcher.find()) {
-                    gi.pages = NumberUtils.parseIntSafely(matcher.group(1), 0);
+
+            if (mGlnameDepth >= 0) {
+                // Title is the text of the first child of the first child ...
+                if (parent == mTitleDepth && mChildIndexes[depth] == 1) {
+                    mTitleDepth = depth;
+                }
+                if ("tr".equals(tag)) {
+                    mTagTrDepth = depth;
+                    mTagTdIndex = 0;
+                    mNamespace = null;
+                } else if (parent == mTagTrDepth && mTagTrDepth >= 0) {
+                    mTagTdIndex++;
+                    mTagTdDepth = depth;
                 }
+                return;
+            }
+
+            if (row.cn == null && hasClass(classes, "cn")) {
+                mFlags[depth] |= FLAG_CN;
+            }
+            if (row.cs == null && hasClass(classes, "cs")) {
+                mFlags[depth] |= FLAG_CS;
+            }
+            if (mPostedDepth < 0 && row.postedId == null) {
+                String id = atts.getValue("id");
+                if (id != null && id.startsWith("posted_")) {
+                    mPostedDepth = depth;
+                    row.postedId = id.substring("posted_".length());
+                    row.postedStyle = atts.getValue("style");
+                }
+            }
+            if (!row.irFound && hasClass(classes, "ir")) {
+                row.irFound = true;
+                row.irStyle = atts.getValue("style");
+                row.rated = hasClass(classes, "irr") || hasClass(classes, "irg") || hasClass(classes, "irb");
+            }
+
+            if (mGlthumbDepth < 0 && hasClass(classes, "glthumb")) {
+                mGlthumbDepth = depth;
+            } else if (mGlthumbDepth >= 0) {
+                if (!mThumbImgFound && "img".equals(tag) && parent > mGlthumbDepth &&
+                        "div".equals(mTags[parent]) && mChildIndexes[parent] == 1) {
+                    mThumbImgFound = true;
+                    row.thumbFound = true;
+                    row.thumbStyle = atts.getValue("style");
+                    String url = atts.getValue("data-src");
+                    if (TextUtils.isEmpty(url)) {
+                        url = atts.getValue("src");
+                    }
+                    if (TextUtils.isEmpty(url)) {
+                        url = null;
+                    }
+                    row.thumbUrl = url;
+                }
+            }
+
+            if (!row.glFound && mGlDepth < 0 && (hasClass(classes, "gl1e") || hasClass(classes, "gl3t"))) {
+                mGlDepth = depth;
+            } else if (mGlDepth >= 0 && !row.glFound && "img".equals(tag)) {
+                row.glFound = true;
+                row.glStyle = atts.getValue("style");
+                row.glUrl = atts.getValue("src");
+            }
+
+            if (!row.hideFound && mGlhideDepth < 0 && hasClass(classes, "glhide")) {
+                mGlhideDepth = depth;
+                row.hideFound = true;
+            } else if (!row.gl3eFound && mGl3eDepth < 0 && hasClass(classes, "gl3e")) {
+                mGl3eDepth = depth;
+                row.gl3eFound = true;
+            } else if (mGl5tDepth < 0 && !mGl5tPagesChecked && hasClass(classes, "gl5t")) {
+                mGl5tDepth = depth;
             }
         }
 
-        gi.generateSLang();
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            int depth = mDepth;
+            if (depth < 0) {
+                return;
+            }
 
-        return gi;
-    }
+            if (mRowDepth >= 0) {
+                endRowElement(depth);
+            } else if (depth == mItgDepth) {
+                mItgDepth = -1;
+                mItgDone = true;
+            } else if (mPttDepth >= 0) {
+                if (depth == mPttTdDepth) {
+                    mPttPrevText = mPttLastText;
+                    mPttLastText = getText(depth);
+                    mPttLastHref = mPttTdHref;
+                    mPttTdCount++;
+                    mPttTdDepth = -1;
+                } else if (depth == mPttDepth) {
+                    endPtt();
+                }
+            } else if (depth == mPDepth) {
+                String text = getText(depth);
+                if (text.startsWith("You do not have any watched tags")) {
+                    noWatchedTags = true;
+                }
+                if (text.contains("No hits found")) {
+                    noHits = true;
+                }
+                mPDepth = -1;
+            }
 
-    //     Result内的属性
-    //     public int pages;
-    //     public int nextPage;
-    //     public boolean noWatchedTags;
-    //     public List<GalleryInfo> galleryInfoList;
-    public static Result parse(@NonNull String body) throws Exception {
-        Result result = new Result();
-        Document d = Jsoup.parse(body);
+            mDepth--;
+            if (!isCapturing()) {
+                mText.setLength(0);
+            }
+        }
 
-        try {
-            Element ptt = d.getElementsByClass("ptt").first();
-            Elements es = ptt.child(0).child(0).children();
-            //得到最大的页数
-            result.pages = Integer.parseInt(es.get(es.size() - 2).text().trim());
-
-            // 元素e为执行下一页的element
-            Element e = es.get(es.size() - 1);
-            if (e != null) {
-                e = e.children().first();
-                if (e != null) {
-                    String href = e.attr("href");
-                    Matcher matcher = PATTERN_NEXT_PAGE.matcher(href);
+        private void endPtt() {
+            mPttDepth = -1;
+            if (mPttTdCount >= 2) {
+                try {
+                    //得到最大的页数
+                    pttPages = Integer.parseInt(mPttPrevText.trim());
+                } catch (NumberFormatException e) {
+                    pttPages = -1;
+                    return;
+                }
+                if (mPttLastHref != null) {
+                    Matcher matcher = PATTERN_NEXT_PAGE.matcher(mPttLastHref);
                     if (matcher.find()) {
-                        result.nextPage = NumberUtils.parseIntSafely(matcher.group(1), 0);
+                        pttNextPage = NumberUtils.parseIntSafely(matcher.group(1), 0);
                     }
                 }
             }
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            result.noWatchedTags = body.contains("<p>You do not have any watched tags");
-            if (body.contains("No hits found</p>")) {
-                result.pages = 0;
-                //noinspection unchecked
-                result.galleryInfoList = Collections.EMPTY_LIST;
-                return result;
-            } else if (d.getElementsByClass("ptt").isEmpty()) {
-                result.pages = 1;
-            } else {
-                result.pages = Integer.MAX_VALUE;
-            }
         }
 
-        try {
-            Element itg = d.getElementsByClass("itg").first();
-            Elements es;
-            if ("table".equalsIgnoreCase(itg.tagName())) {
-                es = itg.child(0).children();
-            } else {
-                es = itg.children();
-            }
-            List<GalleryInfo> list = new ArrayList<>(es.size());
-            // First one is table header, skip it
-            for (int i = 0; i < es.size(); i++) {
-                GalleryInfo gi = parseGalleryInfo(es.get(i));
-                if (null != gi) {
+        private void endRowElement(int depth) {
+            Row row = mRow;
+            int parent = depth - 1;
+
+            if (depth == mRowDepth) {
+                GalleryInfo gi = row.build();
+                if (gi != null) {
                     list.add(gi);
                 }
+                mRow = null;
+                mRowDepth = -1;
+                mGlnameDepth = -1;
+                mTitleDepth = -1;
+                mTagTrDepth = -1;
+                mTagTdDepth = -1;
+                mGlthumbDepth = -1;
+                mThumbImgFound = false;
+                mThumbPagesChecked = false;
+                mGlDepth = -1;
+                mGlhideDepth = -1;
+                mGl3eDepth = -1;
+                mGl5tDepth = -1;
+                mGl5tPagesChecked = false;
+                mPostedDepth = -1;
+                return;
             }
-            if (list.isEmpty()) {
-                throw new ParseException("No gallery", body);
+
+            if (mGlnameDepth >= 0) {
+                if (depth == mTitleDepth) {
+                    row.title = getText(depth);
+                    mTitleDepth = -1;
+                }
+                if (mTagTdDepth >= 0 && parent == mTagTdDepth && mTagTdIndex == 2 && mNamespace != null) {
+                    String tag = getText(depth);
+                    // Sometimes parody tag is followed with '|' and english translate, just remove them
+                    int index = tag.indexOf('|');
+                    if (index >= 0) {
+                        tag = tag.substring(0, index).trim();
+                    }
+                    if (row.tags == null) {
+                        row.tags = new ArrayList<>();
+                    }
+                    row.tags.add(mNamespace + ":" + tag);
+                } else if (depth == mTagTdDepth) {
+                    if (mTagTdIndex == 1) {
+                        String namespace = getText(depth);
+                        // Remove last ':'
+                        mNamespace = namespace.isEmpty() ? null : namespace.substring(0, namespace.length() - 1);
+                    }
+                    mTagTdDepth = -1;
+                } else if (depth == mTagTrDepth) {
+                    mTagTrDepth = -1;
+                } else if (depth == mGlnameDepth) {
+                    mGlnameDepth = -1;
+                }
+                return;
+            }
+
+            int flags = mFlags[depth];
+            if ((flags & FLAG_CN) != 0 && row.cn == null) {
+                row.cn = getText(depth);
+            }
+            if ((flags & FLAG_CS) != 0 && row.cs == null) {
+                row.cs = getText(depth);
+            }
+
+            if (depth == mPostedDepth) {
+                row.posted = getText(depth);
+                mPostedDepth = -1;
+            }
+
+            if (mGlthumbDepth >= 0) {
+                if (depth == mGlthumbDepth) {
+                    mGlthumbDepth = -1;
+                } else if (!mThumbPagesChecked && isSecondDivChain(depth, 3, mGlthumbDepth)) {
+                    // Only the first match counts
+                    mThumbPagesChecked = true;
+                    row.thumbPages = parsePages(getText(depth), -1);
+                }
+            }
+
+            if (depth == mGlDepth) {
+                mGlDepth = -1;
+            }
+
+            if (mGlhideDepth >= 0) {
+                if (depth == mGlhideDepth) {
+                    mGlhideDepth = -1;
+                } else {
+                    endUploaderAndPages(depth, mGlhideDepth, 1, 2, true);
+                }
+            } else if (mGl3eDepth >= 0) {
+                if (depth == mGl3eDepth) {
+                    mGl3eDepth = -1;
+                } else {
+                    endUploaderAndPages(depth, mGl3eDepth, 4, 5, false);
+                }
+            }
+
+            if (mGl5tDepth >= 0) {
+                if (depth == mGl5tDepth) {
+                    mGl5tDepth = -1;
+                } else if (!mGl5tPagesChecked && isSecondDivChain(depth, 2, mGl5tDepth)) {
+                    mGl5tPagesChecked = true;
+                    row.gl5tPages = parsePages(getText(depth), -1);
+                }
             }
-            result.galleryInfoList = list;
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            e.printStackTrace();
-            throw new ParseException("Can't parse gallery list", body);
         }
 
-        return result;
+        // Child indexes are 1-based here
+        private void endUploaderAndPages(int depth, int glDepth, int uploaderIndex, int pagesIndex, boolean hide) {
+            Row row = mRow;
+            int parent = depth - 1;
+            if (parent == glDepth + 1 && mChildIndexes[parent] == uploaderIndex && mChildIndexes[depth] == 1) {
+                if (hide) {
+                    row.hideUploader = getText(depth);
+                } else {
+                    row.gl3eUploader = getText(depth);
+                }
+            } else if (parent == glDepth && mChildIndexes[depth] == pagesIndex) {
+                int pages = parsePages(getText(depth), -1);
+                if (hide) {
+                    row.hidePages = pages;
+                } else {
+                    row.gl3ePages = pages;
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (isCapturing()) {
+                mText.append(ch, start, length);
+            }
+        }
     }
 }
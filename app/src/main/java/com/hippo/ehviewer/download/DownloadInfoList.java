@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import com.hippo.ehviewer.dao.DownloadInfo;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * An array-backed download info list with a gid to position index.
+ * <p>
+ * Structural changes made between {@link #beginBatch()} and {@link #endBatch()}
+ * are recorded, so listeners can replay them like a {@code DiffUtil.DiffResult}.
+ */
+public final class DownloadInfoList extends AbstractList<DownloadInfo> implements RandomAccess {
+
+    private final ArrayList<DownloadInfo> mList;
+    private final HashMap<Long, Integer> mIndex = new HashMap<>();
+    // Appending or removing the last item keeps the index, others rebuild it on next lookup
+    private boolean mIndexValid;
+
+    @Nullable
+    private Batch mBatch;
+
+    public DownloadInfoList() {
+        mList = new ArrayList<>();
+        mIndexValid = true;
+    }
+
+    public DownloadInfoList(@NonNull Collection<DownloadInfo> collection) {
+        mList = new ArrayList<>(collection);
+        mIndexValid = false;
+    }
+
+    @Override
+    public DownloadInfo get(int index) {
+        return mList.get(index);
+    }
+
+    @Override
+    public int size() {
+        return mList.size();
+    }
+
+    @Override
+    public DownloadInfo set(int index, DownloadInfo element) {
+        DownloadInfo old = mList.set(index, element);
+        if (mIndexValid) {
+            mIndex.remove(old.gid);
+            mIndex.put(element.gid, index);
+        }
+        if (mBatch != null) {
+            mBatch.add(Batch.CHANGE, index, 1);
+        }
+        return old;
+    }
+
+    @Override
+    public void add(int index, DownloadInfo element) {
+        mList.add(index, element);
+        modCount++;
+        if (mIndexValid) {
+            if (index == mList.size() - 1) {
+                mIndex.put(element.gid, index);
+            } else {
+                mIndexValid = false;
+            }
+        }
+        if (mBatch != null) {
+            mBatch.add(Batch.INSERT, index, 1);
+        }
+    }
+
+    @Override
+    public DownloadInfo remove(int index) {
+        DownloadInfo info = mList.remove(index);
+        modCount++;
+        if (mIndexValid) {
+            if (index == mList.size()) {
+                mIndex.remove(info.gid);
+            } else {
+                mIndexValid = false;
+            }
+        }
+        if (mBatch != null) {
+            mBatch.add(Batch.REMOVE, index, 1);
+        }
+        return info;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    /**
+     * Removes all the elements in one pass instead of shifting the array for each of them.
+     */
+    @Override
+    public boolean removeAll(@NonNull Collection<?> c) {
+        if (c.isEmpty() || mList.isEmpty()) {
+            return false;
+        }
+        Set<?> set = c instanceof Set ? (Set<?>) c : new HashSet<>(c);
+
+        int n = mList.size();
+        int w = 0;
+        for (int r = 0; r < n; r++) {
+            DownloadInfo info = mList.get(r);
+            if (set.contains(info)) {
+                // All removed items before it are gone, so it is at w now
+                if (mBatch != null) {
+                    mBatch.add(Batch.REMOVE, w, 1);
+                }
+            } else {
+                if (w != r) {
+                    mList.set(w, info);
+                }
+                w++;
+            }
+        }
+        if (w == n) {
+            return false;
+        }
+
+        mList.subList(w, n).clear();
+        modCount++;
+        mIndexValid = false;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        int size = mList.size();
+        if (size == 0) {
+            return;
+        }
+        mList.clear();
+        modCount++;
+        mIndex.clear();
+        mIndexValid = true;
+        if (mBatch != null) {
+            mBatch.add(Batch.REMOVE, 0, size);
+        }
+    }
+
+    @Override
+    public void sort(@Nullable Comparator<? super DownloadInfo> c) {
+        Collections.sort(mList, c);
+        modCount++;
+        mIndexValid = false;
+        if (mBatch != null && !mList.isEmpty()) {
+            mBatch.add(Batch.CHANGE, 0, mList.size());
+        }
+    }
+
+    /**
+     * Inserts the info at its position in a list sorted by the comparator.
+     *
+     * @return the position of the info
+     */
+    public int addSorted(@NonNull DownloadInfo info, @NonNull Comparator<? super DownloadInfo> c) {
+        int position = Collections.binarySearch(mList, info, c);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        add(position, info);
+        return position;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof DownloadInfo)) {
+            return -1;
+        }
+        int index = indexOfGid(((DownloadInfo) o).gid);
+        return index >= 0 && o.equals(mList.get(index)) ? index : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // Gid is unique in the list
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    /**
+     * @return the position of the info with the gid, or {@code -1}
+     */
+    public int indexOfGid(long gid) {
+        if (!mIndexValid) {
+            mIndex.clear();
+            for (int i = 0, n = mList.size(); i < n; i++) {
+                mIndex.put(mList.get(i).gid, i);
+            }
+            mIndexValid = true;
+        }
+        Integer index = mIndex.get(gid);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Starts recording structural changes.
+     */
+    public void beginBatch() {
+        if (mBatch == null) {
+            mBatch = new Batch();
+        }
+    }
+
+    /**
+     * Stops recording structural changes.
+     *
+     * @return the changes since {@link #beginBatch()}
+     */
+    @NonNull
+    public Batch endBatch() {
+        Batch batch = mBatch != null ? mBatch : new Batch();
+        mBatch = null;
+        return batch;
+    }
+
+    /**
+     * Changes of a list in the order they happened, adjacent ones are merged.
+     */
+    public static final class Batch {
+
+        private static final int INSERT = 0;
+        private static final int REMOVE = 1;
+        private static final int CHANGE = 2;
+
+        // type, position, count
+        private int[] mOps = new int[3 * 4];
+        private int mSize;
+
+        private void add(int type, int position, int count) {
+            if (mSize != 0 && mOps[mSize - 3] == type) {
+                int lastPosition = mOps[mSize - 2];
+                int lastCount = mOps[mSize - 1];
+                if ((type == REMOVE && position == lastPosition) ||
+                        (type != REMOVE && position == lastPosition + lastCount)) {
+                    mOps[mSize - 1] = lastCount + count;
+                    return;
+                }
+            }
+            if (mSize + 3 > mOps.length) {
+                mOps = Arrays.copyOf(mOps, mOps.length * 2);
+            }
+            mOps[mSize++] = type;
+            mOps[mSize++] = position;
+            mOps[mSize++] = count;
+        }
+
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        public void dispatchUpdatesTo(@NonNull ListUpdateCallback callback) {
+            for (int i = 0; i < mSize; i += 3) {
+                int position = mOps[i + 1];
+                int count = mOps[i + 2];
+                switch (mOps[i]) {
+                    case INSERT:
+                        callback.onInserted(position, count);
+                        break;
+                    case REMOVE:
+                        callback.onRemoved(position, count);
+                        break;
+                    case CHANGE:
+                        callback.onChanged(position, count, null);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.hippo.ehviewer.EhDB;
+import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.DownloadLabel;
@@ -44,28 +45,32 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class DownloadManager implements SpiderQueen.OnSpiderListener {
+public class DownloadManager {
 
     private static final String TAG = DownloadManager.class.getSimpleName();
 
+    private static final int MAX_CONCURRENT_DOWNLOAD = 4;
+
     private final Context mContext;
 
     // All download info list
-    private final LinkedList<DownloadInfo> mAllInfoList;
+    private final DownloadInfoList mAllInfoList;
     // All download info map
     // SparseJLArray相当于SparseArray,优化HashMap<Integer，Object>， <int, Object>， int为gallery的gid
     private final SparseJLArray<DownloadInfo> mAllInfoMap;
     // label and info list map, without default label info list
-    private final Map<String, LinkedList<DownloadInfo>> mMap;
+    private final Map<String, DownloadInfoList> mMap;
     // All labels without default label
     private final List<DownloadLabel> mLabelList;
     // Store download info with default label
-    private final LinkedList<DownloadInfo> mDefaultInfoList;
+    private final DownloadInfoList mDefaultInfoList;
     // Store download info wait to start
     private final LinkedList<DownloadInfo> mWaitList;
 
@@ -75,10 +80,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     private DownloadListener mDownloadListener;
     private final List<DownloadInfoListener> mDownloadInfoListeners;
 
-    @Nullable
-    private DownloadInfo mCurrentTask;
-    @Nullable
-    private SpiderQueen mCurrentSpider;
+    // Running download tasks, at most Settings.getConcurrentDownload()
+    private final List<DownloadTask> mActiveTasks = new ArrayList<>(MAX_CONCURRENT_DOWNLOAD);
 
     //ConcurrentPool内部是一个被synchronized修饰的 T[], T为NotifyTask
     private final ConcurrentPool<NotifyTask> mNotifyTaskPool = new ConcurrentPool<>(5);
@@ -96,21 +99,21 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         mLabelList = labels;
 
         // Create list for each label
-        HashMap<String, LinkedList<DownloadInfo>> map = new HashMap<>();
+        HashMap<String, DownloadInfoList> map = new HashMap<>();
         mMap = map;
         //labels为downloadLabels的集合
         for (DownloadLabel label : labels) {
             //DownloadInfo在数据库中为DOWNLOADS， DownloadLabel为DownloadInfo中的一个值
-            map.put(label.getLabel(), new LinkedList<DownloadInfo>());
+            map.put(label.getLabel(), new DownloadInfoList());
         }
 
         // Create default for non tag
-        mDefaultInfoList = new LinkedList<>();
+        mDefaultInfoList = new DownloadInfoList();
 
         // Get all info
         // 遍历数据库，拿到所有的DownloadInfo
         List<DownloadInfo> allInfoList = EhDB.getAllDownloadInfo();
-        mAllInfoList = new LinkedList<>(allInfoList);
+        mAllInfoList = new DownloadInfoList(allInfoList);
 
         // Create all info map
         // allInfoMap放的是<DownloadInfo.gid, DownloadInfo>
@@ -125,11 +128,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
             // Add to each label list
             // list为从mMap中获取的list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (list == null) {
                 // Can't find the label in label list
                 // 没有指定自定义下载列表， 则label为null
-                list = new LinkedList<>();
+                list = new DownloadInfoList();
                 map.put(info.label, list);
                 if (!containLabel(info.label)) {
                     // Add label to DB and list
@@ -146,7 +149,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     @Nullable
-    private LinkedList<DownloadInfo> getInfoListForLabel(String label) {
+    private DownloadInfoList getInfoListForLabel(String label) {
         if (label == null) {
             return mDefaultInfoList;
         } else {
@@ -214,20 +217,96 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         mDownloadListener = listener;
     }
 
-    private void ensureDownload() {
-        if (mCurrentTask != null) {
-            // Only one download
-            return;
+    @Nullable
+    private DownloadTask getActiveTask(long gid) {
+        for (int i = 0, n = mActiveTasks.size(); i < n; i++) {
+            DownloadTask task = mActiveTasks.get(i);
+            if (task.mInfo.gid == gid) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    int getDownloadingCount() {
+        return mActiveTasks.size();
+    }
+
+    /**
+     * Default label is in front of all labels.
+     *
+     * @return smaller is higher priority
+     */
+    private int getLabelPriority(@Nullable String label) {
+        if (label == null) {
+            return 0;
+        }
+        for (int i = 0, n = mLabelList.size(); i < n; i++) {
+            if (label.equals(mLabelList.get(i).getLabel())) {
+                return i + 1;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Take the next download info from wait list. The label with the fewest running tasks
+     * goes first, so a label with lots of items can't starve others. Ties are broken by
+     * label priority, and infos in the same label keep their wait order.
+     */
+    @Nullable
+    private DownloadInfo pollWaitList() {
+        if (mWaitList.isEmpty()) {
+            return null;
         }
 
-        // Get download from wait list
-        if (!mWaitList.isEmpty()) {
-            //mWaitList是一个LinkedList
-            DownloadInfo info = mWaitList.removeFirst();
+        Map<String, Integer> runningMap = new HashMap<>();
+        for (int i = 0, n = mActiveTasks.size(); i < n; i++) {
+            String label = mActiveTasks.get(i).mInfo.label;
+            Integer count = runningMap.get(label);
+            runningMap.put(label, count == null ? 1 : count + 1);
+        }
+
+        Map<String, Integer> priorityMap = new HashMap<>();
+        DownloadInfo best = null;
+        int bestRunning = Integer.MAX_VALUE;
+        int bestPriority = Integer.MAX_VALUE;
+        for (DownloadInfo info : mWaitList) {
+            Integer running = runningMap.get(info.label);
+            int r = running == null ? 0 : running;
+            Integer priority = priorityMap.get(info.label);
+            if (priority == null) {
+                priority = getLabelPriority(info.label);
+                priorityMap.put(info.label, priority);
+            }
+            if (r < bestRunning || (r == bestRunning && priority < bestPriority)) {
+                best = info;
+                bestRunning = r;
+                bestPriority = priority;
+            }
+        }
+
+        if (best != null) {
+            mWaitList.remove(best);
+        }
+        return best;
+    }
+
+    private void ensureDownload() {
+        int maxCount = MathUtils.clamp(Settings.getConcurrentDownload(), 1, MAX_CONCURRENT_DOWNLOAD);
+        SpiderQueen.setDownloadConnectionLimit(Settings.getDownloadConnectionLimit());
+
+        while (mActiveTasks.size() < maxCount) {
+            // Get download from wait list
+            DownloadInfo info = pollWaitList();
+            if (info == null) {
+                break;
+            }
+
             SpiderQueen spider = SpiderQueen.obtainSpiderQueen(mContext, info, SpiderQueen.MODE_DOWNLOAD);
-            mCurrentTask = info;
-            mCurrentSpider = spider;
-            spider.addOnSpiderListener(this);
+            DownloadTask task = new DownloadTask(info, spider);
+            mActiveTasks.add(task);
+            spider.addOnSpiderListener(task);
             info.state = DownloadInfo.STATE_DOWNLOAD;
             info.speed = -1;
             info.remaining = -1;
@@ -254,9 +333,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     void startDownload(GalleryInfo galleryInfo, @Nullable String label) {
-        //mCurrentTask为DownloadInfo类
-        if (mCurrentTask != null && mCurrentTask.gid == galleryInfo.gid) {
-            // It is current task
+        if (getActiveTask(galleryInfo.gid) != null) {
+            // It is running
             return;
         }
 
@@ -290,15 +368,15 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             info.time = System.currentTimeMillis();
 
             // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (list == null) {
                 Log.e(TAG, "Can't find download info list with label: " + label);
                 return;
             }
-            list.addFirst(info);
+            list.add(0, info);
 
             // Add to all download list and map
-            mAllInfoList.addFirst(info);
+            mAllInfoList.add(0, info);
             mAllInfoMap.put(galleryInfo.gid, info);
 
             // Add to wait list
@@ -309,7 +387,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
             // Notify
             for (DownloadInfoListener l: mDownloadInfoListeners) {
-                l.onAdd(info, list, list.size() - 1);
+                l.onAdd(info, list, 0);
             }
             // Make sure download is running
             ensureDownload();
@@ -356,7 +434,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     void startAllDownload() {
         boolean update = false;
         // Start all STATE_NONE and STATE_FAILED item
-        LinkedList<DownloadInfo> allInfoList = mAllInfoList;
+        List<DownloadInfo> allInfoList = mAllInfoList;
         LinkedList<DownloadInfo> waitList = mWaitList;
         for (DownloadInfo info: allInfoList) {
             if (info.state == DownloadInfo.STATE_NONE || info.state == DownloadInfo.STATE_FAILED) {
@@ -394,19 +472,17 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             }
 
             // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (null == list) {
                 // Can't find the label in label list
-                list = new LinkedList<>();
+                list = new DownloadInfoList();
                 mMap.put(info.label, list);
                 if (!containLabel(info.label)) {
                     // Add label to DB and list
                     mLabelList.add(EhDB.addDownloadLabel(info.label));
                 }
             }
-            list.add(info);
-            // Sort
-            Collections.sort(list, DATE_DESC_COMPARATOR);
+            list.addSorted(info, DATE_DESC_COMPARATOR);
 
             // Add to all download list and map
             mAllInfoList.add(info);
@@ -429,7 +505,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         for (DownloadLabel label: downloadLabelList) {
             String labelString = label.getLabel();
             if (!containLabel(labelString)) {
-                mMap.put(labelString, new LinkedList<DownloadInfo>());
+                mMap.put(labelString, new DownloadInfoList());
                 mLabelList.add(EhDB.addDownloadLabel(label));
             }
         }
@@ -448,15 +524,15 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         info.time = System.currentTimeMillis();
 
         // Add to label download list
-        LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+        DownloadInfoList list = getInfoListForLabel(info.label);
         if (list == null) {
             Log.e(TAG, "Can't find download info list with label: " + label);
             return;
         }
-        list.addFirst(info);
+        list.add(0, info);
 
         // Add to all download list and map
-        mAllInfoList.addFirst(info);
+        mAllInfoList.add(0, info);
         mAllInfoMap.put(galleryInfo.gid, info);
 
         // Save to
@@ -464,7 +540,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         // Notify
         for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onAdd(info, list, list.size() - 1);
+            l.onAdd(info, list, 0);
         }
     }
 
@@ -485,13 +561,15 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     void stopCurrentDownload() {
-        DownloadInfo info = stopCurrentDownloadInternal();
-        if (info != null) {
+        List<DownloadInfo> infoList = stopActiveDownloadInternal();
+        if (!infoList.isEmpty()) {
             // Update listener
-            List<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                for (DownloadInfoListener l: mDownloadInfoListeners) {
-                    l.onUpdate(info, list);
+            for (DownloadInfo info : infoList) {
+                List<DownloadInfo> list = getInfoListForLabel(info.label);
+                if (list != null) {
+                    for (DownloadInfoListener l: mDownloadInfoListeners) {
+                        l.onUpdate(info, list);
+                    }
                 }
             }
             // Ensure download
@@ -520,8 +598,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
         mWaitList.clear();
 
-        // Stop current
-        stopCurrentDownloadInternal();
+        // Stop running
+        stopActiveDownloadInternal();
 
         // Notify mDownloadInfoListener
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -541,11 +619,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             mAllInfoMap.remove(info.gid);
 
             // Remove label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            DownloadInfoList list = getInfoListForLabel(info.label);
             if (list != null) {
                 int index = list.indexOf(info);
                 if (index >= 0) {
-                    list.remove(info);
+                    list.remove(index);
                     // Update listener
                     for (DownloadInfoListener l: mDownloadInfoListeners) {
                         l.onRemove(info, list, index);
@@ -561,6 +639,9 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     public void deleteRangeDownload(LongList gidList) {
         stopRangeDownloadInternal(gidList);
 
+        Set<DownloadInfo> removed = new HashSet<>();
+        // Removed infos of each label
+        Map<String, Set<DownloadInfo>> labelRemoved = new HashMap<>();
         for (int i = 0, n = gidList.size(); i < n; i++) {
             long gid = gidList.get(i);
             DownloadInfo info = mAllInfoMap.get(gid);
@@ -573,19 +654,28 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             EhDB.removeDownloadInfo(info.gid);
 
             // Remove from all info map
-            mAllInfoList.remove(info);
             mAllInfoMap.remove(info.gid);
+            removed.add(info);
 
-            // Remove from label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                list.remove(info);
+            Set<DownloadInfo> set = labelRemoved.get(info.label);
+            if (set == null) {
+                set = new HashSet<>();
+                labelRemoved.put(info.label, set);
             }
+            set.add(info);
         }
 
-        // Update listener
-        for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onReload();
+        // Remove from all info list
+        mAllInfoList.removeAll(removed);
+
+        // Remove from label list and update listener
+        for (Map.Entry<String, Set<DownloadInfo>> entry : labelRemoved.entrySet()) {
+            DownloadInfoList list = getInfoListForLabel(entry.getKey());
+            if (list != null) {
+                list.beginBatch();
+                list.removeAll(entry.getValue());
+                notifyBatch(list, list.endBatch());
+            }
         }
 
         // Ensure download
@@ -594,7 +684,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     @SuppressLint("StaticFieldLeak")
     public void resetAllReadingProgress() {
-        LinkedList<DownloadInfo> list = new LinkedList<>(mAllInfoList);
+        List<DownloadInfo> list = new ArrayList<>(mAllInfoList);
 
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -639,10 +729,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     // Update listener
     // No ensureDownload
     private DownloadInfo stopDownloadInternal(long gid) {
-        // Check current task
-        if (mCurrentTask != null && mCurrentTask.gid == gid) {
-            // Stop current
-            return stopCurrentDownloadInternal();
+        // Check running task
+        DownloadTask task = getActiveTask(gid);
+        if (task != null) {
+            // Stop it
+            return stopTaskInternal(task);
         }
 
         for (Iterator<DownloadInfo> iterator = mWaitList.iterator(); iterator.hasNext();) {
@@ -662,20 +753,24 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     // Update in DB
     // Update mDownloadListener
-    private DownloadInfo stopCurrentDownloadInternal() {
-        DownloadInfo info = mCurrentTask;
-        SpiderQueen spider = mCurrentSpider;
-        // Release spider
-        if (spider != null) {
-            spider.removeOnSpiderListener(DownloadManager.this);
-            SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD);
+    private List<DownloadInfo> stopActiveDownloadInternal() {
+        List<DownloadInfo> infoList = new ArrayList<>(mActiveTasks.size());
+        while (!mActiveTasks.isEmpty()) {
+            infoList.add(stopTaskInternal(mActiveTasks.get(mActiveTasks.size() - 1)));
         }
-        mCurrentTask = null;
-        mCurrentSpider = null;
+        return infoList;
+    }
+
+    // Update in DB
+    // Update mDownloadListener
+    private DownloadInfo stopTaskInternal(@NonNull DownloadTask task) {
+        DownloadInfo info = task.mInfo;
+        // Release spider
+        mActiveTasks.remove(task);
+        task.release();
         // Stop speed reminder
-        mSpeedReminder.stop();
-        if (info == null) {
-            return null;
+        if (mActiveTasks.isEmpty()) {
+            mSpeedReminder.stop();
         }
 
         // Update state
@@ -698,10 +793,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 stopDownloadInternal(gidList.get(i));
             }
         } else {
-            // Check current task
-            if (mCurrentTask != null && gidList.contains(mCurrentTask.gid)) {
-                // Stop current
-                stopCurrentDownloadInternal();
+            // Check running tasks
+            for (int i = mActiveTasks.size() - 1; i >= 0; i--) {
+                DownloadTask task = mActiveTasks.get(i);
+                if (gidList.contains(task.mInfo.gid)) {
+                    // Stop it
+                    stopTaskInternal(task);
+                }
             }
 
             // Check all in wait list
@@ -728,34 +826,57 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        List<DownloadInfo> dstList = getInfoListForLabel(label);
+        DownloadInfoList dstList = getInfoListForLabel(label);
         if (dstList == null) {
             Log.e(TAG, "Can't find label with label: " + label);
             return;
         }
 
+        // Moved infos of each source label
+        Map<String, Set<DownloadInfo>> labelMoved = new HashMap<>();
+        dstList.beginBatch();
         for (DownloadInfo info: list) {
             if (ObjectUtils.equal(info.label, label)) {
                 continue;
             }
 
-            List<DownloadInfo> srcList = getInfoListForLabel(info.label);
-            if (srcList == null) {
+            if (getInfoListForLabel(info.label) == null) {
                 Log.e(TAG, "Can't find label with label: " + info.label);
                 continue;
             }
 
-            srcList.remove(info);
-            dstList.add(info);
+            Set<DownloadInfo> set = labelMoved.get(info.label);
+            if (set == null) {
+                set = new HashSet<>();
+                labelMoved.put(info.label, set);
+            }
+            set.add(info);
+
+            dstList.addSorted(info, DATE_DESC_COMPARATOR);
             info.label = label;
-            Collections.sort(dstList, DATE_DESC_COMPARATOR);
 
             // Save to DB
             EhDB.putDownloadInfo(info);
         }
+        DownloadInfoList.Batch dstBatch = dstList.endBatch();
 
+        for (Map.Entry<String, Set<DownloadInfo>> entry : labelMoved.entrySet()) {
+            DownloadInfoList srcList = getInfoListForLabel(entry.getKey());
+            if (srcList != null) {
+                srcList.beginBatch();
+                srcList.removeAll(entry.getValue());
+                notifyBatch(srcList, srcList.endBatch());
+            }
+        }
+        notifyBatch(dstList, dstBatch);
+    }
+
+    private void notifyBatch(@NonNull DownloadInfoList list, @NonNull DownloadInfoList.Batch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
         for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onReload();
+            l.onBatch(list, batch);
         }
     }
 
@@ -765,7 +886,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
 
         mLabelList.add(EhDB.addDownloadLabel(label));
-        mMap.put(label, new LinkedList<DownloadInfo>());
+        mMap.put(label, new DownloadInfoList());
 
         for (DownloadInfoListener l: mDownloadInfoListeners) {
             l.onUpdateLabels();
@@ -798,7 +919,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(from);
+        DownloadInfoList list = mMap.remove(from);
         if (list == null) {
             return;
         }
@@ -834,7 +955,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(label);
+        DownloadInfoList list = mMap.remove(label);
         if (list == null) {
             return;
         }
@@ -857,77 +978,145 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     boolean isIdle() {
-        return mCurrentTask == null && mWaitList.isEmpty();
+        return mActiveTasks.isEmpty() && mWaitList.isEmpty();
     }
 
-    @Override
-    public void onGetPages(int pages) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+    private class DownloadTask implements SpiderQueen.OnSpiderListener {
+
+        private final DownloadInfo mInfo;
+        private final SpiderQueen mSpider;
+
+        private long mBytesRead;
+        private long mOldSpeed = -1;
+
+        //SparseIJArray SparseArray优化的是HashMap<Integer, Long>, <int, Long>
+        private final SparseIJArray mContentLengthMap = new SparseIJArray();
+        private final SparseIJArray mReceivedSizeMap = new SparseIJArray();
+
+        public DownloadTask(DownloadInfo info, SpiderQueen spider) {
+            mInfo = info;
+            mSpider = spider;
         }
-        task.setOnGetPagesData(pages);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onGet509(int index) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        public void release() {
+            mSpider.removeOnSpiderListener(this);
+            SpiderQueen.releaseSpiderQueen(mSpider, SpiderQueen.MODE_DOWNLOAD);
         }
-        task.setOnGet509Data(index);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        public void onDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+            mContentLengthMap.put(index, contentLength);
+            mReceivedSizeMap.put(index, receivedSize);
+            mBytesRead += bytesRead;
         }
-        task.setOnPageDownloadData(index, contentLength, receivedSize, bytesRead);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onPageSuccess(int index, int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        public void onDone(int index) {
+            mContentLengthMap.delete(index);
+            mReceivedSizeMap.delete(index);
         }
-        task.setOnPageSuccessData(index, finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onPageFailure(int index, String error, int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        public void onFinish() {
+            mContentLengthMap.clear();
+            mReceivedSizeMap.clear();
+        }
+
+        /**
+         * Update speed and remaining of the download info.
+         * It should be called every two seconds.
+         */
+        public void updateSpeed() {
+            DownloadInfo info = mInfo;
+            long newSpeed = mBytesRead / 2;
+            if (mOldSpeed != -1) {
+                //lerp插值函数， 插入float 0.75
+                newSpeed = (long) MathUtils.lerp(mOldSpeed, newSpeed, 0.75f);
+            }
+            mOldSpeed = newSpeed;
+            mBytesRead = 0;
+            info.speed = newSpeed;
+
+            // Calculate remaining
+            if (info.total <= 0) {
+                info.remaining = -1;
+            } else if (newSpeed == 0) {
+                info.remaining = 300L * 24L * 60L * 60L * 1000L; // 300 days
+            } else {
+                int downloadingCount = 0;
+                long downloadingContentLengthSum = 0;
+                long totalSize = 0;
+                for (int i = 0, n = Math.max(mContentLengthMap.size(), mReceivedSizeMap.size()); i < n; i++) {
+                    long contentLength = mContentLengthMap.valueAt(i);
+                    long receivedSize = mReceivedSizeMap.valueAt(i);
+                    downloadingCount++;
+                    downloadingContentLengthSum += contentLength;
+                    totalSize += contentLength - receivedSize;
+                }
+                if (downloadingCount != 0) {
+                    totalSize += downloadingContentLengthSum * (info.total - info.downloaded - downloadingCount) / downloadingCount;
+                    info.remaining = totalSize / newSpeed * 1000;
+                }
+            }
         }
-        task.setOnPageFailureDate(index, error, finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onFinish(int finished, int downloaded, int total) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
+        private NotifyTask obtainNotifyTask() {
+            NotifyTask task = mNotifyTaskPool.pop();
+            if (task == null) {
+                task = new NotifyTask();
+            }
+            task.setDownloadTask(this);
+            return task;
         }
-        task.setOnFinishDate(finished, downloaded, total);
-        SimpleHandler.getInstance().post(task);
-    }
 
-    @Override
-    public void onGetImageSuccess(int index, Image image) {
-        // Ignore
-    }
+        @Override
+        public void onGetPages(int pages) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnGetPagesData(pages);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onGet509(int index) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnGet509Data(index);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnPageDownloadData(index, contentLength, receivedSize, bytesRead);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onPageSuccess(int index, int finished, int downloaded, int total) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnPageSuccessData(index, finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onPageFailure(int index, String error, int finished, int downloaded, int total) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnPageFailureDate(index, error, finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
 
-    @Override
-    public void onGetImageFailure(int index, String error) {
-        // Ignore
+        @Override
+        public void onFinish(int finished, int downloaded, int total) {
+            NotifyTask task = obtainNotifyTask();
+            task.setOnFinishDate(finished, downloaded, total);
+            SimpleHandler.getInstance().post(task);
+        }
+
+        @Override
+        public void onGetImageSuccess(int index, Image image) {
+            // Ignore
+        }
+
+        @Override
+        public void onGetImageFailure(int index, String error) {
+            // Ignore
+        }
     }
 
     private class NotifyTask implements Runnable {
@@ -939,6 +1128,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         public static final int TYPE_ON_PAGE_FAILURE = 4;
         public static final int TYPE_ON_FINISH = 5;
 
+        private DownloadTask mDownloadTask;
         private int mType;
         private int mPages;
         private int mIndex;
@@ -951,6 +1141,10 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         private int mDownloaded;
         private int mTotal;
 
+        public void setDownloadTask(DownloadTask downloadTask) {
+            mDownloadTask = downloadTask;
+        }
+
         public void setOnGetPagesData(int pages) {
             mType = TYPE_ON_GET_PAGES;
             mPages = pages;
@@ -995,19 +1189,24 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         @Override
         public void run() {
+            DownloadTask downloadTask = mDownloadTask;
+            mDownloadTask = null;
+
+            // The task might be stopped before the message arrives
+            if (mType != TYPE_ON_GET_509 && !mActiveTasks.contains(downloadTask)) {
+                mNotifyTaskPool.push(this);
+                return;
+            }
+
             //mType就是page的当前状态是509还是正在下载，还是已经完成
             switch (mType) {
                 case TYPE_ON_GET_PAGES: {
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
-                        info.total = mPages;
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
+                    DownloadInfo info = downloadTask.mInfo;
+                    info.total = mPages;
+                    List<DownloadInfo> list = getInfoListForLabel(info.label);
+                    if (list != null) {
+                        for (DownloadInfoListener l: mDownloadInfoListeners) {
+                            l.onUpdate(info, list);
                         }
                     }
                     break;
@@ -1019,67 +1218,51 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     break;
                 }
                 case TYPE_ON_PAGE_DOWNLOAD: {
-                    mSpeedReminder.onDownload(mIndex, mContentLength, mReceivedSize, mBytesRead);
+                    downloadTask.onDownload(mIndex, mContentLength, mReceivedSize, mBytesRead);
                     break;
                 }
                 case TYPE_ON_PAGE_SUCCESS: {
-                    mSpeedReminder.onDone(mIndex);
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
-                        info.finished = mFinished;
-                        info.downloaded = mDownloaded;
-                        info.total = mTotal;
-                        if (mDownloadListener != null) {
-                            mDownloadListener.onGetPage(info);
-                        }
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
+                    downloadTask.onDone(mIndex);
+                    DownloadInfo info = downloadTask.mInfo;
+                    info.finished = mFinished;
+                    info.downloaded = mDownloaded;
+                    info.total = mTotal;
+                    if (mDownloadListener != null) {
+                        mDownloadListener.onGetPage(info);
+                    }
+                    List<DownloadInfo> list = getInfoListForLabel(info.label);
+                    if (list != null) {
+                        for (DownloadInfoListener l: mDownloadInfoListeners) {
+                            l.onUpdate(info, list);
                         }
                     }
                     break;
                 }
                 case TYPE_ON_PAGE_FAILURE: {
-                    mSpeedReminder.onDone(mIndex);
-                    DownloadInfo info = mCurrentTask;
-                    if (info == null) {
-                        Log.e(TAG, "Current task is null, but it should not be");
-                    } else {
-                        info.finished = mFinished;
-                        info.downloaded = mDownloaded;
-                        info.total = mTotal;
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
+                    downloadTask.onDone(mIndex);
+                    DownloadInfo info = downloadTask.mInfo;
+                    info.finished = mFinished;
+                    info.downloaded = mDownloaded;
+                    info.total = mTotal;
+                    List<DownloadInfo> list = getInfoListForLabel(info.label);
+                    if (list != null) {
+                        for (DownloadInfoListener l: mDownloadInfoListeners) {
+                            l.onUpdate(info, list);
                         }
                     }
                     break;
                 }
                 case TYPE_ON_FINISH: {
-                    mSpeedReminder.onFinish();
+                    downloadTask.onFinish();
                     // Download done
-                    DownloadInfo info = mCurrentTask;
-                    mCurrentTask = null;
-                    SpiderQueen spider = mCurrentSpider;
-                    mCurrentSpider = null;
+                    DownloadInfo info = downloadTask.mInfo;
+                    mActiveTasks.remove(downloadTask);
                     // Release spider
-                    if (spider != null) {
-                        spider.removeOnSpiderListener(DownloadManager.this);
-                        SpiderQueen.releaseSpiderQueen(spider, SpiderQueen.MODE_DOWNLOAD);
-                    }
-                    // Check null
-                    if (info == null || spider == null) {
-                        Log.e(TAG, "Current stuff is null, but it should not be");
-                        break;
-                    }
+                    downloadTask.release();
                     // Stop speed count
-                    mSpeedReminder.stop();
+                    if (mActiveTasks.isEmpty()) {
+                        mSpeedReminder.stop();
+                    }
                     // Update state
                     info.finished = mFinished;
                     info.downloaded = mDownloaded;
@@ -1117,13 +1300,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         private boolean mStop = true;
 
-        private long mBytesRead;
-        private long oldSpeed = -1;
-
-        //SparseIJArray SparseArray优化的是HashMap<Integer, Long>, <int, Long>
-        private final SparseIJArray mContentLengthMap = new SparseIJArray();
-        private final SparseIJArray mReceivedSizeMap = new SparseIJArray();
-
         public void start() {
             //mStop默认为true
             if (mStop) {
@@ -1136,65 +1312,27 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         public void stop() {
             if (!mStop) {
                 mStop = true;
-                mBytesRead = 0;
-                oldSpeed = -1;
-                // mContentLengthMap和mReceivedSizeMap是SparseIJArray， clear()会清除所有
-                mContentLengthMap.clear();
-                mReceivedSizeMap.clear();
                 //Remove any pending posts of Runnable r that are in the message queue.
                 SimpleHandler.getInstance().removeCallbacks(this);
             }
         }
 
-        public void onDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-            mContentLengthMap.put(index, contentLength);
-            mReceivedSizeMap.put(index, receivedSize);
-            mBytesRead += bytesRead;
-        }
-
-        public void onDone(int index) {
-            mContentLengthMap.delete(index);
-            mReceivedSizeMap.delete(index);
-        }
-
-        public void onFinish() {
-            mContentLengthMap.clear();
-            mReceivedSizeMap.clear();
-        }
-
         @Override
         public void run() {
-            DownloadInfo info = mCurrentTask;
-            if (info != null) {
-                long newSpeed = mBytesRead / 2;
-                if (oldSpeed != -1) {
-                    //lerp插值函数， 插入float 0.75
-                    newSpeed = (long) MathUtils.lerp(oldSpeed, newSpeed, 0.75f);
-                }
-                oldSpeed = newSpeed;
-                info.speed = newSpeed;
-
-                // Calculate remaining
-                if (info.total <= 0) {
-                    info.remaining = -1;
-                } else if (newSpeed == 0) {
-                    info.remaining = 300L * 24L * 60L * 60L * 1000L; // 300 days
-                } else {
-                    int downloadingCount = 0;
-                    long downloadingContentLengthSum = 0;
-                    long totalSize = 0;
-                    for (int i = 0, n = Math.max(mContentLengthMap.size(), mReceivedSizeMap.size()); i < n; i++) {
-                        long contentLength = mContentLengthMap.valueAt(i);
-                        long receivedSize = mReceivedSizeMap.valueAt(i);
-                        downloadingCount++;
-                        downloadingContentLengthSum += contentLength;
-                        totalSize += contentLength - receivedSize;
-                    }
-                    if (downloadingCount != 0) {
-                        totalSize += downloadingContentLengthSum * (info.total - info.downloaded - downloadingCount) / downloadingCount;
-                        info.remaining = totalSize / newSpeed * 1000;
-                    }
+            int count = mActiveTasks.size();
+            long speed = 0;
+            int finished = 0;
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                DownloadTask task = mActiveTasks.get(i);
+                task.updateSpeed();
+                DownloadInfo info = task.mInfo;
+                speed += info.speed;
+                if (info.total > 0) {
+                    finished += info.finished;
+                    total += info.total;
                 }
+
                 if (mDownloadListener != null) {
                     mDownloadListener.onDownload(info);
                 }
@@ -1206,7 +1344,9 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 }
             }
 
-            mBytesRead = 0;
+            if (count > 0 && mDownloadListener != null) {
+                mDownloadListener.onDownloadAggregate(count, speed, finished, total);
+            }
 
             //默认mStop为true
             if (!mStop) {
@@ -1259,6 +1399,12 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
          */
         void onRemove(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position);
 
+        /**
+         * Some infos are inserted into or removed from the list,
+         * dispatch the batch to apply them in order
+         */
+        void onBatch(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoList.Batch batch);
+
         void onUpdateLabels();
     }
 
@@ -1279,6 +1425,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
          */
         void onDownload(DownloadInfo info);
 
+        /**
+         * Update download speed and progress of all running downloads
+         */
+        void onDownloadAggregate(int count, long speed, int finished, int total);
+
         /**
          * Update page downloaded
          */
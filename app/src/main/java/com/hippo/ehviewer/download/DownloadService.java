@@ -348,14 +348,43 @@ public class DownloadService extends Service implements DownloadManager.Download
         mDownloadingDelay.startForeground();
     }
 
+    // Several galleries are downloading, show aggregate progress instead
+    private boolean isDownloadingMultiple() {
+        return mDownloadManager != null && mDownloadManager.getDownloadingCount() > 1;
+    }
+
     @Override
     public void onDownload(DownloadInfo info) {
-        onUpdate(info);
+        if (!isDownloadingMultiple()) {
+            onUpdate(info);
+        }
+    }
+
+    @Override
+    public void onDownloadAggregate(int count, long speed, int finished, int total) {
+        if (mNotifyManager == null || count <= 1) {
+            return;
+        }
+        ensureDownloadingBuilder();
+
+        if (speed < 0) {
+            speed = 0;
+        }
+        String text = getString(R.string.download_speed_text,
+                FileUtils.humanReadableByteCount(speed, false) + "/S");
+        mDownloadingBuilder.setContentTitle(getString(R.string.stat_download_aggregate_title, count))
+                .setContentText(text)
+                .setContentInfo(total <= 0 ? null : finished + "/" + total)
+                .setProgress(total, finished, total <= 0);
+
+        mDownloadingDelay.startForeground();
     }
 
     @Override
     public void onGetPage(DownloadInfo info) {
-        onUpdate(info);
+        if (!isDownloadingMultiple()) {
+            onUpdate(info);
+        }
     }
 
     @Override
@@ -364,7 +393,7 @@ public class DownloadService extends Service implements DownloadManager.Download
             return;
         }
 
-        if (null != mDownloadingDelay) {
+        if (null != mDownloadingDelay && isNotDownloading()) {
             mDownloadingDelay.cancel();
         }
 
@@ -464,13 +493,17 @@ public class DownloadService extends Service implements DownloadManager.Download
             return;
         }
 
-        if (null != mDownloadingDelay) {
+        if (null != mDownloadingDelay && isNotDownloading()) {
             mDownloadingDelay.cancel();
         }
 
         checkStopSelf();
     }
 
+    private boolean isNotDownloading() {
+        return mDownloadManager == null || mDownloadManager.getDownloadingCount() == 0;
+    }
+
     private void checkStopSelf() {
         if (mDownloadManager == null || mDownloadManager.isIdle()) {
             stopForeground(true);
@@ -22,6 +22,7 @@ import com.hippo.a7zip.InStream;
 import com.hippo.a7zip.PropID;
 import com.hippo.a7zip.PropType;
 import com.hippo.a7zip.SequentialOutStream;
+import com.hippo.ehviewer.EhApplication;
 import com.hippo.unifile.UniRandomAccessFile;
 import java.io.Closeable;
 import java.io.IOException;
@@ -70,6 +71,7 @@ class A7ZipArchive implements Closeable {
   }
 
   static A7ZipArchive create(UniRandomAccessFile file) throws ArchiveException {
+    EhApplication.waitForA7Zip();
     InStream store = new UniRandomAccessFileInStream(file);
     InArchive archive = InArchive.open(store);
     if ((archive.getArchivePropertyType(PropID.ENCRYPTED) == PropType.BOOL && archive.getArchiveBooleanProperty(PropID.ENCRYPTED))
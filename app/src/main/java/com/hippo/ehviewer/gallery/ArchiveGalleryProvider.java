@@ -22,20 +22,29 @@ import android.os.Process;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.hippo.a7zip.ArchiveException;
+import com.hippo.beerbelly.SimpleDiskCache;
+import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
 import com.hippo.glgallery.GalleryPageView;
 import com.hippo.image.Image;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
 import com.hippo.unifile.UniFile;
 import com.hippo.unifile.UniRandomAccessFile;
 import com.hippo.util.NaturalComparator;
+import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.thread.PriorityThread;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -43,23 +52,41 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class ArchiveGalleryProvider extends GalleryProvider2 {
 
+  // Solid archives are rejected, so entries can be extracted by several archive handles
+  private static final int EXTRACT_THREAD_NUM = 3;
+  // Pages after the requested one extracted to cache ahead of the reader
+  private static final int PRELOAD_NUM = 3;
+
   private static final AtomicInteger sIdGenerator = new AtomicInteger();
 
   private final UniFile file;
+  private final SimpleDiskCache cache;
+  // Archive uri and last modified time, null if the file is unavailable
+  @Nullable
+  private final String cacheKeyPrefix;
 
   private Thread archiveThread;
+  private final List<Thread> extractThreads = new ArrayList<>();
+  private boolean stopped;
   private Thread decodeThread;
 
   private volatile int size = STATE_WAIT;
   private String error;
 
+  // requests, preloads and extractings are guarded by requests
   private final Stack<Integer> requests = new Stack<>();
-  private final AtomicInteger extractingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
+  private final LinkedList<Integer> preloads = new LinkedList<>();
+  // Index to whether the page should be sent to decoder after extracting
+  private final HashMap<Integer, Boolean> extractings = new HashMap<>();
   private final LinkedHashMap<Integer, InputStream> streams = new LinkedHashMap<>();
+  // Guarded by streams, no stream is accepted after closed
+  private boolean streamsClosed;
   private final AtomicInteger decodingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
 
   public ArchiveGalleryProvider(Context context, Uri uri) {
     file = UniFile.fromUri(context, uri);
+    cache = EhApplication.getArchiveCache(context);
+    cacheKeyPrefix = file != null ? file.getUri().toString() + '/' + file.lastModified() + '/' : null;
   }
 
   @Override
@@ -69,7 +96,7 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
     int id = sIdGenerator.incrementAndGet();
 
     archiveThread = new PriorityThread(
-        new ArchiveTask(), "ArchiveTask" + '-' + id, Process.THREAD_PRIORITY_BACKGROUND);
+        new ArchiveTask(id), "ArchiveTask" + '-' + id, Process.THREAD_PRIORITY_BACKGROUND);
     archiveThread.start();
 
     decodeThread = new PriorityThread(
@@ -85,10 +112,31 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
       archiveThread.interrupt();
       archiveThread = null;
     }
+    synchronized (extractThreads) {
+      stopped = true;
+      for (Thread thread : extractThreads) {
+        thread.interrupt();
+      }
+      extractThreads.clear();
+    }
     if (decodeThread != null) {
       decodeThread.interrupt();
       decodeThread = null;
     }
+    closeStreams();
+  }
+
+  /**
+   * Close the streams never decoded, so their pipes and files are released.
+   */
+  private void closeStreams() {
+    synchronized (streams) {
+      streamsClosed = true;
+      for (InputStream stream : streams.values()) {
+        IOUtils.closeQuietly(stream);
+      }
+      streams.clear();
+    }
   }
 
   @Override
@@ -96,6 +144,16 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
     return size;
   }
 
+  @Nullable
+  private String getCacheKey(int index) {
+    return cacheKeyPrefix != null ? cacheKeyPrefix + index : null;
+  }
+
+  private boolean isCached(int index) {
+    String key = getCacheKey(index);
+    return key != null && cache.contain(key);
+  }
+
   @Override
   protected void onRequest(int index) {
     boolean inDecodeTask;
@@ -104,11 +162,26 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
     }
 
     synchronized (requests) {
-      boolean inArchiveTask = requests.contains(index) || index == extractingIndex.get();
-      if (!inArchiveTask && !inDecodeTask) {
-        requests.add(index);
-        requests.notify();
+      if (!inDecodeTask) {
+        if (extractings.containsKey(index)) {
+          // It's being extracted, send it to decoder after that
+          extractings.put(index, true);
+        } else if (!requests.contains(index)) {
+          requests.add(index);
+        }
       }
+
+      // Preload next pages, the old ones are useless now.
+      // Extract threads skip the cached ones, don't read the disk here.
+      preloads.clear();
+      int size = this.size;
+      for (int i = index + 1, n = index + 1 + PRELOAD_NUM; i < n && (size < 0 || i < size); i++) {
+        if (!extractings.containsKey(i) && !requests.contains(i)) {
+          preloads.add(i);
+        }
+      }
+
+      requests.notifyAll();
     }
     notifyPageWait(index);
   }
@@ -150,7 +223,176 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
     return null;
   }
 
+  private static List<A7ZipArchive.A7ZipArchiveEntry> getSortedEntries(A7ZipArchive archive) {
+    List<A7ZipArchive.A7ZipArchiveEntry> entries = archive.getArchiveEntries();
+    Collections.sort(entries, naturalComparator);
+    return entries;
+  }
+
+  /**
+   * Send the stream to decoder.
+   */
+  private void putStream(int index, InputStream stream) {
+    synchronized (streams) {
+      if (streamsClosed || streams.get(index) != null) {
+        IOUtils.closeQuietly(stream);
+        return;
+      }
+      streams.put(index, stream);
+      streams.notify();
+    }
+  }
+
+  /**
+   * @return false if it's not in cache
+   */
+  private boolean putStreamFromCache(int index) {
+    String key = getCacheKey(index);
+    InputStreamPipe pipe = key != null ? cache.getInputStreamPipe(key) : null;
+    if (pipe == null) {
+      return false;
+    }
+
+    pipe.obtain();
+    try {
+      putStream(index, new CacheInputStream(pipe, pipe.open()));
+      return true;
+    } catch (IOException e) {
+      pipe.close();
+      pipe.release();
+      return false;
+    }
+  }
+
+  /**
+   * Extract the entry to cache, and to decoder if deliver is true.
+   *
+   * @return true if the entry is in cache now
+   */
+  private boolean extract(A7ZipArchive.A7ZipArchiveEntry entry, int index, boolean deliver) {
+    String key = getCacheKey(index);
+    OutputStreamPipe cachePipe = key != null ? cache.getOutputStreamPipe(key) : null;
+    OutputStream cacheStream = null;
+    if (cachePipe != null) {
+      cachePipe.obtain();
+      try {
+        cacheStream = cachePipe.open();
+      } catch (IOException e) {
+        cachePipe.release();
+        cachePipe = null;
+      }
+    }
+
+    Pipe pipe = null;
+    if (deliver) {
+      pipe = new Pipe();
+      putStream(index, pipe.getInputStream());
+    } else if (cacheStream == null) {
+      // Nowhere to write
+      return false;
+    }
+
+    TeeOutputStream os = new TeeOutputStream(pipe != null ? pipe.getOutputStream() : null, cacheStream);
+    boolean cached = false;
+    try {
+      entry.extract(os);
+      cached = cacheStream != null && !os.isCacheFailed();
+    } catch (ArchiveException e) {
+      e.printStackTrace();
+    } finally {
+      if (pipe != null) {
+        IOUtils.closeQuietly(pipe.getOutputStream());
+      }
+      if (cachePipe != null) {
+        cachePipe.close();
+        cachePipe.release();
+        if (!cached) {
+          cache.remove(key);
+        }
+      }
+    }
+    return cached;
+  }
+
+  private void extractLoop(List<A7ZipArchive.A7ZipArchiveEntry> entries) {
+    while (!Thread.currentThread().isInterrupted()) {
+      int index;
+      boolean deliver;
+      synchronized (requests) {
+        if (!requests.isEmpty()) {
+          index = requests.pop();
+          deliver = true;
+        } else if (!preloads.isEmpty()) {
+          index = preloads.removeFirst();
+          deliver = false;
+        } else {
+          try {
+            requests.wait();
+          } catch (InterruptedException e) {
+            // Interrupted
+            break;
+          }
+          continue;
+        }
+
+        if (extractings.containsKey(index)) {
+          // Another thread is on it
+          if (deliver) {
+            extractings.put(index, true);
+          }
+          continue;
+        }
+        // This thread sends it to decoder if deliver is true
+        extractings.put(index, false);
+      }
+
+      // Check index valid
+      if (index < 0 || index >= entries.size()) {
+        synchronized (requests) {
+          extractings.remove(index);
+        }
+        if (deliver) {
+          notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
+        }
+        continue;
+      }
+
+      boolean cached;
+      if (deliver && putStreamFromCache(index)) {
+        cached = true;
+      } else if (!deliver && isCached(index)) {
+        cached = true;
+      } else {
+        cached = extract(entries.get(index), index, deliver);
+      }
+
+      // Requested again while extracting
+      boolean lateDeliver;
+      synchronized (requests) {
+        lateDeliver = Boolean.TRUE.equals(extractings.remove(index));
+        if (lateDeliver && !cached) {
+          requests.push(index);
+          requests.notify();
+          lateDeliver = false;
+        }
+      }
+      if (lateDeliver && !putStreamFromCache(index)) {
+        synchronized (requests) {
+          requests.push(index);
+          requests.notify();
+        }
+      }
+    }
+  }
+
   private class ArchiveTask implements Runnable {
+
+    private final int id;
+
+    ArchiveTask(int id) {
+      this.id = id;
+    }
+
     @Override
     public void run() {
       UniRandomAccessFile uraf = null;
@@ -181,54 +423,52 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
         return;
       }
 
-      List<A7ZipArchive.A7ZipArchiveEntry> entries = archive.getArchiveEntries();
-      Collections.sort(entries, naturalComparator);
+      List<A7ZipArchive.A7ZipArchiveEntry> entries = getSortedEntries(archive);
 
       // Update size and notify changed
       size = entries.size();
       notifyDataChanged();
 
-      while (!Thread.currentThread().isInterrupted()) {
-        int index;
-        synchronized (requests) {
-          if (requests.isEmpty()) {
-            try {
-              requests.wait();
-            } catch (InterruptedException e) {
-              // Interrupted
-              break;
-            }
-            continue;
-          }
-          index = requests.pop();
-          extractingIndex.lazySet(index);
+      // More extractors with their own archive handles
+      synchronized (extractThreads) {
+        for (int i = 1; i < EXTRACT_THREAD_NUM && !stopped; i++) {
+          Thread thread = new PriorityThread(new ExtractTask(),
+              "ExtractTask" + '-' + id + '-' + i, Process.THREAD_PRIORITY_BACKGROUND);
+          extractThreads.add(thread);
+          thread.start();
         }
+      }
 
-        // Check index valid
-        if (index < 0 || index >= entries.size()) {
-          extractingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-          notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
-          continue;
-        }
+      extractLoop(entries);
+      archive.close();
+    }
+  }
 
-        Pipe pipe = new Pipe(4 * 1024);
+  private class ExtractTask implements Runnable {
+    @Override
+    public void run() {
+      UniRandomAccessFile uraf;
+      try {
+        uraf = file.createRandomAccessFile("r");
+      } catch (IOException e) {
+        e.printStackTrace();
+        return;
+      }
 
-        synchronized (streams) {
-          if (streams.get(index) != null) {
-            continue;
-          }
-          streams.put(index, pipe.getInputStream());
-          streams.notify();
-        }
+      A7ZipArchive archive;
+      try {
+        archive = A7ZipArchive.create(uraf);
+      } catch (ArchiveException e) {
+        e.printStackTrace();
+        IOUtils.closeQuietly(uraf);
+        return;
+      }
 
-        try {
-          entries.get(index).extract(pipe.getOutputStream());
-        } catch (ArchiveException e) {
-          e.printStackTrace();
-        } finally {
-          extractingIndex.lazySet(GalleryPageView.INVALID_INDEX);
-        }
+      List<A7ZipArchive.A7ZipArchiveEntry> entries = getSortedEntries(archive);
+      if (entries.size() == size) {
+        extractLoop(entries);
       }
+      archive.close();
     }
   }
 
@@ -265,9 +505,98 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
             notifyPageFailed(index, GetText.getString(R.string.error_decoding_failed));
           }
         } finally {
+          // Let the buffer of the pipe go back to pool
+          IOUtils.closeQuietly(stream);
           decodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
         }
       }
+
+      closeStreams();
+    }
+  }
+
+  /**
+   * Writes to decoder pipe and cache. The extraction goes on if one of them fails,
+   * the decoder might stop reading before the end.
+   */
+  private static class TeeOutputStream extends OutputStream {
+
+    @Nullable
+    private OutputStream pipe;
+    @Nullable
+    private OutputStream cache;
+    private boolean cacheFailed;
+
+    TeeOutputStream(@Nullable OutputStream pipe, @Nullable OutputStream cache) {
+      this.pipe = pipe;
+      this.cache = cache;
+    }
+
+    boolean isCacheFailed() {
+      return cacheFailed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      if (pipe != null) {
+        try {
+          pipe.write(b, off, len);
+        } catch (IOException e) {
+          pipe = null;
+        }
+      }
+      if (cache != null) {
+        try {
+          cache.write(b, off, len);
+        } catch (IOException e) {
+          cache = null;
+          cacheFailed = true;
+        }
+      }
+      if (pipe == null && cache == null) {
+        throw new IOException("No stream to write");
+      }
+    }
+  }
+
+  private static class CacheInputStream extends InputStream {
+
+    private final InputStreamPipe pipe;
+    private final InputStream is;
+    private boolean closed;
+
+    CacheInputStream(InputStreamPipe pipe, InputStream is) {
+      this.pipe = pipe;
+      this.is = is;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return is.read();
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      return is.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return is.available();
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        pipe.close();
+        pipe.release();
+      }
     }
   }
 
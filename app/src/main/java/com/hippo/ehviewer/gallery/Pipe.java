@@ -20,136 +20,257 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A ring buffer between one writer thread and one reader thread.
+ * <p>
+ * The buffer starts at {@link #MIN_CAPACITY} and grows up to {@link #MAX_CAPACITY}
+ * instead of blocking the writer. It goes back to a pool after both streams are closed,
+ * so the next pipe gets a buffer of the grown size without allocating.
+ */
 class Pipe {
 
-  private final int capacity;
-  private final byte[] buffer;
+  static final int MIN_CAPACITY = 64 * 1024;
+  static final int MAX_CAPACITY = 1024 * 1024;
+
+  private static final int MAX_POOL_SIZE = 4;
+  private static final List<byte[]> sBufferPool = new ArrayList<>(MAX_POOL_SIZE);
 
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled when bytes are written or the OutputStream is closed
+  private final Condition notEmpty = lock.newCondition();
+  // Signalled when bytes are read or the InputStream is closed
+  private final Condition notFull = lock.newCondition();
+
+  private byte[] buffer;
   private int head = 0;
-  private int tail = 0;
-  private boolean full = false;
+  private int size = 0;
 
   private boolean inClosed = false;
   private boolean outClosed = false;
 
-  private InputStream inputStream = new InputStream() {
+  private final InputStream inputStream = new InputStream() {
     @Override
     public int read() throws IOException {
-      synchronized (Pipe.this) {
-        byte[] bytes = new byte[1];
-        if (read(bytes, 0, 1) != -1) {
-          return bytes[0];
-        } else {
+      lock.lock();
+      try {
+        if (!awaitReadable()) {
           return -1;
         }
+        int b = buffer[head] & 0xff;
+        consumed(1);
+        return b;
+      } finally {
+        lock.unlock();
       }
     }
 
     @Override
     public int read(@NonNull byte[] b, int off, int len) throws IOException {
-      synchronized (Pipe.this) {
-        for (;;) {
-          if (inClosed) {
-            throw new IOException("The InputStream is closed");
-          }
-          if (len == 0) {
-            return 0;
-          }
-
-          if (head == tail && !full) {
-            if (outClosed) {
-              // No bytes available and the OutputStream is closed. So it's the end.
-              return -1;
-            } else {
-              // Wait for OutputStream write bytes
-              try {
-                Pipe.this.wait();
-              } catch (InterruptedException e) {
-                throw new IOException("The thread interrupted", e);
-              }
-            }
-          } else {
-            int read = Math.min(len, (head < tail ? tail : capacity) - head);
-            System.arraycopy(buffer, head, b, off, read);
-            head += read;
-            if (head == capacity) {
-              head = 0;
-            }
-            full = false;
-            Pipe.this.notifyAll();
-            return read;
-          }
+      if (len == 0) {
+        return 0;
+      }
+      lock.lock();
+      try {
+        if (!awaitReadable()) {
+          return -1;
+        }
+        int read = 0;
+        // At most two copies for the wrapped data
+        while (read < len && size > 0) {
+          int n = Math.min(len - read, Math.min(size, buffer.length - head));
+          System.arraycopy(buffer, head, b, off + read, n);
+          read += n;
+          consumed(n);
         }
+        return read;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int available() {
+      lock.lock();
+      try {
+        return size;
+      } finally {
+        lock.unlock();
       }
     }
 
     @Override
     public void close() {
-      synchronized (Pipe.this) {
-        inClosed = true;
-        Pipe.this.notifyAll();
+      lock.lock();
+      try {
+        if (!inClosed) {
+          inClosed = true;
+          notFull.signal();
+          recycleIfDone();
+        }
+      } finally {
+        lock.unlock();
       }
     }
   };
 
-  private OutputStream outputStream = new OutputStream() {
+  private final OutputStream outputStream = new OutputStream() {
     @Override
     public void write(int b) throws IOException {
-      synchronized (Pipe.this) {
-        byte[] bytes = new byte[] { (byte) b};
-        write(bytes, 0, 1);
+      lock.lock();
+      try {
+        awaitWritable(1);
+        buffer[(head + size) % buffer.length] = (byte) b;
+        size++;
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
       }
     }
 
     @Override
     public void write(@NonNull byte[] b, int off, int len) throws IOException {
-      synchronized (Pipe.this) {
-        while (len != 0) {
-          if (outClosed) {
-            throw new IOException("The OutputStream is closed");
-          }
-          if (inClosed) {
-            throw new IOException("The InputStream is closed");
-          }
-
-          if (head == tail && full) {
-            // The buffer is full, wait for InputStream read bytes
-            try {
-              Pipe.this.wait();
-            } catch (InterruptedException e) {
-              throw new IOException("The thread interrupted", e);
-            }
-          } else {
-            int write = Math.min(len, (head <= tail ? capacity : head) - tail);
-            System.arraycopy(b, off, buffer, tail, write);
-            off += write;
-            len -= write;
-            tail += write;
-            if (tail == capacity) {
-              tail = 0;
-            }
-            if (head == tail) {
-              full = true;
-            }
-            Pipe.this.notifyAll();
+      lock.lock();
+      try {
+        while (len > 0) {
+          int space = awaitWritable(len);
+          int n = Math.min(len, space);
+          int tail = (head + size) % buffer.length;
+          int first = Math.min(n, buffer.length - tail);
+          System.arraycopy(b, off, buffer, tail, first);
+          if (first < n) {
+            System.arraycopy(b, off + first, buffer, 0, n - first);
           }
+          off += n;
+          len -= n;
+          size += n;
+          notEmpty.signal();
         }
+      } finally {
+        lock.unlock();
       }
     }
 
     @Override
     public void close() {
-      synchronized (Pipe.this) {
-        outClosed = true;
-        Pipe.this.notifyAll();
+      lock.lock();
+      try {
+        if (!outClosed) {
+          outClosed = true;
+          notEmpty.signal();
+          recycleIfDone();
+        }
+      } finally {
+        lock.unlock();
       }
     }
   };
 
-  Pipe(int capacity) {
-    this.capacity = capacity;
-    this.buffer = new byte[capacity];
+  Pipe() {
+    buffer = obtainBuffer();
+  }
+
+  private static byte[] obtainBuffer() {
+    synchronized (sBufferPool) {
+      int count = sBufferPool.size();
+      if (count > 0) {
+        return sBufferPool.remove(count - 1);
+      }
+    }
+    return new byte[MIN_CAPACITY];
+  }
+
+  private static void recycleBuffer(byte[] buffer) {
+    synchronized (sBufferPool) {
+      if (sBufferPool.size() < MAX_POOL_SIZE) {
+        sBufferPool.add(buffer);
+      }
+    }
+  }
+
+  /**
+   * @return false if it's the end
+   */
+  private boolean awaitReadable() throws IOException {
+    for (;;) {
+      if (inClosed) {
+        throw new IOException("The InputStream is closed");
+      }
+      if (size > 0) {
+        return true;
+      }
+      if (outClosed) {
+        // No bytes available and the OutputStream is closed. So it's the end.
+        return false;
+      }
+      try {
+        notEmpty.await();
+      } catch (InterruptedException e) {
+        throw new IOException("The thread interrupted", e);
+      }
+    }
+  }
+
+  /**
+   * @return the free space, larger than 0
+   */
+  private int awaitWritable(int wanted) throws IOException {
+    for (;;) {
+      if (outClosed) {
+        throw new IOException("The OutputStream is closed");
+      }
+      if (inClosed) {
+        throw new IOException("The InputStream is closed");
+      }
+      int space = buffer.length - size;
+      if (space < wanted && buffer.length < MAX_CAPACITY) {
+        grow(size + wanted);
+        space = buffer.length - size;
+      }
+      if (space > 0) {
+        return space;
+      }
+      try {
+        notFull.await();
+      } catch (InterruptedException e) {
+        throw new IOException("The thread interrupted", e);
+      }
+    }
+  }
+
+  private void grow(int minCapacity) {
+    int capacity = buffer.length;
+    while (capacity < minCapacity && capacity < MAX_CAPACITY) {
+      capacity *= 2;
+    }
+    capacity = Math.min(capacity, MAX_CAPACITY);
+    byte[] newBuffer = new byte[capacity];
+    int first = Math.min(size, buffer.length - head);
+    System.arraycopy(buffer, head, newBuffer, 0, first);
+    System.arraycopy(buffer, 0, newBuffer, first, size - first);
+    buffer = newBuffer;
+    head = 0;
+  }
+
+  private void consumed(int n) {
+    head = (head + n) % buffer.length;
+    size -= n;
+    if (size == 0) {
+      // Keep the next write in one copy
+      head = 0;
+    }
+    notFull.signal();
+  }
+
+  private void recycleIfDone() {
+    if (inClosed && outClosed && buffer != null) {
+      recycleBuffer(buffer);
+      buffer = null;
+    }
   }
 
   InputStream getInputStream() {
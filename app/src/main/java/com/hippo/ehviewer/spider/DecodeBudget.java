@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+/**
+ * Bytes of images being decoded at the same time. Decoders wait until
+ * there is enough budget, but one decode can always go, even it's larger
+ * than the budget.
+ */
+final class DecodeBudget {
+
+    private final long mBudget;
+    private long mUsed;
+    private int mActiveCount;
+
+    DecodeBudget(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Block until the bytes can be charged.
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (mActiveCount > 0 && mUsed + bytes > mBudget) {
+            wait();
+        }
+        mUsed += bytes;
+        mActiveCount++;
+    }
+
+    synchronized void release(long bytes) {
+        mUsed -= bytes;
+        mActiveCount--;
+        notifyAll();
+    }
+}
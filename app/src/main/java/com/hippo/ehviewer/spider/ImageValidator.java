@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checks image data while it's downloading, so the file needn't be read again.
+ * The header tells the format and catches html or text bodies, the tail tells
+ * whether the image is truncated.
+ */
+final class ImageValidator {
+
+    static final int HEADER_SIZE = 16;
+    private static final int TAIL_SIZE = 12;
+
+    private static final int FORMAT_UNKNOWN = 0;
+    private static final int FORMAT_JPEG = 1;
+    private static final int FORMAT_PNG = 2;
+    private static final int FORMAT_GIF = 3;
+    private static final int FORMAT_WEBP = 4;
+
+    private static final byte[] PNG_MAGIC = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] PNG_IEND = {'I', 'E', 'N', 'D'};
+
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private int mHeaderLength;
+    private int mFormat = FORMAT_UNKNOWN;
+
+    // Ring buffer of the last bytes
+    private final byte[] mTail = new byte[TAIL_SIZE];
+    private long mTailCount;
+    // All bytes fed, header included
+    private long mLength;
+
+    /**
+     * Read the header from the stream. It's also the beginning of the data.
+     *
+     * @return the length of the header, it's less than {@link #HEADER_SIZE} only if EOF
+     */
+    int readHeader(InputStream is) throws IOException {
+        while (mHeaderLength < HEADER_SIZE) {
+            int n = is.read(mHeader, mHeaderLength, HEADER_SIZE - mHeaderLength);
+            if (n == -1) {
+                break;
+            }
+            mHeaderLength += n;
+        }
+        mFormat = getFormat(mHeader, mHeaderLength);
+        update(mHeader, 0, mHeaderLength);
+        return mHeaderLength;
+    }
+
+    byte[] getHeader() {
+        return mHeader;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix) {
+        if (length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, String prefix) {
+        if (length < offset + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getFormat(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 &&
+                (header[2] & 0xFF) == 0xFF) {
+            return FORMAT_JPEG;
+        } else if (startsWith(header, length, 0, PNG_MAGIC)) {
+            return FORMAT_PNG;
+        } else if (startsWith(header, length, 0, "GIF87a") || startsWith(header, length, 0, "GIF89a")) {
+            return FORMAT_GIF;
+        } else if (startsWith(header, length, 0, "RIFF") && startsWith(header, length, 8, "WEBP")) {
+            return FORMAT_WEBP;
+        } else {
+            return FORMAT_UNKNOWN;
+        }
+    }
+
+    /**
+     * @return the extension without dot, null if the format is unknown or unsupported
+     */
+    @Nullable
+    String getExtension() {
+        switch (mFormat) {
+            case FORMAT_JPEG:
+                return "jpg";
+            case FORMAT_PNG:
+                return "png";
+            case FORMAT_GIF:
+                return "gif";
+            default:
+                return null;
+        }
+    }
+
+    boolean isImage() {
+        return mFormat != FORMAT_UNKNOWN;
+    }
+
+    /**
+     * Return true if it's not an image and the header is plain text,
+     * like html of error pages or 509 text.
+     */
+    boolean isText() {
+        if (mFormat != FORMAT_UNKNOWN) {
+            return false;
+        }
+        for (int i = 0; i < mHeaderLength; i++) {
+            if ((mHeader[i] & 0xFF) > 126) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Feed the data after header.
+     */
+    void update(byte[] data, int offset, int length) {
+        mLength += length;
+        for (int i = Math.max(offset, offset + length - TAIL_SIZE), n = offset + length; i < n; i++) {
+            mTail[(int) (mTailCount % TAIL_SIZE)] = data[i];
+            mTailCount++;
+        }
+    }
+
+    private int tailLength() {
+        return (int) Math.min(mTailCount, TAIL_SIZE);
+    }
+
+    private byte tailAt(int i) {
+        // i-th byte of the last tailLength() bytes
+        long start = mTailCount - tailLength();
+        return mTail[(int) ((start + i) % TAIL_SIZE)];
+    }
+
+    private boolean tailContains(byte b) {
+        for (int i = 0, n = tailLength(); i < n; i++) {
+            if (tailAt(i) == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tailContains(byte b1, byte b2) {
+        for (int i = 0, n = tailLength() - 1; i < n; i++) {
+            if (tailAt(i) == b1 && tailAt(i + 1) == b2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tailContains(byte[] bytes) {
+        for (int i = 0, n = tailLength() - bytes.length; i <= n; i++) {
+            boolean match = true;
+            for (int j = 0; j < bytes.length; j++) {
+                if (tailAt(i + j) != bytes[j]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether all data is received. If the content length is known, it decides.
+     * The end marker is only a guess, valid images might have trailing bytes after it.
+     *
+     * @param contentLength the content length, negative if missing
+     */
+    boolean isComplete(long contentLength) {
+        if (contentLength >= 0) {
+            return mLength >= contentLength;
+        } else {
+            return isComplete();
+        }
+    }
+
+    /**
+     * Check the end marker of the image. A few padding bytes are allowed after it.
+     *
+     * @return false if the image is truncated, true if complete or the format is unknown
+     */
+    boolean isComplete() {
+        switch (mFormat) {
+            case FORMAT_JPEG:
+                return tailContains((byte) 0xFF, (byte) 0xD9);
+            case FORMAT_PNG:
+                return tailContains(PNG_IEND);
+            case FORMAT_GIF:
+                return tailContains((byte) 0x3B);
+            default:
+                return true;
+        }
+    }
+}
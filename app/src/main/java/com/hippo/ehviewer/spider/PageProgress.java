@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+/**
+ * Download progress of all pages of a gallery. Workers update it for every chunk,
+ * but listeners only get coalesced snapshots at most once per {@link #PUBLISH_INTERVAL}.
+ */
+final class PageProgress {
+
+    // 10 Hz
+    static final long PUBLISH_INTERVAL = 100;
+
+    interface Callback {
+        /**
+         * @param contentLength -1 for unknown
+         * @param bytesRead bytes read since last publish
+         */
+        void onProgress(int index, long contentLength, long receivedSize, int bytesRead);
+    }
+
+    private final long[] mContentLength;
+    private final long[] mReceivedSize;
+    // Bytes read since last publish
+    private final int[] mPendingBytes;
+    private final boolean[] mDirty;
+    // Indexes of dirty pages, so publish needn't scan all pages
+    private final int[] mDirtyIndexes;
+    private int mDirtyCount;
+    private long mLastPublishTime;
+
+    // Only used by publisher, under mPublishLock
+    private final Object mPublishLock = new Object();
+    private final int[] mSnapshotIndexes;
+    private final long[] mSnapshotContentLength;
+    private final long[] mSnapshotReceivedSize;
+    private final int[] mSnapshotBytes;
+
+    PageProgress(int pages) {
+        mContentLength = new long[pages];
+        mReceivedSize = new long[pages];
+        mPendingBytes = new int[pages];
+        mDirty = new boolean[pages];
+        mDirtyIndexes = new int[pages];
+        mSnapshotIndexes = new int[pages];
+        mSnapshotContentLength = new long[pages];
+        mSnapshotReceivedSize = new long[pages];
+        mSnapshotBytes = new int[pages];
+    }
+
+    /**
+     * @return true if it's time to publish, the caller should call {@link #publish(Callback)}
+     */
+    synchronized boolean update(int index, long contentLength, long receivedSize, int bytesRead, long now) {
+        mContentLength[index] = contentLength;
+        mReceivedSize[index] = receivedSize;
+        mPendingBytes[index] += bytesRead;
+        if (!mDirty[index]) {
+            mDirty[index] = true;
+            mDirtyIndexes[mDirtyCount++] = index;
+        }
+        if (now - mLastPublishTime >= PUBLISH_INTERVAL) {
+            // Only one worker gets it
+            mLastPublishTime = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send all pending progress to the callback. The callback is called outside the update lock.
+     */
+    void publish(Callback callback) {
+        synchronized (mPublishLock) {
+            int count;
+            synchronized (this) {
+                count = mDirtyCount;
+                for (int i = 0; i < count; i++) {
+                    int index = mDirtyIndexes[i];
+                    mSnapshotIndexes[i] = index;
+                    mSnapshotContentLength[i] = mContentLength[index];
+                    mSnapshotReceivedSize[i] = mReceivedSize[index];
+                    mSnapshotBytes[i] = mPendingBytes[index];
+                    mPendingBytes[index] = 0;
+                    mDirty[index] = false;
+                }
+                mDirtyCount = 0;
+            }
+            for (int i = 0; i < count; i++) {
+                callback.onProgress(mSnapshotIndexes[i], mSnapshotContentLength[i],
+                        mSnapshotReceivedSize[i], mSnapshotBytes[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the percent of the page, -1 for unknown
+     */
+    synchronized float getPercent(int index) {
+        long contentLength = mContentLength[index];
+        if (contentLength > 0) {
+            return (float) mReceivedSize[index] / contentLength;
+        } else {
+            return -1.0f;
+        }
+    }
+
+    /**
+     * Forget the page. The pending progress is dropped, so publish first if it's needed.
+     */
+    synchronized void remove(int index) {
+        mContentLength[index] = 0;
+        mReceivedSize[index] = 0;
+        mPendingBytes[index] = 0;
+        if (mDirty[index]) {
+            mDirty[index] = false;
+            for (int i = 0; i < mDirtyCount; i++) {
+                if (mDirtyIndexes[i] == index) {
+                    mDirtyIndexes[i] = mDirtyIndexes[--mDirtyCount];
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (int i = 0, n = mContentLength.length; i < n; i++) {
+            mContentLength[i] = 0;
+            mReceivedSize[i] = 0;
+            mPendingBytes[i] = 0;
+            mDirty[i] = false;
+        }
+        mDirtyCount = 0;
+    }
+}
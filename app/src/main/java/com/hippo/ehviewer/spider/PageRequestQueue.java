@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import java.util.Arrays;
+
+/**
+ * An indexed binary heap of page indexes. Force requests come first, then visible
+ * requests in request order, then preload pages by distance from the reading position.
+ * <p>
+ * Each page is queued at most once, membership is a lookup in an array indexed by page.
+ * It's not thread safe.
+ */
+final class PageRequestQueue {
+
+    static final int PRIORITY_FORCE = 0;
+    static final int PRIORITY_VISIBLE = 1;
+    static final int PRIORITY_PRELOAD = 2;
+
+    private static final int PRIORITY_SHIFT = 40;
+    private static final long ORDER_MASK = (1L << PRIORITY_SHIFT) - 1;
+
+    private static final int NOT_QUEUED = -1;
+
+    // Heap of page indexes
+    private int[] mHeap = new int[16];
+    private int mSize;
+
+    // Indexed by page
+    private int[] mPosition = new int[0];
+    private long[] mKey = new long[0];
+
+    private long mSequence;
+
+    // The preload window set last time
+    private int mPreloadStart = -1;
+    private int mPreloadEnd = -1;
+
+    private static long makeKey(int priority, long order) {
+        return ((long) priority << PRIORITY_SHIFT) | (order & ORDER_MASK);
+    }
+
+    private static int getPriority(long key) {
+        return (int) (key >>> PRIORITY_SHIFT);
+    }
+
+    private void ensurePageCapacity(int index) {
+        int length = mPosition.length;
+        if (index < length) {
+            return;
+        }
+        int newLength = Math.max(index + 1, length * 2);
+        mPosition = Arrays.copyOf(mPosition, newLength);
+        mKey = Arrays.copyOf(mKey, newLength);
+        Arrays.fill(mPosition, length, newLength, NOT_QUEUED);
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean contains(int index) {
+        return index >= 0 && index < mPosition.length && mPosition[index] != NOT_QUEUED;
+    }
+
+    /**
+     * @return the priority of the page, -1 if it's not queued
+     */
+    int getPriority(int index) {
+        return contains(index) ? getPriority(mKey[index]) : -1;
+    }
+
+    /**
+     * Add a force or visible request. If the page is queued, it's only moved forward.
+     * Negative indexes are ignored.
+     */
+    void offer(int index, int priority) {
+        offer(index, makeKey(priority, mSequence++));
+    }
+
+    private void offer(int index, long key) {
+        if (index < 0) {
+            return;
+        }
+        ensurePageCapacity(index);
+        int position = mPosition[index];
+        if (position == NOT_QUEUED) {
+            if (mSize == mHeap.length) {
+                mHeap = Arrays.copyOf(mHeap, mSize * 2);
+            }
+            mKey[index] = key;
+            mHeap[mSize] = index;
+            mPosition[index] = mSize;
+            siftUp(mSize++);
+        } else if (key < mKey[index]) {
+            mKey[index] = key;
+            siftUp(position);
+        }
+    }
+
+    /**
+     * Preload pages in [start, end). Preload pages queued before but out of the range
+     * are dropped. Nothing changes if the range is the same as last time.
+     *
+     * @param filter tells which pages need preload, it's called with the caller's lock held
+     */
+    void setPreload(int start, int end, PreloadFilter filter) {
+        if (start == mPreloadStart && end == mPreloadEnd) {
+            return;
+        }
+        mPreloadStart = start;
+        mPreloadEnd = end;
+
+        // Drop stale preload pages
+        for (int i = mSize - 1; i >= 0; i--) {
+            int index = mHeap[i];
+            if (getPriority(mKey[index]) == PRIORITY_PRELOAD && (index < start || index >= end)) {
+                removeAt(i);
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            if (filter.needPreload(i)) {
+                offer(i, makeKey(PRIORITY_PRELOAD, i - start));
+            }
+        }
+    }
+
+    /**
+     * @return the priority of the head, -1 if it's empty
+     */
+    int peekPriority() {
+        return mSize == 0 ? -1 : getPriority(mKey[mHeap[0]]);
+    }
+
+    /**
+     * @return the head page index, -1 if it's empty
+     */
+    int poll() {
+        if (mSize == 0) {
+            return -1;
+        }
+        int index = mHeap[0];
+        removeAt(0);
+        return index;
+    }
+
+    void remove(int index) {
+        if (contains(index)) {
+            removeAt(mPosition[index]);
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mPosition[mHeap[i]] = NOT_QUEUED;
+        }
+        mSize = 0;
+        mPreloadStart = -1;
+        mPreloadEnd = -1;
+    }
+
+    private void removeAt(int position) {
+        int index = mHeap[position];
+        mPosition[index] = NOT_QUEUED;
+        int last = --mSize;
+        if (position != last) {
+            int moved = mHeap[last];
+            mHeap[position] = moved;
+            mPosition[moved] = position;
+            siftDown(position);
+            if (mHeap[position] == moved) {
+                siftUp(position);
+            }
+        }
+    }
+
+    private void siftUp(int position) {
+        int index = mHeap[position];
+        long key = mKey[index];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            int parentIndex = mHeap[parent];
+            if (mKey[parentIndex] <= key) {
+                break;
+            }
+            mHeap[position] = parentIndex;
+            mPosition[parentIndex] = position;
+            position = parent;
+        }
+        mHeap[position] = index;
+        mPosition[index] = position;
+    }
+
+    private void siftDown(int position) {
+        int index = mHeap[position];
+        long key = mKey[index];
+        int half = mSize >>> 1;
+        while (position < half) {
+            int child = (position << 1) + 1;
+            int right = child + 1;
+            if (right < mSize && mKey[mHeap[right]] < mKey[mHeap[child]]) {
+                child = right;
+            }
+            int childIndex = mHeap[child];
+            if (key <= mKey[childIndex]) {
+                break;
+            }
+            mHeap[position] = childIndex;
+            mPosition[childIndex] = position;
+            position = child;
+        }
+        mHeap[position] = index;
+        mPosition[index] = position;
+    }
+
+    interface PreloadFilter {
+        boolean needPreload(int index);
+    }
+}
@@ -18,7 +18,9 @@ package com.hippo.ehviewer.spider;
 
 import android.content.Context;
 import android.graphics.BitmapFactory;
+import android.util.SparseArray;
 import android.webkit.MimeTypeMap;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.ehviewer.EhDB;
@@ -36,10 +38,15 @@ import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.MathUtils;
+import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.Utilities;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public final class SpiderDen {
@@ -56,6 +63,17 @@ public final class SpiderDen {
     private volatile int mMode = SpiderQueen.MODE_READ;
     private final long mGid;
 
+    // Page index to image file in download dir, built by listing download dir once.
+    // Keep it updated when creating or deleting image files, to avoid finding files.
+    // It's trusted without checking the files, and dropped if a file in it
+    // can't be found when opening it, as the download dir is changed by others.
+    @Nullable
+    private SparseArray<UniFile> mDownloadFileMap;
+    // Other image files for the same page, usually empty
+    @Nullable
+    private SparseArray<List<UniFile>> mDuplicateFileMap;
+    private final Object mDownloadFileLock = new Object();
+
     @Nullable
     //SimpleDiskCache的内部是一个LruCache
     private static SimpleDiskCache sCache;
@@ -80,6 +98,25 @@ public final class SpiderDen {
         }
     }
 
+    private class DownloadFileInputStreamPipe extends UniFileInputStreamPipe {
+
+        public DownloadFileInputStreamPipe(UniFile file) {
+            super(file);
+        }
+
+        @NonNull
+        @Override
+        public InputStream open() throws IOException {
+            try {
+                return super.open();
+            } catch (FileNotFoundException e) {
+                // Changed by others, list the dir again next time
+                invalidateDownloadFileMap();
+                throw e;
+            }
+        }
+    }
+
     public static UniFile getGalleryDownloadDir(GalleryInfo galleryInfo) {
         UniFile dir = Settings.getDownloadLocation();
         if (dir != null) {
@@ -133,6 +170,8 @@ public final class SpiderDen {
     public void setMode(@SpiderQueen.Mode int mode) {
         mMode = mode;
 
+        // The download dir might be created, or changed while in the other mode
+        invalidateDownloadFileMap();
         if (mode == SpiderQueen.MODE_DOWNLOAD) {
             ensureDownloadDir();
         }
@@ -158,7 +197,13 @@ public final class SpiderDen {
 
     @Nullable
     public UniFile getDownloadDir() {
-        return mDownloadDir != null && mDownloadDir.isDirectory() ? mDownloadDir : null;
+        if (mDownloadDir != null && mDownloadDir.isDirectory()) {
+            return mDownloadDir;
+        } else {
+            // Deleted or moved, don't use the old files if it comes back
+            invalidateDownloadFileMap();
+            return null;
+        }
     }
 
     private boolean containInCache(int index) {
@@ -180,16 +225,106 @@ public final class SpiderDen {
         return String.format(Locale.US, "%08d%s", index + 1, extension);
     }
 
+    /**
+     * @return the index of the page, -1 if it's not an image filename
+     */
+    private static int parseImageFilename(String filename) {
+        if (filename == null || filename.length() <= 8) {
+            return -1;
+        }
+
+        String extension = filename.substring(8);
+        if (!Utilities.contain(GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS, extension)) {
+            return -1;
+        }
+
+        int number = 0;
+        for (int i = 0; i < 8; i++) {
+            char ch = filename.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            number = number * 10 + (ch - '0');
+        }
+        return number - 1;
+    }
+
+    private static int getExtensionPriority(String filename) {
+        String[] extensions = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS;
+        for (int i = 0; i < extensions.length; i++) {
+            if (filename.endsWith(extensions[i])) {
+                return i;
+            }
+        }
+        return extensions.length;
+    }
+
+    private void addDuplicateFile(int index, UniFile file) {
+        if (mDuplicateFileMap == null) {
+            mDuplicateFileMap = new SparseArray<>();
+        }
+        List<UniFile> list = mDuplicateFileMap.get(index);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            mDuplicateFileMap.put(index, list);
+        }
+        list.add(file);
+    }
+
+    private void invalidateDownloadFileMap() {
+        synchronized (mDownloadFileLock) {
+            mDownloadFileMap = null;
+            mDuplicateFileMap = null;
+        }
+    }
+
+    // Call it with mDownloadFileLock held
+    private SparseArray<UniFile> getDownloadFileMap(UniFile dir) {
+        if (mDownloadFileMap != null) {
+            return mDownloadFileMap;
+        }
+
+        SparseArray<UniFile> map = new SparseArray<>();
+        UniFile[] files = dir.listFiles();
+        if (files != null) {
+            for (UniFile file : files) {
+                String name = file.getName();
+                int index = parseImageFilename(name);
+                if (index < 0) {
+                    continue;
+                }
+                UniFile old = map.get(index);
+                if (old == null) {
+                    map.put(index, file);
+                } else if (getExtensionPriority(name) < getExtensionPriority(old.getName())) {
+                    // Prefer the extension in front, like finding them one by one
+                    map.put(index, file);
+                    addDuplicateFile(index, old);
+                } else {
+                    addDuplicateFile(index, file);
+                }
+            }
+        }
+        mDownloadFileMap = map;
+        return map;
+    }
+
     @Nullable
-    private static UniFile findImageFile(UniFile dir, int index) {
-        for (String extension : GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS) {
-            String filename = generateImageFilename(index, extension);
-            UniFile file = dir.findFile(filename);
-            if (file != null) {
-                return file;
+    private UniFile findImageFile(UniFile dir, int index) {
+        synchronized (mDownloadFileLock) {
+            return getDownloadFileMap(dir).get(index);
+        }
+    }
+
+    private void putImageFile(UniFile dir, int index, UniFile file) {
+        synchronized (mDownloadFileLock) {
+            SparseArray<UniFile> map = getDownloadFileMap(dir);
+            UniFile old = map.get(index);
+            if (old != null && !ObjectUtils.equal(old.getName(), file.getName())) {
+                addDuplicateFile(index, old);
             }
+            map.put(index, file);
         }
-        return null;
     }
 
     private boolean containInDownloadDir(int index) {
@@ -252,6 +387,7 @@ public final class SpiderDen {
             }
             os = file.openOutputStream();
             IOUtils.copy(pipe.open(), os);
+            putImageFile(dir, index, file);
             return true;
         } catch (IOException e) {
             return false;
@@ -287,12 +423,25 @@ public final class SpiderDen {
             return false;
         }
 
+        UniFile file;
+        List<UniFile> duplicateList = null;
+        synchronized (mDownloadFileLock) {
+            SparseArray<UniFile> map = getDownloadFileMap(dir);
+            file = map.get(index);
+            map.remove(index);
+            if (mDuplicateFileMap != null) {
+                duplicateList = mDuplicateFileMap.get(index);
+                mDuplicateFileMap.remove(index);
+            }
+        }
+
         boolean result = false;
-        for (int i = 0, n = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS.length; i < n; i++) {
-            String filename = generateImageFilename(index, GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS[i]);
-            UniFile file = dir.subFile(filename);
-            if (file != null) {
-                result |= file.delete();
+        if (file != null) {
+            result = file.delete();
+        }
+        if (duplicateList != null) {
+            for (UniFile duplicate : duplicateList) {
+                result |= duplicate.delete();
             }
         }
         return result;
@@ -327,6 +476,7 @@ public final class SpiderDen {
         extension = fixExtension('.' + extension);
         UniFile file = dir.createFile(generateImageFilename(index, extension));
         if (file != null) {
+            putImageFile(dir, index, file);
             return new UniFileOutputStreamPipe(file);
         } else {
             return null;
@@ -370,7 +520,7 @@ public final class SpiderDen {
         for (int i = 0; i < 2; i++) {
             UniFile file = findImageFile(dir, index);
             if (file != null) {
-                return new UniFileInputStreamPipe(file);
+                return new DownloadFileInputStreamPipe(file);
             } else if (!copyFromCacheToDownloadDir(index)) {
                 return null;
             }
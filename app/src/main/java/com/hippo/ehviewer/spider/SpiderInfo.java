@@ -24,6 +24,11 @@ import androidx.annotation.Nullable;
 import com.hippo.unifile.UniFile;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.NumberUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,6 +41,21 @@ public class SpiderInfo {
     private static final String VERSION_STR = "VERSION";
     private static final int VERSION = 2;
 
+    /*
+     * Binary format, version 3:
+     * magic, version, start page, gid, token, preview pages, preview per page, pages,
+     * pToken count, (index, pToken) * count, then journal records until EOF.
+     * A record is a type byte and its data. Records are appended by writeJournal(),
+     * so learning new pTokens doesn't rewrite the whole file.
+     */
+    private static final int MAGIC = 0x45485349; // EHSI
+    private static final int BINARY_VERSION = 3;
+    private static final int RECORD_PTOKEN = 1;
+    private static final int RECORD_START_PAGE = 2;
+
+    // Don't compact small files
+    private static final int MIN_COMPACT_RECORDS = 64;
+
     static final String TOKEN_FAILED = "failed";
 
     public int startPage = 0;
@@ -46,6 +66,50 @@ public class SpiderInfo {
     public int previewPerPage = -1;
     public SparseArray<String> pTokenMap = null;
 
+    // pTokens put after the last write, appended to file by writeJournal()
+    private final SparseArray<String> mJournalPTokens = new SparseArray<>();
+    private boolean mJournalStartPage;
+    // pToken count of the last full write
+    private int mSnapshotSize;
+    // Records appended to file after the last full write
+    private int mAppendedRecords;
+
+    /**
+     * Put a pToken and record it in journal.
+     */
+    public void putPToken(int index, String pToken) {
+        pTokenMap.put(index, pToken);
+        if (isValidPToken(pToken)) {
+            mJournalPTokens.put(index, pToken);
+        }
+    }
+
+    /**
+     * Set start page and record it in journal.
+     */
+    public void putStartPage(int page) {
+        startPage = page;
+        mJournalStartPage = true;
+    }
+
+    public boolean hasJournal() {
+        return mJournalStartPage || mJournalPTokens.size() > 0;
+    }
+
+    /**
+     * Return true if appended records are as many as the pTokens in the last full write.
+     * Compact it with {@link #write(OutputStream)} to keep the file size linear.
+     */
+    public boolean shouldCompact() {
+        int records = mAppendedRecords + mJournalPTokens.size() + (mJournalStartPage ? 1 : 0);
+        return records >= Math.max(mSnapshotSize, MIN_COMPACT_RECORDS);
+    }
+
+    private void clearJournal() {
+        mJournalPTokens.clear();
+        mJournalStartPage = false;
+    }
+
     public static SpiderInfo read(@Nullable UniFile file) {
         if (file == null) {
             return null;
@@ -102,6 +166,19 @@ public class SpiderInfo {
             return null;
         }
 
+        // Check binary format
+        is = new BufferedInputStream(is);
+        try {
+            is.mark(4);
+            DataInputStream dis = new DataInputStream(is);
+            if (dis.readInt() == MAGIC) {
+                return readBinary(dis);
+            }
+            is.reset();
+        } catch (IOException e) {
+            return null;
+        }
+
         SpiderInfo spiderInfo = null;
         try {
             // SpiderInfo类为下载信息
@@ -174,7 +251,149 @@ public class SpiderInfo {
         }
     }
 
+    @Nullable
+    private static SpiderInfo readBinary(DataInputStream dis) {
+        SpiderInfo spiderInfo = new SpiderInfo();
+        try {
+            if (dis.readInt() != BINARY_VERSION) {
+                // Invalid version
+                return null;
+            }
+            spiderInfo.startPage = Math.max(0, dis.readInt());
+            spiderInfo.gid = dis.readLong();
+            spiderInfo.token = dis.readUTF();
+            spiderInfo.previewPages = dis.readInt();
+            spiderInfo.previewPerPage = dis.readInt();
+            spiderInfo.pages = dis.readInt();
+            // Check pages
+            if (spiderInfo.pages <= 0) {
+                return null;
+            }
+            int count = dis.readInt();
+            SparseArray<String> pTokenMap = new SparseArray<>(spiderInfo.pages);
+            for (int i = 0; i < count; i++) {
+                int index = dis.readInt();
+                pTokenMap.put(index, dis.readUTF());
+            }
+            spiderInfo.pTokenMap = pTokenMap;
+            spiderInfo.mSnapshotSize = count;
+        } catch (IOException e) {
+            return null;
+        }
+
+        // Journal
+        try {
+            for (;;) {
+                int type = dis.read();
+                if (type == RECORD_PTOKEN) {
+                    int index = dis.readInt();
+                    spiderInfo.pTokenMap.put(index, dis.readUTF());
+                } else if (type == RECORD_START_PAGE) {
+                    spiderInfo.startPage = Math.max(0, dis.readInt());
+                } else {
+                    // EOF or broken record
+                    if (type != -1) {
+                        Log.e(TAG, "Invalid journal record type " + type);
+                    }
+                    break;
+                }
+                spiderInfo.mAppendedRecords++;
+            }
+        } catch (EOFException e) {
+            // The last record is incomplete, skip it
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read journal", e);
+        }
+
+        return spiderInfo;
+    }
+
+    /**
+     * Write the whole info in binary format, and clear the journal.
+     */
     public void write(@NonNull OutputStream os) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(os));
+            dos.writeInt(MAGIC);
+            dos.writeInt(BINARY_VERSION);
+            dos.writeInt(startPage >= 0 ? startPage : 0); // Avoid negative
+            dos.writeLong(gid);
+            dos.writeUTF(token);
+            dos.writeInt(previewPages);
+            dos.writeInt(previewPerPage);
+            dos.writeInt(pages);
+            int count = 0;
+            for (int i = 0, n = pTokenMap.size(); i < n; i++) {
+                if (isValidPToken(pTokenMap.valueAt(i))) {
+                    count++;
+                }
+            }
+            dos.writeInt(count);
+            for (int i = 0, n = pTokenMap.size(); i < n; i++) {
+                String value = pTokenMap.valueAt(i);
+                if (isValidPToken(value)) {
+                    dos.writeInt(pTokenMap.keyAt(i));
+                    dos.writeUTF(value);
+                }
+            }
+            dos.flush();
+            clearJournal();
+            mSnapshotSize = count;
+            mAppendedRecords = 0;
+        } catch (IOException e) {
+            // Ignore
+        } finally {
+            IOUtils.closeQuietly(dos);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * Append the journal to a file written by {@link #write(OutputStream)}, and clear it.
+     * The journal is kept if it fails, the file might end with a partial record then.
+     *
+     * @param os the stream in append mode
+     * @return the count of bytes written, or {@code -1} if it fails
+     */
+    public long writeJournal(@NonNull OutputStream os) {
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(os));
+            int records = 0;
+            for (int i = 0, n = mJournalPTokens.size(); i < n; i++) {
+                dos.writeByte(RECORD_PTOKEN);
+                dos.writeInt(mJournalPTokens.keyAt(i));
+                dos.writeUTF(mJournalPTokens.valueAt(i));
+                records++;
+            }
+            if (mJournalStartPage) {
+                dos.writeByte(RECORD_START_PAGE);
+                dos.writeInt(startPage >= 0 ? startPage : 0);
+                records++;
+            }
+            dos.flush();
+            os.flush();
+            clearJournal();
+            mAppendedRecords += records;
+            return dos.size();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            IOUtils.closeQuietly(dos);
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    private static boolean isValidPToken(String pToken) {
+        return !TOKEN_FAILED.equals(pToken) && !TextUtils.isEmpty(pToken);
+    }
+
+    /**
+     * Write the whole info in VERSION 2 text format.
+     * Only for tests to make old files, the app writes the binary format.
+     */
+    void writeText(@NonNull OutputStream os) {
         OutputStreamWriter writer = null;
         try {
             writer = new OutputStreamWriter(os);
@@ -198,7 +417,7 @@ public class SpiderInfo {
             for (int i = 0; i < pTokenMap.size(); i++) {
                 Integer key = pTokenMap.keyAt(i);
                 String value = pTokenMap.valueAt(i);
-                if (TOKEN_FAILED.equals(value) || TextUtils.isEmpty(value)) {
+                if (!isValidPToken(value)) {
                     continue;
                 }
                 writer.write(Integer.toString(key));
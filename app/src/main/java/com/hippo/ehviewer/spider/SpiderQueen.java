@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
@@ -44,7 +45,6 @@ import com.hippo.ehviewer.client.parser.GalleryDetailParser;
 import com.hippo.ehviewer.client.parser.GalleryPageApiParser;
 import com.hippo.ehviewer.client.parser.GalleryPageParser;
 import com.hippo.ehviewer.client.parser.GalleryPageUrlParser;
-import com.hippo.ehviewer.gallery.GalleryProvider2;
 import com.hippo.glgallery.GalleryPageView;
 import com.hippo.glgallery.GalleryProvider;
 import com.hippo.image.Image;
@@ -57,11 +57,11 @@ import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.OSUtils;
 import com.hippo.yorozuya.StringUtils;
-import com.hippo.yorozuya.Utilities;
 import com.hippo.yorozuya.collect.SparseJLArray;
 import com.hippo.yorozuya.thread.PriorityThread;
 import com.hippo.yorozuya.thread.PriorityThreadFactory;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -70,10 +70,10 @@ import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -108,7 +108,14 @@ public final class SpiderQueen implements Runnable {
     public static final int STATE_FINISHED = 2;
     public static final int STATE_FAILED = 3;
 
-    public static final int DECODE_THREAD_NUM = 1;
+    // Default decoder count, leave a core for UI thread
+    public static final int DECODE_THREAD_NUM =
+            MathUtils.clamp(Runtime.getRuntime().availableProcessors() - 1, 1, 4);
+
+    // Preview pages fetched at the same time for pToken
+    private static final int PTOKEN_THREAD_NUM = 3;
+    // Preview pages fetched ahead of the download cursor
+    private static final int PTOKEN_PRELOAD_PREVIEW_PAGES = 2;
 
     public static final String SPIDER_INFO_FILENAME = ".ehviewer";
 
@@ -119,8 +126,20 @@ public final class SpiderQueen implements Runnable {
 
     private static final SparseJLArray<SpiderQueen> sQueenMap = new SparseJLArray<>();
 
+    // Enough for the header of most images
+    private static final int PROBE_BUFFER_SIZE = 64 * 1024;
+
+    // Shared by the decoders of all queens, it caps the memory of images being decoded
+    private static final DecodeBudget sDecodeBudget = new DecodeBudget(
+            Math.max(Runtime.getRuntime().maxMemory() / 4, 32 * 1024 * 1024));
+
+    // Shared by the workers of all queens, it caps the connections opened for download.
+    // It has no permits until the first queen is created.
+    private static final ConnectionLimiter sDownloadLimiter = new ConnectionLimiter();
+
     @NonNull
     private final OkHttpClient mHttpClient;
+    private final OkHttpClient mImageHttpClient;
     @NonNull
     private final SimpleDiskCache mSpiderInfoCache;
     //SimpleDiskCache是对DiskLruCache的再次封装，方便使用
@@ -137,28 +156,36 @@ public final class SpiderQueen implements Runnable {
     private volatile Thread mQueenThread;
     private final Object mQueenLock = new Object();
 
-    //DECODE_THREAD_NUM = 1
-    private final Thread[] mDecodeThreadArray = new Thread[DECODE_THREAD_NUM];
-    private final int[] mDecodeIndexArray = new int[DECODE_THREAD_NUM];
-    private final Queue<Integer> mDecodeRequestQueue = new LinkedList<>();
+    private final Thread[] mDecodeThreadArray;
+    private final int[] mDecodeIndexArray;
+    private final List<Integer> mDecodeRequestQueue = new LinkedList<>();
+    // The page reader requested last time, decoders take the nearest page first
+    private int mDecodeFocus;
 
     private final Object mWorkerLock = new Object();
     private ThreadPoolExecutor mWorkerPoolExecutor;
     private int mWorkerCount;
 
+    // Guarded by mPTokenLock
+    private ThreadPoolExecutor mPTokenPoolExecutor;
     private final Object mPTokenLock = new Object();
     private final AtomicReference<SpiderInfo> mSpiderInfo = new AtomicReference<>();
-    private final Queue<Integer> mRequestPTokenQueue = new ConcurrentLinkedQueue<>();
+    // True after the whole spider info is written to local once, then changes can be appended
+    private boolean mSpiderInfoWritten;
+    // Key is the preview index in fetching, value is the page indexes waiting for it
+    private final SparseArray<List<Integer>> mPendingPreviewMap = new SparseArray<>();
 
     private final Object mPageStateLock = new Object();
     private volatile int[] mPageStateArray;
 
-    // Store request page. The index may be invalid
-    private final Queue<Integer> mRequestPageQueue = new LinkedList<>();
-    // Store preload page. The index may be invalid
-    private final Queue<Integer> mRequestPageQueue2 = new LinkedList<>();
-    // Store force request page. The index may be invalid
-    private final Queue<Integer> mForceRequestPageQueue = new LinkedList<>();
+    // Store force, visible and preload request pages by priority. The index may be invalid
+    private final PageRequestQueue mRequestPageQueue = new PageRequestQueue();
+    private final PageRequestQueue.PreloadFilter mPreloadFilter = new PageRequestQueue.PreloadFilter() {
+        @Override
+        public boolean needPreload(int index) {
+            return STATE_NONE == getPageState(index);
+        }
+    };
     // For download, when it go to mPageStateArray.size(), done
     private volatile int mDownloadPage = -1;
 
@@ -170,16 +197,26 @@ public final class SpiderQueen implements Runnable {
 
     // Store page error
     private final ConcurrentHashMap<Integer, String> mPageErrorMap = new ConcurrentHashMap<>();
-    // Store page download percent
-    private final ConcurrentHashMap<Integer, Float> mPagePercentMap = new ConcurrentHashMap<>();
+    // Store page download progress, created with mPageStateArray
+    private volatile PageProgress mPageProgress;
+    private final PageProgress.Callback mPageProgressCallback = new PageProgress.Callback() {
+        @Override
+        public void onProgress(int index, long contentLength, long receivedSize, int bytesRead) {
+            notifyPageDownload(index, contentLength, receivedSize, bytesRead);
+        }
+    };
 
     private final List<OnSpiderListener> mSpiderListeners = new ArrayList<>();
 
     private final int mWorkerMaxCount;
     private final int mPreloadNumber;
 
-    private SpiderQueen(EhApplication application, @NonNull GalleryInfo galleryInfo) {
+    /**
+     * @param decodeThreadNum the number of threads decoding pages for reader
+     */
+    private SpiderQueen(EhApplication application, @NonNull GalleryInfo galleryInfo, int decodeThreadNum) {
         mHttpClient = EhApplication.getOkHttpClient(application);
+        mImageHttpClient = EhApplication.getImageOkHttpClient(application);
         //mSpiderInfoCache是一个SimpleDiskCache（LruCache）如果没有的话，会在/data/data/<Application name>/cache中新建
         mSpiderInfoCache = EhApplication.getSpiderInfoCache(application);
         mGalleryInfo = galleryInfo;
@@ -189,8 +226,11 @@ public final class SpiderQueen implements Runnable {
         mWorkerMaxCount = MathUtils.clamp(Settings.getMultiThreadDownload(), 1, 10);
         //getPreloadImage()默认是5
         mPreloadNumber = MathUtils.clamp(Settings.getPreloadImage(), 0, 100);
+        setDownloadConnectionLimit(Settings.getDownloadConnectionLimit());
 
-        for (int i = 0; i < DECODE_THREAD_NUM; i++) {
+        mDecodeThreadArray = new Thread[Math.max(1, decodeThreadNum)];
+        mDecodeIndexArray = new int[mDecodeThreadArray.length];
+        for (int i = 0; i < mDecodeIndexArray.length; i++) {
             // mDecodeIndexArray[]为int[] INVALID_INDEX = -1
             mDecodeIndexArray[i] = GalleryPageView.INVALID_INDEX;
         }
@@ -198,6 +238,9 @@ public final class SpiderQueen implements Runnable {
         mWorkerPoolExecutor = new ThreadPoolExecutor(mWorkerMaxCount, mWorkerMaxCount,
                 0, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(),
                 new PriorityThreadFactory(SpiderWorker.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND));
+        mPTokenPoolExecutor = new ThreadPoolExecutor(PTOKEN_THREAD_NUM, PTOKEN_THREAD_NUM,
+                0, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(),
+                new PriorityThreadFactory(PTokenFetcher.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND));
     }
 
     // OnSpiderListener为一个interface
@@ -237,6 +280,21 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    private void updatePageProgress(int index, long contentLength, long receivedSize, int bytesRead) {
+        PageProgress progress = mPageProgress;
+        if (progress != null && progress.update(index, contentLength, receivedSize, bytesRead,
+                SystemClock.uptimeMillis())) {
+            progress.publish(mPageProgressCallback);
+        }
+    }
+
+    private void publishPageProgress() {
+        PageProgress progress = mPageProgress;
+        if (progress != null) {
+            progress.publish(mPageProgressCallback);
+        }
+    }
+
     private void notifyPageSuccess(int index) {
         int size = -1;
         int[] temp = mPageStateArray;
@@ -306,7 +364,7 @@ public final class SpiderQueen implements Runnable {
         //如果sQueenMap没有找到对应的Value，则新建该entry
         if (queen == null) {
             EhApplication application = (EhApplication) context.getApplicationContext();
-            queen = new SpiderQueen(application, galleryInfo);
+            queen = new SpiderQueen(application, galleryInfo, DECODE_THREAD_NUM);
             sQueenMap.put(galleryInfo.gid, queen);
             // Set mode
             // mode MODE_READ = 0, MODE_DOWNLOAD = 1
@@ -333,6 +391,14 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    /**
+     * Set the max number of images downloaded at the same time by all queens in download mode.
+     * Pages requested by reader are not limited.
+     */
+    public static void setDownloadConnectionLimit(int limit) {
+        sDownloadLimiter.setLimit(Math.max(1, limit));
+    }
+
     private void updateMode() {
         int mode;
         if (mDownloadReference > 0) {
@@ -369,7 +435,9 @@ public final class SpiderQueen implements Runnable {
                 mDownloadedPages.lazySet(0);
                 mFinishedPages.lazySet(0);
                 mPageErrorMap.clear();
-                mPagePercentMap.clear();
+                if (mPageProgress != null) {
+                    mPageProgress.clear();
+                }
             }
             // Ensure download workers
             ensureWorkers();
@@ -466,14 +534,9 @@ public final class SpiderQueen implements Runnable {
 
     private void tryToEnsureWorkers() {
         boolean startWorkers = false;
-        //mRequestPageQueue为Queue<Integer>， Store request page. The index may be invalid
-        //mRequestPageQueue2为Queue<Integer>， Store preload page. The index may be invalid
-        //mForceRequestPageQueue为Queue<Integer>，Store force request page. The index may be invalid
         synchronized (mRequestPageQueue) {
             if (mPageStateArray != null &&
-                    (!mForceRequestPageQueue.isEmpty() ||
-                            !mRequestPageQueue.isEmpty() ||
-                            !mRequestPageQueue2.isEmpty() ||
+                    (!mRequestPageQueue.isEmpty() ||
                             mDownloadPage >= 0 && mDownloadPage < mPageStateArray.length)) {
                 startWorkers = true;
             }
@@ -490,10 +553,13 @@ public final class SpiderQueen implements Runnable {
         }
 
         synchronized (mRequestPageQueue) {
-            mRequestPageQueue.remove(index);
+            // Force request can't be canceled
+            if (mRequestPageQueue.getPriority(index) != PageRequestQueue.PRIORITY_FORCE) {
+                mRequestPageQueue.remove(index);
+            }
         }
         synchronized (mDecodeRequestQueue) {
-            mDecodeRequestQueue.remove(index);
+            mDecodeRequestQueue.remove((Integer) index);
         }
     }
 
@@ -522,16 +588,12 @@ public final class SpiderQueen implements Runnable {
         // Add to request
         synchronized (mRequestPageQueue) {
             if (state == STATE_NONE) {
-                if (force) {
-                    mForceRequestPageQueue.add(index);
-                } else {
-                    mRequestPageQueue.add(index);
-                }
+                mRequestPageQueue.offer(index, force ?
+                        PageRequestQueue.PRIORITY_FORCE : PageRequestQueue.PRIORITY_VISIBLE);
             }
 
-            // Add next some pages to request queue
+            // Add next some pages to request queue, stale preload pages are dropped
             if (addNeighbor) {
-                mRequestPageQueue2.clear();
                 int[] pageStateArray = mPageStateArray;
                 int size;
                 if (pageStateArray != null) {
@@ -539,11 +601,9 @@ public final class SpiderQueen implements Runnable {
                 } else {
                     size = Integer.MAX_VALUE;
                 }
-                for (int i = index + 1, n = index + 1 + mPreloadNumber; i < n && i < size; i++) {
-                    if (STATE_NONE == getPageState(i)) {
-                        mRequestPageQueue2.add(i);
-                    }
-                }
+                int start = index + 1;
+                int end = (int) Math.min((long) start + mPreloadNumber, size);
+                mRequestPageQueue.setPreload(start, Math.max(start, end), mPreloadFilter);
             }
         }
 
@@ -555,7 +615,9 @@ public final class SpiderQueen implements Runnable {
                 result = null;
                 break;
             case STATE_DOWNLOADING:
-                result = mPagePercentMap.get(index);
+                PageProgress progress = mPageProgress;
+                float percent = progress != null ? progress.getPercent(index) : -1.0f;
+                result = percent >= 0.0f ? percent : null;
                 break;
             case STATE_FAILED:
                 String error = mPageErrorMap.get(index);
@@ -566,6 +628,9 @@ public final class SpiderQueen implements Runnable {
                 break;
             case STATE_FINISHED:
                 synchronized (mDecodeRequestQueue) {
+                    if (addNeighbor) {
+                        mDecodeFocus = index;
+                    }
                     if (!contain(mDecodeIndexArray, index) && !mDecodeRequestQueue.contains(index)) {
                         mDecodeRequestQueue.add(index);
                         mDecodeRequestQueue.notify();
@@ -681,11 +746,13 @@ public final class SpiderQueen implements Runnable {
     public void putStartPage(int page) {
         final SpiderInfo spiderInfo = mSpiderInfo.get();
         if (spiderInfo != null) {
-            spiderInfo.startPage = page;
+            synchronized (mPTokenLock) {
+                spiderInfo.putStartPage(page);
+            }
             new AsyncTask<Void, Void, Void>() {
                 @Override
                 protected Void doInBackground(Void... params) {
-                    writeSpiderInfoToLocal(spiderInfo);
+                    writeSpiderInfoToLocal(spiderInfo, true);
                     return null;
                 }
             }.executeOnExecutor(IoThreadPoolExecutor.getInstance());
@@ -745,9 +812,16 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void readPreviews(String body, int index, SpiderInfo spiderInfo) throws ParseException {
-        spiderInfo.pages = GalleryDetailParser.parsePages(body);
-        spiderInfo.previewPages = GalleryDetailParser.parsePreviewPages(body);
-        PreviewSet previewSet = GalleryDetailParser.parsePreviewSet(body);
+        GalleryDetailParser.Previews previews = GalleryDetailParser.parsePreviews(body);
+        if (previews.pages < 0) {
+            throw new ParseException("Parse pages error", body);
+        }
+        spiderInfo.pages = previews.pages;
+        spiderInfo.previewPages = previews.previewPages;
+        PreviewSet previewSet = previews.previewSet;
+        if (spiderInfo.pTokenMap == null) {
+            spiderInfo.pTokenMap = new SparseArray<>(spiderInfo.pages);
+        }
 
         if (previewSet.size() > 0) {
             if (index == 0) {
@@ -761,7 +835,7 @@ public final class SpiderQueen implements Runnable {
             GalleryPageUrlParser.Result result = GalleryPageUrlParser.parse(previewSet.getPageUrlAt(i));
             if (result != null) {
                 synchronized (mPTokenLock) {
-                    spiderInfo.pTokenMap.put(result.page, result.pToken);
+                    spiderInfo.putPToken(result.page, result.pToken);
                 }
             }
         }
@@ -778,8 +852,6 @@ public final class SpiderQueen implements Runnable {
             Response response = mHttpClient.newCall(request).execute();
             String body = response.body().string();
 
-            spiderInfo.pages = GalleryDetailParser.parsePages(body);
-            spiderInfo.pTokenMap = new SparseArray<>(spiderInfo.pages);
             readPreviews(body, 0, spiderInfo);
             return spiderInfo;
         } catch (Throwable e) {
@@ -788,15 +860,9 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
-    private String getPTokenFromInternet(int index) {
-        SpiderInfo spiderInfo = mSpiderInfo.get();
-        if (spiderInfo == null) {
-            return null;
-        }
-
-        // Check previewIndex
+    private static int getPreviewIndex(SpiderInfo spiderInfo, int index) {
         int previewIndex;
-        if (spiderInfo.previewPerPage >= 0) {
+        if (spiderInfo.previewPerPage > 0) {
             previewIndex = index / spiderInfo.previewPerPage;
         } else {
             previewIndex = 0;
@@ -804,13 +870,33 @@ public final class SpiderQueen implements Runnable {
         if (spiderInfo.previewPages > 0) {
             previewIndex = Math.min(previewIndex, spiderInfo.previewPages - 1);
         }
+        return previewIndex;
+    }
+
+    // Return true if any pToken in the preview page is unknown
+    private boolean isPTokenMissing(SpiderInfo spiderInfo, int previewIndex) {
+        int previewPerPage = spiderInfo.previewPerPage;
+        if (previewPerPage <= 0) {
+            return true;
+        }
+        synchronized (mPTokenLock) {
+            for (int i = previewIndex * previewPerPage,
+                    n = Math.min(i + previewPerPage, spiderInfo.pages); i < n; i++) {
+                if (spiderInfo.pTokenMap.get(i) == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
+    private boolean getPTokensFromInternet(SpiderInfo spiderInfo, int previewIndex) {
         try {
             String url = EhUrl.getGalleryDetailUrl(
                     mGalleryInfo.gid, mGalleryInfo.token, previewIndex, false);
             String referer = EhUrl.getReferer();
             if (DEBUG_PTOKEN) {
-                Log.d(TAG, "index " + index + ", previewIndex " + previewIndex +
+                Log.d(TAG, "previewIndex " + previewIndex +
                         ", previewPerPage " + spiderInfo.previewPerPage+ ", url " + url);
             }
             Request request = new EhRequestBuilder(url, referer).build();
@@ -819,29 +905,138 @@ public final class SpiderQueen implements Runnable {
             readPreviews(body, previewIndex, spiderInfo);
 
             // Save to local
-            writeSpiderInfoToLocal(spiderInfo);
+            writeSpiderInfoToLocal(spiderInfo, false);
+            return true;
+        } catch (Throwable e) {
+            ExceptionUtils.throwIfFatal(e);
+            return false;
+        }
+    }
 
-            String pToken;
+    /**
+     * Fetch the preview page which contains the pToken of the page.
+     * Pages in the same preview page share one fetch.
+     * Call it with mWorkerLock held, workers are notified with mWorkerLock after fetching.
+     */
+    private void requestPToken(SpiderInfo spiderInfo, int index) {
+        int previewIndex = getPreviewIndex(spiderInfo, index);
+        synchronized (mPTokenLock) {
+            List<Integer> waitingList = mPendingPreviewMap.get(previewIndex);
+            if (waitingList == null) {
+                waitingList = new ArrayList<>();
+                mPendingPreviewMap.put(previewIndex, waitingList);
+                if (!executePTokenFetcher(previewIndex)) {
+                    return;
+                }
+            }
+            if (!waitingList.contains(index)) {
+                waitingList.add(index);
+            }
+        }
+    }
+
+    /**
+     * Fetch the preview pages after the one of the page in download mode,
+     * so workers don't need to wait for pToken when they get there.
+     */
+    private void preloadPTokens(SpiderInfo spiderInfo, int index) {
+        if (mDownloadPage < 0 || spiderInfo.previewPerPage <= 0) {
+            return;
+        }
+
+        int previewIndex = getPreviewIndex(spiderInfo, index);
+        for (int i = previewIndex + 1, n = previewIndex + 1 + PTOKEN_PRELOAD_PREVIEW_PAGES; i < n; i++) {
+            if (spiderInfo.previewPages > 0 && i >= spiderInfo.previewPages) {
+                break;
+            }
+            if (!isPTokenMissing(spiderInfo, i)) {
+                continue;
+            }
             synchronized (mPTokenLock) {
-                pToken = spiderInfo.pTokenMap.get(index);
+                if (mPendingPreviewMap.get(i) == null) {
+                    mPendingPreviewMap.put(i, new ArrayList<Integer>());
+                    executePTokenFetcher(i);
+                }
             }
-            return pToken;
-        } catch (Throwable e) {
-            ExceptionUtils.throwIfFatal(e);
-            return null;
         }
     }
 
-    private synchronized void writeSpiderInfoToLocal(@NonNull SpiderInfo spiderInfo) {
-        // Write to download dir
+    /**
+     * Call it with mPTokenLock held, after the preview page is put to mPendingPreviewMap.
+     *
+     * @return false if it's stopped, the preview page is removed from mPendingPreviewMap then
+     */
+    private boolean executePTokenFetcher(int previewIndex) {
+        ThreadPoolExecutor executor = mPTokenPoolExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(new PTokenFetcher(previewIndex));
+                return true;
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+        mPendingPreviewMap.remove(previewIndex);
+        return false;
+    }
+
+    /**
+     * Only the journal is appended to the file in download dir, until it's time to compact.
+     * Without download dir, the cache is only rewritten when it's time to compact or forced.
+     */
+    private synchronized void writeSpiderInfoToLocal(@NonNull SpiderInfo spiderInfo, boolean force) {
         UniFile downloadDir = mSpiderDen.getDownloadDir();
+
+        // pTokenMap might be changed by other pToken fetchers, so it's serialized
+        // with mPTokenLock held, and written to files without it
+        byte[] journal = null;
+        synchronized (mPTokenLock) {
+            if (mSpiderInfoWritten && !spiderInfo.shouldCompact()) {
+                if (downloadDir == null && !force) {
+                    // Keep it in journal
+                    return;
+                } else if (downloadDir != null) {
+                    if (!spiderInfo.hasJournal()) {
+                        return;
+                    }
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    spiderInfo.writeJournal(os);
+                    journal = os.toByteArray();
+                }
+            }
+        }
+
+        if (journal != null) {
+            if (appendSpiderInfoJournal(downloadDir, journal)) {
+                return;
+            }
+            // Can't append, write the whole file
+        }
+
+        byte[] bytes;
+        synchronized (mPTokenLock) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            spiderInfo.write(os);
+            bytes = os.toByteArray();
+        }
+
+        // Journal can only be appended to a file with the whole info
+        boolean written = downloadDir == null;
+
+        // Write to download dir
         if (downloadDir != null) {
             UniFile file = downloadDir.createFile(SPIDER_INFO_FILENAME);
+            OutputStream os = null;
             try {
-                spiderInfo.write(file.openOutputStream());
+                os = file.openOutputStream();
+                os.write(bytes);
+                os.flush();
+                written = true;
             } catch (Throwable e) {
                 ExceptionUtils.throwIfFatal(e);
                 // Ignore
+            } finally {
+                IOUtils.closeQuietly(os);
             }
         }
 
@@ -849,13 +1044,40 @@ public final class SpiderQueen implements Runnable {
         OutputStreamPipe pipe = mSpiderInfoCache.getOutputStreamPipe(Long.toString(mGalleryInfo.gid));
         try {
             pipe.obtain();
-            spiderInfo.write(pipe.open());
+            pipe.open().write(bytes);
         } catch (IOException e) {
             // Ignore
         } finally {
             pipe.close();
             pipe.release();
         }
+
+        mSpiderInfoWritten = written;
+    }
+
+    private boolean appendSpiderInfoJournal(@NonNull UniFile downloadDir, @NonNull byte[] journal) {
+        UniFile file = downloadDir.subFile(SPIDER_INFO_FILENAME);
+        if (file == null || !file.isFile()) {
+            return false;
+        }
+        long length = file.length();
+        if (length <= 0) {
+            return false;
+        }
+        OutputStream os = null;
+        try {
+            os = file.openOutputStream(true);
+            os.write(journal);
+            os.flush();
+        } catch (Throwable e) {
+            ExceptionUtils.throwIfFatal(e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        // Some document providers truncate the file in append mode,
+        // only the journal is left then, so check the length
+        return file.length() == length + journal.length;
     }
 
     private void runInternal() {
@@ -884,7 +1106,7 @@ public final class SpiderQueen implements Runnable {
         }
 
         // Write spider info to file
-        writeSpiderInfoToLocal(spiderInfo);
+        writeSpiderInfoToLocal(spiderInfo, false);
 
         // Check interrupted
         if (Thread.currentThread().isInterrupted()) {
@@ -896,6 +1118,7 @@ public final class SpiderQueen implements Runnable {
         synchronized (mPageStateLock) {
             //mPageStateArray为int[]
             mPageStateArray = new int[spiderInfo.pages];
+            mPageProgress = new PageProgress(spiderInfo.pages);
         }
 
         // Notify get pages
@@ -905,60 +1128,22 @@ public final class SpiderQueen implements Runnable {
         tryToEnsureWorkers();
 
         // Start decoder
-        for (int i = 0; i < DECODE_THREAD_NUM; i++) {
+        for (int i = 0; i < mDecodeThreadArray.length; i++) {
             Thread decoderThread = new PriorityThread(new SpiderDecoder(i),
                     "SpiderDecoder-" + i, Process.THREAD_PRIORITY_DEFAULT);
             mDecodeThreadArray[i] = decoderThread;
             decoderThread.start();
         }
 
-        // handle pToken request
-        while (!Thread.currentThread().isInterrupted()) {
-            Integer index = mRequestPTokenQueue.poll();
-
-            if (index == null) {
-                // No request index, wait here
-                synchronized (mQueenLock) {
-                    try {
-                        mQueenLock.wait();
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
-                continue;
-            }
-
-            // Check it in spider info
-            String pToken;
-            synchronized (mPTokenLock) {
-                pToken = spiderInfo.pTokenMap.get(index);
-            }
-            if (pToken != null) {
-                // Get pToken from spider info, notify worker
-                synchronized (mWorkerLock) {
-                    mWorkerLock.notifyAll();
-                }
-                continue;
-            }
-
-            // Get pToken from internet
-            pToken = getPTokenFromInternet(index);
-            if (null == pToken) {
-                // Preview size may changed, so try to get pToken twice
-                pToken = getPTokenFromInternet(index);
-            }
-
-            if (null == pToken) {
-                // If failed, set the pToken "failed"
-                synchronized (mPTokenLock) {
-                    spiderInfo.pTokenMap.put(index, SpiderInfo.TOKEN_FAILED);
+        // pToken requests are handled by pToken fetchers, wait here until stopped
+        synchronized (mQueenLock) {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    mQueenLock.wait();
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
-
-            // Notify worker
-            synchronized (mWorkerLock) {
-                mWorkerLock.notifyAll();
-            }
         }
     }
 
@@ -982,10 +1167,14 @@ public final class SpiderQueen implements Runnable {
             }
         }
 
-        // Interrupt all workers
+        // Interrupt all workers and pToken fetchers
         synchronized (mWorkerLock) {
             mWorkerPoolExecutor.shutdownNow();
             mWorkerPoolExecutor = null;
+            synchronized (mPTokenLock) {
+                mPTokenPoolExecutor.shutdownNow();
+                mPTokenPoolExecutor = null;
+            }
         }
         notifyFinish();
 
@@ -1003,6 +1192,11 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void updatePageState(int index, @State int state, String error) {
+        // Listeners should get the last progress before the result
+        if (isStateDone(state)) {
+            publishPageProgress();
+        }
+
         int oldState;
         synchronized (mPageStateLock) {
             oldState = mPageStateArray[index];
@@ -1023,7 +1217,7 @@ public final class SpiderQueen implements Runnable {
             if (state == STATE_DOWNLOADING) {
                 mPageErrorMap.remove(index);
             } else if (state == STATE_FINISHED || state == STATE_FAILED) {
-                mPagePercentMap.remove(index);
+                mPageProgress.remove(index);
             }
 
             // Get default error
@@ -1215,7 +1409,7 @@ public final class SpiderQueen implements Runnable {
                         Log.d(TAG, "Start download image " + index);
                     }
 
-                    Call call = mHttpClient.newCall(new EhRequestBuilder(targetImageUrl, referer).build());
+                    Call call = mImageHttpClient.newCall(new EhRequestBuilder(targetImageUrl, referer).build());
                     Response response = call.execute();
                     ResponseBody responseBody = response.body();
 
@@ -1233,15 +1427,26 @@ public final class SpiderQueen implements Runnable {
                         continue;
                     }
 
-                    // Get extension
-                    String extension = null;
+                    long contentLength = responseBody.contentLength();
+                    is = responseBody.byteStream();
+
+                    // Check the first bytes before writing anything
+                    ImageValidator validator = new ImageValidator();
+                    int headerLength = validator.readHeader(is);
                     MediaType mediaType = responseBody.contentType();
-                    if (mediaType != null) {
-                        extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mediaType.toString());
+                    if (headerLength == 0 || validator.isText() ||
+                            (mediaType != null && "text".equals(mediaType.type()) && !validator.isImage())) {
+                        // Maybe html or 509 text
+                        response.close();
+                        error = GetText.getString(R.string.error_reading_failed);
+                        forceHtml = true;
+                        continue;
                     }
-                    // Ensure extension
-                    if (!Utilities.contain(GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS, extension)) {
-                        extension = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS[0];
+
+                    // Get extension, trust magic bytes more than content type
+                    String extension = validator.getExtension();
+                    if (extension == null && mediaType != null) {
+                        extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mediaType.toString());
                     }
 
                     OutputStreamPipe osPipe = null;
@@ -1255,14 +1460,14 @@ public final class SpiderQueen implements Runnable {
                             break;
                         }
 
-                        long contentLength = responseBody.contentLength();
-                        is = responseBody.byteStream();
                         osPipe.obtain();
                         OutputStream os = osPipe.open();
 
-                        final byte[] data = new byte[1024 * 4];
-                        long receivedSize = 0;
+                        os.write(validator.getHeader(), 0, headerLength);
+                        long receivedSize = headerLength;
+                        updatePageProgress(index, contentLength, receivedSize, headerLength);
 
+                        final byte[] data = new byte[1024 * 4];
                         while (!Thread.currentThread().isInterrupted()) {
                             int bytesRead = is.read(data);
                             if (bytesRead == -1) {
@@ -1270,26 +1475,21 @@ public final class SpiderQueen implements Runnable {
                                 break;
                             }
                             os.write(data, 0, bytesRead);
+                            validator.update(data, 0, bytesRead);
                             receivedSize += bytesRead;
-                            // Update page percent
-                            if (contentLength > 0) {
-                                mPagePercentMap.put(index, (float) receivedSize / contentLength);
-                            }
-                            // Notify listener
-                            notifyPageDownload(index, contentLength, receivedSize, bytesRead);
+                            // Update page progress, listeners are notified at a bounded rate
+                            updatePageProgress(index, contentLength, receivedSize, bytesRead);
                         }
                         os.flush();
 
-                        // check download size
-                        if (contentLength >= 0) {
-                            if (receivedSize < contentLength) {
-                                Log.e(TAG, "Can't download all of image data");
-                                error = "Incomplete";
-                                forceHtml = true;
-                                continue;
-                            } else if (receivedSize > contentLength) {
-                                Log.w(TAG, "Received data is more than contentLength");
-                            }
+                        // check download size, content length is missing sometimes, check end marker then
+                        if (!Thread.currentThread().isInterrupted() && !validator.isComplete(contentLength)) {
+                            Log.e(TAG, contentLength >= 0 ? "Can't download all of image data" : "Image data is truncated");
+                            error = "Incomplete";
+                            forceHtml = true;
+                            continue;
+                        } else if (contentLength >= 0 && receivedSize > contentLength) {
+                            Log.w(TAG, "Received data is more than contentLength");
                         }
                     } finally {
                         if (osPipe != null) {
@@ -1298,42 +1498,6 @@ public final class SpiderQueen implements Runnable {
                         }
                     }
 
-                    InputStreamPipe isPipe = null;
-                    try {
-                        // Get InputStreamPipe
-                        isPipe = mSpiderDen.openInputStreamPipe(index);
-                        if (isPipe == null) {
-                            // Can't get pipe
-                            error = GetText.getString(R.string.error_reading_failed);
-                            break;
-                        }
-
-                        // Check plain txt
-                        isPipe.obtain();
-                        InputStream inputStream = new BufferedInputStream(isPipe.open());
-                        boolean isPlainTxt = true;
-                        for (;;) {
-                            int b = inputStream.read();
-                            if (b == -1) {
-                                break;
-                            }
-                            if (b > 126) {
-                                isPlainTxt = false;
-                                break;
-                            }
-                        }
-                        if (isPlainTxt) {
-                            error = GetText.getString(R.string.error_reading_failed);
-                            forceHtml = true;
-                            continue;
-                        }
-                    } finally {
-                        if (isPipe != null) {
-                            isPipe.close();
-                            isPipe.release();
-                        }
-                    }
-
                     // Check interrupted
                     if (Thread.currentThread().isInterrupted()) {
                         interrupt = true;
@@ -1368,6 +1532,45 @@ public final class SpiderQueen implements Runnable {
             return !interrupt;
         }
 
+        /**
+         * Block until the pToken is got or failed.
+         *
+         * @return null for interrupted
+         */
+        @Nullable
+        private String waitPToken(SpiderInfo spiderInfo, int index) {
+            String pToken = null;
+            while (!Thread.currentThread().isInterrupted()) {
+                synchronized (mPTokenLock) {
+                    pToken = spiderInfo.pTokenMap.get(index);
+                }
+                if (pToken != null) {
+                    break;
+                }
+                synchronized (mWorkerLock) {
+                    requestPToken(spiderInfo, index);
+                    // Check again, the fetcher might have done before getting mWorkerLock
+                    synchronized (mPTokenLock) {
+                        pToken = spiderInfo.pTokenMap.get(index);
+                    }
+                    if (pToken != null) {
+                        break;
+                    }
+                    // Wait
+                    try {
+                        mWorkerLock.wait();
+                    } catch (InterruptedException e) {
+                        // Interrupted
+                        if (DEBUG_LOG) {
+                            Log.d(TAG, Thread.currentThread().getName() + " Interrupted");
+                        }
+                        break;
+                    }
+                }
+            }
+            return pToken;
+        }
+
         // false for stop
         // 是否跑internal的任务
         private boolean runInternal() {
@@ -1383,22 +1586,19 @@ public final class SpiderQueen implements Runnable {
             int index;
             // From force request
             boolean force = false;
+            // From download cursor, not from reader
+            boolean fromDownload = false;
             synchronized (mRequestPageQueue) {
-                //mRequestPageQueue为普通的request
-                //mRequestPageQueue2为preload
                 // 对index赋值，
                 // 首先判断forceRequest，其次普通的request，之后preload
                 // 最后对index进行赋值
-                if (!mForceRequestPageQueue.isEmpty()) {
-                    index = mForceRequestPageQueue.remove();
-                    force = true;
-                } else if (!mRequestPageQueue.isEmpty()) {
-                    index = mRequestPageQueue.remove();
-                } else if (!mRequestPageQueue2.isEmpty()) {
-                    index = mRequestPageQueue2.remove();
+                if (!mRequestPageQueue.isEmpty()) {
+                    force = mRequestPageQueue.peekPriority() == PageRequestQueue.PRIORITY_FORCE;
+                    index = mRequestPageQueue.poll();
                 } else if (mDownloadPage >= 0 && mDownloadPage < size) {
                     index = mDownloadPage;
                     mDownloadPage++;
+                    fromDownload = true;
                 } else {
                     // No index any more, stop
                     return false;
@@ -1445,34 +1645,11 @@ public final class SpiderQueen implements Runnable {
                 }
             }
 
-            String pToken = null;
+            // Fetch following pTokens before workers need them
+            preloadPTokens(spiderInfo, index);
+
             // Get token
-            while (!Thread.currentThread().isInterrupted()) {
-                synchronized (mPTokenLock) {
-                    pToken = spiderInfo.pTokenMap.get(index);
-                }
-                if (pToken == null) {
-                    mRequestPTokenQueue.add(index);
-                    // Notify Queen
-                    synchronized (mQueenLock) {
-                        mQueenLock.notify();
-                    }
-                    // Wait
-                    synchronized (mWorkerLock) {
-                        try {
-                            mWorkerLock.wait();
-                        } catch (InterruptedException e) {
-                            // Interrupted
-                            if (DEBUG_LOG) {
-                                Log.d(TAG, Thread.currentThread().getName() + " Interrupted");
-                            }
-                            break;
-                        }
-                    }
-                } else {
-                    break;
-                }
-            }
+            String pToken = waitPToken(spiderInfo, index);
 
             if (pToken == null) {
                 // Interrupted
@@ -1484,31 +1661,8 @@ public final class SpiderQueen implements Runnable {
             String previousPToken = null;
             int previousIndex = index - 1;
             // Get token
-            while (previousIndex >= 0 && !Thread.currentThread().isInterrupted()) {
-                synchronized (mPTokenLock) {
-                    previousPToken = spiderInfo.pTokenMap.get(previousIndex);
-                }
-                if (previousPToken == null) {
-                    mRequestPTokenQueue.add(previousIndex);
-                    // Notify Queen
-                    synchronized (mQueenLock) {
-                        mQueenLock.notify();
-                    }
-                    // Wait
-                    synchronized (mWorkerLock) {
-                        try {
-                            mWorkerLock.wait();
-                        } catch (InterruptedException e) {
-                            // Interrupted
-                            if (DEBUG_LOG) {
-                                Log.d(TAG, Thread.currentThread().getName() + " Interrupted");
-                            }
-                            break;
-                        }
-                    }
-                } else {
-                    break;
-                }
+            if (previousIndex >= 0) {
+                previousPToken = waitPToken(spiderInfo, previousIndex);
             }
 
             if (SpiderInfo.TOKEN_FAILED.equals(pToken)) {
@@ -1517,8 +1671,25 @@ public final class SpiderQueen implements Runnable {
                 return true;
             }
 
-            // Get image url
-            return downloadImage(mGid, index, pToken, previousPToken, force);
+            if (!fromDownload) {
+                // Get image url
+                return downloadImage(mGid, index, pToken, previousPToken, force);
+            }
+
+            // Wait for a free connection shared with other downloading galleries
+            try {
+                sDownloadLimiter.acquire();
+            } catch (InterruptedException e) {
+                // Stopped, keep the flag for the worker loop
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                // Get image url
+                return downloadImage(mGid, index, pToken, previousPToken, force);
+            } finally {
+                sDownloadLimiter.release();
+            }
         }
 
         @Override
@@ -1553,6 +1724,104 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    private class PTokenFetcher implements Runnable {
+
+        private final int mPreviewIndex;
+
+        public PTokenFetcher(int previewIndex) {
+            mPreviewIndex = previewIndex;
+        }
+
+        @Override
+        public void run() {
+            SpiderInfo spiderInfo = mSpiderInfo.get();
+            if (spiderInfo == null) {
+                return;
+            }
+
+            getPTokensFromInternet(spiderInfo, mPreviewIndex);
+
+            // Preview size may changed, so try to get missing pToken twice
+            List<Integer> missingList = null;
+            synchronized (mPTokenLock) {
+                List<Integer> waitingList = mPendingPreviewMap.get(mPreviewIndex);
+                if (waitingList != null) {
+                    for (Integer index : waitingList) {
+                        if (spiderInfo.pTokenMap.get(index) == null) {
+                            if (missingList == null) {
+                                missingList = new ArrayList<>();
+                            }
+                            missingList.add(index);
+                        }
+                    }
+                }
+            }
+            if (missingList != null) {
+                List<Integer> fetchedList = new ArrayList<>();
+                for (Integer index : missingList) {
+                    int previewIndex = getPreviewIndex(spiderInfo, index);
+                    if (!fetchedList.contains(previewIndex) && !Thread.currentThread().isInterrupted()) {
+                        fetchedList.add(previewIndex);
+                        getPTokensFromInternet(spiderInfo, previewIndex);
+                    }
+                }
+            }
+
+            synchronized (mPTokenLock) {
+                List<Integer> waitingList = mPendingPreviewMap.get(mPreviewIndex);
+                mPendingPreviewMap.remove(mPreviewIndex);
+                if (waitingList != null) {
+                    for (Integer index : waitingList) {
+                        if (spiderInfo.pTokenMap.get(index) == null) {
+                            // If failed, set the pToken "failed"
+                            spiderInfo.pTokenMap.put(index, SpiderInfo.TOKEN_FAILED);
+                        }
+                    }
+                }
+            }
+
+            // Notify worker
+            synchronized (mWorkerLock) {
+                mWorkerLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Estimate the memory of the decoded image from its bounds.
+     *
+     * @return 0 for unknown
+     */
+    private static long getDecodeByteCount(InputStream is) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(is, null, options);
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            return (long) options.outWidth * options.outHeight * 4;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Take the page nearest to the focus, so pages left behind by a jump
+     * don't block the pages on screen. Call it with mDecodeRequestQueue held.
+     */
+    private int pollDecodeRequest() {
+        int bestPosition = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        int position = 0;
+        for (int index : mDecodeRequestQueue) {
+            int distance = Math.abs(index - mDecodeFocus);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestPosition = position;
+            }
+            position++;
+        }
+        return mDecodeRequestQueue.remove(bestPosition);
+    }
+
     private class SpiderDecoder implements Runnable {
 
         private final int mThreadIndex;
@@ -1585,7 +1854,7 @@ public final class SpiderQueen implements Runnable {
                         }
                         continue;
                     }
-                    index = mDecodeRequestQueue.remove();
+                    index = pollDecodeRequest();
                     mDecodeIndexArray[mThreadIndex] = index;
                 }
 
@@ -1609,10 +1878,22 @@ public final class SpiderQueen implements Runnable {
                 Image image = null;
                 String error = null;
                 InputStream is;
+                long byteCount = 0;
 
                 pipe.obtain();
                 try {
-                    is = new AutoCloseInputStream(pipe, pipe.open());
+                    // Read the bounds from the buffer, then decode from the start of it
+                    InputStream bis = new BufferedInputStream(pipe.open(), PROBE_BUFFER_SIZE);
+                    bis.mark(PROBE_BUFFER_SIZE);
+                    byteCount = getDecodeByteCount(bis);
+                    try {
+                        bis.reset();
+                    } catch (IOException e) {
+                        // The bounds are too far, open it again
+                        pipe.close();
+                        bis = pipe.open();
+                    }
+                    is = new AutoCloseInputStream(pipe, bis);
                 } catch (IOException e) {
                     // Can't open pipe
                     error = GetText.getString(R.string.error_reading_failed);
@@ -1622,7 +1903,19 @@ public final class SpiderQueen implements Runnable {
                 }
 
                 if (is != null) {
-                    image = Image.decode(is, true);
+                    try {
+                        sDecodeBudget.acquire(byteCount);
+                    } catch (InterruptedException e) {
+                        // Interrupted
+                        IOUtils.closeQuietly(is);
+                        resetDecodeIndex();
+                        break;
+                    }
+                    try {
+                        image = Image.decode(is, true);
+                    } finally {
+                        sDecodeBudget.release(byteCount);
+                    }
                     if (image == null) {
                         error = GetText.getString(R.string.error_decoding_failed);
                     }
@@ -1671,6 +1964,28 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    /**
+     * A fair semaphore which permits count can be changed at runtime.
+     */
+    private static class ConnectionLimiter extends Semaphore {
+
+        private int mLimit;
+
+        public ConnectionLimiter() {
+            super(0, true);
+        }
+
+        public synchronized void setLimit(int limit) {
+            int delta = limit - mLimit;
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                reducePermits(-delta);
+            }
+            mLimit = limit;
+        }
+    }
+
     public interface OnSpiderListener {
 
         void onGetPages(int pages);
@@ -1678,7 +1993,10 @@ public final class SpiderQueen implements Runnable {
         void onGet509(int index);
 
         /**
+         * Called at most once per {@link PageProgress#PUBLISH_INTERVAL} for all pages.
+         *
          * @param contentLength -1 for unknown
+         * @param bytesRead bytes read since last call for this page
          */
         void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead);
 
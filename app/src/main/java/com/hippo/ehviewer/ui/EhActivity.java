@@ -42,6 +42,9 @@ public abstract class EhActivity extends AppCompatActivity {
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         setTheme(getThemeResId(Settings.getTheme()));
 
+        // Database and caches might be still initializing
+        EhApplication.waitForStartup(this);
+
         super.onCreate(savedInstanceState);
 
         // 把Activity放入一个List<Activity>中
@@ -42,6 +42,8 @@ public abstract class EhPreferenceActivity extends PrettyPreferenceActivity {
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         setTheme(getThemeResId(Settings.getTheme()));
 
+        EhApplication.waitForStartup(this);
+
         super.onCreate(savedInstanceState);
 
         ((EhApplication) getApplication()).registerActivity(this);
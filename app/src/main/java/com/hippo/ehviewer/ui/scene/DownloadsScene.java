@@ -48,6 +48,7 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.view.ViewCompat;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.SimpleItemAnimator;
 import androidx.recyclerview.widget.StaggeredGridLayoutManager;
@@ -74,6 +75,7 @@ import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.DownloadLabel;
+import com.hippo.ehviewer.download.DownloadInfoList;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.download.DownloadService;
 import com.hippo.ehviewer.spider.SpiderDen;
@@ -101,7 +103,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 public class DownloadsScene extends ToolbarScene
@@ -232,6 +233,7 @@ public class DownloadsScene extends ToolbarScene
             return;
         }
 
+        int oldSize = mList != null ? mList.size() : 0;
         if (mLabel == null) {
             mList = mDownloadManager.getDefaultDownloadInfoList();
         } else {
@@ -243,7 +245,17 @@ public class DownloadsScene extends ToolbarScene
         }
 
         if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+            // Rebind the shown holders in place, only the size difference is inserted or removed
+            int newSize = mList.size();
+            int changed = Math.min(oldSize, newSize);
+            if (changed > 0) {
+                mAdapter.notifyItemRangeChanged(0, changed);
+            }
+            if (newSize > oldSize) {
+                mAdapter.notifyItemRangeInserted(oldSize, newSize - oldSize);
+            } else if (newSize < oldSize) {
+                mAdapter.notifyItemRangeRemoved(newSize, oldSize - newSize);
+            }
         }
 
         updateTitle();
@@ -704,7 +716,7 @@ public class DownloadsScene extends ToolbarScene
                 gidList = new LongList();
             }
             if (collectDownloadInfo) {
-                downloadInfoList = new LinkedList<>();
+                downloadInfoList = new ArrayList<>();
             }
 
             SparseBooleanArray stateArray = recyclerView.getCheckedItemPositions();
@@ -838,6 +850,17 @@ public class DownloadsScene extends ToolbarScene
         updateView();
     }
 
+    @Override
+    public void onBatch(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoList.Batch batch) {
+        if (mList != list) {
+            return;
+        }
+        if (mAdapter != null) {
+            batch.dispatchUpdatesTo(new AdapterListUpdateCallback(mAdapter));
+        }
+        updateView();
+    }
+
     @Override
     public void onUpdateLabels() {
         // TODO
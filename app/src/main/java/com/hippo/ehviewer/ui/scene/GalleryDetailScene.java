@@ -81,6 +81,7 @@ import com.hippo.ehviewer.client.exception.NoHAtHClientException;
 import com.hippo.ehviewer.client.parser.RateGalleryParser;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.Filter;
+import com.hippo.ehviewer.download.DownloadInfoList;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.ehviewer.ui.GalleryActivity;
 import com.hippo.ehviewer.ui.MainActivity;
@@ -659,10 +660,10 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
         }
 
         // Do request
-        return request();
+        return request(false);
     }
 
-    private boolean request() {
+    private boolean request(boolean refresh) {
         Context context = getContext2();
         MainActivity activity = getActivity2();
         String url = getGalleryDetailUrl(false);
@@ -676,6 +677,7 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
         EhRequest request = new EhRequest()
                 .setMethod(EhClient.METHOD_GET_GALLERY_DETAIL)
                 .setArgs(url)
+                .setRefresh(refresh)
                 .setCallback(callback);
         EhApplication.getEhClient(context).execute(request);
 
@@ -1066,7 +1068,7 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
                     case R.id.action_refresh:
                         if (mState != STATE_REFRESH && mState != STATE_REFRESH_HEADER) {
                             adjustViewVisibility(STATE_REFRESH, true);
-                            request();
+                            request(true);
                         }
                         break;
                 }
@@ -1159,7 +1161,7 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
         }
 
         if (mTip == v) {
-            if (request()) {
+            if (request(false)) {
                 adjustViewVisibility(STATE_REFRESH, true);
             }
         } else if (mOtherActions == v) {
@@ -1532,6 +1534,11 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
         updateDownloadState();
     }
 
+    @Override
+    public void onBatch(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoList.Batch batch) {
+        updateDownloadState();
+    }
+
     @Override
     public void onRenameLabel(String from, String to) {}
 
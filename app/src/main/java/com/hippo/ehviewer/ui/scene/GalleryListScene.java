@@ -32,6 +32,7 @@ import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.ImageSpan;
+import android.util.Pair;
 import android.view.Display;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -69,6 +70,7 @@ import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.EhClient;
 import com.hippo.ehviewer.client.EhRequest;
+import com.hippo.ehviewer.client.EhTagDatabase;
 import com.hippo.ehviewer.client.EhUrl;
 import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
@@ -79,6 +81,7 @@ import com.hippo.ehviewer.client.parser.GalleryListParser;
 import com.hippo.ehviewer.client.parser.GalleryPageUrlParser;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.QuickSearch;
+import com.hippo.ehviewer.download.DownloadInfoList;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.ehviewer.ui.GalleryActivity;
@@ -106,6 +109,7 @@ import com.hippo.yorozuya.ViewUtils;
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -121,6 +125,8 @@ public final class GalleryListScene extends BaseScene
 
     private static final int BACK_PRESSED_INTERVAL = 2000;
 
+    private static final int MAX_TAG_SUGGESTIONS = 20;
+
     public final static int REQUEST_CODE_SELECT_IMAGE = 0;
 
     public final static String KEY_ACTION = "action";
@@ -316,6 +322,12 @@ public final class GalleryListScene extends BaseScene
                 }
             }
             @Override
+            public void onBatch(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoList.Batch batch) {
+                if (mAdapter != null) {
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+            @Override
             public void onUpdateLabels() { }
         };
         mDownloadManager.addDownloadInfoListener(mDownloadInfoListener);
@@ -396,10 +408,92 @@ public final class GalleryListScene extends BaseScene
             if (result2 != null) {
                 return Collections.singletonList(new GalleryPageUrlSuggestion(result2.gid, result2.pToken, result2.page));
             }
-            return null;
+            return getTagSuggestions(text);
         });
     }
 
+    @Nullable
+    private List<SearchBar.Suggestion> getTagSuggestions(String text) {
+        Context context = getContext2();
+        if (null == context || !Settings.getShowTagTranslations()) {
+            return null;
+        }
+        EhTagDatabase ehTags = EhTagDatabase.getInstance(context);
+        if (null == ehTags) {
+            return null;
+        }
+
+        // Complete the last word
+        int start = text.lastIndexOf(' ') + 1;
+        String word = text.substring(start);
+        if (word.isEmpty()) {
+            return null;
+        }
+        // The database uses short namespaces, like "f:" for "female:"
+        String key = word;
+        int index = word.indexOf(':');
+        if (index > 0) {
+            String prefix = EhTagDatabase.namespaceToPrefix(word.substring(0, index));
+            if (prefix != null) {
+                key = prefix + word.substring(index + 1);
+            }
+        }
+
+        List<SearchBar.Suggestion> suggestions = new ArrayList<>();
+        for (Pair<String, String> pair : ehTags.suggest(key, MAX_TAG_SUGGESTIONS)) {
+            // Namespace names are translated too, they aren't tags
+            if (!pair.first.startsWith("n:")) {
+                suggestions.add(new TagSuggestion(text.substring(0, start), pair.first, pair.second));
+            }
+        }
+        return suggestions;
+    }
+
+    private class TagSuggestion extends SearchBar.Suggestion {
+        private String mBase;
+        private String mTag;
+        private String mTranslation;
+
+        private TagSuggestion(String base, String tag, String translation) {
+            mBase = base;
+            mTag = tag;
+            mTranslation = translation;
+        }
+
+        @Override
+        public CharSequence getText(float textSize) {
+            return mTranslation + "  " + mTag;
+        }
+
+        @Override
+        public void onClick() {
+            if (null == mSearchBar) {
+                return;
+            }
+
+            String namespace;
+            String name;
+            int index = mTag.indexOf(':');
+            if (index < 0) {
+                namespace = "";
+                name = mTag;
+            } else {
+                namespace = mTag.substring(0, index + 1);
+                name = mTag.substring(index + 1);
+            }
+            if (name.indexOf(' ') >= 0) {
+                name = "\"" + name + "$\"";
+            } else {
+                name = name + "$";
+            }
+            mSearchBar.setText(mBase + namespace + name + " ");
+            mSearchBar.cursorToEnd();
+        }
+
+        @Override
+        public void onLongClick() { }
+    }
+
     private abstract class UrlSuggestion extends SearchBar.Suggestion {
         @Override
         public CharSequence getText(float textSize) {
@@ -1535,6 +1629,7 @@ public final class GalleryListScene extends BaseScene
                 request.setCallback(new GetGalleryListListener(getContext(),
                         activity.getStageId(), getTag(), taskId));
                 request.setArgs(url);
+                request.setRefresh(type == TYPE_REFRESH || type == TYPE_REFRESH_PAGE);
                 mClient.execute(request);
             }
         }
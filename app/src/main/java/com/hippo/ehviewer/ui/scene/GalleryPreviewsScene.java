@@ -302,6 +302,7 @@ public class GalleryPreviewsScene extends ToolbarScene implements EasyRecyclerVi
             request.setCallback(new GetPreviewSetListener(getContext(),
                     activity.getStageId(), getTag(), taskId));
             request.setArgs(url);
+            request.setRefresh(type == TYPE_REFRESH || type == TYPE_REFRESH_PAGE);
             mClient.execute(request);
         }
 
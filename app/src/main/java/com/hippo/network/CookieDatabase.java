@@ -228,6 +228,19 @@ class CookieDatabase {
     cookieIdMap.remove(cookie);
   }
 
+  /**
+   * Runs add, update, remove and clear in one transaction.
+   */
+  public void runInTransaction(Runnable runnable) {
+    db.beginTransaction();
+    try {
+      runnable.run();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public void clear() {
     db.delete(TABLE_COOKIE, null, null);
     cookieIdMap.clear();
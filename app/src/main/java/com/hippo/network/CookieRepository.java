@@ -21,12 +21,13 @@ package com.hippo.network;
  */
 
 import android.content.Context;
+import com.hippo.util.IoThreadPoolExecutor;
 import com.hippo.yorozuya.ObjectUtils;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
@@ -34,12 +35,26 @@ import okhttp3.HttpUrl;
 
 public class CookieRepository implements CookieJar {
 
-  private CookieDatabase db;
-  private Map<String, CookieSet> map;
+  private static final int MAX_RESULT_CACHE_SIZE = 64;
+
+  private final CookieDatabase db;
+  // Domain to cookies of the domain. Lookups walk the suffixes of the host.
+  private final Map<String, CookieSet> map;
+
+  // Cookies for scheme, host and path, dropped when version changes
+  private final Map<String, Result> results = new ConcurrentHashMap<>();
+  private volatile int version;
+
+  // Database changes not written yet, guarded by this
+  private List<Operation> operations = new ArrayList<>();
+  private boolean flushScheduled;
+  // Guards db
+  private final Object dbLock = new Object();
+  private boolean closed;
 
   public CookieRepository(Context context, String name) {
     db = new CookieDatabase(context, name);
-    map = db.getAllCookies();
+    map = new ConcurrentHashMap<>(db.getAllCookies());
   }
 
   public synchronized void addCookie(Cookie cookie) {
@@ -72,61 +87,141 @@ public class CookieRepository implements CookieJar {
         toUpdate = null;
       }
     }
+    version++;
 
     if (toRemove != null) {
-      db.remove(toRemove);
+      enqueue(new Operation(Operation.REMOVE, toRemove, null));
     }
     if (toAdd != null) {
       if (toUpdate != null) {
-        db.update(toUpdate, toAdd);
+        enqueue(new Operation(Operation.UPDATE, toUpdate, toAdd));
       } else {
-        db.add(toAdd);
+        enqueue(new Operation(Operation.ADD, null, toAdd));
       }
     }
   }
 
-  public String getCookieHeader(HttpUrl url) {
-    List<Cookie> cookies = getCookies(url);
-    StringBuilder cookieHeader = new StringBuilder();
-    for (int i = 0, size = cookies.size(); i < size; i++) {
-      if (i > 0) {
-        cookieHeader.append("; ");
+  private synchronized void removeExpired(long now) {
+    List<Cookie> expired = new ArrayList<>();
+    for (CookieSet set : map.values()) {
+      set.removeExpired(now, expired);
+    }
+    if (expired.isEmpty()) {
+      return;
+    }
+    version++;
+
+    for (Cookie cookie : expired) {
+      if (cookie.persistent()) {
+        enqueue(new Operation(Operation.REMOVE, cookie, null));
       }
-      Cookie cookie = cookies.get(i);
-      cookieHeader.append(cookie.name()).append('=').append(cookie.value());
     }
-    return cookieHeader.toString();
   }
 
-  public synchronized List<Cookie> getCookies(HttpUrl url) {
-    List<Cookie> accepted = new ArrayList<>();
-    List<Cookie> expired = new ArrayList<>();
+  // Call it with the lock of this
+  private void enqueue(Operation operation) {
+    operations.add(operation);
+    if (!flushScheduled) {
+      flushScheduled = true;
+      IoThreadPoolExecutor.getInstance().execute(this::flush);
+    }
+  }
 
-    for (Map.Entry<String, CookieSet> entry : map.entrySet()) {
-      String domain = entry.getKey();
-      CookieSet cookieSet = entry.getValue();
-      if (domainMatch(url, domain)) {
-        cookieSet.get(url, accepted, expired);
+  /**
+   * Writes all pending changes to database in one transaction.
+   */
+  private void flush() {
+    synchronized (dbLock) {
+      if (closed) {
+        return;
       }
+
+      List<Operation> list;
+      synchronized (this) {
+        list = operations;
+        operations = new ArrayList<>();
+        flushScheduled = false;
+      }
+      if (list.isEmpty()) {
+        return;
+      }
+
+      db.runInTransaction(() -> {
+        for (Operation operation : list) {
+          operation.apply(db);
+        }
+      });
     }
+  }
 
-    for (Cookie cookie : expired) {
-      if (cookie.persistent()) {
-        db.remove(cookie);
+  public String getCookieHeader(HttpUrl url) {
+    return getResult(url).header;
+  }
+
+  public List<Cookie> getCookies(HttpUrl url) {
+    return getResult(url).cookies;
+  }
+
+  private Result getResult(HttpUrl url) {
+    long now = System.currentTimeMillis();
+    String key = url.scheme() + "://" + url.host() + url.encodedPath();
+    Result result = results.get(key);
+    if (result != null && result.version == version && result.expiresAt > now) {
+      return result;
+    }
+
+    // Read version before cookies, a change during the lookup makes the result stale
+    int currentVersion = version;
+    List<Cookie> accepted = new ArrayList<>();
+    boolean hasExpired = false;
+    int matchedSets = 0;
+
+    // Only domains which are the host or a suffix of the host after '.' match
+    String host = url.host();
+    boolean ip = verifyAsIpAddress(host);
+    String domain = host;
+    for (;;) {
+      CookieSet cookieSet = map.get(domain);
+      if (cookieSet != null) {
+        int size = accepted.size();
+        hasExpired |= cookieSet.get(url, now, accepted);
+        if (accepted.size() != size) {
+          matchedSets++;
+        }
+      }
+      int index = domain.indexOf('.');
+      if (ip || index < 0) {
+        break;
       }
+      domain = domain.substring(index + 1);
     }
 
-    // RFC 6265 Section-5.4 step 2, sort the cookie-list
-    // Cookies with longer paths are listed before cookies with shorter paths.
-    // Ignore creation-time, we don't store them.
-    Collections.sort(accepted, new Comparator<Cookie>() {
-      @Override
-      public int compare(Cookie o1, Cookie o2) {
-        return o2.path().length() - o1.path().length();
+    if (hasExpired) {
+      removeExpired(now);
+    }
+
+    // Each set is sorted, merge them if needed
+    if (matchedSets > 1) {
+      Collections.sort(accepted, CookieSet.PATH_COMPARATOR);
+    }
+
+    long expiresAt = Long.MAX_VALUE;
+    StringBuilder header = new StringBuilder();
+    for (int i = 0, size = accepted.size(); i < size; i++) {
+      Cookie cookie = accepted.get(i);
+      expiresAt = Math.min(expiresAt, cookie.expiresAt());
+      if (i > 0) {
+        header.append("; ");
       }
-    });
+      header.append(cookie.name()).append('=').append(cookie.value());
+    }
 
-    return accepted;
+    result = new Result(currentVersion, expiresAt, Collections.unmodifiableList(accepted), header.toString());
+    if (results.size() >= MAX_RESULT_CACHE_SIZE) {
+      results.clear();
+    }
+    results.put(key, result);
+    return result;
   }
 
   public boolean contains(HttpUrl url, String name) {
@@ -143,11 +238,16 @@ public class CookieRepository implements CookieJar {
    */
   public synchronized void clear() {
     map.clear();
-    db.clear();
+    version++;
+    enqueue(new Operation(Operation.CLEAR, null, null));
   }
 
-  public synchronized void close() {
-    db.close();
+  public void close() {
+    synchronized (dbLock) {
+      flush();
+      closed = true;
+      db.close();
+    }
   }
 
   @Override
@@ -197,4 +297,53 @@ public class CookieRepository implements CookieJar {
 
     return false;
   }
+
+  private static class Result {
+    final int version;
+    // The earliest expiration of the cookies
+    final long expiresAt;
+    final List<Cookie> cookies;
+    final String header;
+
+    Result(int version, long expiresAt, List<Cookie> cookies, String header) {
+      this.version = version;
+      this.expiresAt = expiresAt;
+      this.cookies = cookies;
+      this.header = header;
+    }
+  }
+
+  private static class Operation {
+    static final int ADD = 0;
+    static final int UPDATE = 1;
+    static final int REMOVE = 2;
+    static final int CLEAR = 3;
+
+    final int type;
+    final Cookie from;
+    final Cookie to;
+
+    Operation(int type, Cookie from, Cookie to) {
+      this.type = type;
+      this.from = from;
+      this.to = to;
+    }
+
+    void apply(CookieDatabase db) {
+      switch (type) {
+        case ADD:
+          db.add(to);
+          break;
+        case UPDATE:
+          db.update(from, to);
+          break;
+        case REMOVE:
+          db.remove(from);
+          break;
+        case CLEAR:
+          db.clear();
+          break;
+      }
+    }
+  }
 }
@@ -22,6 +22,8 @@ package com.hippo.network;
 
 import com.hippo.util.HashCodeUtils;
 import com.hippo.yorozuya.ObjectUtils;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -29,9 +31,33 @@ import java.util.Map;
 import okhttp3.Cookie;
 import okhttp3.HttpUrl;
 
+/**
+ * Cookies of one domain. Modify it with the lock of {@link CookieRepository},
+ * {@link #get(HttpUrl, long, List)} reads a snapshot without lock.
+ */
 class CookieSet {
 
+  private static final Cookie[] EMPTY = new Cookie[0];
+
+  // RFC 6265 Section-5.4 step 2, sort the cookie-list
+  // Cookies with longer paths are listed before cookies with shorter paths.
+  // Ignore creation-time, we don't store them.
+  static final Comparator<Cookie> PATH_COMPARATOR = new Comparator<Cookie>() {
+    @Override
+    public int compare(Cookie o1, Cookie o2) {
+      return o2.path().length() - o1.path().length();
+    }
+  };
+
   private Map<Key, Cookie> map = new HashMap<>();
+  // Values of map, sorted by PATH_COMPARATOR
+  private volatile Cookie[] cookies = EMPTY;
+
+  private void updateCookies() {
+    Cookie[] array = map.values().toArray(new Cookie[map.size()]);
+    Arrays.sort(array, PATH_COMPARATOR);
+    cookies = array;
+  }
 
   /**
    * Adds a cookie to this {@code CookieSet}.
@@ -39,7 +65,9 @@ class CookieSet {
    * the same name, domain and path or {@code null}.
    */
   public Cookie add(Cookie cookie) {
-    return map.put(new Key(cookie), cookie);
+    Cookie previous = map.put(new Key(cookie), cookie);
+    updateCookies();
+    return previous;
   }
 
   /**
@@ -48,24 +76,45 @@ class CookieSet {
    * Returns the removed cookie or {@code null}.
    */
   public Cookie remove(Cookie cookie) {
-    return map.remove(new Key(cookie));
+    Cookie removed = map.remove(new Key(cookie));
+    if (removed != null) {
+      updateCookies();
+    }
+    return removed;
+  }
+
+  /**
+   * Adds cookies for the url to {@code accepted}, in path order.
+   * Returns {@code true} if any cookie is expired.
+   */
+  public boolean get(HttpUrl url, long now, List<Cookie> accepted) {
+    boolean hasExpired = false;
+    for (Cookie cookie : cookies) {
+      if (cookie.expiresAt() <= now) {
+        hasExpired = true;
+      } else if (cookie.matches(url)) {
+        accepted.add(cookie);
+      }
+    }
+    return hasExpired;
   }
 
   /**
-   * Get cookies for the url. Fill {@code accepted} and {@code expired}.
+   * Removes expired cookies and adds them to {@code expired}.
    */
-  public void get(HttpUrl url, List<Cookie> accepted, List<Cookie> expired) {
-    long now = System.currentTimeMillis();
+  public void removeExpired(long now, List<Cookie> expired) {
+    int size = expired.size();
     Iterator<Map.Entry<Key, Cookie>> iterator = map.entrySet().iterator();
     while (iterator.hasNext()) {
       Cookie cookie = iterator.next().getValue();
       if (cookie.expiresAt() <= now) {
         iterator.remove();
         expired.add(cookie);
-      } else if (cookie.matches(url)) {
-        accepted.add(cookie);
       }
     }
+    if (expired.size() != size) {
+      updateCookies();
+    }
   }
 
   static class Key {
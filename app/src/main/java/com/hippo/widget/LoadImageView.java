@@ -36,6 +36,7 @@ import com.hippo.conaco.Unikery;
 import com.hippo.drawable.PreciselyClipDrawable;
 import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.ThumbMemoryCache;
 import com.hippo.image.ImageBitmap;
 import com.hippo.image.ImageDrawable;
 import com.hippo.image.RecycledException;
@@ -59,10 +60,13 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
     private int mTaskId = Unikery.INVALID_ID;
 
     private Conaco<ImageBitmap> mConaco;
+    private ThumbMemoryCache mMemoryCache;
 
     private String mKey;
     private String mUrl;
     private DataContainer mContainer;
+    // Set by load(Drawable), it is restored when attached again
+    private Drawable mDrawable;
     private boolean mUseNetwork;
 
     private int mOffsetX = Integer.MIN_VALUE;
@@ -99,6 +103,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         //如果不是在EditMode中， 返回一个Conaco实例
         if (!isInEditMode()) {
             mConaco = EhApplication.getConaco(context);
+            mMemoryCache = EhApplication.getThumbMemoryCache(context);
         }
     }
 
@@ -118,6 +123,9 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
 
         if (mFailed) {
             onFailure();
+        } else if (mDrawable != null) {
+            onPreSetImageDrawable(mDrawable, true);
+            setImageDrawable(mDrawable);
         } else if (mTaskId == Unikery.INVALID_ID) /* if (!mConaco.isLoading(mTaskId)) TODO Update Conaco */ {
             load(mKey, mUrl, mContainer, mUseNetwork);
         }
@@ -229,6 +237,18 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         mUrl = url;
         mContainer = container;
         mUseNetwork = useNetwork;
+        mDrawable = null;
+
+        if (key != null) {
+            ImageBitmap bitmap = mMemoryCache.get(key);
+            if (bitmap != null) {
+                mConaco.cancel(this);
+                if (onGetValue(bitmap, Conaco.SOURCE_MEMORY)) {
+                    return;
+                }
+            }
+        }
+        clearDrawable();
 
         ConacoTask.Builder<ImageBitmap> builder = new ConacoTask.Builder<ImageBitmap>()
                 .setUnikery(this)
@@ -241,6 +261,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
 
     public void load(Drawable drawable) {
         unload();
+        mDrawable = drawable;
         onPreSetImageDrawable(drawable, true);
         setImageDrawable(drawable);
     }
@@ -256,6 +277,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         mKey = null;
         mUrl = null;
         mContainer = null;
+        mDrawable = null;
         clearDrawable();
     }
 
@@ -288,6 +310,11 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
             return false;
         }
 
+        // A clipped image is a whole sprite sheet, SpriteTileCache keeps tiles of it instead
+        if (source != Conaco.SOURCE_MEMORY && mKey != null && Integer.MIN_VALUE == mOffsetX) {
+            mMemoryCache.put(mKey, value);
+        }
+
         clearDrawable();
 
         if (Integer.MIN_VALUE != mOffsetX) {
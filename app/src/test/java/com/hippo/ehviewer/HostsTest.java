@@ -106,6 +106,18 @@ public class HostsTest {
     hosts.delete(null);
   }
 
+  @Test
+  public void testReopen() {
+    Hosts hosts = new Hosts(RuntimeEnvironment.application, "hosts.db");
+    hosts.put("ni.hao", "127.0.0.1");
+    hosts.put("wo.hao", "127.0.0.2");
+    hosts.delete("wo.hao");
+
+    hosts = new Hosts(RuntimeEnvironment.application, "hosts.db");
+    assertEquals("ni.hao/127.0.0.1", hosts.get("ni.hao").toString());
+    assertEquals(null, hosts.get("wo.hao"));
+  }
+
   @Test
   public void testGetAll() {
     Hosts hosts = new Hosts(RuntimeEnvironment.application, "hosts.db");
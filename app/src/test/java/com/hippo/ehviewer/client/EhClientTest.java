@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.ehviewer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.hippo.ehviewer.client.data.GalleryComment;
+import com.hippo.ehviewer.client.data.GalleryCommentList;
+import com.hippo.ehviewer.client.data.GalleryDetail;
+import com.hippo.ehviewer.client.data.GalleryInfo;
+import com.hippo.ehviewer.client.data.GalleryTagGroup;
+import com.hippo.ehviewer.client.data.NormalPreviewSet;
+import com.hippo.ehviewer.client.parser.GalleryListParser;
+import java.util.ArrayList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class EhClientTest {
+
+  @Test
+  public void testCopyDetail() {
+    GalleryDetail detail = new GalleryDetail();
+    detail.gid = 1234;
+    detail.token = "abcdef";
+    detail.apiUid = 5678;
+    detail.apiKey = "key";
+    detail.pages = 42;
+    ((GalleryInfo) detail).pages = 42;
+    detail.isFavorited = true;
+    GalleryTagGroup group = new GalleryTagGroup();
+    group.groupName = "artist";
+    group.addTag("someone");
+    detail.tags = new GalleryTagGroup[] { group };
+    GalleryComment comment = new GalleryComment();
+    comment.score = 3;
+    detail.comments = new GalleryCommentList(new GalleryComment[] { comment }, false);
+    detail.previewSet = new NormalPreviewSet();
+
+    GalleryDetail copy = (GalleryDetail) EhClient.copyResult(detail);
+    assertNotSame(detail, copy);
+    assertEquals(1234, copy.gid);
+    assertEquals("abcdef", copy.token);
+    assertEquals(5678, copy.apiUid);
+    assertEquals("key", copy.apiKey);
+    assertEquals(42, copy.pages);
+    assertEquals(42, ((GalleryInfo) copy).pages);
+    assertEquals("someone", copy.tags[0].getTagAt(0));
+    assertSame(detail.previewSet, copy.previewSet);
+
+    // Changes to the copy don't leak
+    copy.isFavorited = false;
+    copy.tags[0].addTag("another");
+    copy.comments.comments[0].score = 4;
+    assertTrue(detail.isFavorited);
+    assertEquals(1, detail.tags[0].size());
+    assertEquals(3, detail.comments.comments[0].score);
+  }
+
+  @Test
+  public void testCopyList() {
+    GalleryInfo info = new GalleryInfo();
+    info.gid = 1234;
+    info.title = "title";
+    info.pages = 42;
+    info.simpleTags = new String[] { "language:english" };
+    GalleryListParser.Result result = new GalleryListParser.Result();
+    result.pages = 10;
+    result.nextPage = 1;
+    result.galleryInfoList = new ArrayList<>();
+    result.galleryInfoList.add(info);
+
+    GalleryListParser.Result copy = (GalleryListParser.Result) EhClient.copyResult(result);
+    assertNotSame(result, copy);
+    assertEquals(10, copy.pages);
+    assertEquals(1, copy.nextPage);
+    assertEquals(1, copy.galleryInfoList.size());
+    GalleryInfo copyInfo = copy.galleryInfoList.get(0);
+    assertNotSame(info, copyInfo);
+    assertEquals(1234, copyInfo.gid);
+    assertEquals("title", copyInfo.title);
+    assertEquals(42, copyInfo.pages);
+
+    // Changes to the copy don't leak
+    copyInfo.simpleTags[0] = "language:chinese";
+    copy.galleryInfoList.clear();
+    assertEquals("language:english", info.simpleTags[0]);
+    assertFalse(result.galleryInfoList.isEmpty());
+  }
+}
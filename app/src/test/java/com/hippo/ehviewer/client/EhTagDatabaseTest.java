@@ -19,8 +19,12 @@ package com.hippo.ehviewer.client;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import android.util.Pair;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.Okio;
 import org.junit.Test;
@@ -32,15 +36,35 @@ import org.robolectric.annotation.Config;
 @RunWith(RobolectricTestRunner.class)
 public class EhTagDatabaseTest {
 
-  @Test
-  public void readTheList() throws IOException {
+  private static EhTagDatabase read() throws IOException {
     InputStream resource = EhTagDatabaseTest.class.getResourceAsStream("EhTagDatabaseTest");
-
-    EhTagDatabase db;
     try (BufferedSource source = Okio.buffer(Okio.source(resource))) {
-      db = new EhTagDatabase("EhTagDatabaseTest", source);
+      return new EhTagDatabase("EhTagDatabaseTest", source);
     }
+  }
+
+  private static EhTagDatabase map() throws IOException {
+    File file = File.createTempFile("EhTagDatabaseTest", null);
+    file.deleteOnExit();
+    InputStream resource = EhTagDatabaseTest.class.getResourceAsStream("EhTagDatabaseTest");
+    try (BufferedSource source = Okio.buffer(Okio.source(resource));
+         BufferedSink sink = Okio.buffer(Okio.sink(file))) {
+      sink.writeAll(source);
+    }
+    return new EhTagDatabase("EhTagDatabaseTest", file);
+  }
+
+  @Test
+  public void readTheList() throws IOException {
+    assertTranslations(read());
+  }
+
+  @Test
+  public void mapTheList() throws IOException {
+    assertTranslations(map());
+  }
 
+  private static void assertTranslations(EhTagDatabase db) {
     assertEquals("a", db.getTranslation("1"));
     assertEquals("ab", db.getTranslation("12"));
     assertEquals("abc", db.getTranslation("123"));
@@ -50,5 +74,29 @@ public class EhTagDatabaseTest {
     assertEquals("123", db.getTranslation("abc"));
     assertEquals("1234", db.getTranslation("abcd"));
     assertNull(db.getTranslation("21"));
+    assertNull(db.getTranslation(""));
+    assertNull(db.getTranslation("0"));
+    assertNull(db.getTranslation("abcde"));
+    // Cached
+    assertEquals("abc", db.getTranslation("123"));
+    assertNull(db.getTranslation("21"));
+  }
+
+  @Test
+  public void suggest() throws IOException {
+    EhTagDatabase db = map();
+
+    List<Pair<String, String>> result = db.suggest("12", 10);
+    assertEquals(3, result.size());
+    assertEquals("12", result.get(0).first);
+    assertEquals("ab", result.get(0).second);
+    assertEquals("123", result.get(1).first);
+    assertEquals("1234", result.get(2).first);
+    assertEquals("abcd", result.get(2).second);
+
+    assertEquals(2, db.suggest("ab", 2).size());
+    assertEquals(8, db.suggest("", 10).size());
+    assertEquals(0, db.suggest("2", 10).size());
+    assertEquals(0, db.suggest("abcde", 10).size());
   }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+import com.hippo.ehviewer.dao.Filter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class FilterSnapshotTest {
+
+  private static final String TAG = FilterSnapshotTest.class.getSimpleName();
+
+  private static final String[] NAMESPACES = {
+      "artist", "character", "female", "group", "language", "male", "parody",
+  };
+
+  private static Filter filter(String text, boolean enable) {
+    Filter filter = new Filter();
+    filter.text = text;
+    filter.enable = enable;
+    return filter;
+  }
+
+  private static List<Filter> filters(String... texts) {
+    List<Filter> list = new ArrayList<>();
+    for (String text : texts) {
+      list.add(filter(text, true));
+    }
+    return list;
+  }
+
+  private static List<Filter> none() {
+    return Collections.emptyList();
+  }
+
+  @Test
+  public void testTitle() {
+    List<Filter> titles = filters("he", "she", "his", "hers");
+    titles.add(filter("disabled", false));
+    FilterSnapshot snapshot = new FilterSnapshot(titles, none(), none(), none());
+
+    assertTrue(snapshot.matchTitle("ushers"));
+    assertTrue(snapshot.matchTitle("ahishers"));
+    assertTrue(snapshot.matchTitle("xxhe"));
+    assertFalse(snapshot.matchTitle("hi"));
+    assertFalse(snapshot.matchTitle("sh"));
+    assertFalse(snapshot.matchTitle("disabled"));
+    assertFalse(snapshot.matchTitle(""));
+    assertFalse(snapshot.matchTitle(null));
+
+    snapshot = new FilterSnapshot(filters(""), none(), none(), none());
+    assertTrue(snapshot.matchTitle("anything"));
+  }
+
+  @Test
+  public void testUploader() {
+    FilterSnapshot snapshot = new FilterSnapshot(none(), filters("Uploader"), none(), none());
+    assertTrue(snapshot.matchUploader("Uploader"));
+    assertFalse(snapshot.matchUploader("uploader"));
+    assertFalse(snapshot.matchUploader(null));
+  }
+
+  @Test
+  public void testTag() {
+    FilterSnapshot snapshot = new FilterSnapshot(none(), none(),
+        filters("female:a", "b"), filters("artist"));
+
+    assertTrue(snapshot.matchTag(new String[] {"female:a"}));
+    assertFalse(snapshot.matchTag(new String[] {"male:a"}));
+    // Tag without namespace matches filters of any namespace
+    assertTrue(snapshot.matchTag(new String[] {"a"}));
+    // Filter without namespace matches tags of any namespace
+    assertTrue(snapshot.matchTag(new String[] {"male:b"}));
+    assertTrue(snapshot.matchTag(new String[] {"b"}));
+    assertFalse(snapshot.matchTag(new String[] {"c", "male:c"}));
+    assertFalse(snapshot.matchTag(null));
+
+    assertTrue(snapshot.matchTagNamespace(new String[] {"parody:x", "artist:y"}));
+    assertFalse(snapshot.matchTagNamespace(new String[] {"artist"}));
+    assertFalse(snapshot.matchTagNamespace(null));
+  }
+
+  private static String randomWord(Random random) {
+    int length = 2 + random.nextInt(5);
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      // A small alphabet makes matches and fail links common
+      sb.append((char) ('a' + random.nextInt(6)));
+    }
+    return sb.toString();
+  }
+
+  private static String randomTag(Random random) {
+    String word = randomWord(random);
+    return random.nextInt(4) == 0 ? word : NAMESPACES[random.nextInt(NAMESPACES.length)] + ":" + word;
+  }
+
+  // The straightforward matching EhFilter did before
+  private static boolean naiveMatchTitle(List<Filter> filters, String title) {
+    for (Filter filter : filters) {
+      if (filter.enable && title.contains(filter.text)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean naiveMatchTag(List<Filter> filters, String[] tags) {
+    for (String tag : tags) {
+      int index = tag.indexOf(':');
+      String tagNamespace = index < 0 ? null : tag.substring(0, index);
+      String tagName = index < 0 ? tag : tag.substring(index + 1);
+      for (Filter filter : filters) {
+        if (!filter.enable) {
+          continue;
+        }
+        index = filter.text.indexOf(':');
+        String filterNamespace = index < 0 ? null : filter.text.substring(0, index);
+        String filterName = index < 0 ? filter.text : filter.text.substring(index + 1);
+        if ((tagNamespace == null || filterNamespace == null || tagNamespace.equals(filterNamespace)) &&
+            tagName.equals(filterName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testRandom() {
+    Random random = new Random(7);
+    for (int round = 0; round < 50; round++) {
+      List<Filter> titles = new ArrayList<>();
+      List<Filter> tags = new ArrayList<>();
+      for (int i = 0, n = random.nextInt(30); i < n; i++) {
+        titles.add(filter(randomWord(random), random.nextInt(5) != 0));
+        tags.add(filter(randomTag(random), random.nextInt(5) != 0));
+      }
+      FilterSnapshot snapshot = new FilterSnapshot(titles, none(), tags, none());
+
+      for (int i = 0; i < 200; i++) {
+        String title = randomWord(random) + randomWord(random) + randomWord(random);
+        assertEquals(title, naiveMatchTitle(titles, title), snapshot.matchTitle(title));
+        String[] galleryTags = {randomTag(random), randomTag(random), randomTag(random)};
+        assertEquals(naiveMatchTag(tags, galleryTags), snapshot.matchTag(galleryTags));
+      }
+    }
+  }
+
+  @Ignore("Benchmark, run it manually")
+  @Test
+  public void benchmark() {
+    Random random = new Random(11);
+    String[] titles = new String[1000];
+    String[][] galleryTags = new String[titles.length][];
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = (randomWord(random) + " " + randomWord(random) + " " + randomWord(random)
+          + " " + randomWord(random) + " " + randomWord(random)).toLowerCase(Locale.US);
+      galleryTags[i] = new String[20];
+      for (int j = 0; j < galleryTags[i].length; j++) {
+        galleryTags[i][j] = randomTag(random);
+      }
+    }
+
+    for (int size : new int[] {10, 100, 1000, 10000}) {
+      List<Filter> titleFilters = new ArrayList<>();
+      List<Filter> tagFilters = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        // Long words, so that most galleries pass like in real use
+        titleFilters.add(filter(randomWord(random) + randomWord(random), true));
+        tagFilters.add(filter(randomTag(random) + randomWord(random), true));
+      }
+
+      long start = System.nanoTime();
+      FilterSnapshot snapshot = new FilterSnapshot(titleFilters, none(), tagFilters, none());
+      long build = System.nanoTime() - start;
+
+      int naiveHits = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < titles.length; i++) {
+        if (naiveMatchTitle(titleFilters, titles[i]) || naiveMatchTag(tagFilters, galleryTags[i])) {
+          naiveHits++;
+        }
+      }
+      long naive = System.nanoTime() - start;
+
+      int hits = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < titles.length; i++) {
+        if (snapshot.matchTitle(titles[i]) || snapshot.matchTag(galleryTags[i])) {
+          hits++;
+        }
+      }
+      long compiled = System.nanoTime() - start;
+
+      assertEquals(naiveHits, hits);
+      Log.i(TAG, String.format(Locale.US,
+          "%d filters: build %.2f ms, linear %.2f ms, snapshot %.2f ms for %d galleries",
+          size, build / 1e6, naive / 1e6, compiled / 1e6, titles.length));
+    }
+  }
+}
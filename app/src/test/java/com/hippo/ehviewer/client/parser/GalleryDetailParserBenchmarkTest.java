@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Compares the Jsoup and regular expression parser the detail page used to have
+ * with the single scan.
+ */
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class GalleryDetailParserBenchmarkTest {
+
+  @Ignore("Benchmark, run it manually")
+  @Test
+  public void benchmark() throws Exception {
+    Charset utf8 = Charset.forName("UTF-8");
+    byte[][] details = {
+        GalleryDetailParserTest.buildDetailPage("").getBytes(utf8),
+    };
+    String[] bodies = {
+        GalleryDetailParserTest.buildPreviewPage(1000, 40, 0),
+        GalleryDetailParserTest.buildPreviewPage(1000, 40, 12),
+        GalleryDetailParserTest.buildPreviewPage(1000, 20, 30),
+    };
+    byte[][] previews = new byte[bodies.length][];
+    for (int i = 0; i < bodies.length; i++) {
+      previews[i] = bodies[i].getBytes(utf8);
+    }
+
+    // Make sure it works before timing
+    for (byte[] detail : details) {
+      String body = new String(detail, utf8);
+      assertEquals(LegacyGalleryDetailParser.parse(body).title, GalleryDetailParser.parse(body).title);
+    }
+    for (String body : bodies) {
+      assertEquals(1000, GalleryDetailParser.parsePreviews(body).pages);
+    }
+
+    ParserBenchmark.measure("Detail, baseline", details, bytes -> {
+      LegacyGalleryDetailParser.parse(new String(bytes, utf8));
+    });
+    ParserBenchmark.measure("Detail, single scan", details, bytes -> {
+      GalleryDetailParser.parse(new String(bytes, utf8));
+    });
+    ParserBenchmark.measure("Previews, baseline", previews, bytes -> {
+      String body = new String(bytes, utf8);
+      LegacyGalleryDetailParser.parsePreviewSet(body);
+      LegacyGalleryDetailParser.parsePreviewPages(body);
+    });
+    ParserBenchmark.measure("Previews, single scan", previews, bytes -> {
+      GalleryDetailParser.parsePreviews(new String(bytes, utf8));
+    });
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.hippo.ehviewer.client.EhConfig;
+import com.hippo.ehviewer.client.data.GalleryComment;
+import com.hippo.ehviewer.client.data.GalleryCommentList;
+import com.hippo.ehviewer.client.data.GalleryDetail;
+import com.hippo.ehviewer.client.data.GalleryTagGroup;
+import com.hippo.ehviewer.client.data.NormalPreviewSet;
+import com.hippo.ehviewer.client.data.PreviewSet;
+import com.hippo.ehviewer.client.exception.EhException;
+import com.hippo.ehviewer.client.exception.ParseException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class GalleryDetailParserTest {
+
+  private static void appendNormalPreviews(StringBuilder sb, int start, int end) {
+    for (int i = start; i < end; i++) {
+      sb.append("<div class=\"gdtm\" style=\"height:170px\"><div style=\"margin:1px auto 0; width:100px; height:143px; background:transparent url(https://ehgt.org/m/001363/1363978-0")
+          .append(i / 20).append(".jpg) -").append(i % 20 * 100).append("px 0 no-repeat\"><a href=\"https://e-hentai.org/s/abcdef0123/1363978-")
+          .append(i + 1).append("\"><img alt=\"").append(i + 1).append("\" title=\"Page ").append(i + 1)
+          .append("\" src=\"https://ehgt.org/g/blank.gif\" /></a></div></div>");
+    }
+  }
+
+  private static String buildComments() {
+    return "<div id=\"cdiv\" class=\"gm\">\n"
+        + "<a name=\"c0\"></a>\n<div class=\"c1\"><div class=\"c2\"><div class=\"c3\">Posted on 16 February 2019, 05:09 UTC by: &nbsp; "
+        + "<a href=\"https://e-hentai.org/uploader/someone\">some one</a>&nbsp; &nbsp; <a href=\"https://forums.e-hentai.org/index.php?showuser=1\"><img class=\"ygm\" src=\"https://ehgt.org/g/ygm.png\" alt=\"PM\" /></a></div>"
+        + "<div class=\"c4 nosel\">Uploader Comment</div><div class=\"c\"></div></div>"
+        + "<div class=\"c6\" id=\"comment_0\">Source: <a href=\"https://example.com/?a=1&amp;b=2\">link</a><br />Line two &amp; more</div></div>\n"
+        + "<a name=\"c3012345\"></a>\n<div class=\"c1\"><div class=\"c2\"><div class=\"c3\">Posted on 17 February 2019, 10:22 UTC by: &nbsp; "
+        + "<a href=\"https://e-hentai.org/uploader/other\">other</a>&nbsp; &nbsp; <a href=\"#\"><img class=\"ygm\" src=\"https://ehgt.org/g/ygm.png\" alt=\"PM\" /></a></div>"
+        + "<div class=\"c4 nosel\">[<a id=\"comment_vote_up_3012345\" style=\"color:blue\" href=\"#\" onclick=\"vote_comment_up(3012345); return false\">Vote+</a>] &nbsp; "
+        + "[<a id=\"comment_vote_down_3012345\" style=\"\" href=\"#\" onclick=\"vote_comment_down(3012345); return false\">Vote-</a>]</div>"
+        + "<div class=\"c5 nosel\">Score <span id=\"comment_score_3012345\" style=\"opacity:1.0\">+18</span></div><div class=\"c\"></div></div>"
+        + "<div class=\"c6\" id=\"comment_3012345\">Nice!<br /><br />Thanks &lt;3</div>"
+        + "<div class=\"c7\" id=\"cvotes_3012345\" style=\"display:none\">Base +3, <span>a +5</span>, <span>b +10</span></div></div>\n"
+        + "<div id=\"chd\"><p>There are 4 more comments below the lowest-rated comment. "
+        + "<a href=\"https://e-hentai.org/g/1363978/0123456789/?hc=1#comments\" onclick=\"return expand_comments()\">click to show all</a>.</p> </div>\n"
+        + "</div>\n";
+  }
+
+  /**
+   * Builds a whole gallery detail page, with normal previews.
+   */
+  static String buildDetailPage(String previewMarkup) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><title>Some &amp; Title - E-Hentai Galleries</title>\n<script type=\"text/javascript\">\n")
+        .append("var gid = 1363978;\nvar token = \"0123456789\";\n")
+        .append("var apiuid = 1234567;\nvar apikey = \"abcdef0123\";\nvar average_rating = 4.69;\n</script></head><body>\n");
+    sb.append("<div class=\"gm\"><div id=\"gleft\"><div id=\"gd1\"><div style=\"width:250px; height:354px; background:transparent url(https://ehgt.org/t/fe/1f/fe1f-145921-1050-1492-jpg_250.jpg) no-repeat\"></div></div></div>\n")
+        .append("<div id=\"gd2\"><h1 id=\"gn\">[Artist] Some &amp; Title  (Chinese)</h1><h1 id=\"gj\">[\u30a2\u30fc\u30c6\u30a3\u30b9\u30c8] \u30bf\u30a4\u30c8\u30eb</h1></div>\n")
+        .append("<div id=\"gmid\"><div id=\"gd3\"><div id=\"gdc\"><div class=\"cs ct2\" onclick=\"document.location='https://e-hentai.org/doujinshi'\">Doujinshi</div></div>")
+        .append("<div id=\"gdn\"><a href=\"https://e-hentai.org/uploader/someone\">some one</a>&nbsp; <a href=\"https://forums.e-hentai.org/index.php?showuser=1\"><img class=\"ygm\" src=\"https://ehgt.org/g/ygm.png\" alt=\"PM\" /></a></div>\n")
+        .append("<div id=\"gdd\"><table>")
+        .append("<tr><td class=\"gdt1\">Posted:</td><td class=\"gdt2\">2019-02-16 05:09</td></tr>")
+        .append("<tr><td class=\"gdt1\">Parent:</td><td class=\"gdt2\"><a href=\"https://e-hentai.org/g/1363940/aaaa/\">1363940</a></td></tr>")
+        .append("<tr><td class=\"gdt1\">Visible:</td><td class=\"gdt2\">Yes</td></tr>")
+        .append("<tr><td class=\"gdt1\">Language:</td><td class=\"gdt2\">Chinese &nbsp;<span class=\"halp\" title=\"This gallery has been translated from the original language text.\">TR</span></td></tr>")
+        .append("<tr><td class=\"gdt1\">File Size:</td><td class=\"gdt2\">42.64 MB</td></tr>")
+        .append("<tr><td class=\"gdt1\">Length:</td><td class=\"gdt2\">44 pages</td></tr>")
+        .append("<tr><td class=\"gdt1\">Favorited:</td><td class=\"gdt2\" id=\"favcount\">312 times</td></tr>")
+        .append("</table></div>\n")
+        .append("<div id=\"gdr\"><table><tr><td id=\"grt1\">Rating:</td><td id=\"grt2\"><div id=\"rating_image\" class=\"ir irb\"></div></td>")
+        .append("<td id=\"grt3\"><span id=\"rating_count\">76</span></td></tr><tr><td id=\"rating_label\" colspan=\"3\">Average: 4.69</td></tr></table></div>\n")
+        .append("<div id=\"gdf\"><div style=\"float:left\"><a id=\"favoritelink\" href=\"#\" onclick=\"return false\">Add to Favorites</a></div><div class=\"c\"></div></div>\n")
+        .append("</div>\n<div id=\"taglist\"><table>")
+        .append("<tr><td class=\"tc\">language:</td><td><div id=\"td_language:chinese\" class=\"gt\" style=\"opacity:1.0\"><a id=\"ta_language:chinese\" href=\"https://e-hentai.org/tag/language:chinese\" onclick=\"return toggle_tagmenu('language:chinese',this)\">chinese</a></div>")
+        .append("<div id=\"td_language:translated\" class=\"gtl\" style=\"opacity:1.0\"><a id=\"ta_language:translated\" href=\"#\" onclick=\"return false\">translated</a></div></td></tr>")
+        .append("<tr><td class=\"tc\">parody:</td><td><div class=\"gt\"><a href=\"#\">some parody | english name</a></div></td></tr>")
+        .append("<tr><td class=\"tc\">female:</td><td><div class=\"gtw\"><a href=\"#\">big breasts</a></div><div class=\"gt\"><a href=\"#\">glasses</a></div></td></tr>")
+        .append("</table></div>\n</div>\n")
+        .append("<div id=\"gd5\"><p class=\"g2 gsp\"><img src=\"https://ehgt.org/g/mr.gif\" /> <a href=\"#\" onclick=\"return popUp('https://e-hentai.org/archiver.php?gid=1363978&amp;token=0123456789&amp;or=abc',480,320)\">Archive Download</a></p>")
+        .append("<p class=\"g2\"><img src=\"https://ehgt.org/g/mr.gif\" /> <a href=\"#\" onclick=\"return popUp('https://e-hentai.org/gallerytorrents.php?gid=1363978&amp;t=0123456789',610,590)\">Torrent Download ( 2 )</a></p></div>\n")
+        .append("<div class=\"c\"></div></div>\n");
+
+    String ptt = "<table class=\"ptt\"><tr><td class=\"ptds\"><a href=\"https://e-hentai.org/g/1363978/0123456789/\" onclick=\"return false\">1</a></td>"
+        + "<td onclick=\"document.location=this.firstChild.href\"><a href=\"https://e-hentai.org/g/1363978/0123456789/?p=1\" onclick=\"return false\">2</a></td>"
+        + "<td onclick=\"document.location=this.firstChild.href\"><a href=\"https://e-hentai.org/g/1363978/0123456789/?p=1\" onclick=\"return false\">&gt;</a></td></tr></table>";
+    sb.append("<div class=\"gtb\"><p class=\"gpc\">Showing 1 - 40 of 44 images</p>").append(ptt).append("</div>\n<div id=\"gdt\">")
+        .append(previewMarkup);
+    appendNormalPreviews(sb, 0, 40);
+    sb.append("<div class=\"c\"></div></div>\n<div class=\"gtb\">").append(ptt).append("</div>\n");
+    sb.append(buildComments()).append("</body></html>");
+    return sb.toString();
+  }
+
+  /**
+   * Builds a preview page like the one of a gallery detail, with normal previews.
+   */
+  static String buildPreviewPage(int pages, int previewPerPage, int previewIndex) {
+    int previewPages = (pages + previewPerPage - 1) / previewPerPage;
+    StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><script type=\"text/javascript\">\n")
+        .append("var gid = 1363978;\nvar token = \"0123456789\";\n")
+        .append("var apiuid = -1;\nvar apikey = \"abcdef0123\";\n</script></head><body>\n");
+    sb.append("<div id=\"gdd\"><table>")
+        .append("<tr><td class=\"gdt1\">Posted:</td><td class=\"gdt2\">2019-02-16 05:09</td></tr>")
+        .append("<tr><td class=\"gdt1\">Length:</td><td class=\"gdt2\">").append(pages).append(" pages</td></tr>")
+        .append("</table></div>\n");
+
+    StringBuilder ptt = new StringBuilder();
+    ptt.append("<table class=\"ptt\"><tr><td class=\"ptdd\">&lt;</td>");
+    for (int i = 0; i < previewPages; i++) {
+      ptt.append("<td onclick=\"document.location=this.firstChild.href\"><a href=\"https://e-hentai.org/g/1363978/0123456789/?p=")
+          .append(i).append("\" onclick=\"return false\">").append(i + 1).append("</a></td>");
+    }
+    ptt.append("<td onclick=\"document.location=this.firstChild.href\"><a href=\"https://e-hentai.org/g/1363978/0123456789/?p=1\" onclick=\"return false\">&gt;</a></td></tr></table>\n");
+
+    sb.append(ptt).append("<div id=\"gdt\">");
+    int start = previewIndex * previewPerPage;
+    int end = Math.min(start + previewPerPage, pages);
+    appendNormalPreviews(sb, start, end);
+    sb.append("<div class=\"c\"></div></div>\n").append(ptt).append("</body></html>");
+    return sb.toString();
+  }
+
+  @Test
+  public void testParsePreviews() throws Exception {
+    String body = buildPreviewPage(44, 40, 1);
+
+    GalleryDetailParser.Previews previews = GalleryDetailParser.parsePreviews(body);
+    assertEquals(44, previews.pages);
+    assertEquals(2, previews.previewPages);
+    PreviewSet previewSet = previews.previewSet;
+    assertEquals(4, previewSet.size());
+    assertEquals(40, previewSet.getPosition(0));
+    assertEquals("https://e-hentai.org/s/abcdef0123/1363978-41", previewSet.getPageUrlAt(0));
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    GalleryDetail gd = GalleryDetailParser.parse(buildDetailPage(""));
+
+    assertEquals(1363978, gd.gid);
+    assertEquals("0123456789", gd.token);
+    assertEquals(1234567, gd.apiUid);
+    assertEquals("abcdef0123", gd.apiKey);
+    assertEquals("https://e-hentai.org/gallerytorrents.php?gid=1363978&t=0123456789", gd.torrentUrl);
+    assertEquals(2, gd.torrentCount);
+    assertEquals("https://e-hentai.org/archiver.php?gid=1363978&token=0123456789&or=abc", gd.archiveUrl);
+    assertEquals("https://ehgt.org/t/fe/1f/fe1f-145921-1050-1492-jpg_250.jpg", gd.thumb);
+    assertEquals("[Artist] Some & Title (Chinese)", gd.title);
+    assertEquals("[\u30a2\u30fc\u30c6\u30a3\u30b9\u30c8] \u30bf\u30a4\u30c8\u30eb", gd.titleJpn);
+    assertEquals(EhConfig.DOUJINSHI, gd.category);
+    assertEquals("some one", gd.uploader);
+    assertEquals("2019-02-16 05:09", gd.posted);
+    assertEquals("https://e-hentai.org/g/1363940/aaaa/", gd.parent);
+    assertEquals("Yes", gd.visible);
+    assertEquals("Chinese", gd.language);
+    assertEquals("42.64 MB", gd.size);
+    assertEquals(44, gd.pages);
+    assertEquals(312, gd.favoriteCount);
+    assertEquals(76, gd.ratingCount);
+    assertEquals(4.69f, gd.rating, 0.001f);
+    assertFalse(gd.isFavorited);
+
+    assertEquals(3, gd.tags.length);
+    GalleryTagGroup group = gd.tags[0];
+    assertEquals("language", group.groupName);
+    assertEquals(2, group.size());
+    assertEquals("chinese", group.getTagAt(0));
+    assertEquals("translated", group.getTagAt(1));
+    assertEquals("some parody", gd.tags[1].getTagAt(0));
+    assertEquals("glasses", gd.tags[2].getTagAt(1));
+
+    assertEquals(2, gd.previewPages);
+    assertTrue(gd.previewSet instanceof NormalPreviewSet);
+    assertEquals(40, gd.previewSet.size());
+    assertEquals("https://e-hentai.org/s/abcdef0123/1363978-40", gd.previewSet.getPageUrlAt(39));
+
+    assertComments(gd.comments);
+  }
+
+  private static void assertComments(GalleryCommentList list) {
+    assertTrue(list.hasMore);
+    assertEquals(2, list.comments.length);
+
+    GalleryComment comment = list.comments[0];
+    assertEquals(0, comment.id);
+    assertEquals("some one", comment.user);
+    assertEquals(1550293740000L, comment.time);
+    assertFalse(comment.voteUpAble);
+    assertEquals("Source: <a href=\"https://example.com/?a=1&amp;b=2\">link</a><br>Line two &amp; more", comment.comment);
+
+    comment = list.comments[1];
+    assertEquals(3012345, comment.id);
+    assertEquals("other", comment.user);
+    assertEquals(1550398920000L, comment.time);
+    assertEquals(18, comment.score);
+    assertTrue(comment.voteUpAble);
+    assertTrue(comment.voteUpEd);
+    assertTrue(comment.voteDownAble);
+    assertFalse(comment.voteDownEd);
+    assertEquals("Base +3, a +5, b +10", comment.voteState);
+    assertEquals("Nice!<br><br>Thanks &lt;3", comment.comment);
+  }
+
+  @Test
+  public void testParseSameAsLegacy() throws Exception {
+    String body = buildDetailPage("");
+    GalleryDetail expected = LegacyGalleryDetailParser.parse(body);
+    GalleryDetail actual = GalleryDetailParser.parse(body);
+
+    assertEquals(expected.torrentUrl, actual.torrentUrl);
+    assertEquals(expected.archiveUrl, actual.archiveUrl);
+    assertEquals(expected.title, actual.title);
+    assertEquals(expected.titleJpn, actual.titleJpn);
+    assertEquals(expected.category, actual.category);
+    assertEquals(expected.uploader, actual.uploader);
+    assertEquals(expected.language, actual.language);
+    assertEquals(expected.pages, actual.pages);
+    assertEquals(expected.rating, actual.rating, 0.0f);
+    assertEquals(expected.tags.length, actual.tags.length);
+    for (int i = 0; i < expected.tags.length; i++) {
+      assertEquals(expected.tags[i].groupName, actual.tags[i].groupName);
+      assertEquals(expected.tags[i].size(), actual.tags[i].size());
+    }
+    assertEquals(expected.comments.hasMore, actual.comments.hasMore);
+    assertEquals(expected.comments.comments.length, actual.comments.comments.length);
+    for (int i = 0; i < expected.comments.comments.length; i++) {
+      GalleryComment e = expected.comments.comments[i];
+      GalleryComment a = actual.comments.comments[i];
+      assertEquals(e.id, a.id);
+      assertEquals(e.time, a.time);
+      assertEquals(e.score, a.score);
+      // Jsoup pretty prints the html, spaces don't matter to Html.fromHtml()
+      assertEquals(e.comment.replace("\n", ""), a.comment);
+    }
+    assertEquals(expected.previewPages, actual.previewPages);
+    assertEquals(expected.previewSet.size(), actual.previewSet.size());
+  }
+
+  @Test
+  public void testParseFallbackToNormalPreviews() throws Exception {
+    // A large preview that can't be parsed doesn't hide the normal ones
+    GalleryDetail gd = GalleryDetailParser.parse(buildDetailPage(
+        "<div class=\"gdtl\" style=\"height:320px\"><a href=\"https://e-hentai.org/s/abcdef0123/1363978-1\"></a></div>"));
+    assertTrue(gd.previewSet instanceof NormalPreviewSet);
+    assertEquals(40, gd.previewSet.size());
+  }
+
+  @Test
+  public void testParseComments() throws Exception {
+    assertComments(GalleryDetailParser.parseComments(buildDetailPage("")));
+
+    String body = "<html><body>" + buildComments().replace("</div>\n</div>\n",
+        "</div>\n<p class=\"br\">You cannot post comments right now.</p>\n</div>\n") + "</body></html>";
+    try {
+      GalleryDetailParser.parseComments(body);
+      fail();
+    } catch (EhException e) {
+      assertEquals("You cannot post comments right now.", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testParsePreviewsFallbackToNormalPreviews() throws Exception {
+    String body = buildPreviewPage(44, 40, 0).replace("<div id=\"gdt\">",
+        "<div id=\"gdt\"><div class=\"gdtl\" style=\"height:320px\"></div>\n");
+    PreviewSet previewSet = GalleryDetailParser.parsePreviews(body).previewSet;
+    assertTrue(previewSet instanceof NormalPreviewSet);
+    assertEquals(40, previewSet.size());
+  }
+
+  @Test
+  public void testParsePreviewsWithoutPreview() {
+    String body = buildPreviewPage(44, 40, 2);
+    try {
+      GalleryDetailParser.parsePreviews(body);
+      fail();
+    } catch (ParseException e) {
+      // Expected
+    }
+  }
+}
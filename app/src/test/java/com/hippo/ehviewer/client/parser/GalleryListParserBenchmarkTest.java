@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Compares the streaming list parser with the Jsoup parser it replaced.
+ */
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class GalleryListParserBenchmarkTest {
+
+  private static final String[] FILES = {
+      "GalleryListParserTestEMinimal.html",
+      "GalleryListParserTestECompat.html",
+      "GalleryListParserTestEExtended.html",
+      "GalleryListParserTestEThumbnail.html",
+  };
+
+  private static byte[] read(String file) throws Exception {
+    try (BufferedSource source = Okio.buffer(Okio.source(
+        GalleryListParserBenchmarkTest.class.getResourceAsStream(file)))) {
+      return source.readByteArray();
+    }
+  }
+
+  @Ignore("Benchmark, run it manually")
+  @Test
+  public void benchmark() throws Exception {
+    byte[][] pages = new byte[FILES.length][];
+    for (int i = 0; i < FILES.length; i++) {
+      pages[i] = read(FILES[i]);
+    }
+    Charset utf8 = Charset.forName("UTF-8");
+
+    // Make sure it works before timing
+    for (byte[] page : pages) {
+      assertEquals(25, GalleryListParser.parse(new ByteArrayInputStream(page)).galleryInfoList.size());
+      assertEquals(25, LegacyGalleryListParser.parse(new String(page, utf8)).galleryInfoList.size());
+    }
+
+    ParserBenchmark.measure("Baseline", pages, bytes -> {
+      LegacyGalleryListParser.parse(new String(bytes, utf8));
+    });
+    ParserBenchmark.measure("Streaming from string", pages, bytes -> {
+      GalleryListParser.parse(new String(bytes, utf8));
+    });
+    ParserBenchmark.measure("Streaming", pages, bytes -> {
+      GalleryListParser.parse(new ByteArrayInputStream(bytes));
+    });
+  }
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 import com.hippo.ehviewer.client.EhUtils;
+import com.hippo.ehviewer.client.data.GalleryInfo;
 import edu.emory.mathcs.backport.java.util.Arrays;
 import java.io.InputStream;
 import java.util.List;
@@ -107,4 +108,30 @@ public class GalleryListParserTest {
       assertNotEquals(0, gi.pages);
     });
   }
+
+  @Test
+  public void testParseStream() throws Exception {
+    InputStream resource = GalleryPageApiParserTest.class.getResourceAsStream(file);
+    BufferedSource source = Okio.buffer(Okio.source(resource));
+    String body = source.readUtf8();
+
+    GalleryListParser.Result expected = GalleryListParser.parse(body);
+    GalleryListParser.Result result =
+        GalleryListParser.parse(GalleryPageApiParserTest.class.getResourceAsStream(file));
+
+    assertEquals(expected.pages, result.pages);
+    assertEquals(expected.nextPage, result.nextPage);
+    assertEquals(expected.galleryInfoList.size(), result.galleryInfoList.size());
+    for (int i = 0; i < expected.galleryInfoList.size(); i++) {
+      GalleryInfo e = expected.galleryInfoList.get(i);
+      GalleryInfo gi = result.galleryInfoList.get(i);
+      assertEquals(e.gid, gi.gid);
+      assertEquals(e.token, gi.token);
+      assertEquals(e.title, gi.title);
+      assertEquals(e.thumb, gi.thumb);
+      assertEquals(e.posted, gi.posted);
+      assertEquals(e.uploader, gi.uploader);
+      assertEquals(e.pages, gi.pages);
+    }
+  }
 }
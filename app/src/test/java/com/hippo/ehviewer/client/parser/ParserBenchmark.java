@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client.parser;
+
+import android.util.Log;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Times parser tasks and counts bytes allocated by them. It only logs numbers,
+ * they depend on the machine.
+ */
+final class ParserBenchmark {
+
+  private static final String TAG = ParserBenchmark.class.getSimpleName();
+
+  private static final int WARM_UP = 20;
+  private static final int ROUNDS = 100;
+
+  interface Task {
+    void run(byte[] bytes) throws Exception;
+  }
+
+  private ParserBenchmark() {}
+
+  private static long getAllocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  static void measure(String name, byte[][] inputs, Task task) throws Exception {
+    for (int i = 0; i < WARM_UP; i++) {
+      for (byte[] input : inputs) {
+        task.run(input);
+      }
+    }
+
+    long allocated = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      for (byte[] input : inputs) {
+        task.run(input);
+      }
+    }
+    long time = System.nanoTime() - start;
+    allocated = getAllocatedBytes() - allocated;
+
+    int count = ROUNDS * inputs.length;
+    Log.i(TAG, String.format(Locale.US, "%s: %.1f ops/s, %d KB allocated per op",
+        name, count * 1e9 / time, allocated / count / 1024));
+  }
+}
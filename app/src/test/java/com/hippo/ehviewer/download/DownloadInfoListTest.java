@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hippo.ehviewer.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import com.hippo.ehviewer.dao.DownloadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class DownloadInfoListTest {
+
+  private static final Comparator<DownloadInfo> TIME_DESC = (lhs, rhs) -> Long.compare(rhs.time, lhs.time);
+
+  private static DownloadInfo newInfo(long gid) {
+    DownloadInfo info = new DownloadInfo();
+    info.gid = gid;
+    info.time = gid;
+    return info;
+  }
+
+  private static void assertIndexed(DownloadInfoList list) {
+    for (int i = 0; i < list.size(); i++) {
+      assertEquals(i, list.indexOf(list.get(i)));
+      assertEquals(i, list.indexOfGid(list.get(i).gid));
+    }
+  }
+
+  @Test
+  public void testIndex() {
+    DownloadInfoList list = new DownloadInfoList();
+    for (int i = 0; i < 10; i++) {
+      list.add(newInfo(i));
+    }
+    assertIndexed(list);
+
+    DownloadInfo first = newInfo(100);
+    list.add(0, first);
+    assertEquals(0, list.indexOf(first));
+    assertIndexed(list);
+
+    assertTrue(list.remove(list.get(5)));
+    assertEquals(10, list.size());
+    assertIndexed(list);
+
+    assertEquals(-1, list.indexOfGid(4));
+    assertFalse(list.contains(newInfo(3)));
+    assertFalse(list.remove(newInfo(3)));
+  }
+
+  @Test
+  public void testAddSorted() {
+    List<Long> gids = new ArrayList<>();
+    for (long i = 0; i < 100; i++) {
+      gids.add(i);
+    }
+    Collections.shuffle(gids, new Random(7));
+    DownloadInfoList list = new DownloadInfoList();
+    for (long gid : gids) {
+      list.addSorted(newInfo(gid), TIME_DESC);
+    }
+    for (int i = 1; i < list.size(); i++) {
+      assertTrue(list.get(i - 1).time > list.get(i).time);
+    }
+    assertIndexed(list);
+  }
+
+  @Test
+  public void testBatch() {
+    Random random = new Random(3);
+    for (int round = 0; round < 50; round++) {
+      DownloadInfoList list = new DownloadInfoList();
+      long nextGid = 0;
+      for (int i = 0, n = random.nextInt(50); i < n; i++) {
+        list.add(newInfo(nextGid++));
+      }
+
+      // What an adapter shows
+      final List<Long> shown = new ArrayList<>();
+      for (DownloadInfo info : list) {
+        shown.add(info.gid);
+      }
+      final Set<Integer> changed = new HashSet<>();
+
+      list.beginBatch();
+      for (int i = 0, n = random.nextInt(10); i < n; i++) {
+        switch (random.nextInt(4)) {
+          case 0:
+            list.add(random.nextInt(list.size() + 1), newInfo(nextGid++));
+            break;
+          case 1:
+            if (!list.isEmpty()) {
+              list.remove(random.nextInt(list.size()));
+            }
+            break;
+          case 2: {
+            Set<DownloadInfo> set = new HashSet<>();
+            for (DownloadInfo info : list) {
+              if (random.nextInt(3) == 0) {
+                set.add(info);
+              }
+            }
+            list.removeAll(set);
+            break;
+          }
+          case 3:
+            if (!list.isEmpty()) {
+              list.set(random.nextInt(list.size()), newInfo(nextGid++));
+            }
+            break;
+        }
+      }
+      final List<DownloadInfo> current = list;
+      list.endBatch().dispatchUpdatesTo(new ListUpdateCallback() {
+        @Override
+        public void onInserted(int position, int count) {
+          for (int i = 0; i < count; i++) {
+            shown.add(position + i, -1L);
+          }
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+          for (int i = 0; i < count; i++) {
+            shown.remove(position);
+          }
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+          shown.add(toPosition, shown.remove(fromPosition));
+        }
+
+        @Override
+        public void onChanged(int position, int count, @Nullable Object payload) {
+          for (int i = 0; i < count; i++) {
+            shown.set(position + i, -1L);
+          }
+        }
+      });
+
+      // Rebind the inserted and changed items
+      assertEquals(current.size(), shown.size());
+      for (int i = 0; i < shown.size(); i++) {
+        if (shown.get(i) == -1L) {
+          shown.set(i, current.get(i).gid);
+        }
+        assertEquals(current.get(i).gid, (long) shown.get(i));
+      }
+      assertIndexed(list);
+    }
+  }
+}
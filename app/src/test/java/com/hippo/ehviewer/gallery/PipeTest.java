@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PipeTest {
+
+  @Test
+  public void transfer() throws Exception {
+    final byte[] data = new byte[3 * Pipe.MAX_CAPACITY + 12345];
+    new Random(1).nextBytes(data);
+
+    final Pipe pipe = new Pipe();
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        OutputStream os = pipe.getOutputStream();
+        Random random = new Random(2);
+        try {
+          int off = 0;
+          while (off < data.length) {
+            if (random.nextInt(10) == 0) {
+              os.write(data[off++]);
+            } else {
+              int len = Math.min(data.length - off, random.nextInt(200 * 1024) + 1);
+              os.write(data, off, len);
+              off += len;
+            }
+          }
+          os.close();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    writer.start();
+
+    InputStream is = pipe.getInputStream();
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    Random random = new Random(3);
+    byte[] buffer = new byte[32 * 1024];
+    for (;;) {
+      if (random.nextInt(10) == 0) {
+        int b = is.read();
+        if (b == -1) {
+          break;
+        }
+        result.write(b);
+      } else {
+        int n = is.read(buffer, 0, random.nextInt(buffer.length) + 1);
+        if (n == -1) {
+          break;
+        }
+        result.write(buffer, 0, n);
+      }
+    }
+    is.close();
+    writer.join();
+
+    assertArrayEquals(data, result.toByteArray());
+  }
+
+  @Test
+  public void closeInputStreamStopsWriter() throws Exception {
+    Pipe pipe = new Pipe();
+    pipe.getOutputStream().write(new byte[] {1, 2, 3});
+    assertEquals(1, pipe.getInputStream().read());
+    pipe.getInputStream().close();
+    try {
+      pipe.getOutputStream().write(4);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class ImageValidatorTest {
+
+  private static ImageValidator validate(byte[] bytes) throws IOException {
+    ImageValidator validator = new ImageValidator();
+    ByteArrayInputStream is = new ByteArrayInputStream(bytes);
+    validator.readHeader(is);
+    byte[] buffer = new byte[5];
+    int n;
+    while ((n = is.read(buffer)) != -1) {
+      validator.update(buffer, 0, n);
+    }
+    return validator;
+  }
+
+  private static byte[] jpeg(int length) {
+    byte[] bytes = new byte[length];
+    Arrays.fill(bytes, (byte) 0x80);
+    bytes[0] = (byte) 0xFF;
+    bytes[1] = (byte) 0xD8;
+    bytes[2] = (byte) 0xFF;
+    bytes[length - 2] = (byte) 0xFF;
+    bytes[length - 1] = (byte) 0xD9;
+    return bytes;
+  }
+
+  @Test
+  public void testJpeg() throws IOException {
+    ImageValidator validator = validate(jpeg(1000));
+    assertTrue(validator.isImage());
+    assertFalse(validator.isText());
+    assertEquals("jpg", validator.getExtension());
+    assertTrue(validator.isComplete());
+
+    assertFalse(validate(Arrays.copyOf(jpeg(1000), 900)).isComplete());
+  }
+
+  @Test
+  public void testJpegTrailingData() throws IOException {
+    byte[] bytes = Arrays.copyOf(jpeg(1000), 1100);
+    Arrays.fill(bytes, 1000, bytes.length, (byte) 0x20);
+    ImageValidator validator = validate(bytes);
+    // End marker isn't in the tail, but all data is received
+    assertFalse(validator.isComplete());
+    assertTrue(validator.isComplete(bytes.length));
+    assertFalse(validator.isComplete(bytes.length + 1));
+    assertFalse(validator.isComplete(-1));
+  }
+
+  @Test
+  public void testPng() throws IOException {
+    byte[] bytes = new byte[100];
+    byte[] magic = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    System.arraycopy(magic, 0, bytes, 0, magic.length);
+    byte[] end = {'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+    System.arraycopy(end, 0, bytes, bytes.length - end.length, end.length);
+    ImageValidator validator = validate(bytes);
+    assertEquals("png", validator.getExtension());
+    assertTrue(validator.isComplete());
+  }
+
+  @Test
+  public void testText() throws IOException {
+    ImageValidator validator = validate("<html><body>You have exceeded your image viewing limits</body></html>"
+        .getBytes(Charset.forName("UTF-8")));
+    assertFalse(validator.isImage());
+    assertTrue(validator.isText());
+    assertNull(validator.getExtension());
+  }
+}
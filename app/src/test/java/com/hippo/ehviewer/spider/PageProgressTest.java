@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PageProgressTest {
+
+  private static class Recorder implements PageProgress.Callback {
+
+    private final List<long[]> records = new ArrayList<>();
+
+    @Override
+    public void onProgress(int index, long contentLength, long receivedSize, int bytesRead) {
+      records.add(new long[] {index, contentLength, receivedSize, bytesRead});
+    }
+  }
+
+  @Test
+  public void coalesceUpdates() {
+    PageProgress progress = new PageProgress(10);
+    Recorder recorder = new Recorder();
+
+    assertTrue(progress.update(3, 1000, 100, 100, 1000));
+    assertFalse(progress.update(3, 1000, 200, 100, 1010));
+    assertFalse(progress.update(5, -1, 50, 50, 1020));
+    assertFalse(progress.update(3, 1000, 300, 100, 1099));
+    progress.publish(recorder);
+
+    assertEquals(2, recorder.records.size());
+    assertArrayEquals(new long[] {3, 1000, 300, 300}, recorder.records.get(0));
+    assertArrayEquals(new long[] {5, -1, 50, 50}, recorder.records.get(1));
+    assertEquals(0.3f, progress.getPercent(3), 0.0001f);
+    assertEquals(-1.0f, progress.getPercent(5), 0.0001f);
+
+    // Nothing pending
+    recorder.records.clear();
+    progress.publish(recorder);
+    assertEquals(0, recorder.records.size());
+
+    assertTrue(progress.update(5, -1, 80, 30, 1100));
+  }
+
+  @Test
+  public void removeDropsPending() {
+    PageProgress progress = new PageProgress(10);
+    Recorder recorder = new Recorder();
+
+    progress.update(1, 100, 10, 10, 1000);
+    progress.update(2, 100, 10, 10, 1001);
+    progress.update(4, 100, 10, 10, 1002);
+    progress.remove(1);
+    progress.publish(recorder);
+
+    assertEquals(2, recorder.records.size());
+    assertEquals(4, recorder.records.get(0)[0]);
+    assertEquals(2, recorder.records.get(1)[0]);
+  }
+}
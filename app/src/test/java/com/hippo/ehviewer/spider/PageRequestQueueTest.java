@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PageRequestQueueTest {
+
+  private static final PageRequestQueue.PreloadFilter ALL = new PageRequestQueue.PreloadFilter() {
+    @Override
+    public boolean needPreload(int index) {
+      return true;
+    }
+  };
+
+  @Test
+  public void pollByPriority() {
+    PageRequestQueue queue = new PageRequestQueue();
+    queue.setPreload(11, 14, ALL);
+    queue.offer(10, PageRequestQueue.PRIORITY_VISIBLE);
+    queue.offer(5, PageRequestQueue.PRIORITY_VISIBLE);
+    queue.offer(7, PageRequestQueue.PRIORITY_FORCE);
+    // Already queued
+    queue.offer(10, PageRequestQueue.PRIORITY_VISIBLE);
+    queue.offer(-1, PageRequestQueue.PRIORITY_VISIBLE);
+    // Move preload page forward
+    queue.offer(13, PageRequestQueue.PRIORITY_VISIBLE);
+
+    assertEquals(6, queue.size());
+    assertEquals(PageRequestQueue.PRIORITY_FORCE, queue.peekPriority());
+    assertEquals(7, queue.poll());
+    assertEquals(10, queue.poll());
+    assertEquals(5, queue.poll());
+    assertEquals(13, queue.poll());
+    assertEquals(PageRequestQueue.PRIORITY_PRELOAD, queue.peekPriority());
+    assertEquals(11, queue.poll());
+    assertEquals(12, queue.poll());
+    assertTrue(queue.isEmpty());
+    assertEquals(-1, queue.poll());
+  }
+
+  @Test
+  public void dropStalePreload() {
+    PageRequestQueue queue = new PageRequestQueue();
+    queue.setPreload(1, 6, ALL);
+    queue.offer(3, PageRequestQueue.PRIORITY_VISIBLE);
+    queue.setPreload(1001, 1006, ALL);
+
+    // Visible request is kept
+    assertTrue(queue.contains(3));
+    assertFalse(queue.contains(1));
+    assertFalse(queue.contains(5));
+    assertEquals(6, queue.size());
+
+    queue.remove(1003);
+    assertEquals(3, queue.poll());
+    assertEquals(1001, queue.poll());
+    assertEquals(1002, queue.poll());
+    assertEquals(1004, queue.poll());
+    assertEquals(1005, queue.poll());
+  }
+
+  @Test
+  public void heapOrder() {
+    PageRequestQueue queue = new PageRequestQueue();
+    Random random = new Random(7);
+    boolean[] queued = new boolean[2000];
+    for (int i = 0; i < 5000; i++) {
+      int index = random.nextInt(queued.length);
+      if (random.nextInt(3) == 0) {
+        queue.remove(index);
+        queued[index] = false;
+      } else {
+        queue.offer(index, random.nextInt(2));
+        queued[index] = true;
+      }
+    }
+    int count = 0;
+    for (boolean b : queued) {
+      if (b) {
+        count++;
+      }
+    }
+    assertEquals(count, queue.size());
+
+    int lastPriority = 0;
+    while (!queue.isEmpty()) {
+      int priority = queue.peekPriority();
+      assertTrue(priority >= lastPriority);
+      lastPriority = priority;
+      assertTrue(queued[queue.poll()]);
+    }
+  }
+}
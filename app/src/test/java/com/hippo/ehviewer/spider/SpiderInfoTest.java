@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@Config(manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SpiderInfoTest {
+
+  private static SpiderInfo newSpiderInfo(int pages) {
+    SpiderInfo info = new SpiderInfo();
+    info.gid = 123456;
+    info.token = "abcdef0123";
+    info.pages = pages;
+    info.previewPages = (pages + 39) / 40;
+    info.previewPerPage = 40;
+    info.startPage = 7;
+    info.pTokenMap = new SparseArray<>(pages);
+    return info;
+  }
+
+  private static SpiderInfo read(byte[] bytes) {
+    return SpiderInfo.read(new ByteArrayInputStream(bytes));
+  }
+
+  private static void assertSame(SpiderInfo expected, SpiderInfo actual) {
+    assertNotNull(actual);
+    assertEquals(expected.gid, actual.gid);
+    assertEquals(expected.token, actual.token);
+    assertEquals(expected.pages, actual.pages);
+    assertEquals(expected.previewPages, actual.previewPages);
+    assertEquals(expected.previewPerPage, actual.previewPerPage);
+    assertEquals(expected.startPage, actual.startPage);
+    assertEquals(expected.pTokenMap.size(), actual.pTokenMap.size());
+    for (int i = 0; i < expected.pTokenMap.size(); i++) {
+      assertEquals(expected.pTokenMap.keyAt(i), actual.pTokenMap.keyAt(i));
+      assertEquals(expected.pTokenMap.valueAt(i), actual.pTokenMap.valueAt(i));
+    }
+  }
+
+  @Test
+  public void readVersion2Text() {
+    SpiderInfo info = newSpiderInfo(100);
+    for (int i = 0; i < 40; i++) {
+      info.pTokenMap.put(i, "ptoken" + i);
+    }
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    info.writeText(os);
+
+    assertSame(info, read(os.toByteArray()));
+  }
+
+  @Test
+  public void readBinaryWithJournal() {
+    SpiderInfo info = newSpiderInfo(100);
+    for (int i = 0; i < 40; i++) {
+      info.putPToken(i, "ptoken" + i);
+    }
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    info.write(os);
+    assertFalse(info.hasJournal());
+
+    for (int i = 40; i < 80; i++) {
+      info.putPToken(i, "ptoken" + i);
+    }
+    info.putPToken(80, SpiderInfo.TOKEN_FAILED);
+    info.putStartPage(42);
+    assertTrue(info.hasJournal());
+    info.writeJournal(os);
+    assertFalse(info.hasJournal());
+
+    // Failed pToken isn't saved
+    info.pTokenMap.remove(80);
+    assertSame(info, read(os.toByteArray()));
+  }
+
+  @Test
+  public void skipIncompleteJournalRecord() {
+    SpiderInfo info = newSpiderInfo(100);
+    info.putPToken(0, "ptoken0");
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    info.write(os);
+    info.putPToken(1, "ptoken1");
+    info.writeJournal(os);
+    int size = os.size();
+    info.putPToken(2, "ptoken2");
+    info.writeJournal(os);
+
+    byte[] bytes = os.toByteArray();
+    SpiderInfo result = read(Arrays.copyOf(bytes, size + 3));
+    assertNotNull(result);
+    assertEquals("ptoken0", result.pTokenMap.get(0));
+    assertEquals("ptoken1", result.pTokenMap.get(1));
+    assertNull(result.pTokenMap.get(2));
+  }
+
+  @Test
+  public void keepJournalIfAppendFails() {
+    SpiderInfo info = newSpiderInfo(100);
+    info.putPToken(0, "ptoken0");
+    info.write(new ByteArrayOutputStream());
+
+    info.putPToken(1, "ptoken1");
+    long written = info.writeJournal(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("No space left");
+      }
+    });
+    assertEquals(-1, written);
+    assertTrue(info.hasJournal());
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    written = info.writeJournal(os);
+    assertEquals(os.size(), written);
+    assertFalse(info.hasJournal());
+  }
+
+  @Test
+  public void compactAfterEnoughRecords() {
+    SpiderInfo info = newSpiderInfo(1000);
+    for (int i = 0; i < 100; i++) {
+      info.putPToken(i, "ptoken" + i);
+    }
+    info.write(new ByteArrayOutputStream());
+    assertFalse(info.shouldCompact());
+
+    for (int i = 100; i < 199; i++) {
+      info.putPToken(i, "ptoken" + i);
+    }
+    assertFalse(info.shouldCompact());
+    info.putPToken(199, "ptoken199");
+    assertTrue(info.shouldCompact());
+  }
+}